@@ -0,0 +1,115 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.testing.UnsupportedDocIdPusher;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of writing the HTML of folders, lists and sites, which have a
+ * link for each child.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlResponseWriterBenchmark {
+  private static final String FOLDER
+      = "http://localhost:1/sites/SiteCollection/Shared Documents/Folder";
+
+  /** Number of links written for each document. */
+  @Param({"100", "10000"})
+  public int links;
+
+  private final DocIdPusher docIdPusher = new UnsupportedDocIdPusher();
+  private final MockAdaptorContext context
+      = new MockAdaptorContext(new Config(), docIdPusher);
+  private final ExecutorService executor = new CallerRunsExecutor();
+  private final URI base = URI.create(
+      "http://localhost:1/sites/SiteCollection/Shared%20Documents/Folder");
+  private final URI sibling = URI.create("http://localhost:1/sites/"
+      + "SiteCollection/Shared%20Documents/Other/File%20%3C1%3E.docx");
+  private DocId folder;
+  private DocId[] children;
+
+  @Setup
+  public void setUp() {
+    folder = new DocId(FOLDER);
+    children = new DocId[links];
+    for (int i = 0; i < links; i++) {
+      children[i] = new DocId(FOLDER + "/File \"" + i + "\" & <notes>.docx");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public HtmlResponseWriter writeFolder() throws IOException {
+    // Discard the output, so only the writer is measured.
+    HtmlResponseWriter writer = new HtmlResponseWriter(new NullOutputStream(),
+        Charset.forName("UTF-8"), context.getDocIdEncoder(), Locale.ENGLISH,
+        Long.MAX_VALUE, docIdPusher, executor);
+    writer.start(folder, ObjectType.FOLDER, null);
+    writer.startSection(ObjectType.LIST_ITEM);
+    for (DocId child : children) {
+      writer.addLink(child, null);
+    }
+    writer.finish();
+    writer.close();
+    return writer;
+  }
+
+  @Benchmark
+  public URI relativize() {
+    return HtmlResponseWriter.relativize(base, sibling);
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
@@ -0,0 +1,332 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocRequest;
+import com.google.enterprise.adaptor.StatusSource;
+import com.google.enterprise.adaptor.sharepoint.SamlAuthenticationHandler.SamlHandshakeManager;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.HttpClient;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.ThreadPoolFactory;
+import com.google.enterprise.adaptor.testing.RecordingDocIdPusher;
+import com.google.enterprise.adaptor.testing.RecordingResponse;
+
+import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationSoap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crawls a {@link SyntheticFarm} with the adaptor and reports the throughput,
+ * latency, SOAP calls and heap use of each phase: a full listing with
+ * getDocIds, an incremental listing with getModifiedDocIds and retrieving
+ * every document concurrently with getDocContent, like the GSA would.
+ *
+ * <p>Arguments are {@code name=value} pairs. The farm's shape and latency
+ * and the crawl are set with {@code contentDatabases}, {@code sites}, {@code
+ * webs}, {@code lists}, {@code items}, {@code uniqueItems}, {@code pageSize},
+ * {@code latencyMillis}, {@code jitterMillis}, {@code threads} and {@code
+ * changes}. Names containing a dot override adaptor configuration, like
+ * {@code sharepoint.maxConcurrentRequests=8}, to compare settings. The
+ * adaptor runs with its production thread pools, so overrides of their sizes
+ * and queues take effect as they would in a deployment.
+ */
+public class LoadHarness {
+  private static final Map<String, String> DEFAULTS;
+
+  static {
+    Map<String, String> defaults = new HashMap<String, String>();
+    defaults.put("contentDatabases", "1");
+    defaults.put("sites", "10");
+    defaults.put("webs", "2");
+    defaults.put("lists", "3");
+    defaults.put("items", "200");
+    defaults.put("uniqueItems", "10");
+    defaults.put("pageSize", "100");
+    defaults.put("latencyMillis", "2");
+    defaults.put("jitterMillis", "0");
+    defaults.put("threads", "16");
+    // Changes made in each content database before the incremental listing.
+    defaults.put("changes", "100");
+    DEFAULTS = Collections.unmodifiableMap(defaults);
+  }
+
+  private final SyntheticFarm farm;
+  private final SharePointAdaptor adaptor;
+  private final MockAdaptorContext context;
+  private final int threads;
+  private final long changes;
+
+  LoadHarness(Map<String, String> options, Map<String, String> overrides)
+      throws Exception {
+    farm = new SyntheticFarm(
+        intOption(options, "contentDatabases"), intOption(options, "sites"),
+        intOption(options, "webs"), intOption(options, "lists"),
+        intOption(options, "items"), intOption(options, "uniqueItems"),
+        intOption(options, "pageSize"), intOption(options, "latencyMillis"),
+        intOption(options, "jitterMillis"));
+    threads = intOption(options, "threads");
+    changes = intOption(options, "changes");
+
+    adaptor = new SharePointAdaptor(farm,
+        SyntheticFarm.stub(HttpClient.class,
+            Collections.<String, Object>emptyMap()),
+        new ThreadPoolFactory(),
+        new FarmAuthenticationClientFactory(farm.newAuthentication()),
+        SyntheticFarm.stub(ActiveDirectoryClientFactory.class,
+            Collections.<String, Object>emptyMap()));
+    Config config = new Config();
+    adaptor.initConfig(config);
+    config.overrideKey("sharepoint.server", SyntheticFarm.VIRTUAL_SERVER);
+    config.overrideKey("sharepoint.username", "fakeuser");
+    config.overrideKey("sharepoint.password", "fakepass");
+    for (Map.Entry<String, String> me : overrides.entrySet()) {
+      config.overrideKey(me.getKey(), me.getValue());
+    }
+    context = new MockAdaptorContext(config, new RecordingDocIdPusher());
+  }
+
+  void run() throws Exception {
+    HeapUse heap = new HeapUse();
+    long start = System.nanoTime();
+    adaptor.init(context);
+    report("init", start, heap, "");
+
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    heap = new HeapUse();
+    start = System.nanoTime();
+    adaptor.getDocIds(pusher);
+    report("getDocIds", start, heap, pusher.getRecords().size()
+        + " records, " + pusher.getGroupDefinitions().size() + " groups");
+
+    // The first incremental listing only records the databases' change ids.
+    adaptor.getModifiedDocIds(new RecordingDocIdPusher());
+    farm.modifyItems(changes);
+    pusher = new RecordingDocIdPusher();
+    heap = new HeapUse();
+    start = System.nanoTime();
+    adaptor.getModifiedDocIds(pusher);
+    report("getModifiedDocIds", start, heap,
+        pusher.getRecords().size() + " records");
+
+    getDocContent();
+
+    System.out.println("SOAP calls made:");
+    for (Map.Entry<String, Long> me : farm.getCalls().entrySet()) {
+      System.out.println("  " + me.getKey() + ": " + me.getValue());
+    }
+    for (StatusSource source : context.getStatusSources()) {
+      System.out.println(source.getName(Locale.ENGLISH) + ": "
+          + source.retrieveStatus().getMessage(Locale.ENGLISH));
+    }
+  }
+
+  void destroy() {
+    adaptor.destroy();
+  }
+
+  /** Retrieves every document of the farm, in random order. */
+  private void getDocContent() throws Exception {
+    final List<String> urls = farm.getDocumentUrls();
+    Collections.shuffle(urls, new Random(0));
+    final long[] nanos = new long[urls.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    HeapUse heap = new HeapUse();
+    long start = System.nanoTime();
+    try {
+      Callable<Void> worker = new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          int i;
+          while ((i = next.getAndIncrement()) < nanos.length) {
+            DocRequest request = new DocRequest(new DocId(urls.get(i)));
+            RecordingResponse response = new RecordingResponse(
+                new NullOutputStream());
+            long requestStart = System.nanoTime();
+            try {
+              adaptor.getDocContent(request, response);
+              if (response.getState() == RecordingResponse.State.NOT_FOUND) {
+                errors.incrementAndGet();
+              }
+            } catch (IOException ex) {
+              errors.incrementAndGet();
+            }
+            nanos[i] = System.nanoTime() - requestStart;
+          }
+          return null;
+        }
+      };
+      List<Future<Void>> futures
+          = executor.invokeAll(Collections.nCopies(threads, worker));
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+    Arrays.sort(nanos);
+    report("getDocContent", start, heap, String.format(
+        "%d documents with %d threads, %.1f documents/s, %d errors, "
+        + "p50Ms=%d, p95Ms=%d, p99Ms=%d, maxMs=%d",
+        nanos.length, threads,
+        nanos.length * 1e9 / Math.max(elapsedNanos, 1), errors.get(),
+        percentileMillis(nanos, 50), percentileMillis(nanos, 95),
+        percentileMillis(nanos, 99), percentileMillis(nanos, 100)));
+  }
+
+  private static long percentileMillis(long[] sortedNanos, int percentile) {
+    if (sortedNanos.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(sortedNanos.length * percentile / 100.0) - 1;
+    return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(index, 0)]);
+  }
+
+  private static void report(String phase, long startNanos, HeapUse heap,
+      String details) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    System.out.println(phase + ": " + millis + " ms, " + heap + "; "
+        + details);
+  }
+
+  private static int intOption(Map<String, String> options, String name) {
+    String value = options.get(name);
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException(
+          "Invalid value for " + name + ": " + value);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+    Map<String, String> overrides = new HashMap<String, String>();
+    for (String arg : args) {
+      String[] parts = arg.split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Expected name=value: " + arg);
+      }
+      if (parts[0].contains(".")) {
+        overrides.put(parts[0], parts[1]);
+      } else if (DEFAULTS.containsKey(parts[0])) {
+        options.put(parts[0], parts[1]);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + parts[0]);
+      }
+    }
+    System.out.println("Options: " + options + ", overrides: " + overrides);
+    LoadHarness harness = new LoadHarness(options, overrides);
+    try {
+      harness.run();
+    } finally {
+      harness.destroy();
+    }
+  }
+
+  /**
+   * Heap in use after a collection at the start of a phase and the peak use
+   * of all heap pools during it.
+   */
+  private static class HeapUse {
+    private final long startBytes;
+
+    public HeapUse() {
+      System.gc();
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+          used += pool.getUsage().getUsed();
+        }
+      }
+      startBytes = used;
+    }
+
+    @Override
+    public String toString() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peak += pool.getPeakUsage().getUsed();
+        }
+      }
+      return "heap at start " + (startBytes >> 20) + " MB, peak "
+          + (peak >> 20) + " MB";
+    }
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+
+  private static class FarmAuthenticationClientFactory
+      implements AuthenticationClientFactory {
+    private final AuthenticationSoap authentication;
+
+    public FarmAuthenticationClientFactory(AuthenticationSoap authentication) {
+      this.authentication = authentication;
+    }
+
+    @Override
+    public AuthenticationSoap newSharePointFormsAuthentication(
+        String virtualServer, String username, String password) {
+      return authentication;
+    }
+
+    @Override
+    public SamlHandshakeManager newAdfsAuthentication(String virtualServer,
+        String username, String password, String stsendpoint, String stsrealm,
+        String login, String trustlocation) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SamlHandshakeManager newLiveAuthentication(String virtualServer,
+        String username, String password) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SamlHandshakeManager newCustomSamlAuthentication(
+        String factoryMethodName, Map<String, String> config) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
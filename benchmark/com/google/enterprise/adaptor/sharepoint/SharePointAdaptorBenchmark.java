@@ -0,0 +1,133 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+import com.google.enterprise.adaptor.testing.RecordingResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the string handling done for each document: URL encoding,
+ * claim and field name decoding, HTML stripping and adding the fields of
+ * list items as metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharePointAdaptorBenchmark {
+  private static final String URL = "http://localhost:1/sites/SiteCollection"
+      + "/Shared Documents/Quarterly Reports/Report for Q1 2016.docx";
+  private static final String LENIENT_URL = "http://localhost:1/sites/"
+      + "SiteCollection/Lists/Custom List/DispForm.aspx?ID=1&Source=a b";
+  private static final String HTML = "<div class=\"ExternalClass1\"><p>The "
+      + "<b>quarterly</b> report&#160;is &quot;final&quot; &amp; "
+      + "approved.</p><p>See the <a href=\"http://localhost:1/\">site</a> "
+      + "for &lt;details&gt;.</p></div>";
+
+  /** Number of fields of each list item row. */
+  @Param({"50", "500"})
+  public int fields;
+
+  private String[] fieldNames;
+  private String[] fieldValues;
+
+  @Setup
+  public void setUp() {
+    fieldNames = new String[fields];
+    fieldValues = new String[fields];
+    for (int i = 0; i < fields; i++) {
+      // Mix the kinds of fields addMetadata handles differently.
+      switch (i % 4) {
+        case 0:
+          fieldNames[i] = "ows_Field" + i;
+          fieldValues[i] = "Value of field " + i;
+          break;
+        case 1:
+          fieldNames[i] = "ows_Custom_x0020_Field_x0020_" + i;
+          fieldValues[i] = "2016-03-01 12:00:00";
+          break;
+        case 2:
+          fieldNames[i] = "ows_Lookup" + i;
+          fieldValues[i] = "1;#Alpha;#2;#Beta;#3;#Gamma";
+          break;
+        default:
+          fieldNames[i] = "ows_Choice" + i;
+          fieldValues[i] = ";#Red;#Green;#Blue;#";
+          break;
+      }
+    }
+  }
+
+  @Benchmark
+  public URI spUrlToUri() throws IOException {
+    return SharePointAdaptor.spUrlToUri(URL);
+  }
+
+  @Benchmark
+  public URL encodeSharePointUrl() throws IOException {
+    return SharePointAdaptor.encodeSharePointUrl(URL, false);
+  }
+
+  @Benchmark
+  public URL encodeSharePointUrlLenient() throws IOException {
+    return SharePointAdaptor.encodeSharePointUrl(LENIENT_URL, true);
+  }
+
+  @Benchmark
+  public String stripHtml() {
+    return SharePointAdaptor.stripHtml(HTML);
+  }
+
+  @Benchmark
+  public String decodeMetadataName() {
+    return SharePointAdaptor.decodeMetadataName(
+        "Custom_x0020_Field_x0020_With_x0020_Spaces");
+  }
+
+  @Benchmark
+  public String decodeClaim() {
+    return SharePointAdaptor.decodeClaim(
+        "i:0#.w|GDC-PSL\\spuser1", "spuser1");
+  }
+
+  /** Includes creating the response, which is small next to the fields. */
+  @Benchmark
+  public long addMetadataRow() {
+    RecordingResponse response = new RecordingResponse();
+    long size = 0;
+    for (int i = 0; i < fields; i++) {
+      size += SharePointAdaptor.addMetadata(response, fieldNames[i],
+          fieldValues[i], null);
+    }
+    return size;
+  }
+}
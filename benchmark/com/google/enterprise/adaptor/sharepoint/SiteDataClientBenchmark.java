@@ -0,0 +1,95 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+import com.google.enterprise.adaptor.IOHelper;
+
+import com.microsoft.schemas.sharepoint.soap.ItemData;
+import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
+import com.microsoft.schemas.sharepoint.soap.VirtualServer;
+import com.microsoft.schemas.sharepoint.soap.Web;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of parsing SiteData responses, using the responses the tests
+ * use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SiteDataClientBenchmark {
+  private SiteDataClient client;
+  private String virtualServerXml;
+  private String webXml;
+  private String folderXml;
+
+  @Setup
+  public void setUp() throws IOException {
+    // Parsing does not make any SOAP calls.
+    SiteDataSoap siteData = (SiteDataSoap) Proxy.newProxyInstance(
+        SiteDataSoap.class.getClassLoader(),
+        new Class<?>[] {SiteDataSoap.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            throw new UnsupportedOperationException();
+          }
+        });
+    client = new SiteDataClient(siteData, true);
+    virtualServerXml = loadTestString("vs.xml");
+    webXml = loadTestString("sites-SiteCollection-s.xml");
+    folderXml = loadTestString("sites-SiteCollection-Lists-CustomList-f.xml");
+  }
+
+  @Benchmark
+  public VirtualServer parseVirtualServer() throws IOException {
+    return client.jaxbParse(virtualServerXml, VirtualServer.class);
+  }
+
+  @Benchmark
+  public Web parseWeb() throws IOException {
+    return client.jaxbParse(webXml, Web.class);
+  }
+
+  @Benchmark
+  public ItemData parseFolder() throws IOException {
+    return client.jaxbParse(folderXml, ItemData.class);
+  }
+
+  private static String loadTestString(String testString)
+      throws IOException {
+    return IOHelper.readInputStreamToString(
+        SiteDataClientBenchmark.class.getResourceAsStream(
+            "spresponses/" + testString), Charset.forName("UTF-8"));
+  }
+}
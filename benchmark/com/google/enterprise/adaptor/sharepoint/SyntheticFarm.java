@@ -0,0 +1,793 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.IOHelper;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SoapFactory;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
+import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationMode;
+import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationSoap;
+import com.microsoft.schemas.sharepoint.soap.directory.UserGroupSoap;
+import com.microsoft.schemas.sharepoint.soap.people.PeopleSoap;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Holder;
+
+/**
+ * A generated SharePoint farm behind SiteData stand-ins, for load testing the
+ * adaptor without a SharePoint server. The farm has a configurable number of
+ * content databases, site collections, webs, lists and list items, and its
+ * responses are built from the spresponses the tests use, with the URLs, ids
+ * and permission scopes replaced.
+ *
+ * <p>The first site collection of the first content database is at the root
+ * of the virtual server; the others are at {@code /sites/c<i>s<j>}. Each site
+ * collection has a root web and {@code webs} subwebs at {@code /w<k>}, each
+ * web has {@code lists} lists at {@code /Lists/L<l>}, and each list has
+ * {@code items} items at {@code /<n>_.000}. The first {@code uniqueItems}
+ * items of each list have unique permissions; everything else inherits.
+ * Document libraries and files are not generated, since retrieving them needs
+ * an HTTP server.
+ *
+ * <p>Each call sleeps for the configured latency before responding and is
+ * counted by operation, like the adaptor's own SOAP metrics.
+ */
+class SyntheticFarm implements SoapFactory {
+  static final String VIRTUAL_SERVER = "http://localhost:1";
+  private static final String ENDPOINT_SUFFIX = "/_vti_bin/";
+  private static final String CHANGE_ID_TIMESTAMP = "634727056594000000";
+  /** Number of changes returned by each call to GetChanges. */
+  private static final int CHANGES_PER_PAGE = 10;
+  private static final Pattern PATH_PATTERN = Pattern.compile(
+      "(?:/sites/c(\\d+)s(\\d+))?(?:/w(\\d+))?"
+      + "(?:/Lists/L(\\d+)(?:/(?:AllItems\\.aspx|(\\d+)_\\.000))?)?");
+  private static final Pattern CHANGE_NUMBER_PATTERN
+      = Pattern.compile(";(\\d+)$");
+
+  private final int contentDatabases;
+  private final int sites;
+  private final int webs;
+  private final int lists;
+  private final int items;
+  private final int uniqueItems;
+  private final int pageSize;
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final Random random = new Random();
+  /** Number of changes made so far in each content database. */
+  private final AtomicLong[] changes;
+  private final ConcurrentMap<String, AtomicLong> calls
+      = new ConcurrentSkipListMap<String, AtomicLong>();
+
+  private final Template virtualServerTemplate;
+  private final Template contentDatabaseTemplate;
+  private final Template siteTemplate;
+  private final Template webTemplate;
+  private final Template listTemplate;
+  private final Template folderTemplate;
+  private final Template itemTemplate;
+  private final Template scopeTemplate;
+  private final Template rowTemplate;
+
+  /**
+   * @param contentDatabases number of content databases
+   * @param sites number of site collections in each content database
+   * @param webs number of subwebs of each site collection
+   * @param lists number of lists in each web
+   * @param items number of items in each list
+   * @param uniqueItems number of items in each list with unique permissions
+   * @param pageSize number of items returned by each GetContent(Folder) call
+   * @param latencyMillis time each call takes
+   * @param jitterMillis maximum random time added to each call
+   */
+  public SyntheticFarm(int contentDatabases, int sites, int webs, int lists,
+      int items, int uniqueItems, int pageSize, long latencyMillis,
+      long jitterMillis) throws IOException {
+    if (contentDatabases < 1 || sites < 1 || webs < 0 || lists < 0
+        || items < 0 || uniqueItems < 0 || pageSize < 1 || latencyMillis < 0
+        || jitterMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.contentDatabases = contentDatabases;
+    this.sites = sites;
+    this.webs = webs;
+    this.lists = lists;
+    this.items = items;
+    this.uniqueItems = Math.min(uniqueItems, items);
+    this.pageSize = pageSize;
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.changes = new AtomicLong[contentDatabases];
+    for (int i = 0; i < contentDatabases; i++) {
+      changes[i] = new AtomicLong();
+    }
+
+    String vs = loadTestString("vs.xml");
+    virtualServerTemplate = new Template(
+        replaceElement(vs, "ContentDatabases", "{{contentDatabases}}"));
+
+    String cd = loadTestString("cd.xml");
+    cd = replaceAttribute(cd, "ChangeId", "{{changeId}}");
+    cd = replaceAttribute(cd, "ID", "{{id}}");
+    contentDatabaseTemplate
+        = new Template(replaceElement(cd, "Sites", "{{sites}}"));
+
+    String site = loadTestString("sites-SiteCollection-sc.xml");
+    site = replaceAttribute(site, "URL", "{{url}}");
+    site = replaceAttribute(site, "ID", "{{id}}");
+    site = replaceAttribute(site, "RootWebId", "{{rootWebId}}");
+    site = replaceAttribute(site, "ChangeId", "{{changeId}}");
+    siteTemplate = new Template(site.substring(0, site.indexOf("<Web>"))
+        + "{{web}}" + site.substring(site.lastIndexOf("</Web>") + 6));
+
+    // The web of the site collection's response has the users that the
+    // member ids of all of the generated permissions resolve to.
+    String web = site.substring(site.indexOf("<Web>"),
+        site.lastIndexOf("</Web>") + 6);
+    web = replaceAttribute(web, "URL", "{{url}}");
+    web = replaceAttribute(web, "ID", "{{id}}");
+    web = replaceAttribute(web, "Title", "{{title}}");
+    web = replaceAttribute(web, "ScopeID", "{{scopeId}}");
+    web = replaceElement(web, "Webs", "{{webs}}");
+    web = replaceElement(web, "Lists", "{{lists}}");
+    // default.aspx would be retrieved over HTTP.
+    webTemplate = new Template(replaceElement(web, "Files", "<Files />"));
+
+    String list = loadTestString("sites-SiteCollection-Lists-CustomList-l.xml");
+    list = replaceAttribute(list, "ID", "{{id}}");
+    list = replaceAttribute(list, "Title", "{{title}}");
+    list = replaceAttribute(list, "DefaultViewUrl", "{{defaultViewUrl}}");
+    list = replaceAttribute(list, "DefaultViewItemUrl",
+        "{{defaultViewItemUrl}}");
+    list = replaceAttribute(list, "RootFolder", "{{rootFolder}}");
+    list = replaceAttribute(list, "ItemCount", "{{itemCount}}");
+    listTemplate = new Template(replaceAttribute(list, "ScopeID",
+        "{{scopeId}}"));
+
+    String folder
+        = loadTestString("sites-SiteCollection-Lists-CustomList-f.xml");
+    folderTemplate = new Template(replaceRows(folder));
+    itemTemplate = new Template(replaceRows(
+        loadTestString("sites-SiteCollection-Lists-CustomList-1-li.xml")));
+
+    String scopes = folder.substring(folder.indexOf("<scopes>"));
+    String scope = scopes.substring(scopes.indexOf("<scope "),
+        scopes.indexOf("</scope>") + 8);
+    scopeTemplate = new Template(replaceAttribute(scope, "id", "{{id}}"));
+
+    // The first row of the folder is a list item without attachments.
+    String row = folder.substring(folder.indexOf("<z:row"));
+    row = row.substring(0, row.indexOf("/>") + 2);
+    for (String name : new String[] {"ows_Title", "ows_ID", "ows_FileRef",
+        "ows_FileDirRef", "ows_FileLeafRef", "ows_ScopeId", "ows_ServerUrl",
+        "ows_EncodedAbsUrl", "ows_LinkTitle", "ows_LinkTitleNoMenu",
+        "ows_LinkFilename", "ows_LinkFilenameNoMenu", "ows_FSObjType"}) {
+      row = replaceAttribute(row, name, "{{" + name + "}}");
+    }
+    rowTemplate = new Template(row);
+  }
+
+  /** Returns the number of calls made to each operation. */
+  public Map<String, Long> getCalls() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> me : calls.entrySet()) {
+      counts.put(me.getKey(), me.getValue().get());
+    }
+    return counts;
+  }
+
+  /**
+   * Modifies {@code count} list items in each content database, to be
+   * reported by the next calls to GetChanges.
+   */
+  public void modifyItems(long count) {
+    for (AtomicLong changeNumber : changes) {
+      changeNumber.addAndGet(count);
+    }
+  }
+
+  /** Returns the URLs of all of the webs, lists and list items. */
+  public List<String> getDocumentUrls() {
+    List<String> urls = new ArrayList<String>();
+    for (int g = 0; g < contentDatabases * sites; g++) {
+      for (int w = 0; w <= webs; w++) {
+        urls.add(webUrl(g, w));
+        for (int l = 0; l < lists; l++) {
+          urls.add(VIRTUAL_SERVER + listPath(g, w, l) + "/AllItems.aspx");
+          for (int i = 1; i <= items; i++) {
+            urls.add(VIRTUAL_SERVER + itemPath(g, w, l, i));
+          }
+        }
+      }
+    }
+    return urls;
+  }
+
+  /** Returns the number of site collections. */
+  public int getSiteCount() {
+    return contentDatabases * sites;
+  }
+
+  @Override
+  public SiteDataSoap newSiteData(String endpoint) {
+    String url = endpoint.substring(0, endpoint.indexOf(ENDPOINT_SUFFIX));
+    int[] location = locate(url);
+    if (location == null || location[2] != -1) {
+      throw new IllegalArgumentException("Not a web: " + endpoint);
+    }
+    return new FarmSiteData(location[0], location[1]);
+  }
+
+  @Override
+  public UserGroupSoap newUserGroup(String endpoint) {
+    // The site user mapping is only retrieved for unknown member ids, and
+    // null means there are no site users.
+    return stub(UserGroupSoap.class,
+        Collections.<String, Object>singletonMap(
+            "getUserCollectionFromSite", null));
+  }
+
+  @Override
+  public PeopleSoap newPeople(String endpoint) {
+    // Only used for the virtual server's policies, which are not crawled.
+    return stub(PeopleSoap.class, Collections.<String, Object>emptyMap());
+  }
+
+  /** Returns a stand-in for Windows authentication. */
+  public AuthenticationSoap newAuthentication() {
+    return stub(AuthenticationSoap.class,
+        Collections.<String, Object>singletonMap(
+            "mode", AuthenticationMode.WINDOWS));
+  }
+
+  /**
+   * Returns a stand-in that returns the result mapped to each method name,
+   * and throws {@link UnsupportedOperationException} for other methods.
+   */
+  static <T> T stub(final Class<T> clazz, final Map<String, Object> results) {
+    final Map<String, Object> requestContext = new HashMap<String, Object>();
+    final Map<String, Object> responseContext = new HashMap<String, Object>();
+    return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(),
+        new Class<?>[] {clazz, BindingProvider.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getRequestContext".equals(method.getName())) {
+              return requestContext;
+            } else if ("getResponseContext".equals(method.getName())) {
+              return responseContext;
+            } else if (results.containsKey(method.getName())) {
+              return results.get(method.getName());
+            }
+            throw new UnsupportedOperationException(
+                clazz.getSimpleName() + "." + method.getName());
+          }
+        }));
+  }
+
+  private void call(String operation) {
+    AtomicLong count = calls.get(operation);
+    if (count == null) {
+      count = new AtomicLong();
+      AtomicLong existing = calls.putIfAbsent(operation, count);
+      if (existing != null) {
+        count = existing;
+      }
+    }
+    count.incrementAndGet();
+    long millis = latencyMillis;
+    if (jitterMillis > 0) {
+      synchronized (random) {
+        millis += random.nextInt((int) jitterMillis + 1);
+      }
+    }
+    if (millis > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(millis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the site collection, web, list and item of a URL, with {@code -1}
+   * for the list and item when the URL is not of one, or {@code null} if the
+   * URL is not in the farm.
+   */
+  private int[] locate(String url) {
+    if (!url.startsWith(VIRTUAL_SERVER)) {
+      return null;
+    }
+    String path = url.substring(VIRTUAL_SERVER.length());
+    if (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    Matcher m = PATH_PATTERN.matcher(path);
+    if (!m.matches()) {
+      return null;
+    }
+    int g = 0;
+    if (m.group(1) != null) {
+      int c = Integer.parseInt(m.group(1));
+      int s = Integer.parseInt(m.group(2));
+      if (c >= contentDatabases || s >= sites || (c == 0 && s == 0)) {
+        return null;
+      }
+      g = c * sites + s;
+    }
+    int w = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+    int l = m.group(4) == null ? -1 : Integer.parseInt(m.group(4));
+    int i = m.group(5) == null ? -1 : Integer.parseInt(m.group(5));
+    if (w > webs || (m.group(3) != null && w == 0) || l >= lists
+        || i == 0 || i > items) {
+      return null;
+    }
+    return new int[] {g, w, l, i};
+  }
+
+  private static String guid(int kind, long a, long b, long c, long d) {
+    return String.format("{%08x-%04x-%04x-%04x-%012x}",
+        ((long) kind << 28) | a, b, c, 0, d);
+  }
+
+  private static String contentDatabaseId(int c) {
+    return guid(1, c, 0, 0, 0);
+  }
+
+  private static String siteId(int g) {
+    return guid(2, g, 0, 0, 0);
+  }
+
+  private static String webId(int g, int w) {
+    return guid(3, g, w, 0, 0);
+  }
+
+  private static String listId(int g, int w, int l) {
+    return guid(4, g, w, l, 0);
+  }
+
+  /** All webs and lists inherit the permissions of the site collection. */
+  private static String siteScopeId(int g) {
+    return guid(5, g, 0, 0, 0);
+  }
+
+  private String itemScopeId(int g, int w, int l, int i) {
+    return i <= uniqueItems ? guid(6, g, w, l, i) : siteScopeId(g);
+  }
+
+  private String changeId(String guid, long number) {
+    return "1;0;" + guid.substring(1, guid.length() - 1) + ";"
+        + CHANGE_ID_TIMESTAMP + ";" + number;
+  }
+
+  private String sitePath(int g) {
+    return g == 0 ? "" : "/sites/c" + (g / sites) + "s" + (g % sites);
+  }
+
+  private String webPath(int g, int w) {
+    return sitePath(g) + (w == 0 ? "" : "/w" + w);
+  }
+
+  private String webUrl(int g, int w) {
+    return VIRTUAL_SERVER + webPath(g, w);
+  }
+
+  private String listPath(int g, int w, int l) {
+    return webPath(g, w) + "/Lists/L" + l;
+  }
+
+  private String itemPath(int g, int w, int l, int i) {
+    return listPath(g, w, l) + "/" + i + "_.000";
+  }
+
+  private String virtualServerXml() {
+    StringBuilder cds = new StringBuilder("<ContentDatabases>\n");
+    for (int c = 0; c < contentDatabases; c++) {
+      cds.append("<ContentDatabase ID=\"").append(contentDatabaseId(c))
+          .append("\" />\n");
+    }
+    cds.append("</ContentDatabases>");
+    return virtualServerTemplate.render("contentDatabases", cds.toString());
+  }
+
+  private String contentDatabaseXml(int c, boolean retrieveChildItems) {
+    StringBuilder siteList = new StringBuilder("<Sites>\n");
+    if (retrieveChildItems) {
+      for (int g = c * sites; g < (c + 1) * sites; g++) {
+        siteList.append("<Site URL=\"").append(webUrl(g, 0))
+            .append("\" ID=\"").append(siteId(g)).append("\" />\n");
+      }
+    }
+    siteList.append("</Sites>");
+    return contentDatabaseTemplate.render(
+        "changeId", changeId(contentDatabaseId(c), changes[c].get()),
+        "id", contentDatabaseId(c),
+        "sites", siteList.toString());
+  }
+
+  private String siteXml(int g) {
+    return siteTemplate.render(
+        "url", webUrl(g, 0),
+        "id", siteId(g),
+        "rootWebId", webId(g, 0),
+        "changeId", changeId(siteId(g), 1),
+        "web", webXml(g, 0));
+  }
+
+  private String webXml(int g, int w) {
+    StringBuilder subwebs = new StringBuilder("<Webs>\n");
+    if (w == 0) {
+      for (int k = 1; k <= webs; k++) {
+        subwebs.append("<Web URL=\"").append(webUrl(g, k))
+            .append("\" ID=\"").append(webId(g, k))
+            .append("\" LastModified=\"2012-05-15 19:07:39Z\" />\n");
+      }
+    }
+    subwebs.append("</Webs>");
+    StringBuilder webLists = new StringBuilder("<Lists>\n");
+    for (int l = 0; l < lists; l++) {
+      webLists.append("<List ID=\"").append(listId(g, w, l))
+          .append("\" LastModified=\"2012-05-15 18:21:38Z\" DefaultViewUrl=\"")
+          .append(listPath(g, w, l)).append("/AllItems.aspx\" />\n");
+    }
+    webLists.append("</Lists>");
+    return webTemplate.render(
+        "url", webUrl(g, w),
+        "id", webId(g, w),
+        "title", "Web " + g + "-" + w,
+        "scopeId", siteScopeId(g),
+        "webs", subwebs.toString(),
+        "lists", webLists.toString());
+  }
+
+  private String listXml(int g, int w, int l) {
+    String path = listPath(g, w, l);
+    return listTemplate.render(
+        "id", listId(g, w, l),
+        "title", "List " + l,
+        "defaultViewUrl", path + "/AllItems.aspx",
+        "defaultViewItemUrl", path + "/DispForm.aspx",
+        "rootFolder", "Lists/L" + l,
+        "itemCount", Integer.toString(items),
+        "scopeId", siteScopeId(g));
+  }
+
+  /** Returns items {@code first} to {@code last}, inclusive. */
+  private String itemsXml(Template template, int g, int w, int l, int first,
+      int last) {
+    StringBuilder scopes = new StringBuilder("<scopes>\n");
+    scopeTemplate.render(scopes, "id", siteScopeId(g));
+    for (int i = first; i <= Math.min(last, uniqueItems); i++) {
+      scopes.append('\n');
+      scopeTemplate.render(scopes, "id", itemScopeId(g, w, l, i));
+    }
+    scopes.append("\n</scopes>\n<rs:data ItemCount=\"")
+        .append(Math.max(0, last - first + 1)).append("\">\n");
+    for (int i = first; i <= last; i++) {
+      appendRow(scopes, g, w, l, i);
+      scopes.append('\n');
+    }
+    scopes.append("</rs:data>");
+    return template.render("scopeId", siteScopeId(g),
+        "rows", scopes.toString());
+  }
+
+  private void appendRow(StringBuilder sb, int g, int w, int l, int i) {
+    String path = itemPath(g, w, l, i);
+    String leaf = i + "_.000";
+    String title = "Item " + i;
+    rowTemplate.render(sb,
+        "ows_Title", title,
+        "ows_ID", Integer.toString(i),
+        "ows_FileRef", i + ";#" + path.substring(1),
+        "ows_FileDirRef", i + ";#" + listPath(g, w, l).substring(1),
+        "ows_FileLeafRef", i + ";#" + leaf,
+        "ows_ScopeId", i + ";#" + itemScopeId(g, w, l, i),
+        "ows_ServerUrl", path,
+        "ows_EncodedAbsUrl", VIRTUAL_SERVER + path,
+        "ows_LinkTitle", title,
+        "ows_LinkTitleNoMenu", title,
+        "ows_LinkFilename", leaf,
+        "ows_LinkFilenameNoMenu", leaf,
+        "ows_FSObjType", i + ";#0");
+  }
+
+  /**
+   * Returns the changes after {@code lastChange}, up to {@code
+   * CHANGES_PER_PAGE}. The n-th change of a content database modifies the
+   * n-th of its list items, wrapping around.
+   */
+  private String changesXml(int c, long lastChange, long pageEnd) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<SPContentDatabase Change=\"Unchanged\" ItemCount=\"")
+        .append(pageEnd - lastChange).append("\">\n<ContentDatabase>")
+        .append("<Metadata ChangeId=\"")
+        .append(changeId(contentDatabaseId(c), pageEnd)).append("\" ID=\"")
+        .append(contentDatabaseId(c)).append("\" /></ContentDatabase>\n");
+    long itemsPerDatabase = (long) sites * (webs + 1) * lists * items;
+    for (long n = lastChange + 1; itemsPerDatabase > 0 && n <= pageEnd; n++) {
+      long index = (n - 1) % itemsPerDatabase;
+      int i = (int) (index % items) + 1;
+      index /= items;
+      int l = (int) (index % lists);
+      index /= lists;
+      int w = (int) (index % (webs + 1));
+      int g = c * sites + (int) (index / (webs + 1));
+      sb.append("<SPSite Change=\"Unchanged\" ItemCount=\"1\" Id=\"")
+          .append(siteId(g)).append("\" ServerUrl=\"").append(VIRTUAL_SERVER)
+          .append("\" DisplayUrl=\"").append(sitePath(g)).append("\">\n")
+          .append("<SPWeb Change=\"Unchanged\" ItemCount=\"1\" Id=\"")
+          .append(webId(g, w)).append("\" ServerUrl=\"").append(VIRTUAL_SERVER)
+          .append("\" DisplayUrl=\"").append(webPath(g, w)).append("\">\n")
+          .append("<SPList Change=\"Unchanged\" ItemCount=\"1\" Id=\"")
+          .append(listId(g, w, l)).append("\" ServerUrl=\"")
+          .append(VIRTUAL_SERVER).append("\" DisplayUrl=\"")
+          .append(listPath(g, w, l)).append("/AllItems.aspx\">\n")
+          .append("<SPListItem Change=\"Update\" ItemCount=\"0\" ")
+          .append("UpdateSecurity=\"False\" ServerUrl=\"")
+          .append(VIRTUAL_SERVER).append("\" DisplayUrl=\"")
+          .append(listPath(g, w, l)).append("/DispForm.aspx?ID=").append(i)
+          .append("\">\n<ListItem><z:row xmlns:z='#RowsetSchema' ows_ID='")
+          .append(i).append("' ows_ServerUrl='").append(itemPath(g, w, l, i))
+          .append("'/></ListItem></SPListItem>\n")
+          .append("</SPList>\n</SPWeb>\n</SPSite>\n");
+    }
+    sb.append("</SPContentDatabase>");
+    return sb.toString();
+  }
+
+  private static String loadTestString(String name) throws IOException {
+    return IOHelper.readInputStreamToString(
+        SyntheticFarm.class.getResourceAsStream("spresponses/" + name),
+        Charset.forName("UTF-8"));
+  }
+
+  /** Replaces the value of the first attribute named {@code name}. */
+  private static String replaceAttribute(String xml, String name,
+      String value) {
+    Matcher m = Pattern.compile("(\\s" + Pattern.quote(name)
+        + "=)([\"'])[^\"']*\\2").matcher(xml);
+    if (!m.find()) {
+      throw new IllegalStateException("No attribute " + name);
+    }
+    return xml.substring(0, m.start()) + m.group(1) + m.group(2) + value
+        + m.group(2) + xml.substring(m.end());
+  }
+
+  /** Replaces the first element named {@code name}, including its tags. */
+  private static String replaceElement(String xml, String name,
+      String replacement) {
+    int start = xml.indexOf("<" + name + ">");
+    String endTag = "</" + name + ">";
+    int end = xml.indexOf(endTag, start);
+    if (start == -1 || end == -1) {
+      throw new IllegalStateException("No element " + name);
+    }
+    return xml.substring(0, start) + replacement
+        + xml.substring(end + endTag.length());
+  }
+
+  /**
+   * Replaces the scopes and rows of a folder or item response with {@code
+   * {{rows}}}, and the list's scope in its metadata with {@code {{scopeId}}}.
+   */
+  private static String replaceRows(String xml) {
+    xml = replaceAttribute(xml, "id", "{{scopeId}}");
+    return xml.substring(0, xml.indexOf("<scopes>")) + "{{rows}}"
+        + xml.substring(xml.indexOf("</rs:data>") + "</rs:data>".length());
+  }
+
+  /** Text with {@code {{name}}} placeholders, split once for fast filling. */
+  private static class Template {
+    private final List<String> literals = new ArrayList<String>();
+    private final List<String> names = new ArrayList<String>();
+
+    public Template(String text) {
+      int pos = 0;
+      int start;
+      while ((start = text.indexOf("{{", pos)) != -1) {
+        int end = text.indexOf("}}", start);
+        literals.add(text.substring(pos, start));
+        names.add(text.substring(start + 2, end));
+        pos = end + 2;
+      }
+      literals.add(text.substring(pos));
+    }
+
+    /** @param values alternating names and values */
+    public String render(String... values) {
+      StringBuilder sb = new StringBuilder();
+      render(sb, values);
+      return sb.toString();
+    }
+
+    public void render(StringBuilder sb, String... values) {
+      for (int i = 0; i < names.size(); i++) {
+        sb.append(literals.get(i)).append(value(names.get(i), values));
+      }
+      sb.append(literals.get(names.size()));
+    }
+
+    private static String value(String name, String[] values) {
+      for (int i = 0; i < values.length; i += 2) {
+        if (values[i].equals(name)) {
+          return values[i + 1];
+        }
+      }
+      throw new IllegalArgumentException("No value for " + name);
+    }
+  }
+
+  /** SiteData of one web of the farm. */
+  private class FarmSiteData extends DelegatingSiteData {
+    private final int site;
+    private final int web;
+    private final SiteDataSoap unsupported = stub(SiteDataSoap.class,
+        Collections.<String, Object>emptyMap());
+
+    public FarmSiteData(int site, int web) {
+      this.site = site;
+      this.web = web;
+    }
+
+    @Override
+    protected SiteDataSoap delegate() {
+      return unsupported;
+    }
+
+    @Override
+    public void getSiteAndWeb(String strUrl, Holder<Long> getSiteAndWebResult,
+        Holder<String> strSite, Holder<String> strWeb) {
+      call("GetSiteAndWeb");
+      int[] location = locate(strUrl);
+      if (location == null) {
+        getSiteAndWebResult.value = 1L;
+        return;
+      }
+      getSiteAndWebResult.value = 0L;
+      strSite.value = webUrl(location[0], 0);
+      strWeb.value = webUrl(location[0], location[1]);
+    }
+
+    @Override
+    public void getURLSegments(String strURL,
+        Holder<Boolean> getURLSegmentsResult, Holder<String> strWebID,
+        Holder<String> strBucketID, Holder<String> strListID,
+        Holder<String> strItemID) {
+      call("GetURLSegments");
+      int[] location = locate(strURL);
+      if (location == null) {
+        getURLSegmentsResult.value = false;
+        return;
+      }
+      getURLSegmentsResult.value = true;
+      if (strWebID != null) {
+        strWebID.value = webId(location[0], location[1]);
+      }
+      if (strListID != null && location[2] != -1) {
+        strListID.value = listId(location[0], location[1], location[2]);
+      }
+      if (strItemID != null && location[3] != -1) {
+        strItemID.value = Integer.toString(location[3]);
+      }
+    }
+
+    @Override
+    public void getContent(ObjectType objectType, String objectId,
+        String folderUrl, String itemId, boolean retrieveChildItems,
+        boolean securityOnly, Holder<String> lastItemIdOnPage,
+        Holder<String> getContentResult) {
+      call("GetContent(" + objectType.value() + ")");
+      switch (objectType) {
+        case VIRTUAL_SERVER:
+          getContentResult.value = virtualServerXml();
+          break;
+        case CONTENT_DATABASE:
+          getContentResult.value = contentDatabaseXml(
+              contentDatabase(objectId), retrieveChildItems);
+          break;
+        case SITE_COLLECTION:
+          getContentResult.value = siteXml(site);
+          break;
+        case SITE:
+          getContentResult.value = webXml(site, web);
+          break;
+        case LIST:
+          getContentResult.value = listXml(site, web, list(objectId));
+          break;
+        case FOLDER:
+          int last = "".equals(lastItemIdOnPage.value)
+              ? 0 : Integer.parseInt(lastItemIdOnPage.value);
+          int pageEnd = Math.min(last + pageSize, items);
+          getContentResult.value = itemsXml(folderTemplate, site, web,
+              list(objectId), last + 1, pageEnd);
+          lastItemIdOnPage.value
+              = pageEnd < items ? Integer.toString(pageEnd) : null;
+          break;
+        case LIST_ITEM:
+          int i = Integer.parseInt(itemId);
+          getContentResult.value
+              = itemsXml(itemTemplate, site, web, list(objectId), i, i);
+          break;
+        default:
+          throw new UnsupportedOperationException(objectType.value());
+      }
+    }
+
+    @Override
+    public void getChanges(ObjectType objectType, String contentDatabaseId,
+        Holder<String> lastChangeId, Holder<String> currentChangeId,
+        Integer timeout, Holder<String> getChangesResult,
+        Holder<Boolean> moreChanges) {
+      call("GetChanges(" + objectType.value() + ")");
+      if (objectType != ObjectType.CONTENT_DATABASE) {
+        throw new UnsupportedOperationException(objectType.value());
+      }
+      int c = contentDatabase(contentDatabaseId);
+      Matcher m = CHANGE_NUMBER_PATTERN.matcher(lastChangeId.value);
+      if (!m.find()) {
+        throw new IllegalArgumentException(lastChangeId.value);
+      }
+      long lastChange = Long.parseLong(m.group(1));
+      long current = changes[c].get();
+      long pageEnd = Math.min(lastChange + CHANGES_PER_PAGE, current);
+      getChangesResult.value = changesXml(c, lastChange, pageEnd);
+      lastChangeId.value = changeId(contentDatabaseId, pageEnd);
+      currentChangeId.value = changeId(contentDatabaseId, current);
+      moreChanges.value = pageEnd < current;
+    }
+
+    private int contentDatabase(String id) {
+      for (int c = 0; c < contentDatabases; c++) {
+        if (contentDatabaseId(c).equalsIgnoreCase(id)) {
+          return c;
+        }
+      }
+      throw new IllegalArgumentException("No content database " + id);
+    }
+
+    private int list(String id) {
+      for (int l = 0; l < lists; l++) {
+        if (listId(site, web, l).equalsIgnoreCase(id)) {
+          return l;
+        }
+      }
+      throw new IllegalArgumentException("No list " + id + " in "
+          + webUrl(site, web));
+    }
+  }
+}
@@ -0,0 +1,281 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent requests to a SharePoint host, adapting the
+ * limit to the load SharePoint reports. The limit is increased additively
+ * while requests succeed and halved when SharePoint reports it is overloaded
+ * (SharePointError 2, HTTP 503) or requests time out (AIMD).
+ *
+ * <p>To prevent a burst of failures that all started before the limit was
+ * reduced from collapsing the limit to its minimum, the limit is reduced at
+ * most once per {@code backoffWindowMillis}.
+ */
+class AdaptiveConcurrencyLimiter {
+  private static final Logger log
+      = Logger.getLogger(AdaptiveConcurrencyLimiter.class.getName());
+
+  /** Result of a request made while holding a permit. */
+  enum Outcome {
+    /** SharePoint handled the request. */
+    SUCCESS,
+    /** SharePoint rejected the request because of load, or timed out. */
+    OVERLOADED,
+    /** The request failed for a reason unrelated to load. */
+    IGNORED,
+  }
+
+  private final String name;
+  private final int minLimit;
+  private final int maxLimit;
+  private final long acquireTimeoutMillis;
+  private final long backoffWindowMillis;
+
+  private double limit;
+  private int inFlight;
+  private long lastDecreaseMillis;
+  private long successCount;
+  private long overloadCount;
+  private long acquireTimeoutCount;
+
+  public AdaptiveConcurrencyLimiter(String name, int minLimit, int maxLimit,
+      long acquireTimeoutMillis, long backoffWindowMillis) {
+    if (name == null) {
+      throw new NullPointerException();
+    }
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(
+          "Requires 1 <= minLimit <= maxLimit");
+    }
+    if (acquireTimeoutMillis < 0 || backoffWindowMillis < 0) {
+      throw new IllegalArgumentException("Timeouts must not be negative");
+    }
+    this.name = name;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.backoffWindowMillis = backoffWindowMillis;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Waits until a request is permitted. Every successful call must be
+   * followed by a call to {@link #release}.
+   */
+  public synchronized void acquire() throws IOException {
+    long deadline = System.currentTimeMillis() + acquireTimeoutMillis;
+    try {
+      while (inFlight >= getLimit()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          acquireTimeoutCount++;
+          throw new IOException(String.format("Timed out after %d ms waiting "
+              + "for one of %d permitted requests to %s",
+              acquireTimeoutMillis, getLimit(), name));
+        }
+        wait(remaining);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted waiting for request to " + name);
+    }
+    inFlight++;
+  }
+
+  /** Releases a permit, adapting the limit to {@code outcome}. */
+  public synchronized void release(Outcome outcome) {
+    if (inFlight <= 0) {
+      throw new IllegalStateException("release() without acquire()");
+    }
+    inFlight--;
+    switch (outcome) {
+      case SUCCESS:
+        successCount++;
+        // Grows by about one for each limit's worth of successes.
+        limit = Math.min(maxLimit, limit + 1 / limit);
+        break;
+      case OVERLOADED:
+        overloadCount++;
+        long now = System.currentTimeMillis();
+        if (limit > minLimit
+            && now - lastDecreaseMillis >= backoffWindowMillis) {
+          lastDecreaseMillis = now;
+          double oldLimit = limit;
+          limit = Math.max(minLimit, limit / 2);
+          log.log(Level.WARNING, "SharePoint host {0} appears overloaded. "
+              + "Reducing concurrent requests from {1} to {2}",
+              new Object[] {name, (int) oldLimit, (int) limit});
+        }
+        break;
+      case IGNORED:
+        break;
+      default:
+        throw new AssertionError();
+    }
+    notifyAll();
+  }
+
+  /** Current number of permitted concurrent requests. */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized long getSuccessCount() {
+    return successCount;
+  }
+
+  public synchronized long getOverloadCount() {
+    return overloadCount;
+  }
+
+  public synchronized long getAcquireTimeoutCount() {
+    return acquireTimeoutCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s: limit=%d/%d, inFlight=%d, successes=%d, "
+        + "overloads=%d, acquireTimeouts=%d", name, getLimit(), maxLimit,
+        inFlight, successCount, overloadCount, acquireTimeoutCount);
+  }
+
+  /**
+   * Determines whether {@code t}, thrown by a request, indicates that
+   * SharePoint is overloaded.
+   */
+  static Outcome classify(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof OverloadedException
+          || cause instanceof SocketTimeoutException) {
+        return Outcome.OVERLOADED;
+      }
+      // JAX-WS reports HTTP errors only through the message, like "The server
+      // sent HTTP status code 503: Service Unavailable".
+      String message = cause.getMessage();
+      if (message != null && message.contains("status code 503")) {
+        return Outcome.OVERLOADED;
+      }
+    }
+    return Outcome.IGNORED;
+  }
+
+  /**
+   * Thrown when SharePoint rejects a request because of its current load.
+   */
+  static class OverloadedException extends IOException {
+    public OverloadedException(String message) {
+      super(message);
+    }
+  }
+
+  /** Creates and holds the limiter for each host. */
+  static class Registry implements StatusSource {
+    private final int maxLimit;
+    private final long acquireTimeoutMillis;
+    private final long backoffWindowMillis;
+    private final ConcurrentMap<String, AdaptiveConcurrencyLimiter> limiters
+        = new ConcurrentSkipListMap<String, AdaptiveConcurrencyLimiter>();
+
+    public Registry(int maxLimit, long acquireTimeoutMillis,
+        long backoffWindowMillis) {
+      if (maxLimit < 1) {
+        throw new IllegalArgumentException("maxLimit must be positive");
+      }
+      this.maxLimit = maxLimit;
+      this.acquireTimeoutMillis = acquireTimeoutMillis;
+      this.backoffWindowMillis = backoffWindowMillis;
+    }
+
+    /** Returns the limiter for {@code url}'s host and port. */
+    public AdaptiveConcurrencyLimiter get(URL url) {
+      int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      String host = url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+      AdaptiveConcurrencyLimiter limiter = limiters.get(host);
+      if (limiter == null) {
+        limiter = new AdaptiveConcurrencyLimiter(host, 1, maxLimit,
+            acquireTimeoutMillis, backoffWindowMillis);
+        AdaptiveConcurrencyLimiter existing
+            = limiters.putIfAbsent(host, limiter);
+        if (existing != null) {
+          limiter = existing;
+        }
+      }
+      return limiter;
+    }
+
+    /** Returns the limiters of all hosts seen so far, keyed by host. */
+    public Map<String, AdaptiveConcurrencyLimiter> getLimiters() {
+      return limiters;
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      boolean throttled = false;
+      StringBuilder message = new StringBuilder();
+      for (AdaptiveConcurrencyLimiter limiter : limiters.values()) {
+        if (limiter.getLimit() < limiter.getMaxLimit()) {
+          throttled = true;
+        }
+        if (message.length() > 0) {
+          message.append("; ");
+        }
+        message.append(limiter);
+      }
+      final Status.Code code
+          = throttled ? Status.Code.WARNING : Status.Code.NORMAL;
+      final String messageString = message.toString();
+      return new Status() {
+        @Override
+        public Status.Code getCode() {
+          return code;
+        }
+
+        @Override
+        public String getMessage(Locale locale) {
+          return messageString;
+        }
+      };
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return "SharePoint request concurrency";
+    }
+  }
+}
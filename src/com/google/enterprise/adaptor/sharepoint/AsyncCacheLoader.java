@@ -15,13 +15,18 @@
 package com.google.enterprise.adaptor.sharepoint;
 
 import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * An abstract CacheLoader whose reload() is asynchronous (unlike the default).
+ * If the executor rejects the reload, for example because it is saturated, the
+ * reload fails instead of running in the caller. The cache then keeps the old
+ * value without resetting its write time, so the next access tries again.
  */
 abstract class AsyncCacheLoader<K, V> extends CacheLoader<K, V> {
   protected abstract Executor executor();
@@ -29,16 +34,20 @@ abstract class AsyncCacheLoader<K, V> extends CacheLoader<K, V> {
   @Override
   public ListenableFuture<V> reload(final K key, V oldValue) {
     final SettableFuture<V> future = SettableFuture.create();
-    executor().execute(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          future.set(load(key));
-        } catch (Throwable t) {
-          future.setException(t);
+    try {
+      executor().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.set(load(key));
+          } catch (Throwable t) {
+            future.setException(t);
+          }
         }
-      }
-    });
+      });
+    } catch (RejectedExecutionException ex) {
+      return Futures.immediateFailedFuture(ex);
+    }
     return future;
   }
 }
@@ -0,0 +1,40 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Storage for the last processed change token of each content database and
+ * site collection, so that incremental crawling can resume where it stopped
+ * after a restart. Implementations must be thread-safe.
+ */
+interface ChangeTokenStore {
+  /** Returns all stored tokens, keyed by object GUID. */
+  Map<String, String> load() throws IOException;
+
+  /** Records {@code changeToken} as the latest token for {@code guid}. */
+  void put(String guid, String changeToken) throws IOException;
+
+  /** Forgets the token for {@code guid}. */
+  void remove(String guid) throws IOException;
+
+  /** Makes previous modifications durable. */
+  void sync() throws IOException;
+
+  /** Makes previous modifications durable and releases resources. */
+  void close() throws IOException;
+}
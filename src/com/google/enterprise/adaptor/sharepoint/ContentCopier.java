@@ -0,0 +1,122 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies file contents from SharePoint to the GSA using large, pooled
+ * buffers. Optionally limits the total throughput of all copies, and stops
+ * reading files larger than a limit instead of downloading content that would
+ * not be indexed.
+ *
+ * <p>Buffers are plain arrays rather than direct buffers, since both ends are
+ * streams that would copy a direct buffer's contents into an array anyway.
+ */
+class ContentCopier {
+  private static final Logger log
+      = Logger.getLogger(ContentCopier.class.getName());
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final BlockingQueue<byte[]> buffers;
+  /** {@code null} when throughput is not limited. */
+  private final RateLimiter rateLimiter;
+
+  /**
+   * @param maxPooledBuffers number of idle buffers to keep for reuse
+   * @param maxBytesPerSecond limit of the combined throughput of all copies,
+   *     or {@code 0} for no limit
+   */
+  public ContentCopier(int maxPooledBuffers, long maxBytesPerSecond) {
+    if (maxPooledBuffers < 1 || maxBytesPerSecond < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.buffers = new ArrayBlockingQueue<byte[]>(maxPooledBuffers);
+    this.rateLimiter = maxBytesPerSecond == 0
+        ? null : RateLimiter.create(maxBytesPerSecond);
+  }
+
+  /**
+   * Copies {@code in} to {@code out}, stopping after {@code maxBytes}. Does not
+   * close either stream; closing {@code in} before its end abandons the rest
+   * of the download.
+   *
+   * @param contentLength the expected length of {@code in}, or {@code -1} if
+   *     unknown
+   * @param maxBytes the number of bytes after which to stop, or {@code 0} for
+   *     no limit
+   * @param name identifies the content in log messages
+   * @return {@code true} if the content was truncated at {@code maxBytes}
+   */
+  public boolean copy(InputStream in, OutputStream out, long contentLength,
+      long maxBytes, String name) throws IOException {
+    long limit = maxBytes == 0 ? Long.MAX_VALUE : maxBytes;
+    if (contentLength > limit) {
+      log.log(Level.FINE, "Only copying the first {0} of {1} bytes of {2}",
+          new Object[] {limit, contentLength, name});
+    }
+    long startNanos = System.nanoTime();
+    long copied = 0;
+    boolean truncated = false;
+    byte[] buffer = takeBuffer();
+    try {
+      while (true) {
+        int read = in.read(buffer);
+        if (read == -1) {
+          break;
+        }
+        if (read == 0) {
+          continue;
+        }
+        if (rateLimiter != null) {
+          rateLimiter.acquire(read);
+        }
+        if (copied + read > limit) {
+          out.write(buffer, 0, (int) (limit - copied));
+          copied = limit;
+          truncated = true;
+          break;
+        }
+        out.write(buffer, 0, read);
+        copied += read;
+      }
+    } finally {
+      returnBuffer(buffer);
+    }
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    log.log(Level.FINE, "Copied {0} bytes of {1} in {2} ms ({3} bytes/s){4}",
+        new Object[] {copied, name, elapsedMillis,
+        copied * 1000 / Math.max(elapsedMillis, 1),
+        truncated ? ", truncated" : ""});
+    return truncated;
+  }
+
+  private byte[] takeBuffer() {
+    byte[] buffer = buffers.poll();
+    return buffer == null ? new byte[BUFFER_SIZE] : buffer;
+  }
+
+  private void returnBuffer(byte[] buffer) {
+    buffers.offer(buffer);
+  }
+}
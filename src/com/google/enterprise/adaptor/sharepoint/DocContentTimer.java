@@ -0,0 +1,246 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Breaks down the time of each {@code getDocContent} request into phases,
+ * and aggregates the totals and phases by document type. Requests slower
+ * than a threshold are logged with their breakdown, at most once a second.
+ *
+ * <p>Each thread times its current request in a trace of its own, so timing
+ * a phase only reads the clock and adds to an array. Phases may nest: the
+ * time to build an ACL includes the time to resolve its principals.
+ */
+class DocContentTimer implements StatusSource {
+  private static final Logger log
+      = Logger.getLogger(DocContentTimer.class.getName());
+
+  enum Phase {
+    RESOLVE_SITE_ADAPTOR("resolveSiteAdaptor"),
+    URL_SEGMENTS("urlSegments"),
+    METADATA("metadata"),
+    ACL("acl"),
+    PRINCIPALS("principals"),
+    CONTENT("content");
+
+    private final String label;
+
+    private Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  enum DocType {
+    VIRTUAL_SERVER("VirtualServer"),
+    SITE("Site"),
+    LIST("List"),
+    FOLDER("Folder"),
+    LIST_ITEM("ListItem"),
+    DOCUMENT("Document"),
+    ATTACHMENT("Attachment"),
+    ASPX("Aspx"),
+    /** Requests that ended before the type was known, like not found. */
+    UNKNOWN("Unknown");
+
+    private final String label;
+
+    private DocType(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+  private static final DocType[] DOC_TYPES = DocType.values();
+
+  /** Timing of the request in progress on a thread. */
+  private static class Trace {
+    private boolean active;
+    private long startNanos;
+    private DocType docType;
+    private final long[] phaseNanos = new long[PHASES.length];
+    private final boolean[] phaseSeen = new boolean[PHASES.length];
+  }
+
+  private final ThreadLocal<Trace> traces = new ThreadLocal<Trace>() {
+    @Override
+    protected Trace initialValue() {
+      return new Trace();
+    }
+  };
+  private final LatencyStats[] totals = new LatencyStats[DOC_TYPES.length];
+  private final LatencyStats[][] phases
+      = new LatencyStats[DOC_TYPES.length][PHASES.length];
+  /** {@code 0} when slow requests are not logged. */
+  private final long slowRequestNanos;
+  private final RateLimiter slowRequestLogLimiter = RateLimiter.create(1.0);
+
+  /**
+   * @param slowRequestMillis requests taking at least this long are logged,
+   *     or {@code 0} to never log requests
+   */
+  public DocContentTimer(long slowRequestMillis) {
+    if (slowRequestMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(slowRequestMillis);
+    for (int type = 0; type < DOC_TYPES.length; type++) {
+      totals[type] = new LatencyStats();
+      for (int phase = 0; phase < PHASES.length; phase++) {
+        phases[type][phase] = new LatencyStats();
+      }
+    }
+  }
+
+  /** Starts timing a request on the current thread. */
+  public void start() {
+    Trace trace = traces.get();
+    trace.active = true;
+    trace.startNanos = System.nanoTime();
+    trace.docType = DocType.UNKNOWN;
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      trace.phaseNanos[phase] = 0;
+      trace.phaseSeen[phase] = false;
+    }
+  }
+
+  /**
+   * Adds the time since {@code startNanos}, a value of {@link
+   * System#nanoTime}, to a phase of the current thread's request. Does
+   * nothing if the thread is not timing a request.
+   */
+  public void endPhase(Phase phase, long startNanos) {
+    Trace trace = traces.get();
+    if (!trace.active) {
+      return;
+    }
+    trace.phaseNanos[phase.ordinal()] += System.nanoTime() - startNanos;
+    trace.phaseSeen[phase.ordinal()] = true;
+  }
+
+  /** Sets the type of the document requested on the current thread. */
+  public void setDocType(DocType docType) {
+    Trace trace = traces.get();
+    if (trace.active) {
+      trace.docType = docType;
+    }
+  }
+
+  /**
+   * Stops timing the current thread's request, and records it under its
+   * document type.
+   *
+   * @param failed whether the request ended with an exception
+   */
+  public void finish(DocId docId, boolean failed) {
+    Trace trace = traces.get();
+    if (!trace.active) {
+      return;
+    }
+    trace.active = false;
+    long totalNanos = System.nanoTime() - trace.startNanos;
+    int type = trace.docType.ordinal();
+    totals[type].record(totalNanos, failed);
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      if (trace.phaseSeen[phase]) {
+        phases[type][phase].record(trace.phaseNanos[phase], failed);
+      }
+    }
+    if (slowRequestNanos > 0 && totalNanos >= slowRequestNanos
+        && slowRequestLogLimiter.tryAcquire()) {
+      StringBuilder breakdown = new StringBuilder();
+      for (int phase = 0; phase < PHASES.length; phase++) {
+        if (trace.phaseSeen[phase]) {
+          breakdown.append(", ").append(PHASES[phase].label).append("=")
+              .append(TimeUnit.NANOSECONDS.toMillis(trace.phaseNanos[phase]))
+              .append(" ms");
+        }
+      }
+      log.log(Level.INFO, "Slow request for {0} ({1}{2}): {3} ms{4}",
+          new Object[] {docId, trace.docType.label, failed ? ", failed" : "",
+          TimeUnit.NANOSECONDS.toMillis(totalNanos), breakdown});
+    }
+  }
+
+  /** Returns the statistics of requests of a document type. */
+  LatencyStats getStats(DocType docType) {
+    return totals[docType.ordinal()];
+  }
+
+  /** Returns the statistics of a phase of requests of a document type. */
+  LatencyStats getStats(DocType docType, Phase phase) {
+    return phases[docType.ordinal()][phase.ordinal()];
+  }
+
+  @Override
+  public Status retrieveStatus() {
+    boolean failing = false;
+    StringBuilder message = new StringBuilder();
+    for (int type = 0; type < DOC_TYPES.length; type++) {
+      LatencyStats stats = totals[type];
+      if (stats.getCount() == 0) {
+        continue;
+      }
+      if (stats.getErrors() * 10 > stats.getCount()) {
+        failing = true;
+      }
+      if (message.length() > 0) {
+        message.append("; ");
+      }
+      message.append(DOC_TYPES[type].label).append(": ").append(stats);
+      String separator = " (";
+      for (int phase = 0; phase < PHASES.length; phase++) {
+        LatencyStats phaseStats = phases[type][phase];
+        if (phaseStats.getCount() == 0) {
+          continue;
+        }
+        message.append(separator).append(PHASES[phase].label)
+            .append(" avgMs=").append(phaseStats.getAverageMillis());
+        separator = ", ";
+      }
+      if (!" (".equals(separator)) {
+        message.append(")");
+      }
+    }
+    final Status.Code code = failing ? Status.Code.WARNING : Status.Code.NORMAL;
+    final String text = message.length() == 0
+        ? "No requests" : message.toString();
+    return new Status() {
+      @Override
+      public Status.Code getCode() {
+        return code;
+      }
+
+      @Override
+      public String getMessage(Locale locale) {
+        return text;
+      }
+    };
+  }
+
+  @Override
+  public String getName(Locale locale) {
+    return "SharePoint document requests";
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link ChangeTokenStore} backed by an append-only local file. Each
+ * modification appends a line to the file; when the file contains many more
+ * lines than there are tokens it is compacted by atomically replacing it with
+ * a file containing only the current tokens.
+ *
+ * <p>Appended lines are synced to disk at most once per {@code
+ * syncIntervalMillis}, and on {@link #sync} and {@link #close}. A crash may
+ * therefore lose the most recent modifications, in which case crawling
+ * resumes from a slightly older token and some changes are sent again.
+ */
+class FileChangeTokenStore implements ChangeTokenStore {
+  private static final Logger log
+      = Logger.getLogger(FileChangeTokenStore.class.getName());
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String PUT = "P";
+  private static final String REMOVE = "R";
+  private static final char SEPARATOR = '\t';
+  /** Files with fewer lines than this are never compacted. */
+  private static final int MIN_LINES_TO_COMPACT = 1000;
+
+  private final File file;
+  private final long syncIntervalMillis;
+  /** Current tokens, keyed by GUID. {@code null} until loaded. */
+  private Map<String, String> tokens;
+  private FileOutputStream fileOut;
+  private Writer writer;
+  /** Number of lines in the file, including superseded ones. */
+  private int lines;
+  private boolean needsSync;
+  private long lastSyncMillis;
+
+  public FileChangeTokenStore(File file, long syncIntervalMillis) {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    if (syncIntervalMillis < 0) {
+      throw new IllegalArgumentException("syncIntervalMillis must be >= 0");
+    }
+    this.file = file;
+    this.syncIntervalMillis = syncIntervalMillis;
+  }
+
+  @Override
+  public synchronized Map<String, String> load() throws IOException {
+    open();
+    return new HashMap<String, String>(tokens);
+  }
+
+  @Override
+  public synchronized void put(String guid, String changeToken)
+      throws IOException {
+    checkValue(guid);
+    checkValue(changeToken);
+    open();
+    if (changeToken.equals(tokens.get(guid))) {
+      return;
+    }
+    tokens.put(guid, changeToken);
+    append(PUT + SEPARATOR + guid + SEPARATOR + changeToken);
+  }
+
+  @Override
+  public synchronized void remove(String guid) throws IOException {
+    checkValue(guid);
+    open();
+    if (tokens.remove(guid) == null) {
+      return;
+    }
+    append(REMOVE + SEPARATOR + guid);
+  }
+
+  @Override
+  public synchronized void sync() throws IOException {
+    if (writer == null || !needsSync) {
+      return;
+    }
+    writer.flush();
+    fileOut.getFD().sync();
+    needsSync = false;
+    lastSyncMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer == null) {
+      return;
+    }
+    try {
+      sync();
+    } finally {
+      writer.close();
+      writer = null;
+      fileOut = null;
+      tokens = null;
+    }
+  }
+
+  private static void checkValue(String value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    if (value.isEmpty() || value.indexOf(SEPARATOR) != -1
+        || value.indexOf('\n') != -1 || value.indexOf('\r') != -1) {
+      throw new IllegalArgumentException("Unsupported value: " + value);
+    }
+  }
+
+  /** Reads the file, if it hasn't been read already, and opens it. */
+  private void open() throws IOException {
+    if (writer != null) {
+      return;
+    }
+    tokens = new TreeMap<String, String>();
+    if (file.exists()) {
+      readFile();
+    }
+    // Always start with a compacted file, which also discards any partial
+    // line left by a crash.
+    compact();
+  }
+
+  private void readFile() throws IOException {
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), CHARSET));
+    try {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        String[] parts = line.split(String.valueOf(SEPARATOR), -1);
+        if (parts.length == 3 && PUT.equals(parts[0])
+            && !parts[1].isEmpty() && !parts[2].isEmpty()) {
+          tokens.put(parts[1], parts[2]);
+        } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+          tokens.remove(parts[1]);
+        } else {
+          log.log(Level.WARNING, "Ignoring malformed line {0} in {1}",
+              new Object[] {lineNumber, file});
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void append(String line) throws IOException {
+    writer.write(line);
+    writer.write('\n');
+    lines++;
+    needsSync = true;
+    if (lines >= MIN_LINES_TO_COMPACT && lines > 2 * tokens.size()) {
+      compact();
+    } else if (System.currentTimeMillis() - lastSyncMillis
+        >= syncIntervalMillis) {
+      sync();
+    }
+  }
+
+  /**
+   * Replaces the file with one only containing the current tokens, and opens
+   * it for appending.
+   */
+  private void compact() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+      fileOut = null;
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream tmpOut = new FileOutputStream(tmpFile);
+    try {
+      Writer tmpWriter
+          = new BufferedWriter(new OutputStreamWriter(tmpOut, CHARSET));
+      for (Map.Entry<String, String> me : tokens.entrySet()) {
+        tmpWriter.write(PUT + SEPARATOR + me.getKey() + SEPARATOR
+            + me.getValue() + "\n");
+      }
+      tmpWriter.flush();
+      tmpOut.getFD().sync();
+    } finally {
+      tmpOut.close();
+    }
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(tmpFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    fileOut = new FileOutputStream(file, true);
+    writer = new BufferedWriter(new OutputStreamWriter(fileOut, CHARSET));
+    lines = tokens.size();
+    needsSync = false;
+    lastSyncMillis = System.currentTimeMillis();
+  }
+}
@@ -46,6 +46,27 @@ class HtmlResponseWriter implements Closeable {
    */
   private static final long POSSIBLY_BUFFERED_BYTES = 1024;
 
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * ASCII characters that {@link URI} leaves unquoted in a path: unreserved,
+   * punct, slash and commercial-at characters. All others are percent-encoded.
+   */
+  private static final boolean[] PATH_CHARS = new boolean[128];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      PATH_CHARS[c] = true;
+      PATH_CHARS[Character.toUpperCase(c)] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      PATH_CHARS[c] = true;
+    }
+    for (char c : "-_.!~*'(),;:$&+=/@".toCharArray()) {
+      PATH_CHARS[c] = true;
+    }
+  }
+
   private static final Logger log
       = Logger.getLogger(HtmlResponseWriter.class.getName());
 
@@ -74,8 +95,20 @@ class HtmlResponseWriter implements Closeable {
   private final Executor executor;
   private DocId docId;
   private URI docUri;
+  /**
+   * Path of {@code docUri} split on slashes, or {@code null} if links can't be
+   * relative to it.
+   */
+  private String[] docUriPathParts;
   private State state = State.INITIAL;
   private final Collection<DocId> overflowDocIds = new ArrayList<DocId>(1024);
+  /**
+   * Characters not yet passed to {@link #writer}. Writing a {@code String} to
+   * an {@link OutputStreamWriter} copies it, so links are escaped here instead
+   * to not create garbage for every link of a large listing.
+   */
+  private final char[] buffer = new char[1024];
+  private int bufferLength;
 
   public HtmlResponseWriter(OutputStream os, Charset charset,
       DocIdEncoder docIdEncoder, Locale locale, long thresholdBytes,
@@ -121,17 +154,21 @@ class HtmlResponseWriter implements Closeable {
     }
     this.docId = docId;
     this.docUri = docIdEncoder.encodeDocId(docId);
+    if (docUri.getScheme() != null && docUri.getAuthority() != null) {
+      docUriPathParts = docUri.getPath().split("/", -1);
+    }
     String documentLabel = computeLabel(label, docId);
-    writer.write("<!DOCTYPE html>\n<html><head><title>");
-    writer.write(escapeContent(documentLabel));
-    writer.write("</title></head><body><h1>");
+    write("<!DOCTYPE html>\n<html><head><title>");
+    writeEscaped(documentLabel, false);
+    write("</title></head><body><h1>");
     googleoffIndex();
     // TODO(ejona): Localize.
-    writer.write(computeTypeHeaderLabel(type));
+    write(computeTypeHeaderLabel(type));
     googleonIndex();
-    writer.write(" ");
-    writer.write(escapeContent(documentLabel));
-    writer.write("</h1>");
+    write(" ");
+    writeEscaped(documentLabel, false);
+    write("</h1>");
+    flushBuffer();
     state = State.STARTED;
   }
 
@@ -140,17 +177,18 @@ class HtmlResponseWriter implements Closeable {
       throw new IllegalStateException("In unexpected state: " + state);
     }
     checkAndCloseSection();
-    writer.write("<p>");
+    write("<p>");
     googleoffIndex();
-    writer.write(escapeContent(computeTypeSectionLabel(type)));
+    writeEscaped(computeTypeSectionLabel(type), false);
     googleonIndex();
-    writer.write("</p><ul>");
+    write("</p><ul>");
+    flushBuffer();
     state = State.IN_SECTION;
   }
 
   private void checkAndCloseSection() throws IOException {
     if (state == State.IN_SECTION) {
-      writer.write("</ul>");
+      write("</ul>");
     }
   }
 
@@ -169,17 +207,18 @@ class HtmlResponseWriter implements Closeable {
         > thresholdBytes) {
       overflowDocIds.add(doc);
     }
-    writer.write("<li><a href=\"");
-    writer.write(escapeAttributeValue(encodeDocId(doc)));
-    writer.write("\">");
-    writer.write(escapeContent(computeLabel(label, doc)));
-    writer.write("</a></li>");
+    write("<li><a href=\"");
+    writeRelativeUri(docIdEncoder.encodeDocId(doc));
+    write("\">");
+    writeLinkLabel(label, doc);
+    write("</a></li>");
+    flushBuffer();
   }
 
   private void addComment(String comment) throws IOException {
-    writer.write("<!--");
-    writer.write(escapeContent(comment));
-    writer.write("-->");
+    write("<!--");
+    writeEscaped(comment, false);
+    write("-->");
   }
 
   private void googleoffIndex() throws IOException {
@@ -194,16 +233,17 @@ class HtmlResponseWriter implements Closeable {
       throws IOException {
     checkAndCloseSection();
     googleoffIndex();
-    writer.write("<table style='border: none'>");
+    write("<table style='border: none'>");
     for (Map.Entry<String, String> me : metadata.entries()) {
-      writer.write("<tr><td>");
-      writer.write(escapeContent(me.getKey()));
-      writer.write("</td><td>");
-      writer.write(escapeContent(me.getValue()));
-      writer.write("</td></tr>");
+      write("<tr><td>");
+      writeEscaped(me.getKey(), false);
+      write("</td><td>");
+      writeEscaped(me.getValue(), false);
+      write("</td></tr>");
     }
-    writer.write("</table>");
+    write("</table>");
     googleonIndex();
+    flushBuffer();
     state = State.STARTED;
   }
 
@@ -228,7 +268,8 @@ class HtmlResponseWriter implements Closeable {
       });
     }
     checkAndCloseSection();
-    writer.write("</body></html>");
+    write("</body></html>");
+    flushBuffer();
     writer.flush();
     state = State.FINISHED;
     log.exiting("HtmlResponseWriter", "finish");
@@ -241,21 +282,74 @@ class HtmlResponseWriter implements Closeable {
   @Override
   public void close() throws IOException {
     log.entering("HtmlResponseWriter", "close");
+    flushBuffer();
     writer.close();
     state = State.CLOSED;
     log.exiting("HtmlResponseWriter", "close");
   }
 
   /**
-   * Encodes a DocId into a URI formatted as a string.
+   * Writes {@code relativize(docUri, uri).toASCIIString()} as an attribute
+   * value, without creating the intermediate strings and URI for the common
+   * case of an ASCII path without query or fragment.
    */
-  private String encodeDocId(DocId doc) {
-    log.entering("HtmlResponseWriter", "encodeDocId", doc);
-    URI uri = docIdEncoder.encodeDocId(doc);
-    uri = relativize(docUri, uri);
-    String encoded = uri.toASCIIString();
-    log.exiting("HtmlResponseWriter", "encodeDocId", encoded);
-    return encoded;
+  private void writeRelativeUri(URI uri) throws IOException {
+    if (docUriPathParts == null || !docUri.getScheme().equals(uri.getScheme())
+        || !docUri.getAuthority().equals(uri.getAuthority())
+        || uri.getRawQuery() != null || uri.getRawFragment() != null) {
+      writeEscaped(relativize(docUri, uri).toASCIIString(), true);
+      return;
+    }
+    if (docUri.equals(uri)) {
+      write("#");
+      return;
+    }
+    String path = uri.getPath();
+    // Skip common folders, the same as relativize() does.
+    int i = 0;
+    int start = 0;
+    for (; i < docUriPathParts.length - 1; i++) {
+      int end = path.indexOf('/', start);
+      if (end == -1 || end - start != docUriPathParts[i].length()
+          || !path.startsWith(docUriPathParts[i], start)) {
+        break;
+      }
+      start = end + 1;
+    }
+    int parents = docUriPathParts.length - 1 - i;
+    boolean slowPath = parents == 0 && path.startsWith("//", start);
+    for (int j = start; j < path.length() && !slowPath; j++) {
+      // URI also normalizes non-ASCII characters before encoding them.
+      slowPath = path.charAt(j) >= 0x80;
+    }
+    if (slowPath) {
+      writeEscaped(relativize(docUri, uri).toASCIIString(), true);
+      return;
+    }
+    for (int j = 0; j < parents; j++) {
+      write("../");
+    }
+    if (parents == 0) {
+      int colon = path.indexOf(':', start);
+      int slash = path.indexOf('/', start);
+      if (colon != -1 && (slash == -1 || colon < slash)) {
+        write("./");
+      }
+    }
+    for (int j = start; j < path.length(); j++) {
+      char c = path.charAt(j);
+      if (!PATH_CHARS[c]) {
+        writeChar('%');
+        writeChar(HEX_DIGITS[c >> 4]);
+        writeChar(HEX_DIGITS[c & 0xF]);
+      } else if (c == '&') {
+        write("&amp;");
+      } else if (c == '\'') {
+        write("&apos;");
+      } else {
+        writeChar(c);
+      }
+    }
   }
 
   /**
@@ -321,6 +415,24 @@ class HtmlResponseWriter implements Closeable {
     }
   }
 
+  /** Writes the escaped label of a link, like {@link #computeLabel}. */
+  private void writeLinkLabel(String label, DocId doc) throws IOException {
+    if (label != null && !"".equals(label)) {
+      writeEscaped(label, false);
+      return;
+    }
+    String id = doc.getUniqueId();
+    int end = id.length();
+    while (end > 0 && id.charAt(end - 1) == '/') {
+      end--;
+    }
+    if (end == 0) {
+      writeEscaped(computeLabel(label, doc), false);
+      return;
+    }
+    writeEscaped(id, id.lastIndexOf('/', end - 1) + 1, end, false);
+  }
+
   private String computeLabel(String label, DocId doc) {
     if (label == null || "".equals(label)) {
       // Use the last part of the URL if an item doesn't have a title. The last
@@ -369,11 +481,55 @@ class HtmlResponseWriter implements Closeable {
     }
   }
 
-  private String escapeContent(String raw) {
-    return raw.replace("&", "&amp;").replace("<", "&lt;");
+  private void writeEscaped(String raw, boolean attribute)
+      throws IOException {
+    writeEscaped(raw, 0, raw.length(), attribute);
+  }
+
+  /**
+   * Writes {@code raw.substring(start, end)} escaped as element content, or
+   * as an attribute value if {@code attribute}.
+   */
+  private void writeEscaped(String raw, int start, int end, boolean attribute)
+      throws IOException {
+    for (int i = start; i < end; i++) {
+      char c = raw.charAt(i);
+      if (c == '&') {
+        write("&amp;");
+      } else if (c == '<') {
+        write("&lt;");
+      } else if (attribute && c == '"') {
+        write("&quot;");
+      } else if (attribute && c == '\'') {
+        write("&apos;");
+      } else {
+        writeChar(c);
+      }
+    }
+  }
+
+  private void write(String s) throws IOException {
+    int length = s.length();
+    if (bufferLength + length > buffer.length) {
+      flushBuffer();
+      if (length > buffer.length) {
+        writer.write(s);
+        return;
+      }
+    }
+    s.getChars(0, length, buffer, bufferLength);
+    bufferLength += length;
+  }
+
+  private void writeChar(char c) throws IOException {
+    if (bufferLength == buffer.length) {
+      flushBuffer();
+    }
+    buffer[bufferLength++] = c;
   }
 
-  private String escapeAttributeValue(String raw) {
-    return escapeContent(raw).replace("\"", "&quot;").replace("'", "&apos;");
+  private void flushBuffer() throws IOException {
+    writer.write(buffer, 0, bufferLength);
+    bufferLength = 0;
   }
 }
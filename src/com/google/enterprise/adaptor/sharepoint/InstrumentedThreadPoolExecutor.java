@@ -0,0 +1,216 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool with a bounded number of threads and a bounded queue, that
+ * records how long tasks wait and run. When both the threads and the queue
+ * are exhausted, tasks run in the thread that submitted them, which slows
+ * down the submitter instead of creating more threads or failing. Work that
+ * should not delay its submitter, such as cache refreshes, can be submitted
+ * through {@link #rejectingWhenFull} instead.
+ */
+class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor
+    implements StatusSource {
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final String name;
+  private final int queueSize;
+  private final AtomicLong tasksCompleted = new AtomicLong();
+  private final AtomicLong tasksRunInCaller = new AtomicLong();
+  private final AtomicLong tasksRejected = new AtomicLong();
+  private final AtomicLong totalQueueNanos = new AtomicLong();
+  private final AtomicLong maxQueueNanos = new AtomicLong();
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  public InstrumentedThreadPoolExecutor(String name, int coreThreads,
+      int maxThreads, int queueSize) {
+    super(coreThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize));
+    if (name == null) {
+      throw new NullPointerException();
+    }
+    this.name = name;
+    this.queueSize = queueSize;
+    allowCoreThreadTimeOut(true);
+    setRejectedExecutionHandler(new CountingCallerRunsPolicy());
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    super.execute(new TimedRunnable(command, true));
+  }
+
+  /**
+   * Returns an executor that submits to this pool, but throws {@link
+   * RejectedExecutionException} when both the threads and the queue are
+   * exhausted, instead of running the task in the caller.
+   */
+  public Executor rejectingWhenFull() {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (command == null) {
+          throw new NullPointerException();
+        }
+        InstrumentedThreadPoolExecutor.super.execute(
+            new TimedRunnable(command, false));
+      }
+    };
+  }
+
+  public int getQueueDepth() {
+    return getQueue().size();
+  }
+
+  /** Number of tasks that completed, including tasks run in the caller. */
+  public long getTasksCompleted() {
+    return tasksCompleted.get();
+  }
+
+  /** Number of tasks run in the submitting thread because the pool was full. */
+  public long getTasksRunInCaller() {
+    return tasksRunInCaller.get();
+  }
+
+  /** Number of tasks rejected because the pool was full. */
+  public long getTasksRejected() {
+    return tasksRejected.get();
+  }
+
+  /** Average time tasks waited in the queue, in milliseconds. */
+  public long getAverageQueueMillis() {
+    long completed = tasksCompleted.get();
+    return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(
+        totalQueueNanos.get() / completed);
+  }
+
+  /** Longest time a task waited in the queue, in milliseconds. */
+  public long getMaxQueueMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxQueueNanos.get());
+  }
+
+  /** Average time tasks took to run, in milliseconds. */
+  public long getAverageRunMillis() {
+    long completed = tasksCompleted.get();
+    return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(
+        totalRunNanos.get() / completed);
+  }
+
+  @Override
+  public Status retrieveStatus() {
+    // A full queue means tasks are being run by their submitters.
+    final Status.Code code = getQueueDepth() >= queueSize
+        ? Status.Code.WARNING : Status.Code.NORMAL;
+    final String message = String.format("threads=%d/%d, active=%d, "
+        + "queued=%d/%d, completed=%d, runInCaller=%d, rejected=%d, "
+        + "avgQueueMs=%d, maxQueueMs=%d, avgRunMs=%d", getPoolSize(),
+        getMaximumPoolSize(), getActiveCount(), getQueueDepth(), queueSize,
+        getTasksCompleted(), getTasksRunInCaller(), getTasksRejected(),
+        getAverageQueueMillis(), getMaxQueueMillis(), getAverageRunMillis());
+    return new Status() {
+      @Override
+      public Status.Code getCode() {
+        return code;
+      }
+
+      @Override
+      public String getMessage(Locale locale) {
+        return message;
+      }
+    };
+  }
+
+  @Override
+  public String getName(Locale locale) {
+    return name;
+  }
+
+  private void recordTask(long queueNanos, long runNanos) {
+    tasksCompleted.incrementAndGet();
+    totalQueueNanos.addAndGet(queueNanos);
+    totalRunNanos.addAndGet(runNanos);
+    long max;
+    do {
+      max = maxQueueNanos.get();
+    } while (queueNanos > max && !maxQueueNanos.compareAndSet(max, queueNanos));
+  }
+
+  /** Records when the task was submitted, and how long it waited and ran. */
+  private class TimedRunnable implements Runnable {
+    private final Runnable task;
+    /** Whether to run the task in the caller when the pool is full. */
+    private final boolean runInCallerWhenFull;
+    private final long submittedNanos = System.nanoTime();
+
+    public TimedRunnable(Runnable task, boolean runInCallerWhenFull) {
+      this.task = task;
+      this.runInCallerWhenFull = runInCallerWhenFull;
+    }
+
+    @Override
+    public void run() {
+      long startNanos = System.nanoTime();
+      try {
+        task.run();
+      } finally {
+        recordTask(startNanos - submittedNanos,
+            System.nanoTime() - startNanos);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  /**
+   * Runs rejected tasks in the caller, like {@link CallerRunsPolicy}, but
+   * rejects tasks after shutdown instead of silently discarding them, and
+   * rejects tasks submitted through {@link #rejectingWhenFull}.
+   */
+  private class CountingCallerRunsPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Executor " + name
+            + " has been shut down");
+      }
+      if (!((TimedRunnable) r).runInCallerWhenFull) {
+        tasksRejected.incrementAndGet();
+        throw new RejectedExecutionException("Executor " + name
+            + " is full");
+      }
+      tasksRunInCaller.incrementAndGet();
+      r.run();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count, error count and latency histogram of some kind of operation. The
+ * histogram has fixed buckets, so recording is cheap and percentiles are
+ * approximate.
+ */
+class LatencyStats {
+  /** Upper bounds of the latency histogram buckets, in milliseconds. */
+  private static final long[] BUCKET_LIMITS_MILLIS = {1, 2, 5, 10, 20, 50,
+      100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, Long.MAX_VALUE};
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLongArray buckets
+      = new AtomicLongArray(BUCKET_LIMITS_MILLIS.length);
+
+  public void record(long nanos, boolean failed) {
+    count.incrementAndGet();
+    if (failed) {
+      errors.incrementAndGet();
+    }
+    totalNanos.addAndGet(nanos);
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (millis > BUCKET_LIMITS_MILLIS[bucket]) {
+      bucket++;
+    }
+    buckets.incrementAndGet(bucket);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getAverageMillis() {
+    long calls = count.get();
+    return calls == 0
+        ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / calls);
+  }
+
+  /**
+   * Returns the upper bound of the histogram bucket holding the given
+   * percentile of latencies, in milliseconds, or {@code -1} if it is in the
+   * unbounded bucket.
+   */
+  public long getPercentileMillis(int percentile) {
+    long[] counts = new long[buckets.length()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long threshold = (total * percentile + 99) / 100;
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= threshold && seen > 0) {
+        long limit = BUCKET_LIMITS_MILLIS[i];
+        return limit == Long.MAX_VALUE ? -1 : limit;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d, errors=%d, avgMs=%d, p50Ms<=%s, "
+        + "p95Ms<=%s, p99Ms<=%s", getCount(), getErrors(), getAverageMillis(),
+        format(getPercentileMillis(50)), format(getPercentileMillis(95)),
+        format(getPercentileMillis(99)));
+  }
+
+  private static String format(long percentileMillis) {
+    return percentileMillis == -1 ? "inf" : "" + percentileMillis;
+  }
+}
@@ -14,11 +14,16 @@
 
 package com.google.enterprise.adaptor.sharepoint;
 
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,19 +37,49 @@ import javax.xml.ws.Holder;
  * mode of a parameter and only prints it when appropriate. The mode of a
  * parameter defines when it is sent, so this logging method accurately
  * represents the exchange of information.
+ *
+ * <p>Optionally also records the latency, response size and failure of each
+ * call in {@link SoapMetrics}.
  */
 class LoggingWSHandler implements InvocationHandler {
   private static final Logger log
       = Logger.getLogger(LoggingWSHandler.class.getName());
+  /** Annotations of each method called, so they are only looked up once. */
+  private static final ConcurrentMap<Method, MethodInfo> methodInfos
+      = new ConcurrentHashMap<Method, MethodInfo>();
 
   private final Object wrapped;
+  /** {@code null} if calls are not recorded. */
+  private final SoapMetrics metrics;
+  private final String site;
 
   public LoggingWSHandler(Object wrapped) {
+    this(wrapped, null, null);
+  }
+
+  /**
+   * @param metrics records each call, if not {@code null}
+   * @param site the site collection that calls are attributed to in {@code
+   *     metrics}, or {@code null}
+   */
+  public LoggingWSHandler(Object wrapped, SoapMetrics metrics, String site) {
     this.wrapped = wrapped;
+    this.metrics = metrics;
+    this.site = site;
   }
 
   public static <T> T create(Class<T> webServiceInterface, T wrapped) {
-    InvocationHandler invokeHandler = new LoggingWSHandler(wrapped);
+    return create(webServiceInterface, wrapped, null, null);
+  }
+
+  /**
+   * Like {@link #create(Class, Object)}, but also records each call of a web
+   * method in {@code metrics}, attributed to {@code site}.
+   */
+  public static <T> T create(Class<T> webServiceInterface, T wrapped,
+      SoapMetrics metrics, String site) {
+    InvocationHandler invokeHandler
+        = new LoggingWSHandler(wrapped, metrics, site);
     Object oInstance = Proxy.newProxyInstance(
         LoggingWSHandler.class.getClassLoader(),
         new Class<?>[] {webServiceInterface}, invokeHandler);
@@ -57,66 +92,136 @@ class LoggingWSHandler implements InvocationHandler {
   public Object invoke(Object proxy, Method method, Object[] args)
       throws Throwable {
     final Level logLevel = Level.FINE;
+    MethodInfo methodInfo = getMethodInfo(method);
+    String operationName = methodInfo.operationName;
     String inArgs = null;
-    if (log.isLoggable(logLevel)) {
-      WebMethod webMethod = method.getAnnotation(WebMethod.class);
-      if (webMethod != null) {
-        inArgs = formArgumentString(method, args, WebParam.Mode.IN);
-        log.log(logLevel, "WS Request {0}: {1}",
-            new Object[] {webMethod.operationName(), inArgs});
-      }
+    if (operationName != null && log.isLoggable(logLevel)) {
+      inArgs = formArgumentString(methodInfo, args, WebParam.Mode.IN);
+      log.log(logLevel, "WS Request {0}: {1}",
+          new Object[] {operationName, inArgs});
     }
     Object ret;
-    long startMillis = System.currentTimeMillis();
+    long startNanos = System.nanoTime();
+    boolean failed = true;
     try {      
       ret = method.invoke(wrapped, args);
+      failed = false;
     } catch (IllegalAccessException ex) {
       throw new RuntimeException("Misconfigured LoggingWSHandler", ex);
     } catch (IllegalArgumentException ex) {
       throw new RuntimeException("Misconfigured LoggingWSHandler", ex);
     } catch (InvocationTargetException ex) {
       throw ex.getCause();
-    }
-    if (log.isLoggable(logLevel)) {
-      WebMethod webMethod = method.getAnnotation(WebMethod.class);
-      if (webMethod != null) {
-        String outArgs = formArgumentString(method, args, WebParam.Mode.OUT);
-        log.log(logLevel, "WS Response {0}: {1}",
-            new Object[] {webMethod.operationName(), outArgs});
-        log.log(logLevel, "Duration: WS Request {0} - {1} : {2,number,#} ms",
-            new Object[] {webMethod.operationName(), inArgs,
-            System.currentTimeMillis() - startMillis});
+    } finally {
+      if (metrics != null && operationName != null) {
+        metrics.record(operationName, methodInfo.getObjectType(args), site,
+            System.nanoTime() - startNanos,
+            failed ? 0 : methodInfo.getResponseChars(args), failed);
       }
     }
+    if (operationName != null && log.isLoggable(logLevel)) {
+      String outArgs = formArgumentString(methodInfo, args, WebParam.Mode.OUT);
+      log.log(logLevel, "WS Response {0}: {1}",
+          new Object[] {operationName, outArgs});
+      log.log(logLevel, "Duration: WS Request {0} - {1} : {2,number,#} ms",
+          new Object[] {operationName, inArgs,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)});
+    }
     return ret;
   }
 
-  private String formArgumentString(Method method, Object[] args,
+  private static MethodInfo getMethodInfo(Method method) {
+    MethodInfo methodInfo = methodInfos.get(method);
+    if (methodInfo == null) {
+      methodInfo = new MethodInfo(method);
+      methodInfos.put(method, methodInfo);
+    }
+    return methodInfo;
+  }
+
+  private String formArgumentString(MethodInfo methodInfo, Object[] args,
       WebParam.Mode mode) {
     StringBuilder argsBuffer = new StringBuilder();
-    Annotation[][] annotates = method.getParameterAnnotations();
-    if (annotates.length != 0 && annotates.length != args.length) {
+    WebParam[] webParams = methodInfo.webParams;
+    if (webParams.length != 0 && webParams.length != args.length) {
       throw new AssertionError();
     }
-    for (int i = 0; i < annotates.length; i++) {
-      for (Annotation annotate : annotates[i]) {
-        if (!(annotate instanceof WebParam)) {
-          break;
-        }
-        WebParam webParam = (WebParam) annotate;
-        if (webParam.mode() == mode
-            || webParam.mode() == WebParam.Mode.INOUT) {
-          argsBuffer.append(", ").append(webParam.name()).append("=");
-          if (webParam.mode() == WebParam.Mode.IN) {
-            argsBuffer.append("" + args[i]);
-          } else {
-            Holder<?> holder = (Holder<?>) args[i];
-            argsBuffer.append(
-                holder == null ? "<null holder>" : "" + holder.value);
-          }
+    for (int i = 0; i < webParams.length; i++) {
+      WebParam webParam = webParams[i];
+      if (webParam == null) {
+        continue;
+      }
+      if (webParam.mode() == mode
+          || webParam.mode() == WebParam.Mode.INOUT) {
+        argsBuffer.append(", ").append(webParam.name()).append("=");
+        if (webParam.mode() == WebParam.Mode.IN) {
+          argsBuffer.append("" + args[i]);
+        } else {
+          Holder<?> holder = (Holder<?>) args[i];
+          argsBuffer.append(
+              holder == null ? "<null holder>" : "" + holder.value);
         }
       }
     }
     return argsBuffer.length() > 1 ? argsBuffer.substring(2) : "";
   }
+
+  /** The web service annotations of a method. */
+  private static class MethodInfo {
+    /** {@code null} if the method is not a web method. */
+    private final String operationName;
+    /**
+     * The WebParam of each parameter, or {@code null} if the parameter's
+     * first annotation is something else.
+     */
+    private final WebParam[] webParams;
+    /** Index of the IN parameter named objectType, or {@code -1}. */
+    private final int objectTypeIndex;
+
+    public MethodInfo(Method method) {
+      WebMethod webMethod = method.getAnnotation(WebMethod.class);
+      operationName = webMethod == null ? null : webMethod.operationName();
+      Annotation[][] annotates = method.getParameterAnnotations();
+      webParams = new WebParam[annotates.length];
+      int objectTypeIndex = -1;
+      for (int i = 0; i < annotates.length; i++) {
+        if (annotates[i].length == 0
+            || !(annotates[i][0] instanceof WebParam)) {
+          continue;
+        }
+        webParams[i] = (WebParam) annotates[i][0];
+        if (webParams[i].mode() == WebParam.Mode.IN
+            && "objectType".equals(webParams[i].name())) {
+          objectTypeIndex = i;
+        }
+      }
+      this.objectTypeIndex = objectTypeIndex;
+    }
+
+    /** Returns the objectType argument, or {@code null}. */
+    public String getObjectType(Object[] args) {
+      if (objectTypeIndex == -1 || args[objectTypeIndex] == null) {
+        return null;
+      }
+      Object objectType = args[objectTypeIndex];
+      return objectType instanceof ObjectType
+          ? ((ObjectType) objectType).value() : "" + objectType;
+    }
+
+    /** Returns the total length of the strings returned in holders. */
+    public long getResponseChars(Object[] args) {
+      long chars = 0;
+      for (int i = 0; i < webParams.length; i++) {
+        if (webParams[i] == null || webParams[i].mode() == WebParam.Mode.IN
+            || args[i] == null) {
+          continue;
+        }
+        Object value = ((Holder<?>) args[i]).value;
+        if (value instanceof String) {
+          chars += ((String) value).length();
+        }
+      }
+      return chars;
+    }
+  }
 }
@@ -16,38 +16,107 @@ package com.google.enterprise.adaptor.sharepoint;
 
 import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
+import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
  * Immutable lookup from identifier to name for users and groups.
+ *
+ * <p>Many of these are cached at once, one or two per site collection, so
+ * identifiers are kept in a sorted array instead of a map of boxed integers,
+ * and principals are shared across all mappings.
  */
 class MemberIdMapping {
   private static final Interner<Principal> interner
       = Interners.newWeakInterner();
 
-  private final Map<Integer, Principal> principals;
+  /** Sorted identifiers. */
+  private final int[] ids;
+  /** Principals, in the same order as {@link #ids}. */
+  private final Principal[] principals;
 
   public MemberIdMapping(Map<Integer, ? extends Principal> principals) {
-    Map<Integer, Principal> tmp = new HashMap<Integer, Principal>(principals);
-    // Most of the purpose for this class is to allow future memory
-    // optimizations without having to tweak all the calling code. Thus, it
-    // makes sense for this class to do intern()ing.
-    for (Map.Entry<Integer, Principal> me : tmp.entrySet()) {
-      me.setValue(interner.intern(me.getValue()));
+    int[] ids = new int[principals.size()];
+    int i = 0;
+    for (Integer id : principals.keySet()) {
+      ids[i++] = id;
     }
-    this.principals = Collections.unmodifiableMap(principals);
+    Arrays.sort(ids);
+    this.ids = ids;
+    this.principals = new Principal[ids.length];
+    for (i = 0; i < ids.length; i++) {
+      this.principals[i] = interner.intern(principals.get(ids[i]));
+    }
+  }
+
+  /** {@code ids} must be sorted and {@code principals} already interned. */
+  private MemberIdMapping(int[] ids, Principal[] principals) {
+    this.ids = ids;
+    this.principals = principals;
   }
 
-  public Principal getPrincipal(Integer id) {
-    return principals.get(id);
+  /** Returns the principal for {@code id}, or {@code null} if unknown. */
+  public Principal getPrincipal(int id) {
+    int i = Arrays.binarySearch(ids, id);
+    return i < 0 ? null : principals[i];
+  }
+
+  /** Writes the mapping in the format read by {@link #readFrom}. */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      out.writeInt(ids[i]);
+      out.writeBoolean(principals[i].isGroup());
+      out.writeUTF(principals[i].getName());
+      out.writeUTF(principals[i].getNamespace());
+    }
+  }
+
+  /**
+   * Reads a mapping written by {@link #writeTo}. {@code in} must know how
+   * many bytes remain, like streams over byte arrays do.
+   */
+  public static MemberIdMapping readFrom(DataInputStream in)
+      throws IOException {
+    int size = in.readInt();
+    // Each entry uses at least 9 bytes. Checked to fail quickly on corrupt
+    // input, instead of allocating huge arrays.
+    if (size < 0 || size > in.available() / 9) {
+      throw new IOException("Invalid mapping size: " + size);
+    }
+    int[] ids = new int[size];
+    Principal[] principals = new Principal[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = in.readInt();
+      if (i > 0 && ids[i] <= ids[i - 1]) {
+        throw new IOException("Member ids are not sorted");
+      }
+      boolean isGroup = in.readBoolean();
+      String name = in.readUTF();
+      String namespace = in.readUTF();
+      principals[i] = interner.intern(isGroup
+          ? new GroupPrincipal(name, namespace)
+          : new UserPrincipal(name, namespace));
+    }
+    return new MemberIdMapping(ids, principals);
   }
 
   @Override
   public String toString() {
-    return "MemberIdMapping(" + principals + ")";
+    StringBuilder sb = new StringBuilder("MemberIdMapping({");
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(ids[i]).append('=').append(principals[i]);
+    }
+    return sb.append("})").toString();
   }
 }
@@ -0,0 +1,167 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local file with the {@link MemberIdMapping}s of site collections, so that
+ * after a restart ACLs can be computed without first retrieving the users and
+ * groups of every site collection again.
+ *
+ * <p>The file is read on first use. Each mapping read from it is handed out
+ * once, by {@link #takeMemberIdMapping} or {@link #takeSiteUserMapping}, and
+ * is expected to be refreshed by the caller afterwards. Mappings not yet taken
+ * are kept when the file is written again.
+ */
+class MemberIdMappingSnapshot {
+  private static final Logger log
+      = Logger.getLogger(MemberIdMappingSnapshot.class.getName());
+  /** "MIM" followed by the format version. */
+  private static final int MAGIC = 0x4d494d01;
+
+  private final File file;
+  /** Mappings read from the file and not yet taken. {@code null} until read. */
+  private Map<String, MemberIdMapping> memberIdMappings;
+  private Map<String, MemberIdMapping> siteUserMappings;
+
+  public MemberIdMappingSnapshot(File file) {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    this.file = file;
+  }
+
+  /**
+   * Returns and forgets the member id mapping read from the file for {@code
+   * siteUrl}, or {@code null} if there is none.
+   */
+  public synchronized MemberIdMapping takeMemberIdMapping(String siteUrl) {
+    read();
+    return memberIdMappings.remove(siteUrl);
+  }
+
+  /**
+   * Returns and forgets the site user mapping read from the file for {@code
+   * siteUrl}, or {@code null} if there is none.
+   */
+  public synchronized MemberIdMapping takeSiteUserMapping(String siteUrl) {
+    read();
+    return siteUserMappings.remove(siteUrl);
+  }
+
+  /**
+   * Atomically replaces the file with the provided mappings, keyed by site
+   * collection URL, and the mappings read from the file that were not taken.
+   */
+  public synchronized void write(Map<String, MemberIdMapping> memberIds,
+      Map<String, MemberIdMapping> siteUsers) throws IOException {
+    read();
+    Map<String, MemberIdMapping> allMemberIds
+        = new HashMap<String, MemberIdMapping>(memberIdMappings);
+    allMemberIds.putAll(memberIds);
+    Map<String, MemberIdMapping> allSiteUsers
+        = new HashMap<String, MemberIdMapping>(siteUserMappings);
+    allSiteUsers.putAll(siteUsers);
+
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream tmpOut = new FileOutputStream(tmpFile);
+    try {
+      DataOutputStream out
+          = new DataOutputStream(new BufferedOutputStream(tmpOut));
+      out.writeInt(MAGIC);
+      writeMappings(out, allMemberIds);
+      writeMappings(out, allSiteUsers);
+      out.flush();
+      tmpOut.getFD().sync();
+    } finally {
+      tmpOut.close();
+    }
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(tmpFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    log.log(Level.FINE, "Wrote {0} member id and {1} site user mappings to "
+        + "{2}", new Object[] {allMemberIds.size(), allSiteUsers.size(), file});
+  }
+
+  private static void writeMappings(DataOutputStream out,
+      Map<String, MemberIdMapping> mappings) throws IOException {
+    out.writeInt(mappings.size());
+    for (Map.Entry<String, MemberIdMapping> me : mappings.entrySet()) {
+      out.writeUTF(me.getKey());
+      me.getValue().writeTo(out);
+    }
+  }
+
+  /** Reads the file, if it hasn't been read already. */
+  private void read() {
+    if (memberIdMappings != null) {
+      return;
+    }
+    memberIdMappings = new HashMap<String, MemberIdMapping>();
+    siteUserMappings = new HashMap<String, MemberIdMapping>();
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Unsupported file format");
+      }
+      readMappings(in, memberIdMappings);
+      readMappings(in, siteUserMappings);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Ignoring unreadable member id mapping file "
+          + file, ex);
+      memberIdMappings.clear();
+      siteUserMappings.clear();
+      return;
+    }
+    log.log(Level.INFO, "Read {0} member id and {1} site user mappings from "
+        + "{2}", new Object[] {memberIdMappings.size(), siteUserMappings.size(),
+        file});
+  }
+
+  private static void readMappings(DataInputStream in,
+      Map<String, MemberIdMapping> mappings) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid number of mappings: " + size);
+    }
+    for (int i = 0; i < size; i++) {
+      String siteUrl = in.readUTF();
+      mappings.put(siteUrl, MemberIdMapping.readFrom(in));
+    }
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.sharepoint.AdaptiveConcurrencyLimiter.Outcome;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.FileInfo;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.HttpClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link HttpClient} that limits the number of connections open to each host.
+ *
+ * <p>Connections themselves are pooled by the JDK's keep-alive cache, which
+ * keeps NTLM-authenticated connections authenticated and is also used by the
+ * SOAP clients. Without a limit, many concurrent downloads open many more
+ * connections than that cache retains, causing connection churn on the
+ * SharePoint front ends. Here each request holds a per-host permit until its
+ * response body is closed, so the number of connections to a host never
+ * exceeds what the keep-alive cache is allowed to keep (see {@link
+ * #configureKeepAliveCache}).
+ *
+ * <p>Permits come from the host's {@link AdaptiveConcurrencyLimiter}, which
+ * is shared with the SOAP clients and lowers the number of concurrent
+ * requests when SharePoint reports it is overloaded.
+ */
+class PooledHttpClient implements HttpClient {
+  private final HttpClient delegate;
+  private final AdaptiveConcurrencyLimiter.Registry limiters;
+
+  /**
+   * @param delegate client used to issue requests
+   * @param limiters limit the number of concurrent requests to each host
+   */
+  public PooledHttpClient(HttpClient delegate,
+      AdaptiveConcurrencyLimiter.Registry limiters) {
+    if (delegate == null || limiters == null) {
+      throw new NullPointerException();
+    }
+    this.delegate = delegate;
+    this.limiters = limiters;
+  }
+
+  /**
+   * Allows the JDK's keep-alive cache to retain {@code maxConnectionsPerHost}
+   * idle connections to each host, unless the {@code http.maxConnections}
+   * system property was already set. The property is only read the first time
+   * an HTTP connection is made in the JVM, so this should be called early.
+   * Like {@link java.net.Authenticator#setDefault}, this is a JVM-wide
+   * modification.
+   */
+  static void configureKeepAliveCache(int maxConnectionsPerHost) {
+    if (System.getProperty("http.maxConnections") == null) {
+      System.setProperty("http.maxConnections", "" + maxConnectionsPerHost);
+    }
+  }
+
+  @Override
+  public FileInfo issueGetRequest(URL url, List<String> authenticationCookies,
+      String adaptorUserAgent, int maxRedirectsToFollow,
+      boolean performBrowserLeniency, Date ifModifiedSince,
+      String ifNoneMatch) throws IOException {
+    AdaptiveConcurrencyLimiter limiter = limiters.get(url);
+    limiter.acquire();
+    Outcome outcome = Outcome.IGNORED;
+    try {
+      FileInfo fi = delegate.issueGetRequest(url, authenticationCookies,
+          adaptorUserAgent, maxRedirectsToFollow, performBrowserLeniency,
+          ifModifiedSince, ifNoneMatch);
+      if (fi == null) {
+        outcome = Outcome.SUCCESS;
+        return null;
+      }
+      FileInfo limited = new FileInfo.Builder(
+          new PermitReleasingInputStream(fi.getContents(), limiter))
+          .setHeaders(fi.getHeaders()).setNotModified(fi.isNotModified())
+          .build();
+      outcome = null;
+      return limited;
+    } catch (IOException ex) {
+      outcome = AdaptiveConcurrencyLimiter.classify(ex);
+      throw ex;
+    } finally {
+      if (outcome != null) {
+        limiter.release(outcome);
+      }
+    }
+  }
+
+  @Override
+  public String getRedirectLocation(URL url,
+      List<String> authenticationCookies, String adaptorUserAgent)
+      throws IOException {
+    AdaptiveConcurrencyLimiter limiter = limiters.get(url);
+    limiter.acquire();
+    Outcome outcome = Outcome.IGNORED;
+    try {
+      String location = delegate.getRedirectLocation(url,
+          authenticationCookies, adaptorUserAgent);
+      outcome = Outcome.SUCCESS;
+      return location;
+    } catch (IOException ex) {
+      outcome = AdaptiveConcurrencyLimiter.classify(ex);
+      throw ex;
+    } finally {
+      limiter.release(outcome);
+    }
+  }
+
+  @Override
+  public HttpURLConnection getHttpURLConnection(URL url) throws IOException {
+    return delegate.getHttpURLConnection(url);
+  }
+
+  /** Returns the number of requests to {@code url}'s host now in progress. */
+  int getActiveConnections(URL url) {
+    return limiters.get(url).getInFlight();
+  }
+
+  /**
+   * Releases the connection permit when the stream is closed. Reading the body
+   * is part of the request, so a read timing out counts as SharePoint being
+   * overloaded.
+   */
+  private static class PermitReleasingInputStream extends FilterInputStream {
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile Outcome outcome = Outcome.SUCCESS;
+
+    public PermitReleasingInputStream(InputStream in,
+        AdaptiveConcurrencyLimiter limiter) {
+      super(in);
+      this.limiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return super.read();
+      } catch (IOException ex) {
+        outcome = AdaptiveConcurrencyLimiter.classify(ex);
+        throw ex;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return super.read(b, off, len);
+      } catch (IOException ex) {
+        outcome = AdaptiveConcurrencyLimiter.classify(ex);
+        throw ex;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (released.compareAndSet(false, true)) {
+          limiter.release(outcome);
+        }
+      }
+    }
+  }
+}
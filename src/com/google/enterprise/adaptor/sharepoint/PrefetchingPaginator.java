@@ -0,0 +1,205 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.sharepoint.SiteDataClient.Paginator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Paginator that retrieves the following pages of another paginator in the
+ * background while the caller processes the current page. Pages are still
+ * retrieved one at a time and in order, since each request generally depends
+ * on the previous response.
+ *
+ * <p>At most {@code maxPages} pages, and pages totaling at most {@code
+ * maxWeight}, are held that the caller has not yet taken. {@link #close} should
+ * be called if the caller stops before reaching the last page.
+ *
+ * @param <E> element type returned by {@link #next}
+ */
+class PrefetchingPaginator<E> implements Paginator<E> {
+  /** Estimates the memory used by a page, in arbitrary units. */
+  public interface Weigher<E> {
+    public long weigh(E page);
+  }
+
+  private final Paginator<E> delegate;
+  private final Executor executor;
+  private final int maxPages;
+  private final long maxWeight;
+  private final Weigher<? super E> weigher;
+  private final Runnable fetchTask = new FetchTask();
+
+  private final Object lock = new Object();
+  /** Pages retrieved, but not yet taken. Guarded by lock. */
+  private final Deque<WeighedPage<E>> ready = new ArrayDeque<WeighedPage<E>>();
+  /** Total weight of {@link #ready}. Guarded by lock. */
+  private long readyWeight;
+  /** Whether a page is being retrieved. Guarded by lock. */
+  private boolean fetching;
+  /** Whether the delegate returned its last page. Guarded by lock. */
+  private boolean exhausted;
+  /** Failure to return after the ready pages. Guarded by lock. */
+  private Throwable failure;
+  /** Guarded by lock. */
+  private boolean closed;
+
+  public PrefetchingPaginator(Paginator<E> delegate, Executor executor,
+      int maxPages, long maxWeight, Weigher<? super E> weigher) {
+    if (delegate == null || executor == null || weigher == null) {
+      throw new NullPointerException();
+    }
+    if (maxPages < 1 || maxWeight < 1) {
+      throw new IllegalArgumentException("maxPages and maxWeight must be "
+          + "positive");
+    }
+    this.delegate = delegate;
+    this.executor = executor;
+    this.maxPages = maxPages;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  @Override
+  public E next() throws IOException {
+    while (true) {
+      WeighedPage<E> page;
+      boolean startFetch;
+      synchronized (lock) {
+        if (closed) {
+          throw new IllegalStateException("Paginator is closed");
+        }
+        try {
+          while (ready.isEmpty() && fetching) {
+            lock.wait();
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted while waiting for next page");
+        }
+        page = ready.pollFirst();
+        if (page != null) {
+          readyWeight -= page.weight;
+        } else if (failure != null) {
+          throwFailure();
+        } else if (exhausted) {
+          return null;
+        }
+        startFetch = shouldFetch();
+      }
+      if (startFetch) {
+        fetch();
+      }
+      if (page != null) {
+        return page.page;
+      }
+    }
+  }
+
+  /**
+   * Discards prefetched pages and stops retrieving more. A retrieval already
+   * in progress is allowed to complete.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      ready.clear();
+      readyWeight = 0;
+    }
+  }
+
+  private void throwFailure() throws IOException {
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else {
+      throw new IOException(failure);
+    }
+  }
+
+  /** Reserves the right to retrieve the next page, if one is wanted. */
+  private boolean shouldFetch() {
+    if (fetching || exhausted || failure != null || closed
+        || ready.size() >= maxPages || readyWeight >= maxWeight) {
+      return false;
+    }
+    fetching = true;
+    return true;
+  }
+
+  private void fetch() {
+    try {
+      executor.execute(fetchTask);
+    } catch (RejectedExecutionException ex) {
+      fetchTask.run();
+    }
+  }
+
+  private class FetchTask implements Runnable {
+    @Override
+    public void run() {
+      E page = null;
+      long weight = 0;
+      Throwable error = null;
+      try {
+        page = delegate.next();
+        if (page != null) {
+          weight = weigher.weigh(page);
+        }
+      } catch (Throwable t) {
+        error = t;
+      }
+      boolean startFetch;
+      synchronized (lock) {
+        fetching = false;
+        if (closed) {
+          // Drop the page.
+        } else if (error != null) {
+          failure = error;
+        } else if (page == null) {
+          exhausted = true;
+        } else {
+          ready.addLast(new WeighedPage<E>(page, weight));
+          readyWeight += weight;
+        }
+        lock.notifyAll();
+        startFetch = shouldFetch();
+      }
+      if (startFetch) {
+        fetch();
+      }
+    }
+  }
+
+  private static class WeighedPage<E> {
+    private final E page;
+    private final long weight;
+
+    public WeighedPage(E page, long weight) {
+      this.page = page;
+      this.weight = weight;
+    }
+  }
+}
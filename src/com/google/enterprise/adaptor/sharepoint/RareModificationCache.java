@@ -17,8 +17,12 @@ package com.google.enterprise.adaptor.sharepoint;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 
 import com.microsoft.schemas.sharepoint.soap.List;
+import com.microsoft.schemas.sharepoint.soap.Permission;
 import com.microsoft.schemas.sharepoint.soap.PolicyUser;
 import com.microsoft.schemas.sharepoint.soap.TrueFalseType;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
@@ -26,7 +30,11 @@ import com.microsoft.schemas.sharepoint.soap.Web;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
@@ -34,25 +42,36 @@ import java.util.concurrent.TimeUnit;
 /**
  * Cache with items that rarely change, so items have a long lifetime in the
  * cache.
+ *
+ * <p>Webs and lists are expected to be invalidated as the change log reports
+ * them changed, so they are kept for hours. The virtual server's policies are
+ * not reported in the change log, so it is kept for a shorter time.
+ *
+ * <p>Webs and lists are identified by their canonical web URL, not by the
+ * client used to retrieve them, so that they can be invalidated after the
+ * client is discarded.
  */
 class RareModificationCache {
   private final Executor executor;
   private final VirtualServerKey virtualServerKey;
+  /**
+   * Keys of the cached lists of each web, so that the lists of a web can be
+   * invalidated without scanning the entire cache.
+   */
+  private final ConcurrentMap<String, Set<ListKey>> listKeysByWeb
+      = new ConcurrentHashMap<String, Set<ListKey>>();
   private final LoadingCache<CacheKey<?>, Object> cache
+      = CacheBuilder.newBuilder()
+      .maximumSize(100000)
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .expireAfterWrite(6, TimeUnit.HOURS)
+      .removalListener(new ListKeyRemovalListener())
+      .build(new KeyLoader());
+  private final LoadingCache<CacheKey<?>, Object> virtualServerCache
       = CacheBuilder.newBuilder()
       .expireAfterAccess(5, TimeUnit.MINUTES)
       .expireAfterWrite(30, TimeUnit.MINUTES)
-      .build(new AsyncCacheLoader<CacheKey<?>, Object>() {
-        @Override
-        protected Executor executor() {
-          return executor;
-        }
-
-        @Override
-        public Object load(CacheKey<?> key) throws IOException {
-          return key.computeValue();
-        }
-      });
+      .build(new KeyLoader());
 
   public RareModificationCache(SiteDataClient virtualServerSiteDataClient,
       Executor executor) {
@@ -69,6 +88,11 @@ class RareModificationCache {
    */
   @VisibleForTesting
   <T> T get(CacheKey<T> key) throws IOException {
+    return get(cache, key);
+  }
+
+  private static <T> T get(LoadingCache<CacheKey<?>, Object> cache,
+      CacheKey<T> key) throws IOException {
     try {
       @SuppressWarnings("unchecked")
       T t = (T) cache.get(key);
@@ -79,16 +103,100 @@ class RareModificationCache {
   }
 
   public CachedVirtualServer getVirtualServer() throws IOException {
-    return get(virtualServerKey);
+    return get(virtualServerCache, virtualServerKey);
   }
 
-  public CachedWeb getWeb(SiteDataClient siteDataClient) throws IOException {
-    return get(new WebKey(siteDataClient));
+  /**
+   * Returns the web at {@code webUrl}, retrieving it with {@code
+   * siteDataClient} if it is not cached.
+   */
+  public CachedWeb getWeb(String webUrl, SiteDataClient siteDataClient)
+      throws IOException {
+    return get(new WebKey(webUrl, siteDataClient));
   }
 
-  public CachedList getList(SiteDataClient siteDataClient, String listId)
-      throws IOException {
-    return get(new ListKey(siteDataClient, listId));
+  /**
+   * Returns the list of the web at {@code webUrl}, retrieving it with {@code
+   * siteDataClient} if it is not cached.
+   */
+  public CachedList getList(String webUrl, SiteDataClient siteDataClient,
+      String listId) throws IOException {
+    ListKey key = new ListKey(webUrl, siteDataClient, listId);
+    CachedList list = get(key);
+    listKeys(webUrl).add(key);
+    return list;
+  }
+
+  /** Removes the cached web, after it was reported as changed. */
+  public void invalidateWeb(String webUrl) {
+    cache.invalidate(new WebKey(webUrl, null));
+  }
+
+  /** Removes the cached list, after it was reported as changed. */
+  public void invalidateList(String webUrl, String listId) {
+    cache.invalidate(new ListKey(webUrl, null, listId));
+  }
+
+  /**
+   * Removes all cached lists of a web, after its security changed. Lists that
+   * inherit permissions also inherit anonymous access settings.
+   */
+  public void invalidateLists(String webUrl) {
+    Set<ListKey> keys = listKeysByWeb.get(webUrl);
+    if (keys != null) {
+      cache.invalidateAll(keys);
+    }
+  }
+
+  private Set<ListKey> listKeys(String webUrl) {
+    Set<ListKey> keys = listKeysByWeb.get(webUrl);
+    if (keys == null) {
+      keys = Collections.newSetFromMap(
+          new ConcurrentHashMap<ListKey, Boolean>());
+      Set<ListKey> existing = listKeysByWeb.putIfAbsent(webUrl, keys);
+      if (existing != null) {
+        keys = existing;
+      }
+    }
+    return keys;
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  /**
+   * Keeps {@link #listKeysByWeb} in sync with evictions and invalidations.
+   * Emptied sets are left in place, since they are bounded by the number of
+   * webs and removing them would race with {@link #getList}.
+   */
+  private class ListKeyRemovalListener
+      implements RemovalListener<CacheKey<?>, Object> {
+    @Override
+    public void onRemoval(RemovalNotification<CacheKey<?>, Object> n) {
+      if (!(n.getKey() instanceof ListKey)
+          || n.getCause() == RemovalCause.REPLACED) {
+        return;
+      }
+      ListKey key = (ListKey) n.getKey();
+      Set<ListKey> keys = listKeysByWeb.get(key.webUrl);
+      if (keys != null) {
+        keys.remove(key);
+      }
+    }
+  }
+
+  private class KeyLoader extends AsyncCacheLoader<CacheKey<?>, Object> {
+    @Override
+    protected Executor executor() {
+      return executor;
+    }
+
+    @Override
+    public Object load(CacheKey<?> key) throws IOException {
+      return key.computeValue();
+    }
   }
 
   /**
@@ -138,11 +246,20 @@ class RareModificationCache {
     }
   }
 
+  /**
+   * Key for a web. The client is only used to retrieve the web, and is not
+   * part of the key's identity.
+   */
   @VisibleForTesting
   static final class WebKey implements CacheKey<CachedWeb> {
+    private final String webUrl;
     private final SiteDataClient siteDataClient;
 
-    public WebKey(SiteDataClient siteDataClient) {
+    public WebKey(String webUrl, SiteDataClient siteDataClient) {
+      if (webUrl == null) {
+        throw new NullPointerException();
+      }
+      this.webUrl = webUrl;
       this.siteDataClient = siteDataClient;
     }
 
@@ -157,12 +274,12 @@ class RareModificationCache {
         return false;
       }
       WebKey webKey = (WebKey) o;
-      return siteDataClient.equals(webKey.siteDataClient);
+      return webUrl.equals(webKey.webUrl);
     }
 
     @Override
     public int hashCode() {
-      return siteDataClient.hashCode();
+      return webUrl.hashCode();
     }
   }
 
@@ -172,6 +289,7 @@ class RareModificationCache {
     public final TrueFalseType anonymousViewListItems;
     public final long anonymousPermMask;
     public final String webTitle;
+    public final String scopeId;
 
     public CachedWeb(Web w) {
       this.noIndex = w.getMetadata().getNoIndex();
@@ -180,15 +298,26 @@ class RareModificationCache {
       this.anonymousPermMask
           = w.getMetadata().getAnonymousPermMask().longValue();
       this.webTitle = w.getMetadata().getTitle();
+      this.scopeId = w.getMetadata().getScopeID();
     }
   }
 
+  /**
+   * Key for a list of a web. The client is only used to retrieve the list, and
+   * is not part of the key's identity.
+   */
   @VisibleForTesting
   static final class ListKey implements CacheKey<CachedList> {
+    private final String webUrl;
     private final SiteDataClient siteDataClient;
     private final String listId;
 
-    public ListKey(SiteDataClient siteDataClient, String listId) {
+    public ListKey(String webUrl, SiteDataClient siteDataClient,
+        String listId) {
+      if (webUrl == null) {
+        throw new NullPointerException();
+      }
+      this.webUrl = webUrl;
       this.siteDataClient = siteDataClient;
       this.listId = listId.toUpperCase(Locale.ENGLISH);
     }
@@ -204,13 +333,12 @@ class RareModificationCache {
         return false;
       }
       ListKey listKey = (ListKey) o;
-      return siteDataClient.equals(listKey.siteDataClient)
-          && listId.equals(listKey.listId);
+      return webUrl.equals(listKey.webUrl) && listId.equals(listKey.listId);
     }
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(new Object[] {siteDataClient, listId});
+      return Arrays.hashCode(new Object[] {webUrl, listId});
     }
   }
 
@@ -226,9 +354,19 @@ class RareModificationCache {
     /**
      * This field must not be used for general ACL inheritance of direct
      * decendants of the list. This is intended only for use when determining
-     * whether anonymous access is permitted for list items and attachments.
+     * whether anonymous access is permitted for list items and attachments,
+     * and for the ACL of the list itself.
      */
     public final String scopeId;
+    public final String id;
+    public final String title;
+    public final String lastModified;
+    /**
+     * Members of the list's permission scope that may read its items, which
+     * is all the list's ACL needs. The permissions themselves are not kept,
+     * since lists stay cached for hours. Must not be modified.
+     */
+    public final int[] listItemMemberIds;
 
     public CachedList(List l) {
       this.noIndex = l.getMetadata().getNoIndex();
@@ -243,6 +381,14 @@ class RareModificationCache {
           : l.getMetadata().getDefaultViewUrl();
       this.defaultViewItemUrl = l.getMetadata().getDefaultViewItemUrl();
       this.scopeId = l.getMetadata().getScopeID();
+      this.id = l.getMetadata().getID();
+      this.title = l.getMetadata().getTitle();
+      this.lastModified = l.getMetadata().getLastModified();
+      this.listItemMemberIds = SharePointAdaptor.permittedMemberIds(
+          l.getACL() == null
+            ? Collections.<Permission>emptyList()
+            : l.getACL().getPermissions().getPermission(),
+          SharePointAdaptor.LIST_ITEM_MASK);
     }
   }
 }
@@ -21,12 +21,17 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.enterprise.adaptor.AbstractAdaptor;
 import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.AdaptorContext;
@@ -35,13 +40,14 @@ import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdEncoder;
 import com.google.enterprise.adaptor.DocIdPusher;
 import com.google.enterprise.adaptor.GroupPrincipal;
-import com.google.enterprise.adaptor.IOHelper;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
 import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.Principal;
 import com.google.enterprise.adaptor.Request;
 import com.google.enterprise.adaptor.Response;
 import com.google.enterprise.adaptor.StartupException;
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
 import com.google.enterprise.adaptor.UserPrincipal;
 import com.google.enterprise.adaptor.sharepoint.ActiveDirectoryClientFactory.ActiveDirectoryClientFactoryImpl;
 import com.google.enterprise.adaptor.sharepoint.RareModificationCache.CachedList;
@@ -97,8 +103,12 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Method;
 import java.net.Authenticator;
 import java.net.ConnectException;
@@ -114,11 +124,13 @@ import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -126,18 +138,25 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -289,6 +308,50 @@ public class SharePointAdaptor extends AbstractAdaptor
   
   private static final int DEFAULT_MAX_REDIRECTS_TO_FOLLOW = 20;
 
+  /** Maximum time change tokens may remain only in the OS's file cache. */
+  private static final long CHANGE_TOKEN_SYNC_INTERVAL_MILLIS = 5 * 1000;
+
+  /** Time between writes of cached member id mappings to disk. */
+  private static final long MEMBER_ID_SNAPSHOT_INTERVAL_MINUTES = 30;
+
+  /**
+   * Delay before refreshing a member id mapping read from disk, so that it is
+   * refreshed after it has been added to its cache.
+   */
+  private static final long SNAPSHOT_REFRESH_DELAY_SECONDS = 10;
+
+  /** Maximum number of sites and webs to keep web service ports for. */
+  private static final int MAX_CACHED_SITE_ADAPTORS = 1000;
+
+  /**
+   * Maximum number of list items in prefetched pages of a single folder,
+   * which bounds the memory used by prefetching regardless of page size.
+   */
+  private static final long MAX_PREFETCHED_FOLDER_ROWS = 10000;
+
+  /**
+   * Threads refreshing member id mappings. Refreshes are shared by all
+   * requests of a site collection, so few are needed.
+   */
+  private static final int MEMBER_ID_REFRESH_THREADS = 4;
+
+  /**
+   * Refreshes waiting for a thread. At most one refresh of each mapping is
+   * pending for a site collection, so the queue only fills when many site
+   * collections change at once.
+   */
+  private static final int MEMBER_ID_REFRESH_QUEUE_SIZE = 1000;
+
+  /** Maximum number of permission scope ACLs to keep for each web. */
+  private static final int MAX_CACHED_SCOPE_ACLS_PER_WEB = 500;
+
+  /**
+   * Minimum time between reductions of a host's request concurrency, so that
+   * requests that were already in flight when SharePoint became overloaded
+   * reduce it only once.
+   */
+  private static final long THROTTLING_BACKOFF_WINDOW_MILLIS = 1000;
+
   private int socketTimeoutMillis;
   private int readTimeOutMillis;
   private int maxRedirectsToFollow;
@@ -360,11 +423,17 @@ public class SharePointAdaptor extends AbstractAdaptor
       = Logger.getLogger(SharePointAdaptor.class.getName());
 
   /**
-   * Map from Site or Web URL to SiteAdaptor object used to communicate with
-   * that Site/Web.
+   * Cache from Site or Web URL to SiteAdaptor object used to communicate with
+   * that Site/Web. Each SiteAdaptor holds several web service ports, so only
+   * recently used ones are kept.
    */
-  private final ConcurrentMap<String, SiteAdaptor> siteAdaptors
-      = new ConcurrentSkipListMap<String, SiteAdaptor>();
+  private final Cache<String, SiteAdaptor> siteAdaptors
+      = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_SITE_ADAPTORS)
+        .expireAfterAccess(30, TimeUnit.MINUTES)
+        .recordStats()
+        .removalListener(new SiteAdaptorRemovalListener())
+        .build();
   private final DocId virtualServerDocId = new DocId("");
   private AdaptorContext context;  
   /**
@@ -376,34 +445,127 @@ public class SharePointAdaptor extends AbstractAdaptor
    * Cache that provides immutable {@link MemberIdMapping} instances for the
    * provided site URL key. Since {@code MemberIdMapping} is immutable, updating
    * the cache creates new mapping instances that replace the previous value.
+   * Entries are invalidated when the change log reports their site as changed,
+   * and refreshed when an unknown member is found, so they are kept for hours.
    */
   private LoadingCache<String, MemberIdMapping> memberIdsCache
       = CacheBuilder.newBuilder()
-        .refreshAfterWrite(30, TimeUnit.MINUTES)
-        .expireAfterWrite(45, TimeUnit.MINUTES)
+        .refreshAfterWrite(4, TimeUnit.HOURS)
+        .expireAfterWrite(6, TimeUnit.HOURS)
         .build(new MemberIdsCacheLoader());
   private LoadingCache<String, MemberIdMapping> siteUserCache
       = CacheBuilder.newBuilder()
-        .refreshAfterWrite(30, TimeUnit.MINUTES)
-        .expireAfterWrite(45, TimeUnit.MINUTES)
+        .refreshAfterWrite(4, TimeUnit.HOURS)
+        .expireAfterWrite(6, TimeUnit.HOURS)
         .build(new SiteUserCacheLoader());
+  /**
+   * Refreshes of {@link #memberIdsCache} in progress, by site collection URL.
+   * Shared by all webs of the site collection.
+   */
+  private final ConcurrentMap<String, Future<MemberIdMapping>>
+      memberIdRefreshes
+      = new ConcurrentHashMap<String, Future<MemberIdMapping>>();
+  /** Like {@link #memberIdRefreshes}, for {@link #siteUserCache}. */
+  private final ConcurrentMap<String, Future<MemberIdMapping>>
+      siteUserRefreshes
+      = new ConcurrentHashMap<String, Future<MemberIdMapping>>();
   private RareModificationCache rareModCache;
+  /**
+   * SiteAdaptor whose client {@link #rareModCache} uses, acquired until
+   * {@link #destroy}.
+   */
+  private SiteAdaptor rareModCacheSiteAdaptor;
+  /**
+   * Cache from the URL before /Attachments/ in an attachment URL to the list
+   * it refers to, which otherwise costs an HTTP request and up to two SOAP
+   * calls for every attachment. Entries are removed along with the cached URL
+   * lookups when the change log reports that a list or web at or above their
+   * URL changed, and otherwise expire 30 minutes after being resolved. That is
+   * shorter than {@link RareModificationCache} entries live, since a list
+   * deleted and recreated at the same URL in a change the adaptor didn't see
+   * would make every attachment of the new list resolve to the old one.
+   */
+  private final Cache<String, AttachmentListResolution> attachmentListCache
+      = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterWrite(30, TimeUnit.MINUTES)
+        .build();
+  /**
+   * Cache of the lists and list items that URLs refer to, so that resolving a
+   * folder's item id is not repeated for each of its children. Invalidated by
+   * the change log.
+   */
+  private final UrlSegmentsCache urlSegmentsCache
+      = new UrlSegmentsCache(10000, 30);
   /** Map from SharePoint Object GUID to last known Change Token for that 
    * object. */
   private final ConcurrentSkipListMap<String, String> 
       objectGuidToChangeIdMapping = new ConcurrentSkipListMap<String, String>();
+  /**
+   * Durable copy of {@link #objectGuidToChangeIdMapping}. Always modify both
+   * using {@link #checkpointChangeId} and {@link #removeChangeId}.
+   */
+  private ChangeTokenStore changeTokenStore = new NoopChangeTokenStore();
+  /** Member id mappings from before a restart. {@code null} if disabled. */
+  private volatile MemberIdMappingSnapshot memberIdSnapshot;
   private final SoapFactory soapFactory;
+  /** Client provided at construction, without connection limits. */
+  private final HttpClient unpooledHttpClient;
   /** Client for initiating raw HTTP connections. */
-  private final HttpClient httpClient;
-  private final Callable<ExecutorService> executorFactory;
+  private HttpClient httpClient;
+  /**
+   * Limits concurrent SOAP requests and downloads to each host, backing off
+   * when SharePoint is overloaded.
+   */
+  private AdaptiveConcurrencyLimiter.Registry hostLimiters;
+  private final ExecutorFactory executorFactory;
 
   private final AuthenticationClientFactory authenticationClientFactory;
   private final ActiveDirectoryClientFactory adClientFactory;
   /** Executor service to perform background tasks */
   private ExecutorService executor;
+  /**
+   * View of {@link #executor} for cache refreshes, which rejects them instead
+   * of running them in request threads when the executor is saturated.
+   */
+  private Executor refreshExecutor;
+  /**
+   * Executor for member id mapping refreshes, which requests wait for. It is
+   * separate from {@link #executor} so that the refreshes don't queue behind
+   * crawl work.
+   */
+  private ExecutorService memberIdRefreshExecutor;
   private boolean xmlValidation;
   private int feedMaxUrls;
   private long maxIndexableSize;
+  /**
+   * Maximum number of bytes of a file to send. Files known to be larger are
+   * sent without content, others are truncated. 0 means no limit.
+   */
+  private long maxFileSize;
+  /** Copies file contents to the GSA. */
+  private ContentCopier contentCopier;
+  /** Latency and volume of SiteData calls, shown on the dashboard. */
+  private final SoapMetrics soapMetrics = new SoapMetrics();
+  /** Phase timing of getDocContent requests, shown on the dashboard. */
+  private DocContentTimer docContentTimer;
+  /**
+   * ETags of files sent to the GSA, by URL, for conditionally requesting them
+   * again.
+   */
+  private final Cache<String, SentETag> sentETagCache
+      = CacheBuilder.newBuilder()
+        .maximumSize(100000)
+        .expireAfterWrite(7, TimeUnit.DAYS)
+        .build();
+  /** Maximum number of concurrent requests during full traversal. */
+  private int traversalThreads;
+  private int folderPrefetchPages;
+  /**
+   * How long to wait for users and groups to be retrieved again before
+   * continuing without an unknown member.
+   */
+  private long memberIdRefreshTimeoutMillis;
   
   private String adaptorUserAgent;
   
@@ -455,13 +617,13 @@ public class SharePointAdaptor extends AbstractAdaptor
 
   public SharePointAdaptor() {
     this(new SoapFactoryImpl(), new HttpClientImpl(),
-        new CachedThreadPoolFactory(), new AuthenticationClientFactoryImpl(),
+        new ThreadPoolFactory(), new AuthenticationClientFactoryImpl(),
         new ActiveDirectoryClientFactoryImpl());
   }
 
   @VisibleForTesting
   SharePointAdaptor(SoapFactory soapFactory, HttpClient httpClient,
-      Callable<ExecutorService> executorFactory,
+      ExecutorFactory executorFactory,
       AuthenticationClientFactory authenticationClientFactory,
       ActiveDirectoryClientFactory adClientFactory) {
     if (soapFactory == null || httpClient == null || executorFactory == null 
@@ -469,6 +631,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       throw new NullPointerException();
     }
     this.soapFactory = soapFactory;
+    this.unpooledHttpClient = httpClient;
     this.httpClient = httpClient;
     this.executorFactory = executorFactory;
     this.authenticationClientFactory = authenticationClientFactory;
@@ -498,6 +661,22 @@ public class SharePointAdaptor extends AbstractAdaptor
     // 2 MB. We need to know how much of the generated HTML the GSA will index,
     // because the GSA won't see links outside of that content.
     config.addKey("sharepoint.maxIndexableSize", "2097152");
+    // Number of site collections to retrieve concurrently while listing all
+    // site collections in getDocIds, and number of content databases to poll
+    // for changes concurrently in getModifiedDocIds. Set to 1 to process them
+    // one at a time.
+    config.addKey("sharepoint.traversalThreads", "4");
+    // Thread pool for background work, like pushing group definitions and
+    // refreshing caches, and for the concurrent work of each traversal.
+    // Threads beyond the core threads are only started once the queue is
+    // full. When all threads are busy and the queue is full, tasks run in the
+    // thread that submits them.
+    config.addKey("sharepoint.executorCoreThreads", "8");
+    config.addKey("sharepoint.executorMaxThreads", "32");
+    config.addKey("sharepoint.executorQueueSize", "1000");
+    // Number of pages of a list's items to retrieve ahead, while the current
+    // page is being written. Set to 0 to retrieve pages only when needed.
+    config.addKey("sharepoint.folderPrefetchPages", "2");
     config.addKey("adaptor.namespace", "Default");
     // When running against ADFS authentication, set this to ADFS endpoint.
     config.addKey("sharepoint.sts.endpoint", "");
@@ -541,6 +720,43 @@ public class SharePointAdaptor extends AbstractAdaptor
     // Set this to static factory method name which will return 
     // custom SamlHandshakeManager object
     config.addKey("sharepoint.customSamlManager", "");
+    // Set this to the path of a file used to remember the last processed
+    // change of each content database or site collection. With it,
+    // incremental crawling resumes where it stopped after a restart. When
+    // empty, changes made while the adaptor is down are only discovered by
+    // the next full crawl.
+    config.addKey("sharepoint.changeTokenFile", "");
+    // Set this to the path of a file used to remember the users and groups of
+    // each site collection. With it, ACLs can be computed right after a
+    // restart without first retrieving the users and groups of every site
+    // collection. The remembered users and groups are refreshed in the
+    // background when first used.
+    config.addKey("sharepoint.memberIdCacheFile", "");
+    // Maximum total time a document waits for the users and groups of a site
+    // collection to be retrieved again when an ACL references an unknown
+    // member. After it, the ACL is computed without that member.
+    config.addKey("sharepoint.memberIdRefreshTimeoutSecs", "60");
+    // Maximum number of connections used to download documents from a single
+    // host. Also the number of idle connections to each host that are kept
+    // alive for reuse, unless the http.maxConnections system property is set.
+    // SOAP requests count against the same limit, which is temporarily
+    // reduced when SharePoint reports that it is overloaded.
+    config.addKey("sharepoint.maxConnectionsPerHost", "32");
+    // Maximum number of bytes of a file to send to the GSA. Files whose
+    // Content-Length is larger are not downloaded at all and are sent without
+    // content, so only their metadata is indexed. Files without a
+    // Content-Length, or that turn out longer than it, are truncated and the
+    // rest is not downloaded from SharePoint. Set this to the GSA's maximum
+    // file size to avoid downloading content that would be discarded. 0 means
+    // no limit.
+    config.addKey("sharepoint.maxFileSize", "0");
+    // Maximum number of bytes per second downloaded from SharePoint for file
+    // contents, across all files. 0 means no limit.
+    config.addKey("sharepoint.maxDownloadBytesPerSecond", "0");
+    // Requests for document contents that take at least this many
+    // milliseconds are logged with the time of each phase of the request, at
+    // most once a second. 0 disables logging slow requests.
+    config.addKey("sharepoint.slowRequestLogMillis", "20000");
   }
 
   @Override
@@ -560,17 +776,125 @@ public class SharePointAdaptor extends AbstractAdaptor
     feedMaxUrls = Integer.parseInt(config.getValue("feed.maxUrls"));
     maxIndexableSize = Integer.parseInt(
         config.getValue("sharepoint.maxIndexableSize"));
+    String traversalThreadsStr = config.getValue("sharepoint.traversalThreads");
+    if (!isNumeric(traversalThreadsStr)
+        || Integer.parseInt(traversalThreadsStr) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of traversal threads (sharepoint.traversalThreads): "
+          + traversalThreadsStr);
+    }
+    traversalThreads = Integer.parseInt(traversalThreadsStr);
+    String executorCoreThreadsStr
+        = config.getValue("sharepoint.executorCoreThreads");
+    if (!isNumeric(executorCoreThreadsStr)
+        || Integer.parseInt(executorCoreThreadsStr) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of core executor threads "
+          + "(sharepoint.executorCoreThreads): " + executorCoreThreadsStr);
+    }
+    int executorCoreThreads = Integer.parseInt(executorCoreThreadsStr);
+    String executorMaxThreadsStr
+        = config.getValue("sharepoint.executorMaxThreads");
+    if (!isNumeric(executorMaxThreadsStr)
+        || Integer.parseInt(executorMaxThreadsStr) < executorCoreThreads) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum number of executor threads, which must be at least "
+          + "the number of core threads (sharepoint.executorMaxThreads): "
+          + executorMaxThreadsStr);
+    }
+    int executorMaxThreads = Integer.parseInt(executorMaxThreadsStr);
+    String executorQueueSizeStr
+        = config.getValue("sharepoint.executorQueueSize");
+    if (!isNumeric(executorQueueSizeStr)
+        || Integer.parseInt(executorQueueSizeStr) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for executor queue size (sharepoint.executorQueueSize): "
+          + executorQueueSizeStr);
+    }
+    int executorQueueSize = Integer.parseInt(executorQueueSizeStr);
+    String folderPrefetchPagesStr
+        = config.getValue("sharepoint.folderPrefetchPages");
+    if (!isNumeric(folderPrefetchPagesStr)
+        || Integer.parseInt(folderPrefetchPagesStr) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of pages to prefetch "
+          + "(sharepoint.folderPrefetchPages): " + folderPrefetchPagesStr);
+    }
+    folderPrefetchPages = Integer.parseInt(folderPrefetchPagesStr);
+    String memberIdRefreshTimeoutStr
+        = config.getValue("sharepoint.memberIdRefreshTimeoutSecs");
+    if (!isNumeric(memberIdRefreshTimeoutStr)
+        || Integer.parseInt(memberIdRefreshTimeoutStr) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for member id refresh timeout "
+          + "(sharepoint.memberIdRefreshTimeoutSecs): "
+          + memberIdRefreshTimeoutStr);
+    }
+    memberIdRefreshTimeoutMillis
+        = Integer.parseInt(memberIdRefreshTimeoutStr) * 1000L;
     defaultNamespace = config.getValue("adaptor.namespace");
     String stsendpoint = config.getValue("sharepoint.sts.endpoint");
     String stsrealm = config.getValue("sharepoint.sts.realm");
     boolean useLiveAuthentication = Boolean.parseBoolean(
         config.getValue("sharepoint.useLiveAuthentication"));
     String customSamlManager = config.getValue("sharepoint.customSamlManager"); 
+    String changeTokenFile = config.getValue("sharepoint.changeTokenFile");
+    String memberIdCacheFile
+        = config.getValue("sharepoint.memberIdCacheFile");
     socketTimeoutMillis = Integer.parseInt(
         config.getValue("adaptor.docHeaderTimeoutSecs")) * 1000;
     readTimeOutMillis = Integer.parseInt(
         config.getValue("adaptor.docContentTimeoutSecs")) * 1000;
     adaptorUserAgent = config.getValue("adaptor.userAgent").trim();
+    String maxConnectionsPerHostStr
+        = config.getValue("sharepoint.maxConnectionsPerHost");
+    if (!isNumeric(maxConnectionsPerHostStr)
+        || Integer.parseInt(maxConnectionsPerHostStr) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum number of connections per host "
+          + "(sharepoint.maxConnectionsPerHost): " + maxConnectionsPerHostStr);
+    }
+    int maxConnectionsPerHost = Integer.parseInt(maxConnectionsPerHostStr);
+    // Needs to happen before the first HTTP connection is made.
+    PooledHttpClient.configureKeepAliveCache(maxConnectionsPerHost);
+    // Waiting for a permit is bounded by the request timeouts, so that a
+    // request never waits for a permit longer than it may take to complete.
+    hostLimiters = new AdaptiveConcurrencyLimiter.Registry(
+        maxConnectionsPerHost, socketTimeoutMillis + readTimeOutMillis,
+        THROTTLING_BACKOFF_WINDOW_MILLIS);
+    httpClient = new PooledHttpClient(unpooledHttpClient, hostLimiters);
+    context.addStatusSource(hostLimiters);
+    String maxFileSizeStr = config.getValue("sharepoint.maxFileSize");
+    if (!isNumeric(maxFileSizeStr) || Integer.parseInt(maxFileSizeStr) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum file size (sharepoint.maxFileSize): "
+          + maxFileSizeStr);
+    }
+    maxFileSize = Integer.parseInt(maxFileSizeStr);
+    String maxDownloadBytesPerSecondStr
+        = config.getValue("sharepoint.maxDownloadBytesPerSecond");
+    if (!isNumeric(maxDownloadBytesPerSecondStr)
+        || Integer.parseInt(maxDownloadBytesPerSecondStr) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum download rate "
+          + "(sharepoint.maxDownloadBytesPerSecond): "
+          + maxDownloadBytesPerSecondStr);
+    }
+    int maxDownloadBytesPerSecond
+        = Integer.parseInt(maxDownloadBytesPerSecondStr);
+    // Keep a buffer for each download that may be in progress to a host.
+    contentCopier = new ContentCopier(maxConnectionsPerHost,
+        maxDownloadBytesPerSecond);
+    String slowRequestLogMillisStr
+        = config.getValue("sharepoint.slowRequestLogMillis");
+    if (!isNumeric(slowRequestLogMillisStr)
+        || Integer.parseInt(slowRequestLogMillisStr) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for slow request logging threshold "
+          + "(sharepoint.slowRequestLogMillis): " + slowRequestLogMillisStr);
+    }
+    int slowRequestLogMillis = Integer.parseInt(slowRequestLogMillisStr);
+    docContentTimer = new DocContentTimer(slowRequestLogMillis);
     String maxRedirectsToFollowStr = config.getValue(
         "adaptor.maxRedirectsToFollow");
     performBrowserLeniency = Boolean.parseBoolean(config.getValue(
@@ -631,6 +955,23 @@ public class SharePointAdaptor extends AbstractAdaptor
     log.log(Level.CONFIG, "Custom SAML provider: {0}", customSamlManager);
     log.log(Level.CONFIG, "Adaptor user agent: {0}",
         adaptorUserAgent);
+    log.log(Level.CONFIG, "Traversal threads: {0}", traversalThreads);
+    log.log(Level.CONFIG, "Executor threads: {0} core, {1} max",
+        new Object[] {executorCoreThreads, executorMaxThreads});
+    log.log(Level.CONFIG, "Executor queue size: {0}", executorQueueSize);
+    log.log(Level.CONFIG, "Folder pages to prefetch: {0}",
+        folderPrefetchPages);
+    log.log(Level.CONFIG, "Change token file: {0}", changeTokenFile);
+    log.log(Level.CONFIG, "Member id cache file: {0}", memberIdCacheFile);
+    log.log(Level.CONFIG, "Member id refresh timeout: {0} ms",
+        memberIdRefreshTimeoutMillis);
+    log.log(Level.CONFIG, "Max connections per host: {0}",
+        maxConnectionsPerHost);
+    log.log(Level.CONFIG, "Max file size: {0}", maxFileSize);
+    log.log(Level.CONFIG, "Max download bytes per second: {0}",
+        maxDownloadBytesPerSecond);
+    log.log(Level.CONFIG, "Slow request log threshold: {0} ms",
+        slowRequestLogMillis);
     log.log(Level.CONFIG, "Run in Site Collection Only mode: {0}",
         configuredSharePointUrl.isSiteCollectionUrl());
     log.log(Level.CONFIG, "Perform SID Lookup for domain groups: {0}",
@@ -753,14 +1094,54 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
    
     try {
-      executor = executorFactory.call();
-      SiteAdaptor spAdaptor = getSiteAdaptor(
+      executor = executorFactory.newExecutor(executorCoreThreads,
+          executorMaxThreads, executorQueueSize);
+      if (executor instanceof InstrumentedThreadPoolExecutor) {
+        refreshExecutor
+            = ((InstrumentedThreadPoolExecutor) executor).rejectingWhenFull();
+      } else {
+        refreshExecutor = executor;
+      }
+      if (executor instanceof StatusSource) {
+        context.addStatusSource((StatusSource) executor);
+      }
+      InstrumentedThreadPoolExecutor memberIdRefreshPool
+          = new InstrumentedThreadPoolExecutor("SharePoint member id refresh",
+              MEMBER_ID_REFRESH_THREADS, MEMBER_ID_REFRESH_THREADS,
+              MEMBER_ID_REFRESH_QUEUE_SIZE);
+      memberIdRefreshExecutor = memberIdRefreshPool;
+      context.addStatusSource(memberIdRefreshPool);
+      context.addStatusSource(new SiteAdaptorCacheStatusSource());
+      context.addStatusSource(soapMetrics);
+      context.addStatusSource(soapMetrics.getSiteStatusSource());
+      context.addStatusSource(docContentTimer);
+      if (!"".equals(changeTokenFile)) {
+        changeTokenStore = new FileChangeTokenStore(new File(changeTokenFile),
+            CHANGE_TOKEN_SYNC_INTERVAL_MILLIS);
+        Map<String, String> changeTokens = changeTokenStore.load();
+        log.log(Level.INFO, "Resuming incremental crawling from {0} stored "
+            + "change tokens", changeTokens.size());
+        objectGuidToChangeIdMapping.putAll(changeTokens);
+      }
+      if (!"".equals(memberIdCacheFile)) {
+        memberIdSnapshot
+            = new MemberIdMappingSnapshot(new File(memberIdCacheFile));
+        scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            writeMemberIdSnapshot();
+          }
+        }, MEMBER_ID_SNAPSHOT_INTERVAL_MINUTES,
+            MEMBER_ID_SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+      }
+      rareModCacheSiteAdaptor = acquireSiteAdaptor(
           configuredSharePointUrl.getSharePointUrl(),
           configuredSharePointUrl.getSharePointUrl());
       SiteDataClient sharePointSiteDataClient =
-          spAdaptor.getSiteDataClient();
+          rareModCacheSiteAdaptor.getSiteDataClient();
       rareModCache
-          = new RareModificationCache(sharePointSiteDataClient, executor);
+          = new RareModificationCache(sharePointSiteDataClient,
+              refreshExecutor);
       if (performSidLookup) {
       adClient = adClientFactory.newActiveDirectoryClient(
               sidLookupHost,sidLookupPort, sidLookupUsername,
@@ -887,10 +1268,34 @@ public class SharePointAdaptor extends AbstractAdaptor
   @Override
   public void destroy() {
     shutdownExecutor(executor);
+    shutdownExecutor(memberIdRefreshExecutor);
     shutdownExecutor(scheduledExecutor);    
     executor = null;
+    refreshExecutor = null;
+    memberIdRefreshExecutor = null;
     scheduledExecutor = null;
+    writeMemberIdSnapshot();
+    memberIdSnapshot = null;
+    // Refreshes that had not run when the executors stopped never complete,
+    // and would otherwise be waited for after the next init.
+    memberIdRefreshes.clear();
+    siteUserRefreshes.clear();
+    for (SiteAdaptor siteAdaptor : siteAdaptors.asMap().values()) {
+      siteAdaptor.close();
+    }
+    siteAdaptors.invalidateAll();
+    if (rareModCacheSiteAdaptor != null) {
+      // It is not in siteAdaptors if it was evicted.
+      rareModCacheSiteAdaptor.close();
+      rareModCacheSiteAdaptor = null;
+    }
     rareModCache = null;
+    try {
+      changeTokenStore.close();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to close change token store", ex);
+    }
+    changeTokenStore = new NoopChangeTokenStore();
     if (needToResetDefaultAuthenticator) {
       // Reset authenticator
       Authenticator.setDefault(null);     
@@ -999,20 +1404,39 @@ public class SharePointAdaptor extends AbstractAdaptor
     log.entering("SharePointAdaptor", "getDocContent",
         new Object[] {request, response});
     DocId id = request.getDocId();    
-    SiteAdaptor adptorForDocId = getAdaptorForDocId(id);
-    if (adptorForDocId == null) {
-      log.log(Level.FINE,
-          "responding not found as site adptor for {0} is null", id);
-      response.respondNotFound();
-      log.exiting("SharePointAdaptor", "getDocContent");
-      return;
+    docContentTimer.start();
+    boolean failed = true;
+    try {
+      long phaseStart = System.nanoTime();
+      SiteAdaptor adptorForDocId;
+      do {
+        adptorForDocId = getAdaptorForDocId(id);
+        // Retry if it was evicted and closed since it was looked up.
+      } while (adptorForDocId != null && !adptorForDocId.acquire());
+      docContentTimer.endPhase(DocContentTimer.Phase.RESOLVE_SITE_ADAPTOR,
+          phaseStart);
+      if (adptorForDocId == null) {
+        log.log(Level.FINE,
+            "responding not found as site adptor for {0} is null", id);
+        response.respondNotFound();
+        failed = false;
+        log.exiting("SharePointAdaptor", "getDocContent");
+        return;
+      }
+
+      try {
+        if (id.equals(virtualServerDocId)) {
+          adptorForDocId.getVirtualServerDocContent(request, response);
+        } else {
+          adptorForDocId.getDocContent(request, response); 
+        }
+      } finally {
+        adptorForDocId.release();
+      }
+      failed = false;
+    } finally {
+      docContentTimer.finish(id, failed);
     }
-    
-    if (id.equals(virtualServerDocId)) {
-      adptorForDocId.getVirtualServerDocContent(request, response);
-    } else {
-      adptorForDocId.getDocContent(request, response); 
-    }   
     log.log(Level.FINE, "Duration: getDocContent {0} : {1,number,#} ms",
         new Object[] {request.getDocId(),
         System.currentTimeMillis() - startMillis});
@@ -1034,18 +1458,26 @@ public class SharePointAdaptor extends AbstractAdaptor
   private void getDocIdsSiteCollectionOnly(DocIdPusher pusher)
       throws InterruptedException,IOException {
     log.entering("SharePointAdaptor", "getDocIdsSiteCollectionOnly", pusher);
-    SiteAdaptor scAdaptor = getSiteAdaptor(sharePointUrl.getSharePointUrl(), 
-        sharePointUrl.getSharePointUrl());
-    SiteDataClient scClient = scAdaptor.getSiteDataClient();
-    Site site = scClient.getContentSite();
+    SiteAdaptor scAdaptor = acquireSiteAdaptor(
+        sharePointUrl.getSharePointUrl(), sharePointUrl.getSharePointUrl());
+    Site site;
+    try {
+      site = scAdaptor.getSiteDataClient().getContentSite();
+    } finally {
+      scAdaptor.release();
+    }
     String siteCollectionUrl = getCanonicalUrl(site.getMetadata().getURL());
     // Reset site collection URL instance to use correct URL.
-    scAdaptor = getSiteAdaptor(siteCollectionUrl, siteCollectionUrl);
-    DocId siteCollectionDocId = scAdaptor.encodeDocId(siteCollectionUrl);
-    pusher.pushDocIds(Arrays.asList(siteCollectionDocId));
+    scAdaptor = acquireSiteAdaptor(siteCollectionUrl, siteCollectionUrl);
     Map<GroupPrincipal, Collection<Principal>> groupDefs 
         = new HashMap<GroupPrincipal, Collection<Principal>>();
-    groupDefs.putAll(scAdaptor.computeMembersForGroups(site.getGroups()));
+    try {
+      DocId siteCollectionDocId = scAdaptor.encodeDocId(siteCollectionUrl);
+      pusher.pushDocIds(Arrays.asList(siteCollectionDocId));
+      groupDefs.putAll(scAdaptor.computeMembersForGroups(site.getGroups()));
+    } finally {
+      scAdaptor.release();
+    }
     String siteId = site.getMetadata().getID();
     sitePushGroupDefinitions(siteId, pusher, groupDefs);
     log.exiting("SharePointAdaptor", "getDocIdsSiteCollectionOnly");
@@ -1054,63 +1486,193 @@ public class SharePointAdaptor extends AbstractAdaptor
   private void getDocIdsVirtualServer(DocIdPusher pusher)
       throws InterruptedException,IOException {
     log.entering("SharePointAdaptor", "getDocIdsVirtualServer", pusher);
-    SiteAdaptor vsAdaptor = getSiteAdaptor(sharePointUrl.getVirtualServerUrl(),
+    SiteAdaptor vsAdaptor = acquireSiteAdaptor(
+        sharePointUrl.getVirtualServerUrl(),
         sharePointUrl.getVirtualServerUrl());
-    SiteDataClient vsClient = vsAdaptor.getSiteDataClient();
+    try {
+      getDocIdsVirtualServer(pusher, vsAdaptor);
+    } finally {
+      vsAdaptor.release();
+    }
+    log.exiting("SharePointAdaptor", "getDocIdsVirtualServer");
+  }
+
+  private void getDocIdsVirtualServer(DocIdPusher pusher,
+      SiteAdaptor vsAdaptor) throws InterruptedException, IOException {
+    final SiteDataClient vsClient = vsAdaptor.getSiteDataClient();
     pusher.pushDocIds(Arrays.asList(virtualServerDocId));
     VirtualServer vs = vsClient.getContentVirtualServer();
-    for (ContentDatabases.ContentDatabase cdcd
-        : vs.getContentDatabases().getContentDatabase()) {
-      ContentDatabase cd;
-      try {
-        cd = vsClient.getContentContentDatabase(cdcd.getID(), true);
-      } catch (IOException ex) {
-        log.log(Level.WARNING, "Failed to get content database: " 
-            + cdcd.getID(), ex);
-        continue;
-      }
-      if (cd.getSites() == null) {
-        continue;
-      }
-      Set<String> excluded = new TreeSet<String>();
-      for (Sites.Site siteListing : cd.getSites().getSite()) {
-        String siteString
-            = vsAdaptor.encodeDocId(siteListing.getURL()).getUniqueId();
-        siteString = getCanonicalUrl(siteString);
-        if (!sharePointUrl.isSiteCollectionIncluded(siteString)) {
-          excluded.add(siteString);
+    // Site collections are retrieved concurrently, but their group
+    // definitions are pushed in listing order from this thread. At most
+    // traversalThreads site collections are outstanding at any time, which
+    // bounds both the load on SharePoint and memory use.
+    ExecutorService traversalExecutor
+        = executorFactory.newTraversalExecutor(traversalThreads);
+    try {
+      List<ContentDatabases.ContentDatabase> contentDatabases
+          = vs.getContentDatabases().getContentDatabase();
+      Future<ContentDatabase> nextCd = null;
+      if (!contentDatabases.isEmpty()) {
+        nextCd = traversalExecutor.submit(new ContentDatabaseRetriever(
+            vsClient, contentDatabases.get(0).getID()));
+      }
+      Deque<Future<SiteGroupDefinitions>> pending
+          = new ArrayDeque<Future<SiteGroupDefinitions>>();
+      for (int i = 0; i < contentDatabases.size(); i++) {
+        Future<ContentDatabase> currentCd = nextCd;
+        // Retrieve the next content database while processing this one.
+        if (i + 1 < contentDatabases.size()) {
+          nextCd = traversalExecutor.submit(new ContentDatabaseRetriever(
+              vsClient, contentDatabases.get(i + 1).getID()));
+        }
+        ContentDatabase cd;
+        try {
+          cd = getTraversalResult(currentCd);
+        } catch (IOException ex) {
+          log.log(Level.WARNING, "Failed to get content database: " 
+              + contentDatabases.get(i).getID(), ex);
+          continue;
+        }
+        if (cd.getSites() == null) {
           continue;
         }
-        ntlmAuthenticator.addPermitForHost(spUrlToUri(siteString).toURL());           
-        SiteAdaptor siteAdaptor = getSiteAdaptor(siteString, siteString);
+        Set<String> excluded = new TreeSet<String>();
+        for (Sites.Site siteListing : cd.getSites().getSite()) {
+          String siteString
+              = vsAdaptor.encodeDocId(siteListing.getURL()).getUniqueId();
+          siteString = getCanonicalUrl(siteString);
+          if (!sharePointUrl.isSiteCollectionIncluded(siteString)) {
+            excluded.add(siteString);
+            continue;
+          }
+          ntlmAuthenticator.addPermitForHost(spUrlToUri(siteString).toURL());
+          while (pending.size() >= traversalThreads) {
+            pushSiteGroupDefinitions(pending.removeFirst(), pusher);
+          }
+          pending.addLast(traversalExecutor.submit(
+              new SiteGroupDefinitionsRetriever(siteString)));
+        }
+        if (excluded.size() > 0) {
+          log.log(Level.INFO,
+              "List of site collections excluded from index in "
+                  + "getDocIds: {0}", excluded);
+        }
+      }
+      while (!pending.isEmpty()) {
+        pushSiteGroupDefinitions(pending.removeFirst(), pusher);
+      }
+    } finally {
+      traversalExecutor.shutdownNow();
+    }
+  }
+
+  private void pushSiteGroupDefinitions(Future<SiteGroupDefinitions> future,
+      DocIdPusher pusher) throws InterruptedException, IOException {
+    SiteGroupDefinitions siteGroups = getTraversalResult(future);
+    if (siteGroups == null) {
+      return;
+    }
+    sitePushGroupDefinitions(siteGroups.siteId, pusher, siteGroups.groupDefs);
+  }
+
+  /**
+   * Waits for {@code future}, throwing the exception it failed with directly
+   * instead of wrapped in an {@link ExecutionException}.
+   */
+  private static <T> T getTraversalResult(Future<T> future)
+      throws InterruptedException, IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  private static class ContentDatabaseRetriever
+      implements Callable<ContentDatabase> {
+    private final SiteDataClient vsClient;
+    private final String contentDatabaseId;
+
+    public ContentDatabaseRetriever(SiteDataClient vsClient,
+        String contentDatabaseId) {
+      this.vsClient = vsClient;
+      this.contentDatabaseId = contentDatabaseId;
+    }
+
+    @Override
+    public ContentDatabase call() throws IOException {
+      return vsClient.getContentContentDatabase(contentDatabaseId, true);
+    }
+  }
+
+  /** Group definitions of a single site collection. */
+  private static class SiteGroupDefinitions {
+    private final String siteId;
+    private final Map<GroupPrincipal, Collection<Principal>> groupDefs;
+
+    public SiteGroupDefinitions(String siteId,
+        Map<GroupPrincipal, Collection<Principal>> groupDefs) {
+      this.siteId = siteId;
+      this.groupDefs = groupDefs;
+    }
+  }
+
+  /**
+   * Retrieves the group definitions of a site collection, or {@code null} if
+   * the site collection could not be retrieved.
+   */
+  private class SiteGroupDefinitionsRetriever
+      implements Callable<SiteGroupDefinitions> {
+    private final String siteString;
+
+    public SiteGroupDefinitionsRetriever(String siteString) {
+      this.siteString = siteString;
+    }
+
+    @Override
+    public SiteGroupDefinitions call() throws IOException {
+      SiteAdaptor siteAdaptor = acquireSiteAdaptor(siteString, siteString);
+      try {
         Site site;
         try {
           site = siteAdaptor.getSiteDataClient().getContentSite();
         } catch (IOException ex) {
           log.log(Level.WARNING, "Failed to get local groups for site: "
               + siteString, ex);
-          continue;
+          return null;
         }
         Map<GroupPrincipal, Collection<Principal>> siteDefs
             = siteAdaptor.computeMembersForGroups(site.getGroups());
-        String siteId = site.getMetadata().getID();
-        sitePushGroupDefinitions(siteId, pusher, siteDefs);
-      }
-      if (excluded.size() > 0) {
-        log.log(Level.INFO,
-            "List of site collections excluded from index in "
-                + "getDocIds: {0}", excluded);
+        return new SiteGroupDefinitions(site.getMetadata().getID(),
+            siteDefs);
+      } finally {
+        siteAdaptor.release();
       }
-    }    
-    log.exiting("SharePointAdaptor", "getDocIdsVirtualServer");
+    }
   }
   
-  private void sitePushGroupDefinitions(String siteId, DocIdPusher pusher,
+  /** Returns whether the pusher accepted all the group definitions. */
+  private boolean sitePushGroupDefinitions(String siteId, DocIdPusher pusher,
       Map<GroupPrincipal, Collection<Principal>> groupDefs)
       throws InterruptedException {
     String sourceId = "SITEID-" + siteId.replaceAll("[{}]", "");
-    pusher.pushGroupDefinitions(groupDefs, EVERYTHING_CASE_INSENSITIVE,
-        REPLACE, sourceId, null);
+    GroupPrincipal failedGroup = pusher.pushGroupDefinitions(groupDefs,
+        EVERYTHING_CASE_INSENSITIVE, REPLACE, sourceId, null);
+    if (failedGroup != null) {
+      log.log(Level.WARNING, "Failed to push group definition of {0}",
+          failedGroup);
+      return false;
+    }
+    return true;
   }
 
   @Override
@@ -1122,15 +1684,42 @@ public class SharePointAdaptor extends AbstractAdaptor
     } else {
       getModifiedDocIdsVirtualServer(pusher);
     }    
+    try {
+      changeTokenStore.sync();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to sync change tokens", ex);
+    }
     log.exiting("SharePointAdaptor", "getModifiedDocIds", pusher);
   }
+
+  /**
+   * Records {@code changeId} as the latest processed change of {@code guid},
+   * both in memory and in {@link #changeTokenStore}.
+   */
+  private void checkpointChangeId(String guid, String changeId) {
+    objectGuidToChangeIdMapping.put(guid, changeId);
+    try {
+      changeTokenStore.put(guid, changeId);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to store change token for " + guid, ex);
+    }
+  }
+
+  private void removeChangeId(String guid) {
+    objectGuidToChangeIdMapping.remove(guid);
+    try {
+      changeTokenStore.remove(guid);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to remove change token for " + guid, ex);
+    }
+  }
   
   private void getModifiedDocIdsVirtualServer(DocIdPusher pusher)
       throws InterruptedException {
     log.entering("SharePointAdaptor", "getModifiedDocIdsVirtualServer", pusher);
     SiteAdaptor siteAdaptor;
     try {
-      siteAdaptor = getSiteAdaptor(sharePointUrl.getVirtualServerUrl(),
+      siteAdaptor = acquireSiteAdaptor(sharePointUrl.getVirtualServerUrl(),
           sharePointUrl.getVirtualServerUrl());
     } catch (IOException ex) {
       // The call should never fail, and it is the only IOException-throwing
@@ -1139,6 +1728,16 @@ public class SharePointAdaptor extends AbstractAdaptor
       // exception gracefully throughout this method.
       throw new RuntimeException(ex);
     }
+    try {
+      getModifiedDocIdsVirtualServer(pusher, siteAdaptor);
+    } finally {
+      siteAdaptor.release();
+    }
+    log.exiting("SharePointAdaptor", "getModifiedDocIdsVirtualServer", pusher);
+  }
+
+  private void getModifiedDocIdsVirtualServer(DocIdPusher pusher,
+      SiteAdaptor siteAdaptor) throws InterruptedException {
     SiteDataClient client = siteAdaptor.getSiteDataClient();
     VirtualServer vs = null;
     try {
@@ -1180,7 +1779,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       pusher.pushRecords(Collections.singleton(record));
     }
     for (String contentDatabase : removedContentDatabases) {
-      objectGuidToChangeIdMapping.remove(contentDatabase);
+      removeChangeId(contentDatabase);
     }
     for (String contentDatabase : newContentDatabases) {
       ContentDatabase cd;
@@ -1193,20 +1792,110 @@ public class SharePointAdaptor extends AbstractAdaptor
         continue;
       }
       String changeId = cd.getMetadata().getChangeId();
-      objectGuidToChangeIdMapping.put(contentDatabase, changeId);
+      checkpointChangeId(contentDatabase, changeId);
+    }
+    // Poll content databases concurrently so that a busy database does not
+    // delay the others. All changes are pushed together, and only then are the
+    // databases' cursors advanced, so that a failed push or a restart before
+    // it doesn't lose changes.
+    Set<DocId> docIds = new HashSet<DocId>();
+    Set<String> updatedSiteSecurity = new HashSet<String>();
+    Map<String, String> changeIds = new HashMap<String, String>();
+    ExecutorService pollingExecutor
+        = executorFactory.newTraversalExecutor(traversalThreads);
+    try {
+      CompletionService<ContentDatabaseChanges> completionService
+          = new ExecutorCompletionService<ContentDatabaseChanges>(
+              pollingExecutor);
+      Iterator<String> toPoll = updatedContentDatabases.iterator();
+      int outstanding = 0;
+      while (outstanding < traversalThreads && toPoll.hasNext()) {
+        completionService.submit(
+            new ContentDatabaseChangesPoller(client, toPoll.next()));
+        outstanding++;
+      }
+      while (outstanding > 0) {
+        Future<ContentDatabaseChanges> future = completionService.take();
+        outstanding--;
+        if (toPoll.hasNext()) {
+          completionService.submit(
+              new ContentDatabaseChangesPoller(client, toPoll.next()));
+          outstanding++;
+        }
+        ContentDatabaseChanges changes;
+        try {
+          changes = getTraversalResult(future);
+        } catch (IOException ex) {
+          // ContentDatabaseChangesPoller handles its own IOExceptions, but
+          // still push the changes of the other databases if it didn't.
+          log.log(Level.WARNING, "Error polling a content database", ex);
+          continue;
+        }
+        changes.addTo(docIds, updatedSiteSecurity, changeIds);
+      }
+    } finally {
+      pollingExecutor.shutdownNow();
+    }
+    if (!updatedContentDatabases.isEmpty()
+        && pushIncrementalUpdatesAndGroups(
+            pusher, siteAdaptor, docIds, updatedSiteSecurity)) {
+      for (Map.Entry<String, String> me : changeIds.entrySet()) {
+        checkpointChangeId(me.getKey(), me.getValue());
+      }
     }
-    for (String contentDatabase : updatedContentDatabases) {
+  }
+
+  /** Changes found in a single content database. */
+  private static class ContentDatabaseChanges {
+    private final String contentDatabase;
+    private final Set<DocId> docIds = new HashSet<DocId>();
+    private final Set<String> updatedSiteSecurity = new HashSet<String>();
+    /** Cursor after the last page processed, or {@code null} if none was. */
+    private String changeId;
+
+    public ContentDatabaseChanges(String contentDatabase) {
+      this.contentDatabase = contentDatabase;
+    }
+
+    void addTo(Set<DocId> allDocIds, Set<String> allUpdatedSiteSecurity,
+        Map<String, String> changeIds) {
+      allDocIds.addAll(docIds);
+      allUpdatedSiteSecurity.addAll(updatedSiteSecurity);
+      if (changeId != null) {
+        changeIds.put(contentDatabase, changeId);
+      }
+    }
+  }
+
+  /**
+   * Retrieves all the changes of a content database since its last
+   * checkpointed change id, recording the cursor after each page. The cursor
+   * is checkpointed by the caller once the changes have been pushed.
+   */
+  private class ContentDatabaseChangesPoller
+      implements Callable<ContentDatabaseChanges> {
+    private final SiteDataClient client;
+    private final String contentDatabase;
+
+    public ContentDatabaseChangesPoller(SiteDataClient client,
+        String contentDatabase) {
+      this.client = client;
+      this.contentDatabase = contentDatabase;
+    }
+
+    @Override
+    public ContentDatabaseChanges call() {
+      ContentDatabaseChanges result
+          = new ContentDatabaseChanges(contentDatabase);
       String changeId = objectGuidToChangeIdMapping.get(contentDatabase);
       if (changeId == null) {
         // The item was removed from objectGuidToChangeIdMapping, so apparently
         // this database is gone.
-        continue;
+        return result;
       }
       CursorPaginator<SPContentDatabase, String> changesPaginator
           = client.getChangesContentDatabase(contentDatabase, changeId,
               isSp2007);
-      Set<DocId> docIds = new HashSet<DocId>();
-      Set<String> updatedSiteSecurity = new HashSet<String>();
       try {
         while (true) {
           try {
@@ -1214,8 +1903,8 @@ public class SharePointAdaptor extends AbstractAdaptor
             if (changes == null) {
               break;
             }
-            getModifiedDocIdsContentDatabase(changes, docIds,
-                updatedSiteSecurity);
+            getModifiedDocIdsContentDatabase(changes, result.docIds,
+                result.updatedSiteSecurity);
           } catch (XmlProcessingException ex) {
             log.log(Level.WARNING, "Error parsing changes from content "
                 + "database: " + contentDatabase, ex);
@@ -1223,22 +1912,25 @@ public class SharePointAdaptor extends AbstractAdaptor
             // failed parsing, so we just ignore the failure and continue
             // looping.
           }
-          objectGuidToChangeIdMapping.put(contentDatabase,
-              changesPaginator.getCursor());
+          result.changeId = changesPaginator.getCursor();
         }
       } catch (IOException ex) {
         log.log(Level.WARNING, "Error getting changes from content database: "
             + contentDatabase, ex);
         // Continue processing. Hope that next time works better.
       }
-      pushIncrementalUpdatesAndGroups(
-          pusher, siteAdaptor, docIds, updatedSiteSecurity);
-      
+      return result;
     }
-    log.exiting("SharePointAdaptor", "getModifiedDocIdsVirtualServer", pusher);
   }
 
-  private void pushIncrementalUpdatesAndGroups(DocIdPusher pusher, 
+  /**
+   * Pushes changed documents and the groups of site collections with changed
+   * security.
+   *
+   * @return whether the pusher accepted everything, so that the change ids
+   *     the changes were found with may be checkpointed
+   */
+  private boolean pushIncrementalUpdatesAndGroups(DocIdPusher pusher, 
       SiteAdaptor siteAdaptor, Set<DocId> docIds,
       Set<String> updatedSiteSecurity) throws InterruptedException {
       List<DocIdPusher.Record> records
@@ -1249,25 +1941,35 @@ public class SharePointAdaptor extends AbstractAdaptor
       for (DocId docId : docIds) {
         records.add(builder.setDocId(docId).build());
       }
-      pusher.pushRecords(records);
-      if (updatedSiteSecurity.isEmpty()) {
-        return;
+      DocIdPusher.Record failedRecord = pusher.pushRecords(records);
+      if (failedRecord != null) {
+        log.log(Level.WARNING, "Failed to push {0}; its changes will be "
+            + "retrieved again next time", failedRecord.getDocId());
+        return false;
       }
+      boolean pushed = true;
       for (String siteUrl : updatedSiteSecurity) {
         Site site;
         try {
-          site = getSiteAdaptor(siteUrl, siteUrl).getSiteDataClient()
-              .getContentSite();
+          SiteAdaptor siteUrlAdaptor = acquireSiteAdaptor(siteUrl, siteUrl);
+          try {
+            site = siteUrlAdaptor.getSiteDataClient().getContentSite();
+          } finally {
+            siteUrlAdaptor.release();
+          }
         } catch (IOException ex) {
           log.log(Level.WARNING, "Failed to get local groups for site: "
               + siteUrl, ex);
+          // Retrieve the changes again next time, so the groups get pushed.
+          pushed = false;
           continue;
         }
         Map<GroupPrincipal, Collection<Principal>> groupDefs
             = siteAdaptor.computeMembersForGroups(site.getGroups());
         String siteId = site.getMetadata().getID();
-        sitePushGroupDefinitions(siteId, pusher, groupDefs);
-      }      
+        pushed &= sitePushGroupDefinitions(siteId, pusher, groupDefs);
+      }
+      return pushed;
     }
 
   @VisibleForTesting
@@ -1295,7 +1997,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       throws InterruptedException {
     SiteAdaptor siteAdaptor;
     try {
-      siteAdaptor = getSiteAdaptor(sharePointUrl.getSharePointUrl(),
+      siteAdaptor = acquireSiteAdaptor(sharePointUrl.getSharePointUrl(),
           sharePointUrl.getSharePointUrl());
     } catch (IOException ex) {
       // The call should never fail, and it is the only IOException-throwing
@@ -1304,7 +2006,15 @@ public class SharePointAdaptor extends AbstractAdaptor
       // exception gracefully throughout this method.
       throw new RuntimeException(ex);
     }
+    try {
+      getModifiedDocIdsSiteCollection(pusher, siteAdaptor);
+    } finally {
+      siteAdaptor.release();
+    }
+  }
 
+  private void getModifiedDocIdsSiteCollection(DocIdPusher pusher,
+      SiteAdaptor siteAdaptor) throws InterruptedException {
     SiteDataClient client = siteAdaptor.getSiteDataClient();
     Site site;
     try {
@@ -1323,11 +2033,12 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
     String siteId = site.getMetadata().getID();
     if (!objectGuidToChangeIdMapping.containsKey(siteId)) {
-      objectGuidToChangeIdMapping.put(siteId, site.getMetadata().getChangeId());
+      checkpointChangeId(siteId, site.getMetadata().getChangeId());
     }
     
     Set<DocId> docIds = new HashSet<DocId>();
     Set<String> updatedSiteSecurity = new HashSet<String>();
+    String changeId = null;
     try {
       CursorPaginator<SPSite, String> changesPaginator 
           = client.getChangesSPSite(siteId,
@@ -1338,15 +2049,19 @@ public class SharePointAdaptor extends AbstractAdaptor
           break;
         }
         getModifiedDocIdsSite(changes, docIds, updatedSiteSecurity);
-        objectGuidToChangeIdMapping.put(siteId, changesPaginator.getCursor());
+        changeId = changesPaginator.getCursor();
       }
     } catch (IOException ex) {
       log.log(Level.WARNING, "Error getting changes from Site Collection : "
             + site.getMetadata().getURL(), ex);
         // Continue processing. Hope that next time works better.
     }
-    pushIncrementalUpdatesAndGroups(
-        pusher, siteAdaptor, docIds, updatedSiteSecurity);
+    // Only advance the change id once the changes have been pushed.
+    if (pushIncrementalUpdatesAndGroups(
+        pusher, siteAdaptor, docIds, updatedSiteSecurity)
+        && changeId != null) {
+      checkpointChangeId(siteId, changeId);
+    }
   }
 
   private void getModifiedDocIdsSite(SPSite changes, Collection<DocId> docIds,
@@ -1359,6 +2074,12 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.exiting("SharePointAdaptor", "getModifiedDocIdsSite");
       return;
     }
+    if (!"Unchanged".equals(changes.getChange())) {
+      // Groups and users are defined per site collection.
+      memberIdsCache.invalidate(siteUrl);
+      siteUserCache.invalidate(siteUrl);
+      invalidateScopeAcls(siteUrl);
+    }
     if (isModified(changes.getChange())) {
       docIds.add(new DocId(siteUrl));
       // Add modified site to whitelist for authenticator as this might be new
@@ -1382,10 +2103,20 @@ public class SharePointAdaptor extends AbstractAdaptor
   private void getModifiedDocIdsWeb(SPWeb changes, Collection<DocId> docIds) {
     log.entering("SharePointAdaptor", "getModifiedDocIdsWeb",
         new Object[] {changes, docIds});
-    if (isModified(changes.getChange())) {
-      String webUrl = changes.getServerUrl() + changes.getDisplayUrl();
-      webUrl = getCanonicalUrl(webUrl);
-      docIds.add(new DocId(webUrl));
+    String webUrl = changes.getServerUrl() + changes.getDisplayUrl();
+    webUrl = getCanonicalUrl(webUrl);
+    if (!"Unchanged".equals(changes.getChange())) {
+      invalidateUrlCachesUnder(webUrl);
+      rareModCache.invalidateWeb(webUrl);
+      if (isModified(changes.getChange())) {
+        docIds.add(new DocId(webUrl));
+      }
+    }
+    // A web can be reported as Unchanged while its security was updated.
+    if ("UpdateSecurity".equals(changes.getChange())
+        || TrueFalseType.TRUE.equals(changes.getUpdateSecurity())) {
+      rareModCache.invalidateWeb(webUrl);
+      rareModCache.invalidateLists(webUrl);
     }
     
     List<Object> spObjects = changes.getSPFolderOrSPListOrSPFile();
@@ -1395,19 +2126,32 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
     for (Object choice : spObjects) {      
       if (choice instanceof SPList) {
-        getModifiedDocIdsList((SPList) choice, docIds);
+        getModifiedDocIdsList((SPList) choice, webUrl, docIds);
       }
     }
     log.exiting("SharePointAdaptor", "getModifiedDocIdsWeb");
   }
 
-  private void getModifiedDocIdsList(SPList changes,
+  private void getModifiedDocIdsList(SPList changes, String webUrl,
       Collection<DocId> docIds) {
     log.entering("SharePointAdaptor", "getModifiedDocIdsList",
         new Object[] {changes, docIds});
-    if (isModified(changes.getChange())) {
+    // Changes to items also change the list's last modified time. The Id
+    // attribute is optional, but the list's metadata carries its id as well.
+    String listId = changes.getId();
+    if (listId == null && changes.getList() != null
+        && changes.getList().getMetadata() != null) {
+      listId = changes.getList().getMetadata().getID();
+    }
+    if (listId != null) {
+      rareModCache.invalidateList(webUrl, listId);
+    }
+    if (!"Unchanged".equals(changes.getChange())) {
       String listUrl = changes.getServerUrl() + changes.getDisplayUrl();
-      docIds.add(new DocId(listUrl));
+      invalidateUrlCachesUnder(listUrl);
+      if (isModified(changes.getChange())) {
+        docIds.add(new DocId(listUrl));
+      }
     }
     List<Object> spObjects = changes.getSPViewOrSPListItem();
     if (spObjects == null) {
@@ -1446,6 +2190,8 @@ public class SharePointAdaptor extends AbstractAdaptor
               + "list item {0}", changes.getId());
         } else {
           String url = changes.getServerUrl() + serverUrl;
+          // A new item may reuse the URL of a deleted one.
+          urlSegmentsCache.invalidate(url);
           docIds.add(new DocId(url));
         }
       }
@@ -1453,42 +2199,152 @@ public class SharePointAdaptor extends AbstractAdaptor
     log.exiting("SharePointAdaptor", "getModifiedDocIdsListItem");
   }
 
+  /**
+   * Removes cached URL lookups for {@code url} and the URLs below it, after
+   * the web or list at {@code url} was changed, renamed or deleted.
+   */
+  private void invalidateUrlCachesUnder(String url) {
+    urlSegmentsCache.invalidateUnder(url);
+    UrlSegmentsCache.invalidateUnder(attachmentListCache.asMap(), url);
+  }
+
+  /**
+   * Removes the cached scope ACLs of the webs of site collection {@code
+   * siteUrl}, which were resolved using its now out-of-date member ids.
+   */
+  private void invalidateScopeAcls(String siteUrl) {
+    for (SiteAdaptor siteAdaptor : siteAdaptors.asMap().values()) {
+      if (siteAdaptor.siteUrl.equals(siteUrl)) {
+        siteAdaptor.scopeAclCache.invalidateAll();
+      }
+    }
+  }
+
   private boolean isModified(String change) {
     return !"Unchanged".equals(change) && !"Delete".equals(change);
   }
 
-  private SiteAdaptor getSiteAdaptor(String site, String web)
+  private SiteAdaptor getSiteAdaptor(final String site, String web)
       throws IOException {
-    web = getCanonicalUrl(web);
-    SiteAdaptor siteAdaptor = siteAdaptors.get(web);
-    if (siteAdaptor == null) {
-      site = getCanonicalUrl(site);
-      ntlmAuthenticator.addPermitForHost(new URL(web));
-      String endpoint = spUrlToUri(web + "/_vti_bin/SiteData.asmx").toString();
-      SiteDataSoap siteDataSoap = soapFactory.newSiteData(endpoint);
-      
-      String endpointUserGroup = spUrlToUri(site + "/_vti_bin/UserGroup.asmx")
-          .toString();
-      UserGroupSoap userGroupSoap = soapFactory.newUserGroup(endpointUserGroup);
-      String endpointPeople = spUrlToUri(site + "/_vti_bin/People.asmx")
-          .toString();
-      PeopleSoap peopleSoap = soapFactory.newPeople(endpointPeople);
+    final String canonicalWeb = getCanonicalUrl(web);
+    try {
+      return siteAdaptors.get(canonicalWeb, new Callable<SiteAdaptor>() {
+        @Override
+        public SiteAdaptor call() throws IOException {
+          return createSiteAdaptor(getCanonicalUrl(site), canonicalWeb);
+        }
+      });
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    } catch (UncheckedExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Returns the SiteAdaptor for {@code web}, {@link SiteAdaptor#acquire
+   * acquired} so that its ports stay open until the caller releases it.
+   */
+  private SiteAdaptor acquireSiteAdaptor(String site, String web)
+      throws IOException {
+    while (true) {
+      SiteAdaptor siteAdaptor = getSiteAdaptor(site, web);
+      if (siteAdaptor.acquire()) {
+        return siteAdaptor;
+      }
+      // It was evicted and closed after being looked up, so it is no longer
+      // cached and the next lookup creates a new one.
+    }
+  }
+
+  private SiteAdaptor createSiteAdaptor(String site, String web)
+      throws IOException {
+    ntlmAuthenticator.addPermitForHost(new URL(web));
+    String endpoint = spUrlToUri(web + "/_vti_bin/SiteData.asmx").toString();
+    SiteDataSoap siteDataSoap = soapFactory.newSiteData(endpoint);
+    
+    String endpointUserGroup = spUrlToUri(site + "/_vti_bin/UserGroup.asmx")
+        .toString();
+    UserGroupSoap userGroupSoap = soapFactory.newUserGroup(endpointUserGroup);
+    String endpointPeople = spUrlToUri(site + "/_vti_bin/People.asmx")
+        .toString();
+    PeopleSoap peopleSoap = soapFactory.newPeople(endpointPeople);
+
+    addRequestHeaders((BindingProvider) siteDataSoap);
+    addRequestHeaders((BindingProvider) userGroupSoap);
+    addRequestHeaders((BindingProvider) peopleSoap);
+
+    addSocketTimeoutConfiguration((BindingProvider) siteDataSoap);
+    addSocketTimeoutConfiguration((BindingProvider) userGroupSoap);
+    addSocketTimeoutConfiguration((BindingProvider) peopleSoap);
+
+    AdaptiveConcurrencyLimiter limiter = hostLimiters.get(new URL(web));
+    siteDataSoap = ThrottlingWSHandler.create(SiteDataSoap.class,
+        siteDataSoap, limiter);
+    userGroupSoap = ThrottlingWSHandler.create(UserGroupSoap.class,
+        userGroupSoap, limiter);
+    peopleSoap = ThrottlingWSHandler.create(PeopleSoap.class, peopleSoap,
+        limiter);
+
+    return new SiteAdaptor(site, web, siteDataSoap, userGroupSoap,
+        peopleSoap, new MemberIdMappingCallable(site),
+        new SiteUserIdMappingCallable(site));
+  }
+
+  /**
+   * Closes the ports of SiteAdaptors evicted from {@link #siteAdaptors} once
+   * their uses complete. SiteAdaptors removed explicitly are closed by their
+   * remover.
+   */
+  private class SiteAdaptorRemovalListener
+      implements RemovalListener<String, SiteAdaptor> {
+    @Override
+    public void onRemoval(
+        RemovalNotification<String, SiteAdaptor> notification) {
+      if (!notification.wasEvicted() || notification.getValue() == null) {
+        return;
+      }
+      log.log(Level.FINE, "Evicted SiteAdaptor for {0}",
+          notification.getKey());
+      notification.getValue().evict();
+    }
+  }
 
-      addRequestHeaders((BindingProvider) siteDataSoap);
-      addRequestHeaders((BindingProvider) userGroupSoap);
-      addRequestHeaders((BindingProvider) peopleSoap);
+  /** Status of the {@link #siteAdaptors} cache. */
+  private class SiteAdaptorCacheStatusSource implements StatusSource {
+    @Override
+    public Status retrieveStatus() {
+      CacheStats stats = siteAdaptors.stats();
+      final String message = String.format("size=%d/%d, hitRate=%.1f%%, "
+          + "evictions=%d", siteAdaptors.size(), MAX_CACHED_SITE_ADAPTORS,
+          stats.hitRate() * 100, stats.evictionCount());
+      return new Status() {
+        @Override
+        public Status.Code getCode() {
+          return Status.Code.NORMAL;
+        }
 
-      addSocketTimeoutConfiguration((BindingProvider) siteDataSoap);
-      addSocketTimeoutConfiguration((BindingProvider) userGroupSoap);
-      addSocketTimeoutConfiguration((BindingProvider) peopleSoap);
+        @Override
+        public String getMessage(Locale locale) {
+          return message;
+        }
+      };
+    }
 
-      siteAdaptor = new SiteAdaptor(site, web, siteDataSoap, userGroupSoap,
-          peopleSoap, new MemberIdMappingCallable(site),
-          new SiteUserIdMappingCallable(site));
-      siteAdaptors.putIfAbsent(web, siteAdaptor);
-      siteAdaptor = siteAdaptors.get(web);
+    @Override
+    public String getName(Locale locale) {
+      return "SharePoint site connections";
     }
-    return siteAdaptor;
   }
   
   private void addRequestHeaders(BindingProvider port) {
@@ -1614,6 +2470,72 @@ public class SharePointAdaptor extends AbstractAdaptor
     return sb.toString();
   }
 
+  private static long addMetadata(Response response, String name,
+      String value) {
+    return addMetadata(response, name, value, null);
+  }
+
+  /**
+   * Adds a SharePoint field to {@code response}, splitting lookup and
+   * multi-choice values into their parts. Returns an estimate of the size the
+   * metadata adds to the response.
+   */
+  @VisibleForTesting
+  static long addMetadata(Response response, String name, String value,
+      Multimap<String, String> addedMetadata) {
+    long size = 0;
+    if ("ows_MetaInfo".equals(name)) {
+      // ows_MetaInfo is parsed out into other fields for us by SharePoint.
+      // We filter it since it only duplicates those other fields.
+      return 0;
+    }
+    if (name.startsWith("ows_")) {
+      name = name.substring("ows_".length());
+    }
+    name = decodeMetadataName(name);
+    if (ALTERNATIVE_VALUE_PATTERN.matcher(value).find()) {
+      // This is a lookup field. We need to take alternative values only.
+      // Ignore the integer part. 314;#pi;#42;#the answer
+      String[] parts = value.split(";#", 0);
+      for (int i = 1; i < parts.length; i += 2) {
+        if (parts[i].isEmpty()) {
+          continue;
+        }
+        response.addMetadata(name, parts[i]);
+        if (addedMetadata != null) {
+          addedMetadata.put(name, parts[i]);
+        }
+        // +30 for per-metadata-possible overhead, just to make sure that we
+        // don't count too few.
+        size += name.length() + parts[i].length() + 30;
+      }
+    } else if (value.startsWith(";#") && value.endsWith(";#")) {
+      // This is a multi-choice field. Values will be in the form:
+      // ;#value1;#value2;#
+      for (String part : value.split(";#", 0)) {
+        if (part.isEmpty()) {
+          continue;
+        }
+        response.addMetadata(name, part);
+        if (addedMetadata != null) {
+          addedMetadata.put(name, part);
+        }
+        // +30 for per-metadata-possible overhead, just to make sure that we
+        // don't count too few.
+        size += name.length() + part.length() + 30;
+      }
+    } else {
+      response.addMetadata(name, value);
+      if (addedMetadata != null) {
+        addedMetadata.put(name, value);
+      }
+      // +30 for per-metadata-possible overhead, just to make sure that we
+      // don't count too few.
+      size += name.length() + value.length() + 30;
+    }
+    return size;
+  }
+
   public static void main(String[] args) {
     AbstractAdaptor.main(new SharePointAdaptor(), args);
   }
@@ -1640,9 +2562,13 @@ public class SharePointAdaptor extends AbstractAdaptor
     } catch (URISyntaxException e) {
       throw new IOException(e);
     }
-    SiteAdaptor rootAdaptor = getSiteAdaptor(rootUrl, rootUrl);
-    SiteAdaptor adaptorForUrl =
-        rootAdaptor.getAdaptorForUrl(docId.getUniqueId());
+    SiteAdaptor rootAdaptor = acquireSiteAdaptor(rootUrl, rootUrl);
+    SiteAdaptor adaptorForUrl;
+    try {
+      adaptorForUrl = rootAdaptor.getAdaptorForUrl(docId.getUniqueId());
+    } finally {
+      rootAdaptor.release();
+    }
     if (adaptorForUrl == null) {
       return null;
     }    
@@ -1894,18 +2820,27 @@ public class SharePointAdaptor extends AbstractAdaptor
      */
     private final Callable<MemberIdMapping> memberIdMappingCallable;
     private final Callable<MemberIdMapping> siteUserIdMappingCallable;
-
+    /** Web service ports, which may hold resources until closed. */
+    private final List<Object> ports;
+    /** Number of uses of the ports in progress. */
+    private int users;
+    /** Whether this was evicted, so that its ports close once unused. */
+    private boolean evicted;
+    private boolean closed;
     /**
-     * Lock for refreshing MemberIdMapping. We use a unique lock because it is
-     * held while waiting on I/O.
+     * ACLs of the permission scopes of this web, so that the many documents
+     * sharing a scope share one immutable Acl instead of each resolving the
+     * scope's members again. ACLs with unresolved members are not cached.
+     * Cleared whenever the member ids of the site collection are invalidated;
+     * periodic background reloads of the member ids are only reflected once
+     * entries expire.
      */
-    private final Object refreshMemberIdMappingLock = new Object();
+    private final Cache<ScopeAclKey, Acl> scopeAclCache
+        = CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_SCOPE_ACLS_PER_WEB)
+          .expireAfterWrite(30, TimeUnit.MINUTES)
+          .build();
 
-    /**
-     * Lock for refreshing SiteUserMapping. We use a unique lock because it is
-     * held while waiting on I/O.
-     */
-    private final Object refreshSiteUserMappingLock = new Object();
 
     public SiteAdaptor(String site, String web, SiteDataSoap siteDataSoap,
         UserGroupSoap userGroupSoap, PeopleSoap people,
@@ -1927,12 +2862,83 @@ public class SharePointAdaptor extends AbstractAdaptor
       this.webUrl = web;
       this.userGroup = userGroupSoap;
       this.people = people;
-      this.siteDataClient = new SiteDataClient(siteDataSoap, xmlValidation);
+      this.siteDataClient = new SiteDataClient(siteDataSoap, xmlValidation,
+          soapMetrics, site);
       this.memberIdMappingCallable = memberIdMappingCallable;
       this.siteUserIdMappingCallable = siteUserIdMappingCallable;
+      this.ports = Arrays.<Object>asList(siteDataSoap, userGroupSoap, people);
       log.exiting("SiteAdaptor", "SiteAdaptor");
     }
 
+    /**
+     * Starts a use of the ports, which keeps them open until the matching
+     * {@link #release}, even if this SiteAdaptor is evicted meanwhile.
+     *
+     * @return {@code false} if the ports are already closed, in which case
+     *     the SiteAdaptor must be looked up again
+     */
+    synchronized boolean acquire() {
+      if (closed) {
+        return false;
+      }
+      users++;
+      return true;
+    }
+
+    /** Ends a use started by {@link #acquire}. */
+    void release() {
+      synchronized (this) {
+        if (users <= 0) {
+          throw new IllegalStateException("Not acquired: " + webUrl);
+        }
+        users--;
+        if (users > 0 || !evicted || closed) {
+          return;
+        }
+        closed = true;
+      }
+      closePorts();
+    }
+
+    /**
+     * Closes the ports once no uses are in progress. Called once this
+     * SiteAdaptor is no longer cached, so no new uses start.
+     */
+    void evict() {
+      synchronized (this) {
+        evicted = true;
+        if (users > 0 || closed) {
+          return;
+        }
+        closed = true;
+      }
+      closePorts();
+    }
+
+    /** Releases the resources held by the web service ports, even if used. */
+    void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      closePorts();
+    }
+
+    private void closePorts() {
+      for (Object port : ports) {
+        if (!(port instanceof Closeable)) {
+          continue;
+        }
+        try {
+          ((Closeable) port).close();
+        } catch (IOException ex) {
+          log.log(Level.FINE, "Failed to close port for " + webUrl, ex);
+        }
+      }
+    }
+
     private MemberIdMapping getMemberIdMapping() throws IOException {
       try {
         return memberIdMappingCallable.call();
@@ -1945,44 +2951,101 @@ public class SharePointAdaptor extends AbstractAdaptor
 
     /**
      * Provide a more recent MemberIdMapping than {@code mapping}, because the
-     * mapping is known to be out-of-date.
+     * mapping is known to be out-of-date. Returns {@code mapping} if the
+     * refresh does not complete by {@code deadlineNanos}.
+     *
+     * @param ids the member ids that could not be resolved, for logging
      */
-    private MemberIdMapping refreshMemberIdMapping(MemberIdMapping mapping)
-        throws IOException {
-      // Synchronize callers to prevent a rush of invalidations due to multiple
-      // callers noticing that the map was out of date at the same time.
-      synchronized (refreshMemberIdMappingLock) {
-        // NOTE: This may block on I/O, so we must be wary of what locks are
-        // held.
-        MemberIdMapping maybeNewMapping = getMemberIdMapping();
-        if (mapping != maybeNewMapping) {
-          // The map has already been refreshed.
-          return maybeNewMapping;
-        }
-        memberIdsCache.invalidate(siteUrl);
-      }
-      return getMemberIdMapping();
+    private MemberIdMapping refreshMemberIdMapping(MemberIdMapping mapping,
+        List<Integer> ids, long deadlineNanos) throws IOException {
+      return awaitRefresh(startRefresh(mapping, memberIdMappingCallable,
+          memberIdsCache, memberIdRefreshes), mapping, ids, deadlineNanos);
     }
 
     /**
      * Provide a more recent SiteUserMapping than {@code mapping}, because the
-     * mapping is known to be out-of-date.
+     * mapping is known to be out-of-date. Returns {@code mapping} if the
+     * refresh does not complete by {@code deadlineNanos}.
+     *
+     * @param ids the member ids that could not be resolved, for logging
      */
-    private MemberIdMapping refreshSiteUserMapping(MemberIdMapping mapping)
+    private MemberIdMapping refreshSiteUserMapping(MemberIdMapping mapping,
+        List<Integer> ids, long deadlineNanos) throws IOException {
+      return awaitRefresh(startRefresh(mapping, siteUserIdMappingCallable,
+          siteUserCache, siteUserRefreshes), mapping, ids, deadlineNanos);
+    }
+
+    /**
+     * Starts replacing {@code mapping} in {@code cache}, unless a refresh of
+     * the site collection is already in progress. Callers that notice the
+     * mapping is out-of-date at about the same time, from any web of the site
+     * collection, share a single refresh.
+     */
+    private Future<MemberIdMapping> startRefresh(
+        final MemberIdMapping mapping,
+        final Callable<MemberIdMapping> mappingCallable,
+        final LoadingCache<String, MemberIdMapping> cache,
+        final ConcurrentMap<String, Future<MemberIdMapping>> inProgress) {
+      while (true) {
+        Future<MemberIdMapping> current = inProgress.get(siteUrl);
+        if (current != null) {
+          return current;
+        }
+        final FutureTask<MemberIdMapping> refresh
+            = new FutureTask<MemberIdMapping>(new Callable<MemberIdMapping>() {
+              @Override
+              public MemberIdMapping call() throws Exception {
+                MemberIdMapping maybeNewMapping = mappingCallable.call();
+                if (mapping != maybeNewMapping) {
+                  // The map has already been refreshed.
+                  return maybeNewMapping;
+                }
+                cache.invalidate(siteUrl);
+                invalidateScopeAcls(siteUrl);
+                return mappingCallable.call();
+              }
+            });
+        if (inProgress.putIfAbsent(siteUrl, refresh) != null) {
+          continue;
+        }
+        scheduleMemberIdRefresh(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              refresh.run();
+            } finally {
+              inProgress.remove(siteUrl, refresh);
+            }
+          }
+        });
+        return refresh;
+      }
+    }
+
+    private MemberIdMapping awaitRefresh(Future<MemberIdMapping> refresh,
+        MemberIdMapping staleMapping, List<Integer> ids, long deadlineNanos)
         throws IOException {
-      // Synchronize callers to prevent a rush of invalidations due to multiple
-      // callers noticing that the map was out of date at the same time.
-      synchronized (refreshSiteUserMappingLock) {
-        // NOTE: This may block on I/O, so we must be wary of what locks are
-        // held.
-        MemberIdMapping maybeNewMapping = getSiteUserMapping();
-        if (mapping != maybeNewMapping) {
-          // The map has already been refreshed.
-          return maybeNewMapping;
+      try {
+        return refresh.get(Math.max(0, deadlineNanos - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex) {
+        log.log(Level.WARNING, "Timed out refreshing member mappings for Site "
+            + "Collection [{0}]. Continuing without member ids {1} for Web "
+            + "[{2}]; documents using them need to be crawled again once the "
+            + "refresh completes.", new Object[] {siteUrl, ids, webUrl});
+        return staleMapping;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while refreshing member mappings");
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else {
+          throw new IOException(cause);
         }
-        siteUserCache.invalidate(siteUrl);
       }
-      return getSiteUserMapping();
     }
 
      private MemberIdMapping getSiteUserMapping() throws IOException {
@@ -2015,13 +3078,14 @@ public class SharePointAdaptor extends AbstractAdaptor
         return;
       }
 
-      Holder<String> listId = new Holder<String>();
-      Holder<String> itemId = new Holder<String>();
-      // No need to retrieve webId, since it isn't populated when you contact a
-      // web's SiteData.asmx page instead of its parent site's.
-      boolean result = siteDataClient.getUrlSegments(
-          request.getDocId().getUniqueId(), listId, itemId);
-      if (!result) {
+      // Always ask SharePoint, since a cached entry may be stale if the
+      // document was renamed. The result is cached for requests of the
+      // document's children.
+      long phaseStart = System.nanoTime();
+      UrlSegmentsCache.UrlSegments segments = urlSegmentsCache.refresh(
+          siteDataClient, request.getDocId().getUniqueId());
+      docContentTimer.endPhase(DocContentTimer.Phase.URL_SEGMENTS, phaseStart);
+      if (segments == null) {
         // It may still be an aspx page.
         if (request.getDocId().getUniqueId().toLowerCase(Locale.ENGLISH)
             .endsWith(".aspx")) {
@@ -2033,10 +3097,11 @@ public class SharePointAdaptor extends AbstractAdaptor
         log.exiting("SiteAdaptor", "getDocContent");
         return;
       }
-      if (itemId.value != null) {
-        getListItemDocContent(request, response, listId.value, itemId.value);
-      } else if (listId.value != null) {
-        getListDocContent(request, response, listId.value);
+      if (segments.itemId != null) {
+        getListItemDocContent(request, response, segments.listId,
+            segments.itemId);
+      } else if (segments.listId != null) {
+        getListDocContent(request, response, segments.listId);
       } else {
         // Assume it is a top-level site.
         getSiteDocContent(request, response);
@@ -2079,7 +3144,10 @@ public class SharePointAdaptor extends AbstractAdaptor
         throws IOException {
       log.entering("SiteAdaptor", "getVirtualServerDocContent",
           new Object[] {request, response});
+      docContentTimer.setDocType(DocContentTimer.DocType.VIRTUAL_SERVER);
+      long phaseStart = System.nanoTime();
       VirtualServer vs = siteDataClient.getContentVirtualServer();
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
 
       final long necessaryPermissionMask = LIST_ITEM_MASK;
       List<Principal> permits = new ArrayList<Principal>();
@@ -2096,7 +3164,9 @@ public class SharePointAdaptor extends AbstractAdaptor
         for (PolicyUser policyUser : vs.getPolicies().getPolicyUser()) {
           policyUsers.add(policyUser.getLoginName());
         }
+        phaseStart = System.nanoTime();
         resolvedPolicyUsers = resolvePrincipals(policyUsers);
+        docContentTimer.endPhase(DocContentTimer.Phase.PRINCIPALS, phaseStart);
       }
 
       for (PolicyUser policyUser : vs.getPolicies().getPolicyUser()) {
@@ -2217,16 +3287,24 @@ public class SharePointAdaptor extends AbstractAdaptor
       if (isWebSiteCollection()) {
         return false;
       }
-      SiteAdaptor siteAdaptor = getSiteAdaptor(siteUrl, getWebParentUrl());
-      return siteAdaptor.isWebNoIndex(
-          rareModCache.getWeb(siteAdaptor.siteDataClient));
+      SiteAdaptor siteAdaptor = acquireSiteAdaptor(siteUrl, getWebParentUrl());
+      try {
+        return siteAdaptor.isWebNoIndex(
+            rareModCache.getWeb(siteAdaptor.webUrl,
+                siteAdaptor.siteDataClient));
+      } finally {
+        siteAdaptor.release();
+      }
     }
 
     private void getSiteDocContent(Request request, Response response)
         throws IOException {
       log.entering("SiteAdaptor", "getSiteDocContent",
           new Object[] {request, response});
+      docContentTimer.setDocType(DocContentTimer.DocType.SITE);
+      long phaseStart = System.nanoTime();
       Web w = siteDataClient.getContentWeb();
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
 
       if (isWebNoIndex(new CachedWeb(w))) {
         log.fine("Document marked for NoIndex");
@@ -2297,26 +3375,32 @@ public class SharePointAdaptor extends AbstractAdaptor
           includePermissions = true;
         } else {
           SiteAdaptor parentSiteAdaptor
-              = getSiteAdaptor(siteUrl, getWebParentUrl());
-          Web parentW = parentSiteAdaptor.siteDataClient.getContentWeb();
+              = acquireSiteAdaptor(siteUrl, getWebParentUrl());
+          CachedWeb parentW;
+          try {
+            parentW = rareModCache.getWeb(parentSiteAdaptor.webUrl,
+                parentSiteAdaptor.siteDataClient);
+          } finally {
+            parentSiteAdaptor.release();
+          }
           String parentScopeId
-              = parentW.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
+              = parentW.scopeId.toLowerCase(Locale.ENGLISH);
           String scopeId
               = w.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
           includePermissions = !scopeId.equals(parentScopeId);
         }
-        Acl.Builder acl;
+        Acl acl;
         if (includePermissions) {
           List<Permission> permissions
               = w.getACL().getPermissions().getPermission();
-          acl = generateAcl(permissions, LIST_ITEM_MASK)
-              .setInheritFrom(siteDocId, SITE_COLLECTION_ADMIN_FRAGMENT);
+          acl = getScopeAcl(w.getMetadata().getScopeID(), permissions,
+              LIST_ITEM_MASK);
         } else {
-          acl = new Acl.Builder().setInheritFrom(new DocId(getWebParentUrl()));
+          acl = new Acl.Builder().setInheritFrom(new DocId(getWebParentUrl()))
+              .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+              .build();
         }
-        response.setAcl(acl
-            .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
-            .build());
+        response.setAcl(acl);
       }
       
       response.addMetadata(METADATA_OBJECT_TYPE, ObjectType.SITE.value());
@@ -2388,12 +3472,13 @@ public class SharePointAdaptor extends AbstractAdaptor
         String id) throws IOException {
       log.entering("SiteAdaptor", "getListDocContent",
           new Object[] {request, response, id});
-      com.microsoft.schemas.sharepoint.soap.List l
-          = siteDataClient.getContentList(id);
-      Web w = siteDataClient.getContentWeb();
+      docContentTimer.setDocType(DocContentTimer.DocType.LIST);
+      long phaseStart = System.nanoTime();
+      CachedList l = rareModCache.getList(webUrl, siteDataClient, id);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
 
-      if (TrueFalseType.TRUE.equals(l.getMetadata().getNoIndex())
-          || isWebNoIndex(new CachedWeb(w))) {
+      if (TrueFalseType.TRUE.equals(l.noIndex) || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
         log.exiting("SiteAdaptor", "getListDocContent");
@@ -2401,56 +3486,45 @@ public class SharePointAdaptor extends AbstractAdaptor
       }
 
       boolean allowAnonymousAccess
-          = isAllowAnonymousReadForList(new CachedList(l))
-          && isAllowAnonymousPeekForWeb(new CachedWeb(w))
+          = isAllowAnonymousReadForList(l)
+          && isAllowAnonymousPeekForWeb(w)
           && (!isDenyAnonymousAccessOnVirtualServer());
 
       if (!allowAnonymousAccess) {
-        String scopeId
-            = l.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
-        String webScopeId
-            = w.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
+        String scopeId = l.scopeId.toLowerCase(Locale.ENGLISH);
+        String webScopeId = w.scopeId.toLowerCase(Locale.ENGLISH);
 
-        DocId rootFolderDocId
-            = encodeDocId(l.getMetadata().getRootFolder());
+        DocId rootFolderDocId = encodeDocId(l.rootFolder);
 
-        Acl.Builder acl;
+        Acl acl;
         if (scopeId.equals(webScopeId)) {
-          acl = new Acl.Builder().setInheritFrom(new DocId(webUrl));
+          acl = new Acl.Builder().setInheritFrom(new DocId(webUrl))
+              .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+              .build();
         } else {
-          List<Permission> permissions
-              = l.getACL().getPermissions().getPermission();
-          acl = generateAcl(permissions, LIST_ITEM_MASK)
-              .setInheritFrom(siteDocId, SITE_COLLECTION_ADMIN_FRAGMENT);
+          acl = getScopeAcl(scopeId, l.listItemMemberIds, LIST_ITEM_MASK);
         }
         response.setAcl(new Acl.Builder().setInheritFrom(rootFolderDocId)
             .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
             .build());
-        context.getAsyncDocIdPusher().pushNamedResource(rootFolderDocId,
-                acl.setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
-                    .build());
+        context.getAsyncDocIdPusher().pushNamedResource(rootFolderDocId, acl);
       }
 
       response.addMetadata(METADATA_OBJECT_TYPE,
           ObjectType.LIST.value());
-      response.addMetadata(METADATA_PARENT_WEB_TITLE,
-          w.getMetadata().getTitle());
-      response.addMetadata(METADATA_LIST_GUID, l.getMetadata().getID());
+      response.addMetadata(METADATA_PARENT_WEB_TITLE, w.webTitle);
+      response.addMetadata(METADATA_LIST_GUID, l.id);
 
-      response.setDisplayUrl(sharePointUrlToUri(
-            "/".equals(l.getMetadata().getDefaultViewUrl()) 
-            ? l.getMetadata().getRootFolder() 
-            : l.getMetadata().getDefaultViewUrl()));
-      String lastModified = l.getMetadata().getLastModified();
+      response.setDisplayUrl(sharePointUrlToUri(l.defaultViewUrl));
       try {
         response.setLastModified(
-            listLastModifiedDateFormat.get().parse(lastModified));
+            listLastModifiedDateFormat.get().parse(l.lastModified));
       } catch (ParseException ex) {
-        log.log(Level.INFO, "Could not parse LastModified: {0}", lastModified);
+        log.log(Level.INFO, "Could not parse LastModified: {0}",
+            l.lastModified);
       }
       HtmlResponseWriter writer = createHtmlResponseWriter(response);
-      writer.start(request.getDocId(), ObjectType.LIST,
-          l.getMetadata().getTitle());
+      writer.start(request.getDocId(), ObjectType.LIST, l.title);
       processFolder(id, "", writer);
       writer.finish();
       log.exiting("SiteAdaptor", "getListDocContent");
@@ -2466,21 +3540,45 @@ public class SharePointAdaptor extends AbstractAdaptor
           new Object[] {listGuid, folderPath, writer});
       Paginator<ItemData> folderPaginator
           = siteDataClient.getContentFolderChildren(listGuid, folderPath);
-      writer.startSection(ObjectType.LIST_ITEM);
-      ItemData folder;
-      while ((folder = folderPaginator.next()) != null) {
-        Xml xml = folder.getXml();
-
-        Element data = getFirstChildWithName(xml, DATA_ELEMENT);
-        for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
-          String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
-          String rowTitle = row.getAttribute(OWS_TITLE_ATTRIBUTE);
-          writer.addLink(encodeDocId(getCanonicalUrl(rowUrl)), rowTitle);
+      PrefetchingPaginator<ItemData> prefetcher = null;
+      if (folderPrefetchPages > 0) {
+        prefetcher = new PrefetchingPaginator<ItemData>(folderPaginator,
+            executor, folderPrefetchPages, MAX_PREFETCHED_FOLDER_ROWS,
+            new FolderRowCounter());
+        folderPaginator = prefetcher;
+      }
+      try {
+        writer.startSection(ObjectType.LIST_ITEM);
+        ItemData folder;
+        while ((folder = folderPaginator.next()) != null) {
+          Xml xml = folder.getXml();
+
+          Element data = getFirstChildWithName(xml, DATA_ELEMENT);
+          for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
+            String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
+            String rowTitle = row.getAttribute(OWS_TITLE_ATTRIBUTE);
+            writer.addLink(encodeDocId(getCanonicalUrl(rowUrl)), rowTitle);
+          }
+        }
+      } finally {
+        if (prefetcher != null) {
+          prefetcher.close();
         }
       }
       log.exiting("SiteAdaptor", "processFolder");
     }
 
+    /** Weighs pages of folder contents by their number of list items. */
+    private class FolderRowCounter
+        implements PrefetchingPaginator.Weigher<ItemData> {
+      @Override
+      public long weigh(ItemData folder) {
+        Element data = getFirstChildWithName(folder.getXml(), DATA_ELEMENT);
+        return data == null ? 1
+            : Math.max(1, getChildrenWithName(data, ROW_ELEMENT).size());
+      }
+    }
+
     private boolean elementHasName(Element ele, QName name) {
       return name.getLocalPart().equals(ele.getLocalName())
           && name.getNamespaceURI().equals(ele.getNamespaceURI());
@@ -2526,96 +3624,89 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
 
     private List<Attr> getAllAttributes(Element ele) {
-      NamedNodeMap map = ele.getAttributes();
-      List<Attr> attrs = new ArrayList<Attr>(map.getLength());
-      for (int i = 0; i < map.getLength(); i++) {
-        attrs.add((Attr) map.item(i));
-      }
-      return attrs;
-    }
-
-    private long addMetadata(Response response, String name, String value) {
-      return addMetadata(response, name, value, null);
-    }
-
-    private long addMetadata(Response response, String name, String value,
-        Multimap<String, String> addedMetadata) {
-      long size = 0;
-      if ("ows_MetaInfo".equals(name)) {
-        // ows_MetaInfo is parsed out into other fields for us by SharePoint.
-        // We filter it since it only duplicates those other fields.
-        return 0;
-      }
-      if (name.startsWith("ows_")) {
-        name = name.substring("ows_".length());
-      }
-      name = decodeMetadataName(name);
-      if (ALTERNATIVE_VALUE_PATTERN.matcher(value).find()) {
-        // This is a lookup field. We need to take alternative values only.
-        // Ignore the integer part. 314;#pi;#42;#the answer
-        String[] parts = value.split(";#", 0);
-        for (int i = 1; i < parts.length; i += 2) {
-          if (parts[i].isEmpty()) {
-            continue;
-          }
-          response.addMetadata(name, parts[i]);
-          if (addedMetadata != null) {
-            addedMetadata.put(name, parts[i]);
-          }
-          // +30 for per-metadata-possible overhead, just to make sure that we
-          // don't count too few.
-          size += name.length() + parts[i].length() + 30;
-        }
-      } else if (value.startsWith(";#") && value.endsWith(";#")) {
-        // This is a multi-choice field. Values will be in the form:
-        // ;#value1;#value2;#
-        for (String part : value.split(";#", 0)) {
-          if (part.isEmpty()) {
-            continue;
-          }
-          response.addMetadata(name, part);
-          if (addedMetadata != null) {
-            addedMetadata.put(name, part);
-          }
-          // +30 for per-metadata-possible overhead, just to make sure that we
-          // don't count too few.
-          size += name.length() + part.length() + 30;
-        }
-      } else {
-        response.addMetadata(name, value);
-        if (addedMetadata != null) {
-          addedMetadata.put(name, value);
-        }
-        // +30 for per-metadata-possible overhead, just to make sure that we
-        // don't count too few.
-        size += name.length() + value.length() + 30;
+      NamedNodeMap map = ele.getAttributes();
+      List<Attr> attrs = new ArrayList<Attr>(map.getLength());
+      for (int i = 0; i < map.getLength(); i++) {
+        attrs.add((Attr) map.item(i));
       }
-      return size;
+      return attrs;
     }
 
-    private Acl.Builder generateAcl(List<Permission> permissions,
-        final long necessaryPermissionMask) throws IOException {
-      List<Principal> permits = new LinkedList<Principal>();
-      IdMappings idMapping = new IdMappings();
-      for (Permission permission : permissions) {
-        // Although it is named "mask", this is really a bit-field of
-        // permissions.
-        long mask = permission.getMask().longValue();
-        if ((necessaryPermissionMask & mask) != necessaryPermissionMask) {
-          continue;
-        }
-        Integer id = permission.getMemberid();
-        Principal principal = idMapping.resolvePrincipal(id);
-        if (principal == null) {
+    /**
+     * Returns the ACL of a permission scope that does not inherit its
+     * permissions, permitting the members that have {@code
+     * necessaryPermissionMask}. Like the ACLs of all such scopes, it inherits
+     * from the site collection administrators.
+     */
+    private Acl getScopeAcl(String scopeId, List<Permission> permissions,
+        long necessaryPermissionMask) throws IOException {
+      return getScopeAcl(scopeId,
+          permittedMemberIds(permissions, necessaryPermissionMask),
+          necessaryPermissionMask);
+    }
+
+    /**
+     * Returns the ACL of a permission scope whose members with {@code
+     * necessaryPermissionMask} are already known to be {@code ids}.
+     */
+    private Acl getScopeAcl(String scopeId, int[] ids,
+        long necessaryPermissionMask) throws IOException {
+      long phaseStart = System.nanoTime();
+      try {
+        return loadScopeAcl(scopeId, ids, necessaryPermissionMask);
+      } finally {
+        docContentTimer.endPhase(DocContentTimer.Phase.ACL, phaseStart);
+      }
+    }
+
+    private Acl loadScopeAcl(String scopeId, int[] ids,
+        long necessaryPermissionMask) throws IOException {
+      // The member ids are part of the key, so that changes to the scope's
+      // permissions are never served from the cache.
+      ScopeAclKey key
+          = new ScopeAclKey(scopeId, necessaryPermissionMask, ids);
+      Acl acl = scopeAclCache.getIfPresent(key);
+      if (acl != null) {
+        return acl;
+      }
+      // Resolve all ids together, so that unknown ids cause a single refresh.
+      long phaseStart = System.nanoTime();
+      Principal[] principals = new IdMappings().resolvePrincipals(ids);
+      docContentTimer.endPhase(DocContentTimer.Phase.PRINCIPALS, phaseStart);
+      List<Principal> permits = new ArrayList<Principal>(ids.length);
+      boolean complete = true;
+      for (int i = 0; i < ids.length; i++) {
+        if (principals[i] == null) {
           log.log(Level.WARNING, "Could not resolve member id {0} for Web "
               + "[{1}] under Site Collection [{2}].", 
-              new Object[] {id, webUrl, siteUrl});
+              new Object[] {ids[i], webUrl, siteUrl});
+          complete = false;
           continue;
         }
-        permits.add(principal);
+        permits.add(principals[i]);
+      }
+      acl = new Acl.Builder().setEverythingCaseInsensitive()
+          .setPermits(permits)
+          .setInheritFrom(siteDocId, SITE_COLLECTION_ADMIN_FRAGMENT)
+          .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+          .build();
+      if (complete) {
+        scopeAclCache.put(key, acl);
       }
+      return acl;
+    }
+
+    /**
+     * Returns a builder permitting the members of a permission scope that
+     * have {@code necessaryPermissionMask}, for ACLs that inherit differently
+     * than {@link #getScopeAcl}.
+     */
+    private Acl.Builder generateAcl(String scopeId,
+        List<Permission> permissions, long necessaryPermissionMask)
+        throws IOException {
       return new Acl.Builder().setEverythingCaseInsensitive()
-          .setPermits(permits);
+          .setPermits(getScopeAcl(scopeId, permissions, necessaryPermissionMask)
+              .getPermits());
     }
 
     private void addPermitUserToAcl(int userId, Acl.Builder aclToUpdate)
@@ -2684,7 +3775,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.entering("SiteAdaptor", "getAspxDocContent",
           new Object[] {request, response});
 
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      long phaseStart = System.nanoTime();
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
       if (isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -2717,6 +3810,7 @@ public class SharePointAdaptor extends AbstractAdaptor
             .setInheritFrom(new DocId(parentId))
             .build());
       }
+      docContentTimer.setDocType(DocContentTimer.DocType.ASPX);
       response.addMetadata(METADATA_OBJECT_TYPE, "Aspx");      
       response.addMetadata(METADATA_PARENT_WEB_TITLE, w.webTitle);
       getFileDocContent(request, response, true);
@@ -2737,17 +3831,47 @@ public class SharePointAdaptor extends AbstractAdaptor
       String contentUrl = request.getDocId().getUniqueId();
       URI displayUrl = docIdToUri(request.getDocId());
       long startMillis = System.currentTimeMillis();
+      // Only request the file conditionally when the GSA allows responding
+      // with no content, and only use an ETag of a version sent before the
+      // GSA's last access, so that the GSA is known to have it. Callers that
+      // don't set Last-Modified from the file, such as list item documents,
+      // send ACLs and metadata that may have changed even though the file
+      // didn't, and a 204 would drop them.
+      Date lastAccessTime = request.getLastAccessTime();
+      Date ifModifiedSince = null;
+      String ifNoneMatch = null;
+      if (setLastModified && lastAccessTime != null
+          && request.canRespondWithNoContent(lastAccessTime)) {
+        ifModifiedSince = lastAccessTime;
+        SentETag sent = sentETagCache.getIfPresent(contentUrl);
+        if (sent != null && !sent.sentAt.after(lastAccessTime)) {
+          ifNoneMatch = sent.etag;
+        }
+      }
+      Date requestTime = new Date();
+      // Content time includes waiting for the response headers.
+      long phaseStart = System.nanoTime();
       FileInfo fi = httpClient.issueGetRequest(encodeSharePointUrl(
               request.getDocId().getUniqueId(), performBrowserLeniency),
           authenticationHandler.getAuthenticationCookies(), adaptorUserAgent,
-          maxRedirectsToFollow, performBrowserLeniency);
+          maxRedirectsToFollow, performBrowserLeniency, ifModifiedSince,
+          ifNoneMatch);
       if (fi == null) {
+        docContentTimer.endPhase(DocContentTimer.Phase.CONTENT, phaseStart);
         response.respondNotFound();
         return;
       }
       log.log(Level.FINE, "Duration: fetch headers {0} : {1,number,#} ms",
           new Object[] {contentUrl, System.currentTimeMillis() - startMillis});      
       try {
+        if (fi.isNotModified()) {
+          log.log(Level.FINER, "File: Responding with 204 as SharePoint "
+              + "reports it unmodified since last access time {0}",
+              lastAccessTime);
+          response.respondNoContent();
+          log.exiting("SiteAdaptor", "getFileDocContent");
+          return;
+        }
         response.setDisplayUrl(displayUrl);
         String filePath = displayUrl.getPath();
         String fileExtension = "";
@@ -2782,13 +3906,50 @@ public class SharePointAdaptor extends AbstractAdaptor
                 lastModifiedString);
           }
         }
+        long contentLength = -1;
+        String contentLengthString
+            = fi.getFirstHeaderWithName("Content-Length");
+        if (contentLengthString != null) {
+          try {
+            contentLength = Long.parseLong(contentLengthString.trim());
+          } catch (NumberFormatException ex) {
+            log.log(Level.FINE, "Could not parse Content-Length: {0}",
+                contentLengthString);
+          }
+        }
+        if (maxFileSize > 0 && contentLength > maxFileSize) {
+          // Don't download content that would only be truncated. The GSA
+          // still indexes the metadata.
+          log.log(Level.INFO, "Not sending content of {0}, as its length {1} "
+              + "is larger than the maximum file size {2}",
+              new Object[] {contentUrl, contentLength, maxFileSize});
+          // The GSA doesn't have this version's content, so it must not be
+          // requested conditionally later.
+          sentETagCache.invalidate(contentUrl);
+          response.getOutputStream();
+          log.exiting("SiteAdaptor", "getFileDocContent");
+          return;
+        }
         long contentDownloadStart = System.currentTimeMillis();
-        IOHelper.copyStream(fi.getContents(), response.getOutputStream());
+        boolean truncated = contentCopier.copy(fi.getContents(),
+            response.getOutputStream(), contentLength, maxFileSize,
+            contentUrl);
+        if (truncated) {
+          log.log(Level.INFO, "Truncated {0} at {1} bytes", new Object[] {
+              contentUrl, maxFileSize});
+        }
+        String etag = fi.getFirstHeaderWithName("ETag");
+        if (etag != null && !truncated) {
+          sentETagCache.put(contentUrl, new SentETag(etag, requestTime));
+        } else {
+          sentETagCache.invalidate(contentUrl);
+        }
         log.log(Level.FINE, "Duration: downlaod content {0} : {1,number,#} ms",
             new Object[] {contentUrl,
             System.currentTimeMillis() - contentDownloadStart});        
       } finally {
         fi.getContents().close();
+        docContentTimer.endPhase(DocContentTimer.Phase.CONTENT, phaseStart);
       }
       log.log(Level.FINE, "Duration: getFileDocContent {0} : {1,number,#} ms",
           new Object[] {contentUrl, System.currentTimeMillis() - startMillis});      
@@ -2799,9 +3960,12 @@ public class SharePointAdaptor extends AbstractAdaptor
         String listId, String itemId) throws IOException {
       log.entering("SiteAdaptor", "getListItemDocContent",
           new Object[] {request, response, listId, itemId});
-      CachedList l = rareModCache.getList(siteDataClient, listId);
+      docContentTimer.setDocType(DocContentTimer.DocType.LIST_ITEM);
+      long phaseStart = System.nanoTime();
+      CachedList l = rareModCache.getList(webUrl, siteDataClient, listId);
 
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
       if (TrueFalseType.TRUE.equals(l.noIndex) || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -2811,7 +3975,9 @@ public class SharePointAdaptor extends AbstractAdaptor
 
       boolean applyReadSecurity =
           (l.readSecurity == LIST_READ_SECURITY_ENABLED);
+      phaseStart = System.nanoTime();
       ItemData i = siteDataClient.getContentItem(listId, itemId);
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
 
       Xml xml = i.getXml();
       Element data = getFirstChildWithName(xml, DATA_ELEMENT);
@@ -2851,7 +4017,7 @@ public class SharePointAdaptor extends AbstractAdaptor
           && (!isDenyAnonymousAccessOnVirtualServer());
 
       if (!allowAnonymousAccess) {
-      Acl.Builder acl = null;
+      Acl acl = null;
       if (!applyReadSecurity) {
         String rawFileDirRef = row.getAttribute(OWS_FILEDIRREF_ATTRIBUTE);
         // This should be in the form of "1234;#site/list/path". We want to
@@ -2880,27 +4046,14 @@ public class SharePointAdaptor extends AbstractAdaptor
           // metadata we will already have it. GetContentEx(Folder) may provide
           // a way to get the folder's scope without its children, but it wasn't
           // investigated.
-          Holder<String> folderListId = new Holder<String>();
-          Holder<String> folderItemId = new Holder<String>();
-          boolean result = siteDataClient.getUrlSegments(
-              folderDocId.getUniqueId(), folderListId, folderItemId);
-          if (!result) {
-            throw new IOException("Could not find parent folder's itemId");
-          }
-          if (!listId.equals(folderListId.value)) {
-            throw new AssertionError("Unexpected listId value");
-          }
-          ItemData folderItem
-              = siteDataClient.getContentItem(listId, folderItemId.value);
-          Element folderData = getFirstChildWithName(
-              folderItem.getXml(), DATA_ELEMENT);
-          Element folderRow
-              = getChildrenWithName(folderData, ROW_ELEMENT).get(0);
+          Element folderRow = getFolderRow(listId, folderDocId.getUniqueId());
           parentScopeId = folderRow.getAttribute(OWS_SCOPEID_ATTRIBUTE)
               .split(";#", 2)[1].toLowerCase(Locale.ENGLISH);
         }
         if (scopeId.equals(parentScopeId)) {
-          acl = new Acl.Builder().setInheritFrom(folderDocId);
+          acl = new Acl.Builder().setInheritFrom(folderDocId)
+              .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+              .build();
         } else {
           // We have to search for the correct scope within the scopes element.
           // The scope provided in the metadata is for the parent list, not for
@@ -2908,8 +4061,8 @@ public class SharePointAdaptor extends AbstractAdaptor
           Scopes scopes = getFirstChildOfType(xml, Scopes.class);
           for (Scopes.Scope scope : scopes.getScope()) {
             if (scope.getId().toLowerCase(Locale.ENGLISH).equals(scopeId)) {
-              acl = generateAcl(scope.getPermission(), LIST_ITEM_MASK)
-                  .setInheritFrom(siteDocId, SITE_COLLECTION_ADMIN_FRAGMENT);
+              acl = getScopeAcl(scopeId, scope.getPermission(),
+                  LIST_ITEM_MASK);
               break;
             }
           }
@@ -2933,8 +4086,10 @@ public class SharePointAdaptor extends AbstractAdaptor
           permission
               = i.getMetadata().getScope().getPermissions().getPermission();
         }
-        acl = generateAcl(permission, LIST_ITEM_MASK)
-            .setInheritFrom(request.getDocId(), fragmentName);
+        acl = generateAcl(scopeId, permission, LIST_ITEM_MASK)
+            .setInheritFrom(request.getDocId(), fragmentName)
+            .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+            .build();
         int authorId = -1;
         String authorValue = row.getAttribute(OWS_AUTHOR_ATTRIBUTE);
         if (authorValue != null) {
@@ -2944,15 +4099,13 @@ public class SharePointAdaptor extends AbstractAdaptor
           }
         }
         Acl.Builder aclNamedResource
-            = generateAcl(permission, READ_SECURITY_LIST_ITEM_MASK)
+            = generateAcl(scopeId, permission, READ_SECURITY_LIST_ITEM_MASK)
             .setInheritFrom(siteDocId, SITE_COLLECTION_ADMIN_FRAGMENT)
             .setInheritanceType(Acl.InheritanceType.AND_BOTH_PERMIT);
         addPermitUserToAcl(authorId, aclNamedResource);
         response.putNamedResource(fragmentName, aclNamedResource.build());
       }
-      response.setAcl(acl
-          .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
-          .build());
+      response.setAcl(acl);
       }
 
       // This should be in the form of "1234;#0". We want to extract the 0.
@@ -2973,6 +4126,7 @@ public class SharePointAdaptor extends AbstractAdaptor
           && request.canRespondWithNoContent(lastModified);
       
       if (isFolder) {
+        docContentTimer.setDocType(DocContentTimer.DocType.FOLDER);
         String root = encodeDocId(l.rootFolder).getUniqueId();
         root += "/";
         String folder = encodeDocId(serverUrl).getUniqueId();
@@ -3024,6 +4178,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       if (isFile) {
         // This is a file (or "Document" in SharePoint-speak), so display its
         // contents.
+        docContentTimer.setDocType(DocContentTimer.DocType.DOCUMENT);
         metadataLength += addMetadata(
             response, METADATA_OBJECT_TYPE, "Document");
         if (canRespondWithNoContent) {
@@ -3115,32 +4270,71 @@ public class SharePointAdaptor extends AbstractAdaptor
       writer.addMetadata(cleanedMetadata);
     }
 
-    private boolean getAttachmentDocContent(Request request, Response response)
+    /**
+     * Retrieves the row of the folder at {@code folderUrl} in list {@code
+     * listId}. The folder's item id is cached, and looked up again if the
+     * cached id no longer refers to an item, as happens when the folder is
+     * deleted and recreated.
+     */
+    private Element getFolderRow(String listId, String folderUrl)
         throws IOException {
-      log.entering("SiteAdaptor", "getAttachmentDocContent", new Object[] {
-          request, response});
-      String url = request.getDocId().getUniqueId();
-      if (!url.contains("/Attachments/")) {
-        log.fine("Not an attachment: does not contain /Attachments/");
-        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
-        return false;
-      }
-      String[] parts = url.split("/Attachments/", 2);
-      String listBase = parts[0];
-      parts = parts[1].split("/", 2);
-      if (parts.length != 2) {
-        log.fine("Could not separate attachment file name and list item id");
-        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
-        return false;
+      UrlSegmentsCache.UrlSegments folder
+          = urlSegmentsCache.get(siteDataClient, folderUrl);
+      for (int attempt = 0; ; attempt++) {
+        if (folder == null) {
+          throw new IOException("Could not find parent folder's itemId");
+        }
+        if (!listId.equals(folder.listId)) {
+          throw new AssertionError("Unexpected listId value");
+        }
+        ItemData folderItem
+            = siteDataClient.getContentItem(listId, folder.itemId);
+        Element folderData = getFirstChildWithName(
+            folderItem.getXml(), DATA_ELEMENT);
+        List<Element> folderRows = getChildrenWithName(folderData, ROW_ELEMENT);
+        if (!folderRows.isEmpty() || attempt > 0) {
+          return folderRows.get(0);
+        }
+        log.log(Level.FINE, "Cached item id of folder {0} is stale",
+            folderUrl);
+        folder = urlSegmentsCache.refresh(siteDataClient, folderUrl);
       }
-      String itemId = parts[0];
-      log.log(Level.FINE, "Detected possible attachment: "
-          + "listBase={0}, itemId={1}", new Object[] {listBase, itemId});
-      if (!INTEGER_PATTERN.matcher(itemId).matches()) {
-        log.fine("Item Id isn't an integer, so it isn't actually an id");
-        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
-        return false;
+    }
+
+    /**
+     * Determines the list that {@code listBase}, the part of an attachment URL
+     * before /Attachments/, refers to. Results are cached per list, so only
+     * the first attachment of a list requires the lookups.
+     */
+    private AttachmentListResolution resolveAttachmentList(
+        final String listBase) throws IOException {
+      try {
+        return attachmentListCache.get(listBase,
+            new Callable<AttachmentListResolution>() {
+              @Override
+              public AttachmentListResolution call() throws IOException {
+                return lookupAttachmentList(listBase);
+              }
+            });
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else {
+          throw new IOException(cause);
+        }
+      } catch (UncheckedExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else {
+          throw ex;
+        }
       }
+    }
+
+    private AttachmentListResolution lookupAttachmentList(String listBase)
+        throws IOException {
       String listRedirectLocation = httpClient.getRedirectLocation(
           spUrlToUri(listBase).toURL(),
           authenticationHandler.getAuthenticationCookies(), adaptorUserAgent);
@@ -3165,22 +4359,59 @@ public class SharePointAdaptor extends AbstractAdaptor
       if (!result && !listUrl.equals(listBase)) {
         result = siteDataClient.getUrlSegments(listBase, listIdHolder, null);
       }
-      // For valid lists, one of the getUrlSegments calls above should work on
-      // SP2010 and SP2013. It can still fail for SP2007. So lets try with
-      // ItemId url. This will fail if parent item is inside a folder.
       if (!result) {
+        return AttachmentListResolution.UNRESOLVED;
+      }
+      if (listIdHolder.value == null) {
+        return AttachmentListResolution.NOT_A_LIST;
+      }
+      return new AttachmentListResolution(listIdHolder.value);
+    }
+
+    private boolean getAttachmentDocContent(Request request, Response response)
+        throws IOException {
+      log.entering("SiteAdaptor", "getAttachmentDocContent", new Object[] {
+          request, response});
+      String url = request.getDocId().getUniqueId();
+      if (!url.contains("/Attachments/")) {
+        log.fine("Not an attachment: does not contain /Attachments/");
+        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
+        return false;
+      }
+      String[] parts = url.split("/Attachments/", 2);
+      String listBase = parts[0];
+      parts = parts[1].split("/", 2);
+      if (parts.length != 2) {
+        log.fine("Could not separate attachment file name and list item id");
+        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
+        return false;
+      }
+      String itemId = parts[0];
+      log.log(Level.FINE, "Detected possible attachment: "
+          + "listBase={0}, itemId={1}", new Object[] {listBase, itemId});
+      if (!INTEGER_PATTERN.matcher(itemId).matches()) {
+        log.fine("Item Id isn't an integer, so it isn't actually an id");
+        log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
+        return false;
+      }
+      AttachmentListResolution resolution = resolveAttachmentList(listBase);
+      String listId = resolution.listId;
+      // For valid lists, resolving the list should work on SP2010 and SP2013.
+      // It can still fail for SP2007. So lets try with ItemId url. This will
+      // fail if parent item is inside a folder.
+      if (resolution == AttachmentListResolution.UNRESOLVED) {
         log.fine("Could not get list id from list url");
         // AllItems.aspx may not be the default view, so hope that list items
         // follow the ${id}_.000-style format and that there aren't any folders.
-        result = siteDataClient.getUrlSegments(
-            listBase + "/" + itemId + "_.000", listIdHolder, null);
-        if (!result) {
+        UrlSegmentsCache.UrlSegments itemSegments = urlSegmentsCache.get(
+            siteDataClient, listBase + "/" + itemId + "_.000");
+        if (itemSegments == null) {
           log.fine("Could not get list id from list item url");
           log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
           return false;
         }
+        listId = itemSegments.listId;
       }
-      String listId = listIdHolder.value;
       if (listId == null) {
         log.fine("List URL does not point to a list");
         log.exiting("SiteAdaptor", "getAttachmentDocContent", false);
@@ -3191,8 +4422,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       // that if the document exists it is an attachment.
       log.fine("Suspected attachment verified as being an attachment, assuming "
           + "it exists.");
-      CachedList l = rareModCache.getList(siteDataClient, listId);
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      long phaseStart = System.nanoTime();
+      CachedList l = rareModCache.getList(webUrl, siteDataClient, listId);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
       if (TrueFalseType.TRUE.equals(l.noIndex) || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -3201,6 +4433,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       }
 
       ItemData itemData = siteDataClient.getContentItem(listId, itemId);
+      docContentTimer.endPhase(DocContentTimer.Phase.METADATA, phaseStart);
       Xml xml = itemData.getXml();
       Element data = getFirstChildWithName(xml, DATA_ELEMENT);
       String itemCount = data.getAttribute("ItemCount");
@@ -3213,6 +4446,7 @@ public class SharePointAdaptor extends AbstractAdaptor
         // to see if this document was a regular file in DocumentLibrary.
         return false;
       }
+      docContentTimer.setDocType(DocContentTimer.DocType.ATTACHMENT);
       Element row = getChildrenWithName(data, ROW_ELEMENT).get(0);
       String scopeId
           = row.getAttribute(OWS_SCOPEID_ATTRIBUTE).split(";#", 2)[1];
@@ -3433,51 +4667,165 @@ public class SharePointAdaptor extends AbstractAdaptor
       private boolean memberIdMappingRefreshed = false;
       private boolean siteUserMappingRefreshed = false;
       private boolean siteUserMappingInitialized = false;
+      /**
+       * When waiting for refreshes ends, so that refreshing both mappings
+       * waits at most {@link #memberIdRefreshTimeoutMillis} in total. Set by
+       * the first refresh.
+       */
+      private long refreshDeadlineNanos;
+      private boolean refreshDeadlineSet = false;
 
       private IdMappings() throws IOException {
         this.memberIdMapping = getMemberIdMapping();
       }
 
-      private Principal resolvePrincipal(Integer id) throws IOException {
-        Principal principal = memberIdMapping.getPrincipal(id);
-        if (principal == null) {
-          log.log(Level.FINE, "Member id {0} is not available in memberid"
-              + " mapping for Web [{1}] under Site Collection [{2}].",
-              new Object[] {id, webUrl, siteUrl});
-          if (siteUserMapping == null && !siteUserMappingInitialized) {
-            try {
-              siteUserMapping = getSiteUserMapping();
-            } catch (IOException ex) {
-              log.log(Level.WARNING, "Could not resolve site user mapping for "
-                  + id, ex);
-            } finally {
-              siteUserMappingInitialized = true;
-            }
-          }
-          if (siteUserMapping != null) {
-            principal = siteUserMapping.getPrincipal(id);
+      private Principal resolvePrincipal(int id) throws IOException {
+        return resolvePrincipals(new int[] {id})[0];
+      }
+
+      /**
+       * Resolves each of {@code ids}, refreshing each mapping at most once for
+       * all of the ids that are unknown. Ids that can not be resolved are
+       * {@code null} in the returned array.
+       */
+      private Principal[] resolvePrincipals(int[] ids) throws IOException {
+        Principal[] principals = new Principal[ids.length];
+        List<Integer> unresolved
+            = resolveUnresolved(memberIdMapping, ids, principals);
+        if (unresolved.isEmpty()) {
+          return principals;
+        }
+        log.log(Level.FINE, "Member ids {0} are not available in memberid"
+            + " mapping for Web [{1}] under Site Collection [{2}].",
+            new Object[] {unresolved, webUrl, siteUrl});
+        if (siteUserMapping == null && !siteUserMappingInitialized) {
+          try {
+            siteUserMapping = getSiteUserMapping();
+          } catch (IOException ex) {
+            log.log(Level.WARNING, "Could not resolve site user mapping for "
+                + unresolved, ex);
+          } finally {
+            siteUserMappingInitialized = true;
           }
         }
-        if (principal == null && !memberIdMappingRefreshed) {
+        unresolved = resolveUnresolved(siteUserMapping, ids, principals);
+        if (!unresolved.isEmpty() && !memberIdMappingRefreshed) {
           // Try to refresh member id mapping and check again.
-          memberIdMapping = refreshMemberIdMapping(memberIdMapping);
+          memberIdMapping = refreshMemberIdMapping(memberIdMapping, unresolved,
+              refreshDeadlineNanos());
           memberIdMappingRefreshed = true;
-          principal = memberIdMapping.getPrincipal(id);
+          unresolved = resolveUnresolved(memberIdMapping, ids, principals);
         }
-        if (principal == null && !siteUserMappingRefreshed) {
+        if (!unresolved.isEmpty() && !siteUserMappingRefreshed) {
           // Try to refresh site user mapping and check again.
           try {
-            siteUserMapping = refreshSiteUserMapping(siteUserMapping);
-            principal = siteUserMapping.getPrincipal(id);
+            siteUserMapping = refreshSiteUserMapping(siteUserMapping,
+                unresolved, refreshDeadlineNanos());
+            unresolved = resolveUnresolved(siteUserMapping, ids, principals);
           } catch (IOException ex) {
             log.log(Level.FINE, "Could not resolve refresh site user mapping "
-                + "for" + id, ex);
+                + "for" + unresolved, ex);
           } finally {
             siteUserMappingRefreshed = true;
           }
         }
-        return principal;
+        return principals;
+      }
+
+      private long refreshDeadlineNanos() {
+        if (!refreshDeadlineSet) {
+          refreshDeadlineNanos = System.nanoTime()
+              + TimeUnit.MILLISECONDS.toNanos(memberIdRefreshTimeoutMillis);
+          refreshDeadlineSet = true;
+        }
+        return refreshDeadlineNanos;
+      }
+
+      /**
+       * Fills in the principals not yet resolved that {@code mapping} knows,
+       * and returns the ids that remain unresolved.
+       */
+      private List<Integer> resolveUnresolved(MemberIdMapping mapping,
+          int[] ids, Principal[] principals) {
+        List<Integer> unresolved = new ArrayList<Integer>();
+        for (int i = 0; i < ids.length; i++) {
+          if (principals[i] == null && mapping != null) {
+            principals[i] = mapping.getPrincipal(ids[i]);
+          }
+          if (principals[i] == null) {
+            unresolved.add(ids[i]);
+          }
+        }
+        return unresolved;
+      }
+    }
+  }
+
+  /** ETag of a file version, and when it was requested to be sent. */
+  private static class SentETag {
+    private final String etag;
+    private final Date sentAt;
+
+    public SentETag(String etag, Date sentAt) {
+      this.etag = etag;
+      this.sentAt = sentAt;
+    }
+  }
+
+  /**
+   * Returns the member ids of {@code permissions} that have all the
+   * permissions in {@code necessaryPermissionMask}, in order.
+   */
+  static int[] permittedMemberIds(List<Permission> permissions,
+      long necessaryPermissionMask) {
+    int[] ids = new int[permissions.size()];
+    int idCount = 0;
+    for (Permission permission : permissions) {
+      // Although it is named "mask", this is really a bit-field of
+      // permissions.
+      long mask = permission.getMask().longValue();
+      if ((necessaryPermissionMask & mask) != necessaryPermissionMask) {
+        continue;
+      }
+      ids[idCount++] = permission.getMemberid();
+    }
+    return Arrays.copyOf(ids, idCount);
+  }
+
+  /**
+   * Identifies the ACL of a permission scope: the scope, the permissions
+   * members need, and the members that have them.
+   */
+  private static class ScopeAclKey {
+    private final String scopeId;
+    private final long necessaryPermissionMask;
+    private final int[] memberIds;
+    private final int hashCode;
+
+    public ScopeAclKey(String scopeId, long necessaryPermissionMask,
+        int[] memberIds) {
+      this.scopeId = scopeId.toLowerCase(Locale.ENGLISH);
+      this.necessaryPermissionMask = necessaryPermissionMask;
+      this.memberIds = memberIds;
+      this.hashCode = Objects.hash(this.scopeId, necessaryPermissionMask,
+          Arrays.hashCode(memberIds));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ScopeAclKey)) {
+        return false;
       }
+      ScopeAclKey key = (ScopeAclKey) o;
+      return hashCode == key.hashCode
+          && necessaryPermissionMask == key.necessaryPermissionMask
+          && scopeId.equals(key.scopeId)
+          && Arrays.equals(memberIds, key.memberIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
     }
   }
 
@@ -3487,16 +4835,28 @@ public class SharePointAdaptor extends AbstractAdaptor
     private final InputStream contents;
     /** Non-null headers. Alternates between header name and header value. */
     private final List<String> headers;
+    /** Whether the server replied that the file was not modified. */
+    private final boolean notModified;
 
-    private FileInfo(InputStream contents, List<String> headers) {
+    private FileInfo(InputStream contents, List<String> headers,
+        boolean notModified) {
       this.contents = contents;
       this.headers = headers;
+      this.notModified = notModified;
     }
 
     public InputStream getContents() {
       return contents;
     }
 
+    /**
+     * Returns {@code true} if the file was requested conditionally and has not
+     * been modified, in which case the contents are empty.
+     */
+    public boolean isNotModified() {
+      return notModified;
+    }
+
     public List<String> getHeaders() {
       return headers;
     }
@@ -3531,6 +4891,7 @@ public class SharePointAdaptor extends AbstractAdaptor
     public static class Builder {
       private InputStream contents;
       private List<String> headers = Collections.emptyList();
+      private boolean notModified;
 
       public Builder(InputStream contents) {
         setContents(contents);
@@ -3561,8 +4922,13 @@ public class SharePointAdaptor extends AbstractAdaptor
         return this;
       }
 
+      public Builder setNotModified(boolean notModified) {
+        this.notModified = notModified;
+        return this;
+      }
+
       public FileInfo build() {
-        return new FileInfo(contents, headers);
+        return new FileInfo(contents, headers, notModified);
       }
     }
   }
@@ -3572,11 +4938,18 @@ public class SharePointAdaptor extends AbstractAdaptor
     /**
      * The caller must call {@code fileInfo.getContents().close()} after use.
      *
-     * @return {@code null} if not found, {@code FileInfo} instance otherwise
+     * @param ifModifiedSince if not {@code null}, only retrieve the file if it
+     *     was modified after this time
+     * @param ifNoneMatch if not {@code null}, only retrieve the file if its
+     *     ETag differs
+     * @return {@code null} if not found, {@code FileInfo} instance otherwise,
+     *     which {@link FileInfo#isNotModified is not modified} if the
+     *     conditions were not met
      */
     public FileInfo issueGetRequest(URL url, List<String> authenticationCookies,
         String adaptorUserAgent, int maxRedirectsToFollow,
-        boolean performBrowserLeniency) throws IOException;
+        boolean performBrowserLeniency, Date ifModifiedSince,
+        String ifNoneMatch) throws IOException;
     
     public String getRedirectLocation(URL url,
         List<String> authenticationCookies, String adaptorUserAgent)
@@ -3586,10 +4959,17 @@ public class SharePointAdaptor extends AbstractAdaptor
   }
 
   static class HttpClientImpl implements HttpClient {
+    /**
+     * Responses with larger bodies are closed without reading them fully,
+     * since reusing the connection is not worth downloading them.
+     */
+    private static final long MAX_BYTES_TO_DRAIN = 64 * 1024;
+
     @Override
     public FileInfo issueGetRequest(URL url, List<String> authenticationCookies,
         String adaptorUserAgent, int maxRedirectsToFollow,
-        boolean performBrowserLeniency) throws IOException {
+        boolean performBrowserLeniency, Date ifModifiedSince,
+        String ifNoneMatch) throws IOException {
       int redirectAttempt = 0;
       final URL initialRequest = url;
       HttpURLConnection conn;
@@ -3614,6 +4994,12 @@ public class SharePointAdaptor extends AbstractAdaptor
         if (!"".equals(adaptorUserAgent)) {
           conn.addRequestProperty("User-Agent", adaptorUserAgent);
         }
+        if (ifModifiedSince != null) {
+          conn.setIfModifiedSince(ifModifiedSince.getTime());
+        }
+        if (ifNoneMatch != null) {
+          conn.addRequestProperty("If-None-Match", ifNoneMatch);
+        }
         conn.setDoInput(true);
         conn.setDoOutput(false);
         // Set follow redirects to true here if adaptor need not to handle
@@ -3626,6 +5012,19 @@ public class SharePointAdaptor extends AbstractAdaptor
         if (responseCode == HttpURLConnection.HTTP_OK) {
           break;
         }
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+            && (ifModifiedSince != null || ifNoneMatch != null)) {
+          getAndCloseStream(conn, url);
+          log.log(Level.FINER, "Not modified: {0}", url);
+          return new FileInfo.Builder(new ByteArrayInputStream(new byte[0]))
+              .setNotModified(true).build();
+        }
+        if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+          getAndCloseStream(conn, url);
+          throw new AdaptiveConcurrencyLimiter.OverloadedException(
+              "Got status code 503 for URL [" + url + "]. SharePoint is "
+              + "unavailable, likely because of its current processing load.");
+        }
         if (responseCode != HttpURLConnection.HTTP_MOVED_TEMP
             && responseCode != HttpURLConnection.HTTP_MOVED_PERM) {
           getAndCloseStream(conn, url);
@@ -3677,7 +5076,8 @@ public class SharePointAdaptor extends AbstractAdaptor
       
       if (errorHeader != null) {            
         if ("2".equals(errorHeader)) {
-          throw new IOException("Got error 2 from SharePoint for URL [" + url 
+          throw new AdaptiveConcurrencyLimiter.OverloadedException(
+              "Got error 2 from SharePoint for URL [" + url 
               + "]. Error Code 2 indicates SharePoint has rejected current "
               + "request because of current processing load on SharePoint.");            
         } else {
@@ -3745,13 +5145,27 @@ public class SharePointAdaptor extends AbstractAdaptor
       return (HttpURLConnection)url.openConnection();
     }
 
+    /**
+     * Reads the rest of a small response body before closing it, so that the
+     * connection can be reused instead of being closed.
+     */
     private void getAndCloseStream(HttpURLConnection conn, URL url) {
       try {
         InputStream inputStream =
           conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
           ? conn.getErrorStream() : conn.getInputStream();
-      if (inputStream != null) {
-          inputStream.close();
+        if (inputStream != null) {
+          try {
+            byte[] buffer = new byte[1024];
+            long drained = 0;
+            int read;
+            while (drained < MAX_BYTES_TO_DRAIN
+                && (read = inputStream.read(buffer)) != -1) {
+              drained += read;
+            }
+          } finally {
+            inputStream.close();
+          }
         }
       } catch (IOException e) {
         log.log(Level.WARNING, String.format("Error terminating Input stream"
@@ -3760,6 +5174,23 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
   }
 
+  @VisibleForTesting
+  interface ExecutorFactory {
+    /**
+     * Creates the executor for background work, such as cache refreshes,
+     * folder prefetching and group pushes. When it is saturated, tasks may run
+     * in the thread that submits them.
+     */
+    public ExecutorService newExecutor(int coreThreads, int maxThreads,
+        int queueSize);
+
+    /**
+     * Creates an executor for a single traversal or poll, which runs up to
+     * {@code threads} tasks concurrently.
+     */
+    public ExecutorService newTraversalExecutor(int threads);
+  }
+
   @VisibleForTesting
   interface SoapFactory {
     /**
@@ -3819,7 +5250,8 @@ public class SharePointAdaptor extends AbstractAdaptor
   private static class NtlmAuthenticator extends Authenticator {
     private final String username;
     private final char[] password;
-    private final Set<String> permittedHosts = new HashSet<String>();
+    private final Set<String> permittedHosts
+        = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public NtlmAuthenticator(String username, String password) {
       this.username = username;
@@ -3956,12 +5388,25 @@ public class SharePointAdaptor extends AbstractAdaptor
       extends AsyncCacheLoader<String, MemberIdMapping> {
     @Override
     protected Executor executor() {
-      return executor;
+      return refreshExecutor;
     }
 
     @Override
     public MemberIdMapping load(String site) throws IOException {
-      return getSiteAdaptor(site, site).retrieveMemberIdMapping();
+      MemberIdMappingSnapshot snapshot = memberIdSnapshot;
+      if (snapshot != null) {
+        MemberIdMapping mapping = snapshot.takeMemberIdMapping(site);
+        if (mapping != null) {
+          scheduleRefresh(memberIdsCache, site);
+          return mapping;
+        }
+      }
+      SiteAdaptor siteAdaptor = acquireSiteAdaptor(site, site);
+      try {
+        return siteAdaptor.retrieveMemberIdMapping();
+      } finally {
+        siteAdaptor.release();
+      }
     }
   }
 
@@ -3969,20 +5414,143 @@ public class SharePointAdaptor extends AbstractAdaptor
       extends AsyncCacheLoader<String, MemberIdMapping> {
     @Override
     protected Executor executor() {
-      return executor;
+      return refreshExecutor;
     }
 
     @Override
     public MemberIdMapping load(String site) throws IOException {
-      return getSiteAdaptor(site, site).retrieveSiteUserMapping();
+      MemberIdMappingSnapshot snapshot = memberIdSnapshot;
+      if (snapshot != null) {
+        MemberIdMapping mapping = snapshot.takeSiteUserMapping(site);
+        if (mapping != null) {
+          scheduleRefresh(siteUserCache, site);
+          return mapping;
+        }
+      }
+      SiteAdaptor siteAdaptor = acquireSiteAdaptor(site, site);
+      try {
+        return siteAdaptor.retrieveSiteUserMapping();
+      } finally {
+        siteAdaptor.release();
+      }
+    }
+  }
+
+  /**
+   * Refreshes a mapping read from disk in the background. Until the refresh
+   * completes, the mapping from disk is used.
+   */
+  private void scheduleRefresh(final LoadingCache<String, ?> cache,
+      final String site) {
+    ScheduledThreadPoolExecutor refreshExecutor = scheduledExecutor;
+    if (refreshExecutor == null) {
+      return;
+    }
+    try {
+      refreshExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          cache.refresh(site);
+        }
+      }, SNAPSHOT_REFRESH_DELAY_SECONDS, TimeUnit.SECONDS);
+    } catch (RejectedExecutionException ex) {
+      // Shutting down.
+    }
+  }
+
+  /**
+   * Runs a member id mapping refresh on {@link #memberIdRefreshExecutor}, or
+   * in the calling thread if there is no executor. The refresh starts right
+   * away; requests that find unknown member ids of the same site collection
+   * while it runs share it instead of waiting to be batched.
+   */
+  private void scheduleMemberIdRefresh(Runnable refresh) {
+    Executor refreshExecutor = memberIdRefreshExecutor;
+    if (refreshExecutor == null) {
+      refresh.run();
+      return;
+    }
+    try {
+      refreshExecutor.execute(refresh);
+    } catch (RejectedExecutionException ex) {
+      // Shutting down.
+      refresh.run();
     }
   }
 
-  private static class CachedThreadPoolFactory
-      implements Callable<ExecutorService> {
+  /** Writes the cached member id mappings to disk, if enabled. */
+  private void writeMemberIdSnapshot() {
+    MemberIdMappingSnapshot snapshot = memberIdSnapshot;
+    if (snapshot == null) {
+      return;
+    }
+    try {
+      snapshot.write(memberIdsCache.asMap(), siteUserCache.asMap());
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to write member id mappings", ex);
+    }
+  }
+
+  /** Creates bounded, instrumented thread pools. */
+  @VisibleForTesting
+  static class ThreadPoolFactory implements ExecutorFactory {
+    @Override
+    public ExecutorService newExecutor(int coreThreads, int maxThreads,
+        int queueSize) {
+      return new InstrumentedThreadPoolExecutor("SharePoint executor",
+          coreThreads, maxThreads, queueSize);
+    }
+
+    /**
+     * Starts all {@code threads} threads as core threads, since a pool only
+     * grows past its core size once its queue is full. Traversals keep about
+     * {@code threads} tasks outstanding, so the queue only holds the few
+     * submitted ahead.
+     */
+    @Override
+    public ExecutorService newTraversalExecutor(int threads) {
+      return new InstrumentedThreadPoolExecutor("SharePoint traversal",
+          threads, threads, threads);
+    }
+  }
+
+  /** Change token store used when change tokens are not persisted. */
+  private static class NoopChangeTokenStore implements ChangeTokenStore {
+    @Override
+    public Map<String, String> load() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void put(String guid, String changeToken) {}
+
+    @Override
+    public void remove(String guid) {}
+
     @Override
-    public ExecutorService call() {
-      return Executors.newCachedThreadPool();
+    public void sync() {}
+
+    @Override
+    public void close() {}
+  }
+
+  /** List that the part of an attachment URL before /Attachments/ names. */
+  private static final class AttachmentListResolution {
+    /** The URL is known not to be a list. */
+    static final AttachmentListResolution NOT_A_LIST
+        = new AttachmentListResolution(null);
+    /**
+     * The list could not be determined from the URL alone, so it has to be
+     * determined from the URL of each list item.
+     */
+    static final AttachmentListResolution UNRESOLVED
+        = new AttachmentListResolution(null);
+
+    /** List GUID, or {@code null} if not resolved to a list. */
+    final String listId;
+
+    AttachmentListResolution(String listId) {
+      this.listId = listId;
     }
   }
 }
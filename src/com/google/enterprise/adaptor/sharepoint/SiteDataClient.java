@@ -33,9 +33,10 @@ import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
@@ -44,9 +45,11 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.ws.Holder;
@@ -70,24 +73,34 @@ class SiteDataClient {
    * expectations.
    */
   private static final Schema schema;
-
-  // Unused character range 1 : &#00; - &#08; or &#0; - &#8;
-  private static final String UNUSED_CHAR_RANGE1 = "((0[0-8])|[0-8])";
-  // Unused character range 2 : &#11; - &#12;
-  private static final String UNUSED_CHAR_RANGE2 = "(1[12])";
-  // Unused character range 3 : &#14; - &#31;
-  private static final String UNUSED_CHAR_RANGE3 = "(1[4-9]|2[0-9]|3[01])";
-  // Unused character range 4 : &#127; - &#159;
-  private static final String UNUSED_CHAR_RANGE4 = "(1(2[7-9]|[3-5][0-9]))";
-
   /**
-   * Pattern to match unused character code ranges causing XML parsing to fail.
+   * Thread-safe once configured; shared between instances. DTDs and external
+   * entities are disabled, so responses can't cause entity expansion or read
+   * other resources.
+   */
+  private static final XMLInputFactory xmlInputFactory;
+  /**
+   * Unmarshallers are not thread-safe but are expensive enough to create that
+   * creating one per response is wasteful, so we keep one per thread.
    */
-  private static final Pattern BINARY_UNUSED_CHAR_PATTERN 
-      = Pattern.compile("&#(" + UNUSED_CHAR_RANGE1 + "|" + UNUSED_CHAR_RANGE2 
-          + "|" + UNUSED_CHAR_RANGE3 + "|" + UNUSED_CHAR_RANGE4 + ");");
+  private static final ThreadLocal<Unmarshaller> unmarshallers
+      = new ThreadLocal<Unmarshaller>() {
+        @Override
+        protected Unmarshaller initialValue() {
+          try {
+            return jaxbContext.createUnmarshaller();
+          } catch (JAXBException ex) {
+            throw new RuntimeException("Could not create Unmarshaller", ex);
+          }
+        }
+      };
 
   static {
+    xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
     try {
       jaxbContext = JAXBContext.newInstance(
           "com.microsoft.schemas.sharepoint.soap");
@@ -117,10 +130,21 @@ class SiteDataClient {
   private final boolean xmlValidation;
 
   public SiteDataClient(SiteDataSoap siteDataSoap, boolean xmlValidation) {
+    this(siteDataSoap, xmlValidation, null, null);
+  }
+
+  /**
+   * @param metrics records each SOAP call, if not {@code null}
+   * @param site the site collection that calls are attributed to in {@code
+   *     metrics}
+   */
+  public SiteDataClient(SiteDataSoap siteDataSoap, boolean xmlValidation,
+      SoapMetrics metrics, String site) {
     if (siteDataSoap == null) {
       throw new NullPointerException();
     }
-    siteDataSoap = LoggingWSHandler.create(SiteDataSoap.class, siteDataSoap);
+    siteDataSoap = LoggingWSHandler.create(SiteDataSoap.class, siteDataSoap,
+        metrics, site);
     this.siteData = new CheckedExceptionSiteDataSoapAdapter(siteDataSoap);
     this.xmlValidation = xmlValidation;
   }
@@ -147,10 +171,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.VIRTUAL_SERVER, null, null, null, true,
         false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<VirtualServer>",
-        "<VirtualServer xmlns='" + XMLNS + "'>");
-    VirtualServer vs = jaxbParse(xml, VirtualServer.class);
+    VirtualServer vs = jaxbParse(result.value, VirtualServer.class);
     log.exiting("SiteDataClient", "getContentVirtualServer", vs);
     return vs;
   }
@@ -161,10 +182,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.CONTENT_DATABASE, id, null, null,
         retrieveChildItems, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<ContentDatabase>",
-        "<ContentDatabase xmlns='" + XMLNS + "'>");
-    ContentDatabase cd = jaxbParse(xml, ContentDatabase.class);
+    ContentDatabase cd = jaxbParse(result.value, ContentDatabase.class);
     log.exiting("SiteDataClient", "getContentContentDatabase", cd);
     return cd;
   }
@@ -177,9 +195,7 @@ class SiteDataClient {
     // input value consulted.
     siteData.getContent(ObjectType.SITE_COLLECTION, null, null, null,
         retrieveChildItems, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Site>", "<Site xmlns='" + XMLNS + "'>");
-    Site site = jaxbParse(xml, Site.class);
+    Site site = jaxbParse(result.value, Site.class);
     log.exiting("SiteDataClient", "getContentSite", site);
     return site;
   }
@@ -189,9 +205,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.SITE, null, null, null, true, false, null,
         result);
-    String xml = result.value;
-    xml = xml.replace("<Web>", "<Web xmlns='" + XMLNS + "'>");
-    Web web = jaxbParse(xml, Web.class);
+    Web web = jaxbParse(result.value, Web.class);
     log.exiting("SiteDataClient", "getContentWeb", web);
     return web;
   }
@@ -202,9 +216,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST, id, null, null, false, false, null,
         result);
-    String xml = result.value;
-    xml = xml.replace("<List>", "<List xmlns='" + XMLNS + "'>");
-    com.microsoft.schemas.sharepoint.soap.List list = jaxbParse(xml,
+    com.microsoft.schemas.sharepoint.soap.List list = jaxbParse(result.value,
         com.microsoft.schemas.sharepoint.soap.List.class);
     log.exiting("SiteDataClient", "getContentList", list);
     return list;
@@ -217,10 +229,9 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST_ITEM, listId, "", itemId, false,
         false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Item>", "<ItemData xmlns='" + XMLNS + "'>");
-    xml = xml.replace("</Item>", "</ItemData>");
-    ItemData data = jaxbParse(xml, ItemData.class);
+    // The response's root element is Item, but the schema's Item element is
+    // for attachments. Rename it so it is validated as ItemData.
+    ItemData data = jaxbParse(result.value, ItemData.class, "ItemData");
     log.exiting("SiteDataClient", "getContentItem", data);
     return data;
   }
@@ -240,9 +251,7 @@ class SiteDataClient {
         Holder<String> result = new Holder<String>();
         siteData.getContent(ObjectType.FOLDER, guid, url, null, true, false,
             lastItemIdOnPage, result);
-        String xml = result.value;
-        xml = xml.replace("<Folder>", "<Folder xmlns='" + XMLNS + "'>");
-        return jaxbParse(xml, ItemData.class);
+        return jaxbParse(result.value, ItemData.class);
       }
     };
   }
@@ -254,9 +263,7 @@ class SiteDataClient {
     Holder<String> result = new Holder<String>();
     siteData.getContent(ObjectType.LIST_ITEM_ATTACHMENTS, listId, "",
         itemId, true, false, null, result);
-    String xml = result.value;
-    xml = xml.replace("<Item ", "<Item xmlns='" + XMLNS + "' ");
-    Item item = jaxbParse(xml, Item.class);
+    Item item = jaxbParse(result.value, Item.class);
     log.exiting("SiteDataClient", "getContentListItemAttachments", item);
     return item;
   }
@@ -294,10 +301,7 @@ class SiteDataClient {
         siteData.getChanges(ObjectType.CONTENT_DATABASE, contentDatabaseGuid,
             lastChangeId, currentChangeId, timeout, result, moreChanges);
         // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
-        xml = xml.replace("<SPContentDatabase ",
-            "<SPContentDatabase xmlns='" + XMLNS + "' ");
-        return jaxbParse(xml, SPContentDatabase.class);
+        return jaxbParse(result.value, SPContentDatabase.class);
       }
 
       @Override
@@ -340,10 +344,7 @@ class SiteDataClient {
         siteData.getChanges(ObjectType.SITE_COLLECTION, siteCollectionGuid,
             lastChangeId, currentChangeId, timeout, result, moreChanges);
         // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
-        xml = xml.replace("<SPSite ",
-            "<SPSite xmlns='" + XMLNS + "' ");
-        return jaxbParse(xml, SPSite.class);
+        return jaxbParse(result.value, SPSite.class);
       }
 
       @Override
@@ -356,22 +357,130 @@ class SiteDataClient {
   @VisibleForTesting
   <T> T jaxbParse(String xml, Class<T> klass)
       throws XmlProcessingException {
+    return jaxbParse(xml, klass, null);
+  }
 
+  /**
+   * Parses {@code xml} as {@code klass}. SharePoint's responses lack a
+   * namespace, so elements without one are placed in SharePoint's namespace
+   * while parsing. The response is streamed through the parser instead of
+   * being copied, so no additional copies of large responses are made.
+   *
+   * @param rootElement local name to use for the root element instead of the
+   *     one in {@code xml}, or {@code null} to leave it unchanged
+   */
+  private <T> T jaxbParse(String xml, Class<T> klass, String rootElement)
+      throws XmlProcessingException {
     // Unsupported character codes such as Unit separator &#31; sometimes 
     // present in response XML, but it prevents the XML from being parsed. 
     // Since GSA can not handle these characters we strip it out.
-
-    xml = BINARY_UNUSED_CHAR_PATTERN.matcher(xml).replaceAll("");
-
-    Source source = new StreamSource(new StringReader(xml));
+    Reader reader = new UnusedCharRefFilterReader(new StringReader(xml));
+    XMLStreamReader xmlReader = null;
     try {
-      Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-      if (xmlValidation) {
-        unmarshaller.setSchema(schema);
-      }
-      return unmarshaller.unmarshal(source, klass).getValue();
+      xmlReader = new SharePointNamespaceStreamReader(
+          xmlInputFactory.createXMLStreamReader(reader), rootElement);
+      Unmarshaller unmarshaller = unmarshallers.get();
+      unmarshaller.setSchema(xmlValidation ? schema : null);
+      return unmarshaller.unmarshal(xmlReader, klass).getValue();
+    } catch (XMLStreamException ex) {
+      throw new XmlProcessingException(ex, xml);
     } catch (JAXBException ex) {
       throw new XmlProcessingException(ex, xml);
+    } finally {
+      if (xmlReader != null) {
+        try {
+          xmlReader.close();
+        } catch (XMLStreamException ex) {
+          log.log(Level.FINEST, "Error closing XMLStreamReader", ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Places elements that lack a namespace into SharePoint's namespace, and
+   * optionally renames the root element. This is equivalent to adding an
+   * {@code xmlns} attribute to the root element of the response, without
+   * needing to modify the response.
+   */
+  private static class SharePointNamespaceStreamReader
+      extends StreamReaderDelegate {
+    private final String rootElement;
+    private int depth;
+
+    public SharePointNamespaceStreamReader(XMLStreamReader reader,
+        String rootElement) {
+      super(reader);
+      this.rootElement = rootElement;
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+      if (getEventType() == END_ELEMENT) {
+        depth--;
+      }
+      int event = super.next();
+      if (event == START_ELEMENT) {
+        depth++;
+      }
+      return event;
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+      int event = next();
+      while ((event == CHARACTERS && isWhiteSpace())
+          || (event == CDATA && isWhiteSpace())
+          || event == SPACE
+          || event == PROCESSING_INSTRUCTION
+          || event == COMMENT) {
+        event = next();
+      }
+      if (event != START_ELEMENT && event != END_ELEMENT) {
+        throw new XMLStreamException("expected start or end tag",
+            getLocation());
+      }
+      return event;
+    }
+
+    private boolean isRootElement() {
+      return depth == 1 && rootElement != null
+          && (getEventType() == START_ELEMENT
+              || getEventType() == END_ELEMENT);
+    }
+
+    @Override
+    public String getNamespaceURI() {
+      String namespace = super.getNamespaceURI();
+      if ((namespace == null || namespace.isEmpty())
+          && (getEventType() == START_ELEMENT
+              || getEventType() == END_ELEMENT)) {
+        return XMLNS;
+      }
+      return namespace;
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+      String namespace = super.getNamespaceURI(prefix);
+      if (XMLConstants.DEFAULT_NS_PREFIX.equals(prefix)
+          && (namespace == null || namespace.isEmpty())) {
+        return XMLNS;
+      }
+      return namespace;
+    }
+
+    @Override
+    public String getLocalName() {
+      return isRootElement() ? rootElement : super.getLocalName();
+    }
+
+    @Override
+    public QName getName() {
+      if (getEventType() != START_ELEMENT && getEventType() != END_ELEMENT) {
+        return super.getName();
+      }
+      return new QName(getNamespaceURI(), getLocalName(), getPrefix());
     }
   }
 
@@ -382,6 +491,10 @@ class SiteDataClient {
     public XmlProcessingException(JAXBException cause, String xml) {
       super("Error when parsing xml: " + xml, cause);
     }
+
+    public XmlProcessingException(XMLStreamException cause, String xml) {
+      super("Error when parsing xml: " + xml, cause);
+    }
   }
 
   /**
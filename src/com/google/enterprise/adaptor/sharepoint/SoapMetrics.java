@@ -0,0 +1,210 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, volume and error counts of SOAP calls, by operation and, for
+ * operations that take one, by object type. Also totals the time spent in
+ * calls to each site collection, to find the site collections that take the
+ * most crawl time. Shown on the dashboard as two status sources.
+ */
+class SoapMetrics implements StatusSource {
+  /** Number of site collections whose time is tracked separately. */
+  static final int MAX_SITES = 10000;
+  static final String OTHER_SITES = "(other)";
+  /** Number of site collections shown on the dashboard. */
+  private static final int SITES_SHOWN = 5;
+
+  private final ConcurrentMap<String, OperationStats> operations
+      = new ConcurrentSkipListMap<String, OperationStats>();
+  private final ConcurrentMap<String, AtomicLong> siteNanos
+      = new ConcurrentSkipListMap<String, AtomicLong>();
+  private final StatusSource siteStatusSource = new SiteStatusSource();
+
+  /**
+   * Records a completed call.
+   *
+   * @param operation the SOAP operation name, like {@code GetContent}
+   * @param objectType the object type the operation was called with, or
+   *     {@code null}
+   * @param site the site collection called, or {@code null} if unknown
+   * @param responseChars the number of characters of string results
+   */
+  public void record(String operation, String objectType, String site,
+      long nanos, long responseChars, boolean failed) {
+    String key = objectType == null
+        ? operation : operation + "(" + objectType + ")";
+    getOperation(key).record(nanos, responseChars, failed);
+    if (site != null) {
+      getSite(site).addAndGet(nanos);
+    }
+  }
+
+  /** Returns the statistics of an operation, like {@code GetContent(Web)}. */
+  OperationStats getOperationStats(String key) {
+    return operations.get(key);
+  }
+
+  /** Returns the time spent in calls to a site collection, in nanoseconds. */
+  long getSiteNanos(String site) {
+    AtomicLong nanos = siteNanos.get(site);
+    return nanos == null ? 0 : nanos.get();
+  }
+
+  /** Status source listing the site collections that took the most time. */
+  public StatusSource getSiteStatusSource() {
+    return siteStatusSource;
+  }
+
+  private OperationStats getOperation(String key) {
+    OperationStats stats = operations.get(key);
+    if (stats == null) {
+      stats = new OperationStats();
+      OperationStats existing = operations.putIfAbsent(key, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  private AtomicLong getSite(String site) {
+    AtomicLong nanos = siteNanos.get(site);
+    if (nanos == null) {
+      // Bound memory use on farms with very many site collections. The bound
+      // may be exceeded slightly by concurrent calls.
+      if (siteNanos.size() >= MAX_SITES) {
+        site = OTHER_SITES;
+      }
+      nanos = new AtomicLong();
+      AtomicLong existing = siteNanos.putIfAbsent(site, nanos);
+      if (existing != null) {
+        nanos = existing;
+      }
+    }
+    return nanos;
+  }
+
+  @Override
+  public Status retrieveStatus() {
+    boolean failing = false;
+    StringBuilder message = new StringBuilder();
+    for (Map.Entry<String, OperationStats> me : operations.entrySet()) {
+      OperationStats stats = me.getValue();
+      // Occasional failures are normal, like for deleted documents.
+      if (stats.getErrors() * 10 > stats.getCount()) {
+        failing = true;
+      }
+      if (message.length() > 0) {
+        message.append("; ");
+      }
+      message.append(me.getKey()).append(": ").append(stats);
+    }
+    return status(failing ? Status.Code.WARNING : Status.Code.NORMAL,
+        message.length() == 0 ? "No calls" : message.toString());
+  }
+
+  @Override
+  public String getName(Locale locale) {
+    return "SharePoint SOAP calls";
+  }
+
+  private static Status status(final Status.Code code, final String message) {
+    return new Status() {
+      @Override
+      public Status.Code getCode() {
+        return code;
+      }
+
+      @Override
+      public String getMessage(Locale locale) {
+        return message;
+      }
+    };
+  }
+
+  /** Latency histogram and response size of calls to one operation. */
+  static class OperationStats extends LatencyStats {
+    private final AtomicLong totalResponseChars = new AtomicLong();
+
+    void record(long nanos, long responseChars, boolean failed) {
+      record(nanos, failed);
+      totalResponseChars.addAndGet(responseChars);
+    }
+
+    public long getAverageResponseChars() {
+      long calls = getCount();
+      return calls == 0 ? 0 : totalResponseChars.get() / calls;
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + ", avgResponseChars="
+          + getAverageResponseChars();
+    }
+  }
+
+  private class SiteStatusSource implements StatusSource {
+    @Override
+    public Status retrieveStatus() {
+      // Copy the totals, since they change while sorting.
+      List<Map.Entry<String, Long>> sites
+          = new ArrayList<Map.Entry<String, Long>>(siteNanos.size());
+      for (Map.Entry<String, AtomicLong> me : siteNanos.entrySet()) {
+        sites.add(new AbstractMap.SimpleImmutableEntry<String, Long>(
+            me.getKey(), me.getValue().get()));
+      }
+      Collections.sort(sites, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a,
+            Map.Entry<String, Long> b) {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+      StringBuilder message = new StringBuilder();
+      for (Map.Entry<String, Long> me
+          : sites.subList(0, Math.min(SITES_SHOWN, sites.size()))) {
+        if (message.length() > 0) {
+          message.append("; ");
+        }
+        message.append(me.getKey()).append("=")
+            .append(TimeUnit.NANOSECONDS.toSeconds(me.getValue()))
+            .append("s");
+      }
+      return status(Status.Code.NORMAL,
+          message.length() == 0 ? "No calls" : message.toString());
+    }
+
+    @Override
+    public String getName(Locale locale) {
+      return "SharePoint SOAP time by site collection";
+    }
+  }
+}
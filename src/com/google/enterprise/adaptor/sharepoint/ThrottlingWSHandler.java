@@ -0,0 +1,95 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.sharepoint.AdaptiveConcurrencyLimiter.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.xml.ws.WebServiceException;
+
+/**
+ * InvocationHandler that can wrap WebService instances and hold a permit from
+ * an {@link AdaptiveConcurrencyLimiter} for the duration of each call, so that
+ * SOAP requests back off together with downloads when SharePoint is
+ * overloaded.
+ */
+class ThrottlingWSHandler implements InvocationHandler {
+  private final Object wrapped;
+  private final AdaptiveConcurrencyLimiter limiter;
+
+  public ThrottlingWSHandler(Object wrapped,
+      AdaptiveConcurrencyLimiter limiter) {
+    if (wrapped == null || limiter == null) {
+      throw new NullPointerException();
+    }
+    this.wrapped = wrapped;
+    this.limiter = limiter;
+  }
+
+  public static <T> T create(Class<T> webServiceInterface, T wrapped,
+      AdaptiveConcurrencyLimiter limiter) {
+    InvocationHandler invokeHandler = new ThrottlingWSHandler(wrapped, limiter);
+    // Keep ports closeable, so that their resources can be released.
+    Class<?>[] interfaces = wrapped instanceof Closeable
+        ? new Class<?>[] {webServiceInterface, Closeable.class}
+        : new Class<?>[] {webServiceInterface};
+    Object oInstance = Proxy.newProxyInstance(
+        ThrottlingWSHandler.class.getClassLoader(), interfaces, invokeHandler);
+    @SuppressWarnings("unchecked")
+    T tInstance = (T) oInstance;
+    return tInstance;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    if (method.getDeclaringClass() == Object.class
+        || method.getDeclaringClass() == Closeable.class) {
+      // toString(), close() and friends don't make requests.
+      try {
+        return method.invoke(wrapped, args);
+      } catch (InvocationTargetException ex) {
+        throw ex.getCause();
+      }
+    }
+    try {
+      limiter.acquire();
+    } catch (IOException ex) {
+      // SOAP methods don't declare IOException.
+      throw new WebServiceException(ex);
+    }
+    Outcome outcome = Outcome.IGNORED;
+    try {
+      Object ret = method.invoke(wrapped, args);
+      outcome = Outcome.SUCCESS;
+      return ret;
+    } catch (IllegalAccessException ex) {
+      throw new RuntimeException("Misconfigured ThrottlingWSHandler", ex);
+    } catch (IllegalArgumentException ex) {
+      throw new RuntimeException("Misconfigured ThrottlingWSHandler", ex);
+    } catch (InvocationTargetException ex) {
+      outcome = AdaptiveConcurrencyLimiter.classify(ex.getCause());
+      throw ex.getCause();
+    } finally {
+      limiter.release(outcome);
+    }
+  }
+}
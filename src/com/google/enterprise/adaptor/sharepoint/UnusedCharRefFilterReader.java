@@ -0,0 +1,194 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader that removes numeric character references to unused character codes
+ * (like {@code &#31;}) while streaming. SharePoint sometimes includes such
+ * references in its responses, but they are not valid XML and cause parsing
+ * to fail. The removed ranges are {@code &#0;} - {@code &#8;} (optionally
+ * with a leading zero), {@code &#11;} - {@code &#12;}, {@code &#14;} -
+ * {@code &#31;}, and {@code &#127;} - {@code &#159;}.
+ *
+ * <p>Only a fixed-size buffer is used, independent of the amount of data
+ * passing through the reader.
+ */
+class UnusedCharRefFilterReader extends FilterReader {
+  /** Length of the longest reference that may be removed, {@code &#159;}. */
+  private static final int MAX_REF_LENGTH = 6;
+
+  private final char[] buf;
+  /** Reused by {@link #read()}. */
+  private final char[] single = new char[1];
+  private int pos;
+  private int limit;
+  private boolean eof;
+
+  public UnusedCharRefFilterReader(Reader in) {
+    this(in, 8 * 1024);
+  }
+
+  UnusedCharRefFilterReader(Reader in, int bufferSize) {
+    super(in);
+    if (bufferSize < MAX_REF_LENGTH) {
+      throw new IllegalArgumentException("bufferSize must be at least "
+          + MAX_REF_LENGTH);
+    }
+    this.buf = new char[bufferSize];
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(single, 0, 1) == -1 ? -1 : single[0];
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off + len > cbuf.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    int w = off;
+    int end = off + len;
+    while (w < end) {
+      if (pos == limit
+          || (buf[pos] == '&' && limit - pos < MAX_REF_LENGTH)) {
+        // Make sure any reference starting at pos is completely in buf.
+        if (!eof) {
+          if (w != off && !in.ready()) {
+            // Avoid blocking when we already have something to return.
+            break;
+          }
+          fill();
+        }
+        if (pos == limit) {
+          break;
+        }
+      }
+      char c = buf[pos];
+      if (c == '&') {
+        int refLength = unusedCharRefLength(buf, pos, limit);
+        if (refLength > 0) {
+          pos += refLength;
+          continue;
+        }
+      }
+      cbuf[w++] = c;
+      pos++;
+    }
+    return w == off ? -1 : w - off;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("skip value is negative");
+    }
+    char[] skipBuf = new char[(int) Math.min(n, 1024)];
+    long skipped = 0;
+    while (skipped < n) {
+      int read = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length));
+      if (read == -1) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean ready() throws IOException {
+    return pos < limit || in.ready();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readAheadLimit) throws IOException {
+    throw new IOException("mark() not supported");
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("reset() not supported");
+  }
+
+  /**
+   * Moves unconsumed data to the beginning of buf and reads until at least
+   * one more character is available, and any reference starting at pos is
+   * completely in buf, or end of stream is reached. The underlying reader may
+   * return fewer characters than requested, so this may take several reads.
+   */
+  private void fill() throws IOException {
+    System.arraycopy(buf, pos, buf, 0, limit - pos);
+    limit -= pos;
+    pos = 0;
+    while (!eof
+        && (limit == 0 || (buf[0] == '&' && limit < MAX_REF_LENGTH))) {
+      int read = in.read(buf, limit, buf.length - limit);
+      if (read == -1) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+  }
+
+  /**
+   * Returns the length of the unused character reference starting at {@code
+   * start}, or {@code 0} if there isn't one.
+   */
+  private static int unusedCharRefLength(char[] buf, int start, int limit) {
+    int i = start + 1;
+    if (i >= limit || buf[i] != '#') {
+      return 0;
+    }
+    i++;
+    int digitsStart = i;
+    int value = 0;
+    while (i < limit && i - digitsStart < 3
+        && buf[i] >= '0' && buf[i] <= '9') {
+      value = value * 10 + (buf[i] - '0');
+      i++;
+    }
+    int digits = i - digitsStart;
+    if (digits == 0 || i >= limit || buf[i] != ';') {
+      return 0;
+    }
+    boolean unused;
+    switch (digits) {
+      case 1:
+        unused = value <= 8;
+        break;
+      case 2:
+        unused = (buf[digitsStart] == '0' && value <= 8)
+            || value == 11 || value == 12 || (value >= 14 && value <= 31);
+        break;
+      default:
+        unused = value >= 127 && value <= 159;
+        break;
+    }
+    return unused ? i + 1 - start : 0;
+  }
+}
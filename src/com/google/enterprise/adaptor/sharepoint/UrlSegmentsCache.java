@@ -0,0 +1,112 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.Holder;
+
+/**
+ * Cache of the list and list item that URLs refer to, as determined by
+ * {@link SiteDataClient#getUrlSegments}. Only URLs that were found are cached.
+ *
+ * <p>Entries become stale when objects are renamed, moved or deleted. Users of
+ * the cache are expected to invalidate entries as they learn about changes,
+ * for example from the change log, and to handle stale entries gracefully.
+ */
+class UrlSegmentsCache {
+  private final Cache<String, UrlSegments> cache;
+
+  public UrlSegmentsCache(long maximumSize, long expireAfterWriteMinutes) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+        .build();
+  }
+
+  /**
+   * Returns the list and list item {@code url} refers to, or {@code null} if
+   * SharePoint does not know {@code url}. Uses the cached value if present.
+   */
+  public UrlSegments get(SiteDataClient siteDataClient, String url)
+      throws IOException {
+    UrlSegments segments = cache.getIfPresent(url);
+    if (segments != null) {
+      return segments;
+    }
+    return refresh(siteDataClient, url);
+  }
+
+  /**
+   * Like {@link #get}, but always asks SharePoint, and updates the cache with
+   * the result.
+   */
+  public UrlSegments refresh(SiteDataClient siteDataClient, String url)
+      throws IOException {
+    Holder<String> listId = new Holder<String>();
+    Holder<String> itemId = new Holder<String>();
+    if (!siteDataClient.getUrlSegments(url, listId, itemId)) {
+      cache.invalidate(url);
+      return null;
+    }
+    UrlSegments segments = new UrlSegments(listId.value, itemId.value);
+    cache.put(url, segments);
+    return segments;
+  }
+
+  /** Removes the entry for {@code url}. */
+  public void invalidate(String url) {
+    cache.invalidate(url);
+  }
+
+  /** Removes the entries for {@code url} and all URLs below it. */
+  public void invalidateUnder(String url) {
+    invalidateUnder(cache.asMap(), url);
+  }
+
+  /** Removes the entries for {@code url} and all URLs below it from a map. */
+  static void invalidateUnder(Map<String, ?> map, String url) {
+    String prefix = url.endsWith("/") ? url : url + "/";
+    for (Iterator<String> it = map.keySet().iterator(); it.hasNext();) {
+      String key = it.next();
+      if (key.equals(url) || key.startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /** Result of {@link SiteDataClient#getUrlSegments} for a URL. */
+  public static final class UrlSegments {
+    /** GUID of the list, or {@code null} if the URL isn't in a list. */
+    public final String listId;
+    /** Id of the list item, or {@code null} if the URL isn't a list item. */
+    public final String itemId;
+
+    public UrlSegments(String listId, String itemId) {
+      this.listId = listId;
+      this.itemId = itemId;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.sharepoint.AdaptiveConcurrencyLimiter.Outcome;
+import com.google.enterprise.adaptor.sharepoint.AdaptiveConcurrencyLimiter.OverloadedException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Test cases for {@link AdaptiveConcurrencyLimiter}.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testInvalidLimits() {
+    thrown.expect(IllegalArgumentException.class);
+    new AdaptiveConcurrencyLimiter("host", 2, 1, 0, 0);
+  }
+
+  @Test
+  public void testAcquireTimesOutAtLimit() throws IOException {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 2, 0, 0);
+    limiter.acquire();
+    limiter.acquire();
+    assertEquals(2, limiter.getInFlight());
+    try {
+      thrown.expect(IOException.class);
+      limiter.acquire();
+    } finally {
+      assertEquals(1, limiter.getAcquireTimeoutCount());
+    }
+  }
+
+  @Test
+  public void testOverloadHalvesLimit() throws IOException {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 8, 0, 0);
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    assertEquals(4, limiter.getLimit());
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    assertEquals(1, limiter.getLimit());
+    assertEquals(4, limiter.getOverloadCount());
+  }
+
+  @Test
+  public void testOverloadsWithinBackoffWindowReduceOnce()
+      throws IOException {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 8, 0, 60 * 1000);
+    limiter.acquire();
+    limiter.acquire();
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    limiter.release(Outcome.OVERLOADED);
+    limiter.release(Outcome.OVERLOADED);
+    assertEquals(4, limiter.getLimit());
+    assertEquals(3, limiter.getOverloadCount());
+  }
+
+  @Test
+  public void testSuccessGrowsLimitAdditively() throws IOException {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 4, 0, 0);
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    assertEquals(1, limiter.getLimit());
+    limiter.acquire();
+    limiter.release(Outcome.SUCCESS);
+    assertEquals(2, limiter.getLimit());
+    limiter.acquire();
+    limiter.release(Outcome.SUCCESS);
+    assertEquals(2, limiter.getLimit());
+    limiter.acquire();
+    limiter.release(Outcome.SUCCESS);
+    assertEquals(2, limiter.getLimit());
+    limiter.acquire();
+    limiter.release(Outcome.SUCCESS);
+    assertEquals(3, limiter.getLimit());
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire();
+      limiter.release(Outcome.SUCCESS);
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testIgnoredDoesNotChangeLimit() throws IOException {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 4, 0, 0);
+    limiter.acquire();
+    limiter.release(Outcome.IGNORED);
+    assertEquals(4, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testReleaseWithoutAcquire() {
+    AdaptiveConcurrencyLimiter limiter
+        = new AdaptiveConcurrencyLimiter("host", 1, 4, 0, 0);
+    thrown.expect(IllegalStateException.class);
+    limiter.release(Outcome.SUCCESS);
+  }
+
+  @Test
+  public void testClassify() {
+    assertEquals(Outcome.OVERLOADED, AdaptiveConcurrencyLimiter.classify(
+        new OverloadedException("busy")));
+    assertEquals(Outcome.OVERLOADED, AdaptiveConcurrencyLimiter.classify(
+        new RuntimeException(new SocketTimeoutException())));
+    assertEquals(Outcome.OVERLOADED, AdaptiveConcurrencyLimiter.classify(
+        new RuntimeException(
+            "The server sent HTTP status code 503: Service Unavailable")));
+    assertEquals(Outcome.IGNORED, AdaptiveConcurrencyLimiter.classify(
+        new IOException("Got error 0 from SharePoint")));
+    assertEquals(Outcome.IGNORED, AdaptiveConcurrencyLimiter.classify(
+        new RuntimeException(
+            "The server sent HTTP status code 401: Unauthorized")));
+  }
+
+  @Test
+  public void testRegistryPerHost() throws IOException {
+    AdaptiveConcurrencyLimiter.Registry registry
+        = new AdaptiveConcurrencyLimiter.Registry(2, 0, 0);
+    AdaptiveConcurrencyLimiter limiter
+        = registry.get(new URL("http://localhost/sites/a"));
+    assertSame(limiter, registry.get(new URL("http://LOCALHOST:80/b")));
+    registry.get(new URL("https://localhost/"));
+    assertEquals(2, registry.getLimiters().size());
+    assertEquals(Status.Code.NORMAL, registry.retrieveStatus().getCode());
+    limiter.acquire();
+    limiter.release(Outcome.OVERLOADED);
+    Status status = registry.retrieveStatus();
+    assertEquals(Status.Code.WARNING, status.getCode());
+    assertEquals("localhost:443: limit=2/2, inFlight=0, "
+        + "successes=0, overloads=0, acquireTimeouts=0; localhost:80: "
+        + "limit=1/2, inFlight=0, successes=0, overloads=1, "
+        + "acquireTimeouts=0", status.getMessage(Locale.ENGLISH));
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.LoadingCache;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Test cases for {@link AsyncCacheLoader}. */
+public class AsyncCacheLoaderTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final AtomicBoolean rejecting = new AtomicBoolean();
+  private final AtomicInteger loads = new AtomicInteger();
+  private final AtomicInteger reloadsSubmitted = new AtomicInteger();
+  private final LoadingCache<String, String> cache = CacheBuilder.newBuilder()
+      .ticker(new Ticker() {
+        @Override
+        public long read() {
+          return nanos.get();
+        }
+      })
+      .refreshAfterWrite(1, TimeUnit.MINUTES)
+      .build(new AsyncCacheLoader<String, String>() {
+        @Override
+        protected Executor executor() {
+          return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+              reloadsSubmitted.incrementAndGet();
+              if (rejecting.get()) {
+                throw new RejectedExecutionException("full");
+              }
+              command.run();
+            }
+          };
+        }
+
+        @Override
+        public String load(String key) {
+          return key + loads.incrementAndGet();
+        }
+      });
+
+  @Test
+  public void testReload() throws Exception {
+    assertEquals("a1", cache.get("a"));
+    nanos.addAndGet(TimeUnit.MINUTES.toNanos(2));
+    assertEquals("a2", cache.get("a"));
+    assertEquals(1, reloadsSubmitted.get());
+  }
+
+  @Test
+  public void testRejectedReloadKeepsOldValueAndRetries() throws Exception {
+    assertEquals("a1", cache.get("a"));
+    nanos.addAndGet(TimeUnit.MINUTES.toNanos(2));
+    rejecting.set(true);
+    assertEquals("a1", cache.get("a"));
+    assertEquals(1, reloadsSubmitted.get());
+
+    // The rejection did not count as a fresh write, so the value is still due
+    // for a refresh.
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    rejecting.set(false);
+    assertEquals("a2", cache.get("a"));
+    assertEquals(2, reloadsSubmitted.get());
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Test cases for {@link ContentCopier}. */
+public class ContentCopierTest {
+  private final ContentCopier copier = new ContentCopier(2, 0);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoPooledBuffers() {
+    new ContentCopier(0, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeRate() {
+    new ContentCopier(1, -1);
+  }
+
+  @Test
+  public void testCopyLargerThanBuffer() throws IOException {
+    byte[] content = content(ContentCopier.BUFFER_SIZE * 2 + 7);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertFalse(copier.copy(new ByteArrayInputStream(content), out,
+        content.length, 0, "test"));
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  @Test
+  public void testCopyExactlyMaxBytes() throws IOException {
+    byte[] content = content(100);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertFalse(copier.copy(new ByteArrayInputStream(content), out, -1, 100,
+        "test"));
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  @Test
+  public void testTruncatesAndStopsReading() throws IOException {
+    byte[] content = content(ContentCopier.BUFFER_SIZE * 4);
+    ByteArrayInputStream in = new ByteArrayInputStream(content);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(copier.copy(in, out, content.length, 1000, "test"));
+    assertArrayEquals(Arrays.copyOf(content, 1000), out.toByteArray());
+    // No more than one buffer was read.
+    assertEquals(ContentCopier.BUFFER_SIZE * 3, in.available());
+  }
+
+  @Test
+  public void testRateLimited() throws IOException {
+    ContentCopier limited = new ContentCopier(1, 100 * 1024);
+    byte[] content = content(ContentCopier.BUFFER_SIZE * 3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long startNanos = System.nanoTime();
+    limited.copy(new ByteArrayInputStream(content), out, -1, 0, "test");
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    // The first buffer is free, the next two take over a second.
+    assertTrue("elapsed: " + elapsedMillis, elapsedMillis >= 1000);
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  private static byte[] content(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) i;
+    }
+    return content;
+  }
+}
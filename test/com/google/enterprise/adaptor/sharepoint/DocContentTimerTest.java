@@ -0,0 +1,118 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.Status;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/** Test cases for {@link DocContentTimer}. */
+public class DocContentTimerTest {
+  private static final DocId DOC_ID
+      = new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List");
+
+  private final DocContentTimer timer = new DocContentTimer(0);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeThreshold() {
+    new DocContentTimer(-1);
+  }
+
+  @Test
+  public void testNoRequests() {
+    Status status = timer.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertEquals("No requests", status.getMessage(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testRecordsByDocType() {
+    timer.start();
+    timer.setDocType(DocContentTimer.DocType.LIST);
+    timer.endPhase(DocContentTimer.Phase.METADATA, System.nanoTime() - 10);
+    timer.endPhase(DocContentTimer.Phase.METADATA, System.nanoTime() - 10);
+    timer.finish(DOC_ID, false);
+    timer.start();
+    timer.finish(DOC_ID, true);
+
+    assertEquals(1, timer.getStats(DocContentTimer.DocType.LIST).getCount());
+    assertEquals(1, timer.getStats(DocContentTimer.DocType.LIST,
+        DocContentTimer.Phase.METADATA).getCount());
+    assertEquals(0, timer.getStats(DocContentTimer.DocType.LIST,
+        DocContentTimer.Phase.CONTENT).getCount());
+    assertEquals(1,
+        timer.getStats(DocContentTimer.DocType.UNKNOWN).getErrors());
+    assertEquals(0,
+        timer.getStats(DocContentTimer.DocType.DOCUMENT).getCount());
+    Status status = timer.retrieveStatus();
+    assertEquals(Status.Code.WARNING, status.getCode());
+    assertEquals("List: count=1, errors=0, avgMs=0, p50Ms<=1, p95Ms<=1, "
+        + "p99Ms<=1 (metadata avgMs=0); Unknown: count=1, errors=1, avgMs=0, "
+        + "p50Ms<=1, p95Ms<=1, p99Ms<=1", status.getMessage(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testIgnoredWithoutRequest() {
+    timer.setDocType(DocContentTimer.DocType.SITE);
+    timer.endPhase(DocContentTimer.Phase.ACL, System.nanoTime());
+    timer.finish(DOC_ID, false);
+    assertEquals(0, timer.getStats(DocContentTimer.DocType.SITE).getCount());
+    assertEquals(0,
+        timer.getStats(DocContentTimer.DocType.UNKNOWN).getCount());
+  }
+
+  @Test
+  public void testTracesArePerThread() throws Exception {
+    timer.start();
+    timer.setDocType(DocContentTimer.DocType.ASPX);
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        timer.start();
+        timer.setDocType(DocContentTimer.DocType.ATTACHMENT);
+        timer.finish(DOC_ID, false);
+      }
+    };
+    other.start();
+    other.join();
+    timer.finish(DOC_ID, false);
+    assertEquals(1, timer.getStats(DocContentTimer.DocType.ASPX).getCount());
+    assertEquals(1,
+        timer.getStats(DocContentTimer.DocType.ATTACHMENT).getCount());
+  }
+
+  @Test
+  public void testSlowRequestStillRecorded() {
+    DocContentTimer slowTimer = new DocContentTimer(1);
+    slowTimer.start();
+    slowTimer.setDocType(DocContentTimer.DocType.SITE);
+    slowTimer.endPhase(DocContentTimer.Phase.METADATA,
+        System.nanoTime() - 5000000);
+    long end = System.nanoTime() + 2000000;
+    while (System.nanoTime() < end) {
+      // Spin, so the request is over the threshold.
+    }
+    slowTimer.finish(DOC_ID, false);
+    LatencyStats stats = slowTimer.getStats(DocContentTimer.DocType.SITE);
+    assertEquals(1, stats.getCount());
+    assertTrue(stats.getPercentileMillis(50) >= 2);
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test cases for {@link FileChangeTokenStore}.
+ */
+public class FileChangeTokenStoreTest {
+  private static final String CD1 = "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}";
+  private static final String CD2 = "{3ac1e3b3-2326-7341-4afe-16751eafbc51}";
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(tmpFolder.getRoot(), "changeTokens");
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullFile() {
+    new FileChangeTokenStore(null, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeSyncInterval() {
+    new FileChangeTokenStore(file, -1);
+  }
+
+  @Test
+  public void testLoadMissingFile() throws IOException {
+    ChangeTokenStore store = new FileChangeTokenStore(file, 0);
+    assertEquals(Collections.emptyMap(), store.load());
+    store.close();
+  }
+
+  @Test
+  public void testResumeAfterRestart() throws IOException {
+    ChangeTokenStore store = new FileChangeTokenStore(file, 1000000);
+    store.load();
+    store.put(CD1, "1;0;" + CD1 + ";634727056594000000;603");
+    store.put(CD2, "1;0;" + CD2 + ";634882028739000000;224");
+    store.put(CD1, "1;0;" + CD1 + ";634727056595000000;604");
+    store.remove(CD2);
+    store.close();
+
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put(CD1, "1;0;" + CD1 + ";634727056595000000;604");
+    store = new FileChangeTokenStore(file, 0);
+    assertEquals(golden, store.load());
+    store.close();
+  }
+
+  @Test
+  public void testSyncWithoutClose() throws IOException {
+    ChangeTokenStore store = new FileChangeTokenStore(file, 1000000);
+    store.put(CD1, "token1");
+    store.sync();
+    assertEquals(Collections.singletonMap(CD1, "token1"),
+        new FileChangeTokenStore(file, 0).load());
+    store.close();
+  }
+
+  @Test
+  public void testMalformedLinesIgnored() throws IOException {
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(("P\t" + CD1 + "\ttoken1\ngarbage\nP\t" + CD2 + "\ttok")
+        .getBytes(Charset.forName("UTF-8")));
+    os.close();
+    ChangeTokenStore store = new FileChangeTokenStore(file, 0);
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put(CD1, "token1");
+    golden.put(CD2, "tok");
+    assertEquals(golden, store.load());
+    store.close();
+    assertEquals(2, Files.readAllLines(file.toPath(),
+        Charset.forName("UTF-8")).size());
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    ChangeTokenStore store = new FileChangeTokenStore(file, 1000000);
+    for (int i = 0; i < 5000; i++) {
+      store.put(CD1, "token" + i);
+    }
+    store.close();
+    assertTrue(Files.readAllLines(file.toPath(),
+        Charset.forName("UTF-8")).size() < 1000);
+    assertEquals(Collections.singletonMap(CD1, "token4999"),
+        new FileChangeTokenStore(file, 0).load());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidToken() throws IOException {
+    new FileChangeTokenStore(file, 0).put(CD1, "bad\ttoken");
+  }
+}
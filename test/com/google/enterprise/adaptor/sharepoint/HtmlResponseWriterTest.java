@@ -181,6 +181,29 @@ public class HtmlResponseWriterTest {
     assertEquals(golden, new String(baos.toByteArray(), charset));
   }
 
+  @Test
+  public void testLinksEscaped() throws Exception {
+    final String golden = "<!DOCTYPE html>\n"
+        + "<html><head><title>a&amp;b &lt;c</title></head>"
+        + "<body><h1><!--googleoff: index-->Site<!--googleon: index-->"
+        + " a&amp;b &lt;c</h1>"
+        + "<p><!--googleoff: index-->Lists<!--googleon: index--></p>"
+        + "<ul><li><a href=\"../Shared%20Documents/it&apos;s%22&amp;%3C%25\">"
+        + "it's\"&amp;&lt;%</a></li>"
+        + "<li><a href=\"./a:b/c\">Q&amp;A</a></li>"
+        + "<li><a href=\"../../%C3%A9t%C3%A9/\">\u00e9t\u00e9</a></li>"
+        + "<li><a href=\"#\">x</a></li>"
+        + "</ul></body></html>";
+    writer.start(new DocId("s/t/x"), ObjectType.SITE, "a&b <c");
+    writer.startSection(ObjectType.LIST);
+    writer.addLink(new DocId("s/Shared Documents/it's\"&<%"), null);
+    writer.addLink(new DocId("s/t/a:b/c"), "Q&A");
+    writer.addLink(new DocId("\u00e9t\u00e9/"), null);
+    writer.addLink(new DocId("s/t/x"), null);
+    writer.finish();
+    assertEquals(golden, new String(baos.toByteArray(), charset));
+  }
+
   @Test
   public void testRelativizeBaseNoScheme() throws Exception {
     URI base = new URI(null, "example.com", "/", null, null);
@@ -0,0 +1,139 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.Status;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Test cases for {@link InstrumentedThreadPoolExecutor}. */
+public class InstrumentedThreadPoolExecutorTest {
+  private final InstrumentedThreadPoolExecutor executor
+      = new InstrumentedThreadPoolExecutor("test", 1, 1, 1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @After
+  public void shutdown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRunsInCallerWhenFull() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    // Occupies the only thread.
+    Future<?> blocked = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        started.countDown();
+        release.await();
+        return null;
+      }
+    });
+    started.await();
+    // Fills the queue.
+    Future<?> queued = executor.submit(new CurrentThread());
+    assertEquals(1, executor.getQueueDepth());
+    assertEquals(1, executor.getActiveCount());
+    assertEquals(Status.Code.WARNING,
+        executor.retrieveStatus().getCode());
+    // Runs in this thread.
+    Future<Thread> inCaller = executor.submit(new CurrentThread());
+    assertSame(Thread.currentThread(), inCaller.get(0, TimeUnit.SECONDS));
+    assertEquals(1, executor.getTasksRunInCaller());
+
+    release.countDown();
+    blocked.get();
+    queued.get();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(3, executor.getTasksCompleted());
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(Status.Code.NORMAL, executor.retrieveStatus().getCode());
+    assertTrue(executor.retrieveStatus().getMessage(Locale.ENGLISH)
+        .contains("completed=3, runInCaller=1"));
+  }
+
+  @Test
+  public void testRejectingWhenFull() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    started.await();
+    Executor rejecting = executor.rejectingWhenFull();
+    final CountDownLatch queuedRan = new CountDownLatch(1);
+    rejecting.execute(new Runnable() {
+      @Override
+      public void run() {
+        queuedRan.countDown();
+      }
+    });
+    try {
+      rejecting.execute(new Runnable() {
+        @Override
+        public void run() {
+          throw new AssertionError("Should not run");
+        }
+      });
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+      // Expected.
+    }
+    assertEquals(0, executor.getTasksRunInCaller());
+    assertEquals(1, executor.getTasksRejected());
+
+    release.countDown();
+    assertTrue(queuedRan.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testRejectsAfterShutdown() {
+    executor.shutdown();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {}
+    });
+  }
+
+  private static class CurrentThread implements Callable<Thread> {
+    @Override
+    public Thread call() {
+      return Thread.currentThread();
+    }
+  }
+}
@@ -135,6 +135,24 @@ public class LoggingWSHandlerTest {
         record.getParameters());
   }
 
+  @Test
+  public void testRecordsMetrics() {
+    setLevel(Level.WARNING);
+    SoapMetrics metrics = new SoapMetrics();
+    WebServiceInterface wsi = LoggingWSHandler.create(
+        WebServiceInterface.class, new WebServiceClass(), metrics,
+        "http://localhost:1/sites/SiteCollection");
+    wsi.webServiceMethod("input arg", new Holder<Long>(2L),
+        new Holder<Boolean>());
+    wsi.noArgMethod();
+    wsi.noArgMethod();
+    assertEquals(1,
+        metrics.getOperationStats("webServiceMethod").getCount());
+    assertEquals(2, metrics.getOperationStats("noArgMethod").getCount());
+    assertEquals(0, metrics.getOperationStats("noArgMethod").getErrors());
+    assertEquals(0, logLog.getLog().size());
+  }
+
   @Test
   @SuppressWarnings({"rawtypes", "unchecked"})
   public void testWrongObject() {
@@ -0,0 +1,125 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test cases for {@link MemberIdMappingSnapshot}.
+ */
+public class MemberIdMappingSnapshotTest {
+  private static final String SITE1 = "http://localhost:1/sites/SiteCollection";
+  private static final String SITE2 = "http://localhost:1/sites/Other";
+  private static final Map<String, MemberIdMapping> NONE
+      = Collections.<String, MemberIdMapping>emptyMap();
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private File file;
+  private final UserPrincipal user
+      = new UserPrincipal("GDC-PSL\\spuser1", "Default");
+  private final GroupPrincipal group
+      = new GroupPrincipal("Team Site Owners", "Default_SiteCollection");
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(tmpFolder.getRoot(), "memberIds");
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullFile() {
+    new MemberIdMappingSnapshot(null);
+  }
+
+  @Test
+  public void testMissingFile() {
+    MemberIdMappingSnapshot snapshot = new MemberIdMappingSnapshot(file);
+    assertNull(snapshot.takeMemberIdMapping(SITE1));
+    assertNull(snapshot.takeSiteUserMapping(SITE1));
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    Map<Integer, Principal> members = new HashMap<Integer, Principal>();
+    members.put(1, user);
+    members.put(3, group);
+    new MemberIdMappingSnapshot(file).write(
+        Collections.singletonMap(SITE1, new MemberIdMapping(members)),
+        Collections.singletonMap(SITE2, new MemberIdMapping(
+            Collections.<Integer, Principal>singletonMap(7, user))));
+
+    MemberIdMappingSnapshot snapshot = new MemberIdMappingSnapshot(file);
+    MemberIdMapping mapping = snapshot.takeMemberIdMapping(SITE1);
+    assertEquals(user, mapping.getPrincipal(1));
+    assertEquals(group, mapping.getPrincipal(3));
+    assertNull(mapping.getPrincipal(7));
+    // Mappings are only handed out once.
+    assertNull(snapshot.takeMemberIdMapping(SITE1));
+    assertNull(snapshot.takeMemberIdMapping(SITE2));
+    MemberIdMapping siteUsers = snapshot.takeSiteUserMapping(SITE2);
+    assertSame(mapping.getPrincipal(1), siteUsers.getPrincipal(7));
+  }
+
+  @Test
+  public void testWriteKeepsMappingsNotTaken() throws IOException {
+    new MemberIdMappingSnapshot(file).write(
+        Collections.singletonMap(SITE1, new MemberIdMapping(
+            Collections.<Integer, Principal>singletonMap(1, user))),
+        NONE);
+    MemberIdMappingSnapshot snapshot = new MemberIdMappingSnapshot(file);
+    snapshot.write(
+        Collections.singletonMap(SITE2, new MemberIdMapping(
+            Collections.<Integer, Principal>singletonMap(2, group))),
+        NONE);
+
+    snapshot = new MemberIdMappingSnapshot(file);
+    assertEquals(user, snapshot.takeMemberIdMapping(SITE1).getPrincipal(1));
+    assertEquals(group, snapshot.takeMemberIdMapping(SITE2).getPrincipal(2));
+  }
+
+  @Test
+  public void testCorruptFileIgnored() throws IOException {
+    new MemberIdMappingSnapshot(file).write(
+        Collections.singletonMap(SITE1, new MemberIdMapping(
+            Collections.<Integer, Principal>singletonMap(1, user))),
+        NONE);
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    byte[] truncated = new byte[bytes.length - 3];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    Files.write(file.toPath(), truncated);
+
+    MemberIdMappingSnapshot snapshot = new MemberIdMappingSnapshot(file);
+    assertNull(snapshot.takeMemberIdMapping(SITE1));
+  }
+}
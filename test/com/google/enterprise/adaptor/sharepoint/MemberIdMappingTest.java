@@ -0,0 +1,68 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test cases for {@link MemberIdMapping}. */
+public class MemberIdMappingTest {
+  @Test
+  public void testGetPrincipal() {
+    Map<Integer, Principal> map = new HashMap<Integer, Principal>();
+    map.put(40, new UserPrincipal("GDC-PSL\\spuser1", "Default"));
+    map.put(3, new GroupPrincipal("Owners", "Default"));
+    map.put(-1, new UserPrincipal("System", "Default"));
+    MemberIdMapping mapping = new MemberIdMapping(map);
+    assertEquals(new GroupPrincipal("Owners", "Default"),
+        mapping.getPrincipal(3));
+    assertEquals(new UserPrincipal("GDC-PSL\\spuser1", "Default"),
+        mapping.getPrincipal(40));
+    assertEquals(new UserPrincipal("System", "Default"),
+        mapping.getPrincipal(-1));
+    assertNull(mapping.getPrincipal(4));
+    assertEquals("MemberIdMapping({-1=" + map.get(-1) + ", 3=" + map.get(3)
+        + ", 40=" + map.get(40) + "})", mapping.toString());
+  }
+
+  @Test
+  public void testEmpty() {
+    MemberIdMapping mapping
+        = new MemberIdMapping(Collections.<Integer, Principal>emptyMap());
+    assertNull(mapping.getPrincipal(1));
+  }
+
+  @Test
+  public void testPrincipalsSharedAcrossMappings() {
+    Principal user1 = new UserPrincipal("GDC-PSL\\spuser1", "Default");
+    Principal user2 = new UserPrincipal("GDC-PSL\\spuser1", "Default");
+    MemberIdMapping mapping1
+        = new MemberIdMapping(Collections.singletonMap(1, user1));
+    MemberIdMapping mapping2
+        = new MemberIdMapping(Collections.singletonMap(7, user2));
+    assertSame(mapping1.getPrincipal(1), mapping2.getPrincipal(7));
+  }
+}
@@ -34,6 +34,9 @@ import com.sun.net.httpserver.HttpHandler;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Mock AdaptorContext.
@@ -62,6 +65,8 @@ class MockAdaptorContext implements AdaptorContext {
     }
   };
   private PollingIncrementalLister pollingIncrementalLister;
+  private final List<StatusSource> statusSources
+      = new ArrayList<StatusSource>();
   
   private final AccumulatingAsyncDocIdPusher asynPusher;
 
@@ -76,7 +81,11 @@ class MockAdaptorContext implements AdaptorContext {
 
   @Override
   public void addStatusSource(StatusSource source) {
-    throw new UnsupportedOperationException();
+    statusSources.add(source);
+  }
+
+  public List<StatusSource> getStatusSources() {
+    return Collections.unmodifiableList(statusSources);
   }
 
   @Override
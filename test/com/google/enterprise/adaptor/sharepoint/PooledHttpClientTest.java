@@ -0,0 +1,203 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.IOHelper;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.FileInfo;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.HttpClient;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test cases for {@link PooledHttpClient}.
+ */
+public class PooledHttpClientTest {
+  private static final List<String> NO_COOKIES
+      = Collections.<String>emptyList();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final URL host1File = url("http://localhost:1/file.txt");
+  private final URL host1Other = url("http://LOCALHOST:1/other.txt");
+  private final URL host2File = url("http://localhost:2/file.txt");
+  private final URL missingFile = url("http://localhost:1/missing.txt");
+
+  private final HttpClient delegate = new HttpClient() {
+    @Override
+    public FileInfo issueGetRequest(URL url,
+        List<String> authenticationCookies, String adaptorUserAgent,
+        int maxRedirectsToFollow, boolean performBrowserLeniency,
+        Date ifModifiedSince, String ifNoneMatch)
+        throws IOException {
+      if (url.getPath().contains("missing")) {
+        return null;
+      }
+      if (url.getPath().contains("overloaded")) {
+        throw new AdaptiveConcurrencyLimiter.OverloadedException("busy");
+      }
+      if (url.getPath().contains("error")) {
+        throw new IOException("fake error");
+      }
+      if (ifNoneMatch != null) {
+        return new FileInfo.Builder(new ByteArrayInputStream(new byte[0]))
+            .setNotModified(true).build();
+      }
+      return new FileInfo.Builder(new ByteArrayInputStream(
+          url.getPath().getBytes("UTF-8")))
+          .setHeaders(Arrays.asList("Content-Type", "text/plain")).build();
+    }
+
+    @Override
+    public String getRedirectLocation(URL url,
+        List<String> authenticationCookies, String adaptorUserAgent) {
+      return "http://localhost:1/redirected";
+    }
+
+    @Override
+    public HttpURLConnection getHttpURLConnection(URL url) {
+      throw new UnsupportedOperationException();
+    }
+  };
+
+  @Test
+  public void testNullDelegate() {
+    thrown.expect(NullPointerException.class);
+    new PooledHttpClient(null, limiters(1));
+  }
+
+  @Test
+  public void testNullLimiters() {
+    thrown.expect(NullPointerException.class);
+    new PooledHttpClient(delegate, null);
+  }
+
+  @Test
+  public void testPermitHeldUntilClose() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(2));
+    FileInfo fi = client.issueGetRequest(host1File,
+        NO_COOKIES, "", 20, true, null, null);
+    assertEquals("text/plain", fi.getFirstHeaderWithName("content-type"));
+    assertEquals(1, client.getActiveConnections(host1File));
+    assertEquals(1, client.getActiveConnections(host1Other));
+    assertEquals(0, client.getActiveConnections(host2File));
+    assertArrayEquals("/file.txt".getBytes("UTF-8"),
+        IOHelper.readInputStreamToByteArray(fi.getContents()));
+    fi.getContents().close();
+    assertEquals(0, client.getActiveConnections(host1File));
+    // Closing multiple times must not release extra permits.
+    fi.getContents().close();
+    assertEquals(0, client.getActiveConnections(host1File));
+  }
+
+  @Test
+  public void testLimitPerHost() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(1));
+    FileInfo fi = client.issueGetRequest(host1File,
+        NO_COOKIES, "", 20, true, null, null);
+    // Other hosts are not affected.
+    client.issueGetRequest(host2File, NO_COOKIES, "", 20, true, null, null)
+        .getContents().close();
+    try {
+      thrown.expect(IOException.class);
+      client.issueGetRequest(host1Other, NO_COOKIES, "", 20, true, null, null);
+    } finally {
+      fi.getContents().close();
+    }
+  }
+
+  @Test
+  public void testNotModified() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(1));
+    FileInfo fi = client.issueGetRequest(host1File,
+        NO_COOKIES, "", 20, true, null, "\"{1},2\"");
+    assertTrue(fi.isNotModified());
+    assertEquals(1, client.getActiveConnections(host1File));
+    fi.getContents().close();
+    assertEquals(0, client.getActiveConnections(host1File));
+  }
+
+  @Test
+  public void testPermitReleasedWhenNotFound() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(1));
+    assertNull(client.issueGetRequest(missingFile,
+        NO_COOKIES, "", 20, true, null, null));
+    assertEquals(0, client.getActiveConnections(missingFile));
+  }
+
+  @Test
+  public void testPermitReleasedOnError() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(1));
+    URL errorFile = url("http://localhost:1/error.txt");
+    try {
+      client.issueGetRequest(errorFile, NO_COOKIES, "", 20, true, null, null);
+    } catch (IOException ex) {
+      // Expected.
+    }
+    assertEquals(0, client.getActiveConnections(errorFile));
+  }
+
+  @Test
+  public void testGetRedirectLocation() throws IOException {
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters(1));
+    assertEquals("http://localhost:1/redirected",
+        client.getRedirectLocation(host1File, NO_COOKIES, ""));
+    assertEquals(0, client.getActiveConnections(host1File));
+  }
+
+  @Test
+  public void testOverloadReducesLimit() throws IOException {
+    AdaptiveConcurrencyLimiter.Registry limiters = limiters(4);
+    PooledHttpClient client = new PooledHttpClient(delegate, limiters);
+    URL overloadedFile = url("http://localhost:1/overloaded.txt");
+    try {
+      client.issueGetRequest(overloadedFile,
+          NO_COOKIES, "", 20, true, null, null);
+    } catch (AdaptiveConcurrencyLimiter.OverloadedException ex) {
+      // Expected.
+    }
+    assertEquals(2, limiters.get(host1File).getLimit());
+    assertEquals(4, limiters.get(host2File).getLimit());
+    assertEquals(0, client.getActiveConnections(overloadedFile));
+  }
+
+  private static AdaptiveConcurrencyLimiter.Registry limiters(int max) {
+    return new AdaptiveConcurrencyLimiter.Registry(max, 0, 0);
+  }
+
+  private static URL url(String url) {
+    try {
+      return new URL(url);
+    } catch (IOException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.adaptor.sharepoint.SiteDataClient.Paginator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/** Test cases for {@link PrefetchingPaginator}. */
+public class PrefetchingPaginatorTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  /** Runs tasks only when asked to, so tests control when pages arrive. */
+  private final QueuedExecutor executor = new QueuedExecutor();
+  private final PrefetchingPaginator.Weigher<String> lengthWeigher
+      = new PrefetchingPaginator.Weigher<String>() {
+        @Override
+        public long weigh(String page) {
+          return page.length();
+        }
+      };
+
+  @Test
+  public void testReturnsAllPagesInOrder() throws IOException {
+    CountingPaginator delegate = new CountingPaginator("a", "b", "c");
+    PrefetchingPaginator<String> paginator = new PrefetchingPaginator<String>(
+        delegate, new CallerRunsExecutor(), 2, 100, lengthWeigher);
+    assertEquals("a", paginator.next());
+    assertEquals("b", paginator.next());
+    assertEquals("c", paginator.next());
+    assertNull(paginator.next());
+    assertNull(paginator.next());
+    assertEquals(4, delegate.calls);
+  }
+
+  @Test
+  public void testPrefetchLimitedByPages() throws IOException {
+    CountingPaginator delegate = new CountingPaginator("a", "b", "c", "d");
+    final PrefetchingPaginator<String> paginator
+        = new PrefetchingPaginator<String>(delegate, executor, 2, 100,
+            lengthWeigher);
+    executor.runInBackground(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          assertEquals("a", paginator.next());
+        } catch (IOException ex) {
+          throw new AssertionError(ex);
+        }
+      }
+    });
+    executor.runAll();
+    // One page taken and two prefetched.
+    assertEquals(3, delegate.calls);
+    assertEquals("b", paginator.next());
+    executor.runAll();
+    assertEquals(4, delegate.calls);
+  }
+
+  @Test
+  public void testPrefetchLimitedByWeight() throws IOException {
+    CountingPaginator delegate
+        = new CountingPaginator("a", "bbbbb", "c", "d");
+    PrefetchingPaginator<String> paginator = new PrefetchingPaginator<String>(
+        delegate, new CallerRunsExecutor(), 10, 5, lengthWeigher);
+    assertEquals("a", paginator.next());
+    assertEquals(2, delegate.calls);
+    assertEquals("bbbbb", paginator.next());
+    assertEquals(5, delegate.calls);
+  }
+
+  @Test
+  public void testFailureAfterReadyPages() throws IOException {
+    CountingPaginator delegate = new CountingPaginator("a", "b");
+    delegate.failure = new IOException("failed");
+    PrefetchingPaginator<String> paginator = new PrefetchingPaginator<String>(
+        delegate, new CallerRunsExecutor(), 3, 100, lengthWeigher);
+    assertEquals("a", paginator.next());
+    assertEquals("b", paginator.next());
+    thrown.expect(IOException.class);
+    thrown.expectMessage("failed");
+    paginator.next();
+  }
+
+  @Test
+  public void testCloseStopsPrefetching() throws IOException {
+    CountingPaginator delegate = new CountingPaginator("a", "b", "c", "d");
+    final PrefetchingPaginator<String> paginator = new PrefetchingPaginator<String>(
+        delegate, executor, 2, 100, lengthWeigher);
+    executor.runInBackground(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          assertEquals("a", paginator.next());
+        } catch (IOException ex) {
+          throw new AssertionError(ex);
+        }
+      }
+    });
+    paginator.close();
+    executor.runAll();
+    // The fetch queued before closing completes, but nothing more.
+    assertEquals(3, delegate.calls);
+    thrown.expect(IllegalStateException.class);
+    paginator.next();
+  }
+
+  private static class CountingPaginator implements Paginator<String> {
+    private final String[] pages;
+    private int calls;
+    private IOException failure;
+
+    public CountingPaginator(String... pages) {
+      this.pages = pages;
+    }
+
+    @Override
+    public String next() throws IOException {
+      calls++;
+      if (calls <= pages.length) {
+        return pages[calls - 1];
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return null;
+    }
+  }
+
+  /** Executor that queues tasks until the test runs them. */
+  private static class QueuedExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    /**
+     * Runs {@code consumer} in another thread, and runs the fetches it queues
+     * until it completes.
+     */
+    public void runInBackground(Runnable consumer) {
+      Thread thread = new Thread(consumer);
+      thread.start();
+      while (true) {
+        synchronized (this) {
+          if (!tasks.isEmpty()) {
+            break;
+          }
+        }
+        Thread.yield();
+      }
+      runAll();
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+
+    /** Runs queued tasks, including tasks they queue. */
+    public void runAll() {
+      while (true) {
+        Runnable task;
+        synchronized (this) {
+          if (tasks.isEmpty()) {
+            return;
+          }
+          task = tasks.remove(0);
+        }
+        task.run();
+      }
+    }
+  }
+}
@@ -14,11 +14,15 @@
 
 package com.google.enterprise.adaptor.sharepoint;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
 import com.google.common.util.concurrent.ExecutionError;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 
 import org.junit.After;
@@ -27,6 +31,9 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.ws.Holder;
 
 /** Test cases for {@link RareModificationCache}. */
 public class RareModificationCacheTest {
@@ -39,6 +46,8 @@ public class RareModificationCacheTest {
   };
   private SiteDataClient siteDataClient
       = new SiteDataClient(siteDataSoap, false);
+  private final String web1 = "http://localhost:1/sites/SiteCollection";
+  private final String web2 = "http://localhost:1/sites/SiteCollection/SubSite";
   private RareModificationCache cache
       = new RareModificationCache(siteDataClient, executor);
 
@@ -62,13 +71,19 @@ public class RareModificationCacheTest {
     SiteDataClient siteDataClient2 = new SiteDataClient(siteDataSoap, false);
 
     Object v1 = new RareModificationCache.VirtualServerKey(siteDataClient);
-    Object w1 = new RareModificationCache.WebKey(siteDataClient);
-    Object w2 = new RareModificationCache.WebKey(siteDataClient2);
-    Object l1 = new RareModificationCache.ListKey(siteDataClient, "{SomeGUID}");
-    Object l2
-        = new RareModificationCache.ListKey(siteDataClient2, "{SomeGUID}");
-    Object l3 = new RareModificationCache.ListKey(siteDataClient, "{DiffGUID}");
-    Object l4 = new RareModificationCache.ListKey(siteDataClient, "{someguid}");
+    Object w1 = new RareModificationCache.WebKey(web1, siteDataClient);
+    Object w2 = new RareModificationCache.WebKey(web2, siteDataClient);
+    Object w3 = new RareModificationCache.WebKey(web1, siteDataClient2);
+    Object l1 = new RareModificationCache.ListKey(
+        web1, siteDataClient, "{SomeGUID}");
+    Object l2 = new RareModificationCache.ListKey(
+        web2, siteDataClient, "{SomeGUID}");
+    Object l3 = new RareModificationCache.ListKey(
+        web1, siteDataClient, "{DiffGUID}");
+    Object l4 = new RareModificationCache.ListKey(
+        web1, siteDataClient, "{someguid}");
+    Object l5 = new RareModificationCache.ListKey(
+        web1, siteDataClient2, "{SomeGUID}");
 
     assertEquals(v1, v1);
     assertEquals(v1.hashCode(), v1.hashCode());
@@ -98,6 +113,12 @@ public class RareModificationCacheTest {
     assertNotEquals(l1.hashCode(), l3.hashCode());
     assertEquals(l1, l4);
     assertEquals(l1.hashCode(), l4.hashCode());
+
+    // The client used to retrieve them doesn't matter.
+    assertEquals(w1, w3);
+    assertEquals(w1.hashCode(), w3.hashCode());
+    assertEquals(l1, l5);
+    assertEquals(l1.hashCode(), l5.hashCode());
   }
 
   @Test(expected = IOException.class)
@@ -130,6 +151,93 @@ public class RareModificationCacheTest {
     });
   }
 
+  @Test
+  public void testInvalidate() throws IOException {
+    final String listXml = loadResponse(
+        "sites-SiteCollection-Lists-CustomList-l.xml");
+    final String webXml = loadResponse("sites-SiteCollection-s.xml");
+    final AtomicInteger requests = new AtomicInteger();
+    SiteDataSoap contentSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        requests.incrementAndGet();
+        getContentResult.value
+            = objectType == ObjectType.LIST ? listXml : webXml;
+      }
+    };
+    SiteDataClient client1 = new SiteDataClient(contentSiteData, false);
+    SiteDataClient client2 = new SiteDataClient(contentSiteData, false);
+    cache.getWeb(web1, client1);
+    cache.getList(web1, client1, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    cache.getList(web1, client1, "{7F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    cache.getList(web2, client2, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    assertEquals(4, cache.size());
+
+    cache.invalidateLists(web1);
+    assertEquals(2, cache.size());
+    cache.invalidateWeb(web1);
+    cache.invalidateList(web2, "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}");
+    assertEquals(0, cache.size());
+
+    cache.getWeb(web1, client1);
+    cache.getWeb(web1, client1);
+    assertEquals(5, requests.get());
+
+    // A web cached with one client is found, and invalidated, without it.
+    cache.getWeb(web1, client2);
+    assertEquals(5, requests.get());
+    cache.invalidateWeb(web1);
+    cache.getWeb(web1, client2);
+    assertEquals(6, requests.get());
+
+    // Lists reloaded after being invalidated are still found by web.
+    cache.getList(web2, client2, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    cache.getList(web2, client2, "{7F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    assertEquals(3, cache.size());
+    cache.invalidateLists(web2);
+    assertEquals(1, cache.size());
+    cache.invalidateLists(web2);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testListKeepsListItemMemberIds() throws IOException {
+    final String listXml = loadResponse(
+        "sites-SiteCollection-Lists-CustomList-l.xml");
+    SiteDataSoap contentSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        getContentResult.value = listXml;
+      }
+    };
+    RareModificationCache.CachedList list = cache.getList(web1,
+        new SiteDataClient(contentSiteData, false),
+        "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}");
+    // Member 1 can not view list items.
+    assertArrayEquals(new int[] {3, 4, 5}, list.listItemMemberIds);
+  }
+
+  private static String loadResponse(String name) throws IOException {
+    return Resources.toString(RareModificationCacheTest.class.getResource(
+        "spresponses/" + name), Charsets.UTF_8);
+  }
+
   private void assertNotEquals(Object o, Object o2) {
     assertFalse(o.equals(o2));
   }
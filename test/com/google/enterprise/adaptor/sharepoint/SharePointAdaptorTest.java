@@ -24,6 +24,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.base.Objects;
 import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
@@ -35,9 +36,12 @@ import com.google.enterprise.adaptor.InvalidConfigurationException;
 import com.google.enterprise.adaptor.Metadata;
 import com.google.enterprise.adaptor.Principal;
 import com.google.enterprise.adaptor.StartupException;
+import com.google.enterprise.adaptor.Status;
+import com.google.enterprise.adaptor.StatusSource;
 import com.google.enterprise.adaptor.UserPrincipal;
 import com.google.enterprise.adaptor.sharepoint.ActiveDirectoryClient.ADServer;
 import com.google.enterprise.adaptor.sharepoint.SamlAuthenticationHandler.SamlHandshakeManager;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.ExecutorFactory;
 import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.FileInfo;
 import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.HttpClient;
 import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SharePointUrl;
@@ -51,6 +55,9 @@ import com.google.enterprise.adaptor.testing.UnsupportedDocIdPusher;
 import com.microsoft.schemas.sharepoint.soap.ItemData;
 import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
+import com.microsoft.schemas.sharepoint.soap.SPList;
+import com.microsoft.schemas.sharepoint.soap.SPSite;
+import com.microsoft.schemas.sharepoint.soap.SPWeb;
 import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
 import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationMode;
@@ -104,9 +111,12 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
@@ -123,13 +133,23 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import javax.xml.ws.Binding;
 import javax.xml.ws.BindingProvider;
@@ -276,6 +296,8 @@ public class SharePointAdaptorTest {
   private static final String DEFAULT_NAMESPACE = "Default";
   private static final String SITES_SITECOLLECTION_NAMESPACE
       = "Default_http://localhost:1/sites/SiteCollection";
+  private static final String SITE_COLLECTION_ASPX
+      = "http://localhost:1/sites/SiteCollection/default.aspx";
   private static final UserPrincipal NT_AUTHORITY_LOCAL_SERVICE
       = new UserPrincipal("NT AUTHORITY\\LOCAL SERVICE", DEFAULT_NAMESPACE);
   private static final GroupPrincipal NT_AUTHORITY_AUTHENTICATED_USERS
@@ -285,6 +307,8 @@ public class SharePointAdaptorTest {
       = new UserPrincipal("GDC-PSL\\administrator", DEFAULT_NAMESPACE);
   private static final UserPrincipal GDC_PSL_SPUSER1
       = new UserPrincipal("GDC-PSL\\spuser1", DEFAULT_NAMESPACE);
+  private static final UserPrincipal GDC_PSL_SPUSER100
+      = new UserPrincipal("GDC-PSL\\spuser100", DEFAULT_NAMESPACE);
   private static final GroupPrincipal SITES_SITECOLLECTION_OWNERS
       = new GroupPrincipal("chinese1 Owners",
           SITES_SITECOLLECTION_NAMESPACE);
@@ -310,13 +334,18 @@ public class SharePointAdaptorTest {
   private Config config;
   private SharePointAdaptor adaptor;
   private DocIdPusher pusher = new UnsupportedDocIdPusher();
-  private Callable<ExecutorService> executorFactory
-      = new Callable<ExecutorService>() {
-        @Override
-        public ExecutorService call() {
-          return new CallerRunsExecutor();
-        }
-      };
+  private ExecutorFactory executorFactory = new ExecutorFactory() {
+    @Override
+    public ExecutorService newExecutor(int coreThreads, int maxThreads,
+        int queueSize) {
+      return new CallerRunsExecutor();
+    }
+
+    @Override
+    public ExecutorService newTraversalExecutor(int threads) {
+      return new CallerRunsExecutor();
+    }
+  };
   private final MockSoapFactory initableSoapFactory
       = MockSoapFactory.blank()
       .endpoint(VS_ENDPOINT, MockSiteData.blank()
@@ -327,6 +356,9 @@ public class SharePointAdaptorTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
   /**
    * JAXBContext is expensive to create and is created as part of the class'
    * initialization. Do this in a separately so that the timing for this
@@ -2097,6 +2129,518 @@ public class SharePointAdaptorTest {
     assertEquals(goldenGroups, pusher.getGroupDefinitions());
   }
 
+  @Test
+  public void testMemberIdRefreshSharedByConcurrentRequests()
+      throws Exception {
+    final int requests = 3;
+    CountDownLatch websRetrieved = new CountDownLatch(requests);
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()),
+        countingWebs(subSiteData("SubSite", 100), websRetrieved),
+        new UnsupportedSiteData());
+    GatedSiteData newSiteData
+        = new GatedSiteData(siteDataWithNewMembers(), websRetrieved);
+    siteData.setSiteDataSoap(newSiteData);
+
+    List<RecordingResponse> responses = getDocContentConcurrently(
+        Collections.nCopies(requests,
+          "http://localhost:1/sites/SiteCollection/SubSite"));
+    for (RecordingResponse response : responses) {
+      assertEquals(subSiteAcl(GDC_PSL_SPUSER100), response.getAcl());
+    }
+    assertEquals(1, newSiteData.siteCollectionCalls.get());
+  }
+
+  @Test
+  public void testMemberIdRefreshSharedByWebsOfSiteCollection()
+      throws Exception {
+    CountDownLatch websRetrieved = new CountDownLatch(2);
+    final AtomicLong siteUserCalls = new AtomicLong();
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()) {
+      @Override
+      public GetUserCollectionFromSiteResponse.GetUserCollectionFromSiteResult
+          getUserCollectionFromSite() {
+        siteUserCalls.incrementAndGet();
+        return super.getUserCollectionFromSite();
+      }
+    }, countingWebs(subSiteData("SubSite", 100), websRetrieved),
+        countingWebs(subSiteData("SubSite2", 101), websRetrieved));
+    GatedSiteData newSiteData
+        = new GatedSiteData(siteDataWithNewMembers(), websRetrieved);
+    siteData.setSiteDataSoap(newSiteData);
+
+    List<RecordingResponse> responses = getDocContentConcurrently(
+        Arrays.asList("http://localhost:1/sites/SiteCollection/SubSite",
+          "http://localhost:1/sites/SiteCollection/SubSite2"));
+    assertEquals(subSiteAcl(GDC_PSL_SPUSER100), responses.get(0).getAcl());
+    assertEquals(subSiteAcl(
+          new UserPrincipal("GDC-PSL\\spuser101", DEFAULT_NAMESPACE)),
+        responses.get(1).getAcl());
+    assertEquals(1, newSiteData.siteCollectionCalls.get());
+    assertEquals(1, siteUserCalls.get());
+  }
+
+  @Test
+  public void testMemberIdRefreshTimeoutUsesStaleMapping() throws Exception {
+    config.overrideKey("sharepoint.memberIdRefreshTimeoutSecs", "1");
+    final CountDownLatch refreshesReleased = new CountDownLatch(1);
+    final AtomicLong siteUserCalls = new AtomicLong();
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()) {
+      @Override
+      public GetUserCollectionFromSiteResponse.GetUserCollectionFromSiteResult
+          getUserCollectionFromSite() {
+        // Only the refresh is slow, not the first retrieval.
+        if (siteUserCalls.incrementAndGet() > 1) {
+          Uninterruptibles.awaitUninterruptibly(
+              refreshesReleased, 10, TimeUnit.SECONDS);
+        }
+        return super.getUserCollectionFromSite();
+      }
+    }, subSiteData("SubSite", 100), new UnsupportedSiteData());
+    siteData.setSiteDataSoap(
+        new GatedSiteData(siteDataWithNewMembers(), refreshesReleased));
+    final List<LogRecord> warnings
+        = Collections.synchronizedList(new ArrayList<LogRecord>());
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if (Level.WARNING.equals(record.getLevel())) {
+          warnings.add(record);
+        }
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    Logger logger = Logger.getLogger(SharePointAdaptor.class.getName());
+    logger.addHandler(handler);
+    RecordingResponse response = new RecordingResponse();
+    long elapsedMillis;
+    try {
+      long start = System.nanoTime();
+      adaptor.getDocContent(new DocRequest(new DocId(
+          "http://localhost:1/sites/SiteCollection/SubSite")), response);
+      elapsedMillis
+          = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    } finally {
+      logger.removeHandler(handler);
+      refreshesReleased.countDown();
+    }
+
+    // Both mappings were refreshed, but the timeout applied to them together.
+    assertTrue("Waited " + elapsedMillis + " ms", elapsedMillis < 2000);
+    assertEquals(subSiteAcl(), response.getAcl());
+    boolean logged = false;
+    synchronized (warnings) {
+      for (LogRecord record : warnings) {
+        if (record.getMessage().startsWith("Timed out refreshing")) {
+          assertEquals(Arrays.asList(100), record.getParameters()[1]);
+          logged = true;
+        }
+      }
+    }
+    assertTrue(logged);
+  }
+
+  @Test
+  public void testMemberIdRefreshFailurePropagates() throws Exception {
+    final SiteDataSoap newSiteData = siteDataWithNewMembers();
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()),
+        subSiteData("SubSite", 100), new UnsupportedSiteData());
+    siteData.setSiteDataSoap(new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return newSiteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        if (objectType == ObjectType.SITE_COLLECTION) {
+          throw new WebServiceException("Mock SOAP error");
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    });
+    thrown.expect(IOException.class);
+    adaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")),
+        new RecordingResponse());
+  }
+
+  @Test
+  public void testMemberIdRefreshNotQueuedBehindExecutor() throws Exception {
+    config.overrideKey("sharepoint.memberIdRefreshTimeoutSecs", "5");
+    executorFactory = new ExecutorFactory() {
+      @Override
+      public ExecutorService newExecutor(int coreThreads, int maxThreads,
+          int queueSize) {
+        // Saturated by crawl work: accepts tasks, but never gets to them.
+        return new CallerRunsExecutor() {
+          @Override
+          public void execute(Runnable command) {}
+        };
+      }
+
+      @Override
+      public ExecutorService newTraversalExecutor(int threads) {
+        return new CallerRunsExecutor();
+      }
+    };
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()),
+        subSiteData("SubSite", 100), new UnsupportedSiteData());
+    siteData.setSiteDataSoap(siteDataWithNewMembers());
+
+    RecordingResponse response = new RecordingResponse();
+    adaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(subSiteAcl(GDC_PSL_SPUSER100), response.getAcl());
+  }
+
+  @Test
+  public void testScopeAclCached() throws Exception {
+    CountingCallable<MemberIdMapping> memberIds
+        = new CountingCallable<MemberIdMapping>(
+            subSiteMemberIds().build());
+    SharePointAdaptor.SiteAdaptor siteAdaptor = subSiteAdaptor(
+        subSiteData("SubSite"), memberIds,
+        new UnsupportedCallable<MemberIdMapping>());
+    for (int i = 0; i < 2; i++) {
+      RecordingResponse response = new RecordingResponse();
+      siteAdaptor.getDocContent(new DocRequest(new DocId(
+          "http://localhost:1/sites/SiteCollection/SubSite")), response);
+      assertEquals(subSiteAcl(), response.getAcl());
+    }
+    assertEquals(1, memberIds.calls.get());
+  }
+
+  @Test
+  public void testScopeAclNotCachedForChangedPermissions() throws Exception {
+    CountingCallable<MemberIdMapping> memberIds
+        = new CountingCallable<MemberIdMapping>(
+            subSiteMemberIds().build());
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    siteData.setSiteDataSoap(subSiteData("SubSite"));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = subSiteAdaptor(siteData,
+        memberIds, new UnsupportedCallable<MemberIdMapping>());
+    RecordingResponse response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(subSiteAcl(), response.getAcl());
+
+    // The scope now also grants read access to the Reviewers.
+    siteData.setSiteDataSoap(subSiteData("SubSite", 6));
+    response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(new HashSet<GroupPrincipal>(Arrays.asList(
+          SITES_SITECOLLECTION_MEMBERS, SITES_SITECOLLECTION_OWNERS,
+          SITES_SITECOLLECTION_REVIEWERS)),
+        response.getAcl().getPermitGroups());
+    assertEquals(2, memberIds.calls.get());
+  }
+
+  @Test
+  public void testScopeAclNotCachedWithUnresolvedMember() throws Exception {
+    CountingCallable<MemberIdMapping> memberIds
+        = new CountingCallable<MemberIdMapping>(
+            subSiteMemberIds().build());
+    SharePointAdaptor.SiteAdaptor siteAdaptor = subSiteAdaptor(
+        subSiteData("SubSite", 100), memberIds,
+        Callables.returning(new MemberIdMappingBuilder().build()));
+    RecordingResponse response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(subSiteAcl(), response.getAcl());
+
+    // Member 100 is now known, which the second request must notice.
+    memberIds.value.set(
+        subSiteMemberIds().put(100, GDC_PSL_SPUSER100).build());
+    response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(subSiteAcl(GDC_PSL_SPUSER100), response.getAcl());
+  }
+
+  @Test
+  public void testScopeAclCachedForReadSecurity() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+            .replaceInContent("ReadSecurity=\"1\"", "ReadSecurity=\"2\""))
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE
+            .replaceInContent("ows_Attachments='1'", "ows_Attachments='0'"));
+    Users users = new Users();
+    users.getUser().add(createUserGroupUser(1073741823, "System.Account",
+        "S-1-5-21-7369343", "System Account", "System.Account@domain.com",
+        false, true));
+    MockUserGroupSoap mockUserGroupSoap = new MockUserGroupSoap(users);
+    adaptor = new SharePointAdaptor(
+        initableSoapFactory
+          .endpoint(
+              "http://localhost:1/sites/SiteCollection/_vti_bin/UserGroup.asmx",
+              mockUserGroupSoap)
+          .endpoint(SITES_SITECOLLECTION_ENDPOINT, new UnsupportedSiteData()),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    CountingCallable<MemberIdMapping> memberIds
+        = new CountingCallable<MemberIdMapping>(
+            SITES_SITECOLLECTION_MEMBER_MAPPING);
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", siteData,
+        mockUserGroupSoap, new UnsupportedPeopleSoap(), memberIds,
+        adaptor.new SiteUserIdMappingCallable(
+            "http://localhost:1/sites/SiteCollection"));
+    DocRequest request = new DocRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+            + "Test Folder/2_.000"));
+    RecordingResponse first = new RecordingResponse();
+    siteAdaptor.getDocContent(request, first);
+    memberIds.calls.set(0);
+
+    RecordingResponse second = new RecordingResponse();
+    siteAdaptor.getDocContent(request, second);
+    assertEquals(first.getAcl(), second.getAcl());
+    assertEquals(first.getNamedResources(), second.getNamedResources());
+    // Both scope ACLs were cached; only the author was resolved again.
+    assertEquals(1, memberIds.calls.get());
+  }
+
+  @Test
+  public void testScopeAclInvalidatedWithMemberIds() throws Exception {
+    ReferenceSiteData siteData = new ReferenceSiteData();
+    initWithMemberIdsCached(siteData, new MockUserGroupSoap(new Users()),
+        subSiteData("SubSite"), new UnsupportedSiteData());
+    RecordingResponse response = new RecordingResponse();
+    adaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(subSiteAcl(), response.getAcl());
+
+    // The login name of member 2 changed along with the site collection.
+    siteData.setSiteDataSoap(MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE
+          .replaceInContent("LoginName=\"GDC-PSL\\spuser1\"",
+              "LoginName=\"GDC-PSL\\spuser1b\"")));
+    SPSite site = new SPSite();
+    site.setChange("Update");
+    site.setServerUrl("http://localhost:1");
+    site.setDisplayUrl("/sites/SiteCollection");
+    SPContentDatabase changes = new SPContentDatabase();
+    changes.setChange("Unchanged");
+    changes.getSPSite().add(site);
+    adaptor.getModifiedDocIdsContentDatabase(
+        changes, new ArrayList<DocId>(), new HashSet<String>());
+
+    response = new RecordingResponse();
+    adaptor.getDocContent(new DocRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/SubSite")), response);
+    assertEquals(
+        Collections.singleton(
+          new UserPrincipal("GDC-PSL\\spuser1b", DEFAULT_NAMESPACE)),
+        response.getAcl().getPermitUsers());
+  }
+
+  /**
+   * Initializes {@link #adaptor} for the site collection and its subsites
+   * SubSite and SubSite2, and caches the member ids of the site collection by
+   * retrieving it once.
+   */
+  private void initWithMemberIdsCached(ReferenceSiteData siteData,
+      UserGroupSoap userGroup, SiteDataSoap subSite, SiteDataSoap subSite2)
+      throws Exception {
+    String siteUrl = "http://localhost:1/sites/SiteCollection";
+    String subSiteUrl = siteUrl + "/SubSite";
+    String subSite2Url = siteUrl + "/SubSite2";
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(VS_CONTENT_EXCHANGE)
+            .register(CD_CONTENT_EXCHANGE)
+            .register(ROOT_SITE_SAW_EXCHANGE)
+            .register(SITES_SITECOLLECTION_SAW_EXCHANGE)
+            .register(new SiteAndWebExchange(subSiteUrl, 0, siteUrl,
+                subSiteUrl))
+            .register(new SiteAndWebExchange(subSite2Url, 0, siteUrl,
+                subSite2Url)))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, siteData)
+        .endpoint(subSiteUrl + "/_vti_bin/SiteData.asmx", subSite)
+        .endpoint(subSite2Url + "/_vti_bin/SiteData.asmx", subSite2)
+        .endpoint(siteUrl + "/_vti_bin/UserGroup.asmx", userGroup);
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, new RecordingDocIdPusher()));
+    siteData.setSiteDataSoap(MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE));
+    adaptor.getDocContent(new DocRequest(new DocId(siteUrl)),
+        new RecordingResponse());
+  }
+
+  /**
+   * The site collection after members 100 and 101 were added, which the
+   * member ids cached by {@link #initWithMemberIdsCached} do not know.
+   */
+  private static SiteDataSoap siteDataWithNewMembers() {
+    return MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE
+          .replaceInContent("<User ID=\"11\"",
+              "<User ID=\"100\" Sid=\"\" Name=\"spuser100\""
+              + " LoginName=\"GDC-PSL\\spuser100\" IsSiteAdmin=\"False\""
+              + " IsDomainGroup=\"False\" />"
+              + "<User ID=\"101\" Sid=\"\" Name=\"spuser101\""
+              + " LoginName=\"GDC-PSL\\spuser101\" IsSiteAdmin=\"False\""
+              + " IsDomainGroup=\"False\" />"
+              + "<User ID=\"11\""));
+  }
+
+  /**
+   * A subsite of the site collection with unique permissions, which
+   * additionally grant read access to {@code memberIds}.
+   */
+  private static SiteDataSoap subSiteData(String name, int... memberIds) {
+    StringBuilder permissions = new StringBuilder();
+    for (int memberId : memberIds) {
+      permissions.append("<permission memberid='").append(memberId)
+          .append("' mask='756052856929' />");
+    }
+    return MockSiteData.blank()
+        .register(new URLSegmentsExchange.Builder(
+              "http://localhost:1/sites/SiteCollection/" + name)
+            .setResult(true)
+            .setWebId("WebId")
+            .build())
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE
+            .replaceInContent("/SiteCollection", "/SiteCollection/" + name)
+            .replaceInContent(
+                "ScopeID=\"{01abac8c-66c8-4fed-829c-8dd02bbf40dd}\"",
+                "ScopeID=\"{7ac581ea-fdd1-4b0d-a5de-fc1b69e57a8d}\"")
+            .replaceInContent(
+                "<permission memberid='4' mask='756052856929' />",
+                "<permission memberid='4' mask='0' />")
+            .replaceInContent("</permissions>",
+                permissions + "</permissions>"));
+  }
+
+  /** ACL of a subsite from {@link #subSiteData} that grants {@code users}. */
+  private static Acl subSiteAcl(UserPrincipal... users) {
+    List<UserPrincipal> permitUsers = new ArrayList<UserPrincipal>();
+    permitUsers.add(GDC_PSL_SPUSER1);
+    permitUsers.addAll(Arrays.asList(users));
+    return new Acl.Builder()
+        .setEverythingCaseInsensitive()
+        .setInheritFrom(new DocId("http://localhost:1/sites/SiteCollection"),
+          "admin")
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+        .setPermitGroups(Arrays.asList(SITES_SITECOLLECTION_MEMBERS,
+            SITES_SITECOLLECTION_OWNERS))
+        .setPermitUsers(permitUsers)
+        .build();
+  }
+
+  /** Member ids of the site collection, as needed by {@link #subSiteData}. */
+  private static MemberIdMappingBuilder subSiteMemberIds() {
+    return new MemberIdMappingBuilder()
+        .put(2, GDC_PSL_SPUSER1)
+        .put(3, SITES_SITECOLLECTION_OWNERS)
+        .put(4, SITES_SITECOLLECTION_VISITORS)
+        .put(5, SITES_SITECOLLECTION_MEMBERS)
+        .put(6, SITES_SITECOLLECTION_REVIEWERS);
+  }
+
+  /**
+   * Initializes {@link #adaptor} and returns a SiteAdaptor for the subsite
+   * SubSite, whose web is retrieved from {@code subSite}.
+   */
+  private SharePointAdaptor.SiteAdaptor subSiteAdaptor(SiteDataSoap subSite,
+      Callable<MemberIdMapping> memberIdMappingCallable,
+      Callable<MemberIdMapping> siteUserIdMappingCallable) throws Exception {
+    adaptor = new SharePointAdaptor(
+        initableSoapFactory.endpoint(SITES_SITECOLLECTION_ENDPOINT,
+          MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    return adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection/SubSite", subSite,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        memberIdMappingCallable, siteUserIdMappingCallable);
+  }
+
+  /** Counts down {@code websRetrieved} each time the web is retrieved. */
+  private static SiteDataSoap countingWebs(final SiteDataSoap siteData,
+      final CountDownLatch websRetrieved) {
+    return new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+        if (objectType == ObjectType.SITE) {
+          websRetrieved.countDown();
+        }
+      }
+    };
+  }
+
+  /** Requests each of {@code urls} at the same time. */
+  private List<RecordingResponse> getDocContentConcurrently(List<String> urls)
+      throws Exception {
+    ExecutorService requestExecutor = Executors.newFixedThreadPool(urls.size());
+    try {
+      List<Future<RecordingResponse>> futures
+          = new ArrayList<Future<RecordingResponse>>();
+      for (final String url : urls) {
+        futures.add(requestExecutor.submit(new Callable<RecordingResponse>() {
+          @Override
+          public RecordingResponse call() throws Exception {
+            RecordingResponse response = new RecordingResponse();
+            adaptor.getDocContent(new DocRequest(new DocId(url)), response);
+            return response;
+          }
+        }));
+      }
+      List<RecordingResponse> responses = new ArrayList<RecordingResponse>();
+      for (Future<RecordingResponse> future : futures) {
+        responses.add(future.get(10, TimeUnit.SECONDS));
+      }
+      return responses;
+    } finally {
+      requestExecutor.shutdownNow();
+    }
+  }
+
   @Test
   public void testGetDocContentSiteCollectionWithAdGroup() throws Exception {
     final Map<GroupPrincipal, Collection<Principal>> goldenGroups;
@@ -2381,65 +2925,228 @@ public class SharePointAdaptorTest {
   }
 
   @Test
-  public void testGetDocContentListNoIndex() throws Exception {
+  public void testGetDocContentListUsesCachedListAndWeb() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
-        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
-          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""));
+        .register(new ContentExchange.Builder(ObjectType.LIST)
+          .setObjectId("{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}")
+          .setRetrieveChildItems(false)
+          .setSecurityOnly(false)
+          .setResult(
+              loadTestString("sites-SiteCollection-Lists-CustomList-l.xml"))
+          .setUseOnce(true)
+          .build())
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(new ContentExchange.Builder(ObjectType.SITE)
+          .setRetrieveChildItems(true)
+          .setSecurityOnly(false)
+          .setResult(loadTestString("sites-SiteCollection-s.xml"))
+          .setUseOnce(true)
+          .build());
 
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
-    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.init(new MockAdaptorContext(config, new RecordingDocIdPusher()));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", siteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+        new UnsupportedCallable<MemberIdMapping>());
     DocRequest request = new DocRequest(
         new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
           + "AllItems.aspx"));
-    RecordingResponse response = new RecordingResponse();
-    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
-          "http://localhost:1/sites/SiteCollection", siteData,
-          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
-          new UnsupportedCallable<MemberIdMapping>(),
-          new UnsupportedCallable<MemberIdMapping>())
-        .getDocContent(request, response);
-    assertEquals(State.NOT_FOUND, response.getState());
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    siteAdaptor.getDocContent(request, new RecordingResponse(first));
+    // The list and web are only available once.
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    RecordingResponse response = new RecordingResponse(second);
+    siteAdaptor.getDocContent(request, response);
+    assertEquals(new String(first.toByteArray(), charset),
+        new String(second.toByteArray(), charset));
+    assertEquals(new Date(1336166672000L), response.getLastModified());
   }
 
   @Test
-  public void testGetDocContentListNonDefaultView() throws Exception {
+  public void testModifiedGetDocIdsUnchangedWebUpdateSecurity()
+      throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
-        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)       
-        .register(new URLSegmentsExchange
-            .Builder("http://localhost:1/sites/SiteCollection/Lists/"
-                + "Custom List/NonDefault.aspx")
-            .setResult(false)
-            .build())
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE);
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(ContentExchange.Builder.fromContentExchange(
+              SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+          .setUseOnce(true)
+          .build())
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""))
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
-    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.init(new MockAdaptorContext(config, new RecordingDocIdPusher()));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", siteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+        new UnsupportedCallable<MemberIdMapping>());
     DocRequest request = new DocRequest(
         new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
-          + "NonDefault.aspx"));
+          + "AllItems.aspx"));
     RecordingResponse response = new RecordingResponse();
-    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
-          "http://localhost:1/sites/SiteCollection", siteData,
-          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
-          new UnsupportedCallable<MemberIdMapping>(),
-          new UnsupportedCallable<MemberIdMapping>())
-        .getDocContent(request, response);
+    siteAdaptor.getDocContent(request, response);
+    assertEquals(State.SEND_BODY, response.getState());
+
+    // The web itself is unchanged, but its security was updated.
+    SPWeb web = new SPWeb();
+    web.setChange("Unchanged");
+    web.setUpdateSecurity(
+        com.microsoft.schemas.sharepoint.soap.TrueFalseType.TRUE);
+    web.setServerUrl("http://localhost:1");
+    web.setDisplayUrl("/sites/SiteCollection");
+    SPSite site = new SPSite();
+    site.setChange("Unchanged");
+    site.setServerUrl("http://localhost:1");
+    site.setDisplayUrl("/sites/SiteCollection");
+    site.getSPWeb().add(web);
+    SPContentDatabase changes = new SPContentDatabase();
+    changes.setChange("Unchanged");
+    changes.getSPSite().add(site);
+    List<DocId> docIds = new ArrayList<DocId>();
+    adaptor.getModifiedDocIdsContentDatabase(
+        changes, docIds, new HashSet<String>());
+    assertEquals(Collections.emptyList(), docIds);
+
+    // The cached list was invalidated, so the updated list is retrieved.
+    response = new RecordingResponse();
+    siteAdaptor.getDocContent(request, response);
     assertEquals(State.NOT_FOUND, response.getState());
   }
-  
+
   @Test
-  public void testGetDocContentListEmptyDefaultView() throws Exception {
+  public void testModifiedGetDocIdsListWithoutIdAttribute() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(ContentExchange.Builder.fromContentExchange(
+              SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+          .setUseOnce(true)
+          .build())
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
-            .replaceInContent("DefaultViewUrl=\"/sites/SiteCollection/Lists/"
+          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""))
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, new RecordingDocIdPusher()));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", siteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+        new UnsupportedCallable<MemberIdMapping>());
+    DocRequest request = new DocRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx"));
+    RecordingResponse response = new RecordingResponse();
+    siteAdaptor.getDocContent(request, response);
+    assertEquals(State.SEND_BODY, response.getState());
+
+    // Like SharePoint, the SPList has no Id attribute and only identifies the
+    // list in its metadata.
+    SPContentDatabase changes = parseChanges(
+        loadTestString("testModifiedGetDocIdsClient.changes-cd.xml")
+        .replace("<SPSite Change=\"Unchanged\" ItemCount=\"1\">",
+          "<SPSite Change=\"Unchanged\" ItemCount=\"1\""
+          + " ServerUrl=\"http://localhost:1\""
+          + " DisplayUrl=\"/sites/SiteCollection\">")
+        .replace("<SPWeb Change=\"Unchanged\" ItemCount=\"1\">",
+          "<SPWeb Change=\"Unchanged\" ItemCount=\"1\""
+          + " ServerUrl=\"http://localhost:1\""
+          + " DisplayUrl=\"/sites/SiteCollection\">")
+        .replace("{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}",
+          "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}"));
+    for (Object o : changes.getSPSite().get(0).getSPWeb().get(0)
+        .getSPFolderOrSPListOrSPFile()) {
+      if (o instanceof SPList) {
+        assertNull(((SPList) o).getId());
+      }
+    }
+    adaptor.getModifiedDocIdsContentDatabase(
+        changes, new ArrayList<DocId>(), new HashSet<String>());
+
+    // The cached list was invalidated, so the updated list is retrieved.
+    response = new RecordingResponse();
+    siteAdaptor.getDocContent(request, response);
+    assertEquals(State.NOT_FOUND, response.getState());
+  }
+
+  @Test
+  public void testGetDocContentListNoIndex() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""));
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    DocRequest request = new DocRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx"));
+    RecordingResponse response = new RecordingResponse();
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertEquals(State.NOT_FOUND, response.getState());
+  }
+
+  @Test
+  public void testGetDocContentListNonDefaultView() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)       
+        .register(new URLSegmentsExchange
+            .Builder("http://localhost:1/sites/SiteCollection/Lists/"
+                + "Custom List/NonDefault.aspx")
+            .setResult(false)
+            .build())
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE);
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    DocRequest request = new DocRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "NonDefault.aspx"));
+    RecordingResponse response = new RecordingResponse();
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertEquals(State.NOT_FOUND, response.getState());
+  }
+  
+  @Test
+  public void testGetDocContentListEmptyDefaultView() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+            .replaceInContent("DefaultViewUrl=\"/sites/SiteCollection/Lists/"
             + "Custom List/AllItems.aspx\"", "DefaultViewUrl=\"/\""))        
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
@@ -2488,7 +3195,8 @@ public class SharePointAdaptorTest {
       @Override
       public FileInfo issueGetRequest(URL url,
           List<String> authenticationCookies, String adaptorUserAgent,
-          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+          int maxRedirectsToFollow, boolean performBrowserLeniency,
+          Date ifModifiedSince, String ifNoneMatch) {
         assertEquals(
           "http://localhost:1/sites/SiteCollection/Lists/Custom%20List/"
             + "Attachments/2/1046000.pdf",
@@ -2547,6 +3255,61 @@ public class SharePointAdaptorTest {
     assertEquals(new Date(1335910481000L), response.getLastModified());
   }
   
+  @Test
+  public void testGetDocContentAttachmentListResolvedOnce() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE);
+    final String site = "http://localhost:1/sites/SiteCollection";
+    final String attachmentId = site + "/Lists/Custom List/Attachments/2/104600"
+        + "0.pdf";
+    final AtomicLong redirectProbes = new AtomicLong();
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new HttpClient() {
+      @Override
+      public FileInfo issueGetRequest(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent,
+          int maxRedirectsToFollow, boolean performBrowserLeniency,
+          Date ifModifiedSince, String ifNoneMatch) {
+        return new FileInfo.Builder(new ByteArrayInputStream(new byte[0]))
+            .setHeaders(Collections.<String>emptyList()).build();
+      }
+
+      @Override
+      public String getRedirectLocation(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent)
+          throws IOException {
+        redirectProbes.incrementAndGet();
+        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+            + "/AllItems.aspx";
+      }
+
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url)
+          throws IOException {
+        throw new UnsupportedOperationException();
+      }
+    }, executorFactory, new MockAuthenticationClientFactoryForms(),
+    new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>());
+    for (int i = 0; i < 3; i++) {
+      RecordingResponse response = new RecordingResponse();
+      siteAdaptor.getDocContent(new DocRequest(new DocId(attachmentId)),
+          response);
+      assertEquals("Attachment",
+          response.getMetadata().getOneValue("google:objecttype"));
+    }
+    assertEquals(1, redirectProbes.get());
+  }
+
   @Test
   public void testGetDocContentAttachmentDeletedParent() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
@@ -2569,7 +3332,8 @@ public class SharePointAdaptorTest {
       @Override
       public FileInfo issueGetRequest(URL url,
           List<String> authenticationCookies, String adaptorUserAgent,
-          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+          int maxRedirectsToFollow, boolean performBrowserLeniency,
+          Date ifModifiedSince, String ifNoneMatch) {
         throw new UnsupportedOperationException();
       }
 
@@ -2621,7 +3385,8 @@ public class SharePointAdaptorTest {
       @Override
       public FileInfo issueGetRequest(URL url,
           List<String> authenticationCookies, String adaptorUserAgent,
-          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+          int maxRedirectsToFollow, boolean performBrowserLeniency,
+          Date ifModifiedSince, String ifNoneMatch) {
         InputStream contents = new ByteArrayInputStream(new byte[0]);
         List<String> headers = Arrays.asList(
             "Content-Type", "application/vnd.ms-excel.12");
@@ -3114,6 +3879,53 @@ public class SharePointAdaptorTest {
         response.getDisplayUrl());
   }
   
+  @Test
+  public void testEvictedSiteAdaptorClosedOnceUnused() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ClosingSiteData siteData = new ClosingSiteData();
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>());
+    assertTrue(siteAdaptor.acquire());
+    assertTrue(siteAdaptor.acquire());
+    siteAdaptor.evict();
+    assertFalse(siteData.closed);
+    siteAdaptor.release();
+    assertFalse(siteData.closed);
+    siteAdaptor.release();
+    assertTrue(siteData.closed);
+    assertFalse(siteAdaptor.acquire());
+  }
+
+  @Test
+  public void testEvictedIdleSiteAdaptorClosed() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ClosingSiteData siteData = new ClosingSiteData();
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>());
+    assertTrue(siteAdaptor.acquire());
+    siteAdaptor.release();
+    assertFalse(siteData.closed);
+    siteAdaptor.evict();
+    assertTrue(siteData.closed);
+    assertFalse(siteAdaptor.acquire());
+  }
+
   @Test
   public void testGetDocContentMsgFile() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
@@ -3144,7 +3956,8 @@ public class SharePointAdaptorTest {
           @Override
           public FileInfo issueGetRequest(URL url,
               List<String> authenticationCookies, String adaptorUserAgent,
-              int maxRedirectsToFollow, boolean performBrowserLeniency) {
+              int maxRedirectsToFollow, boolean performBrowserLeniency,
+              Date ifModifiedSince, String ifNoneMatch) {
             assertEquals("http://localhost:1/sites/SiteCollection/Lists/"
                 + "Custom%20List/outlookFile.msg", url.toString());
             InputStream contents = new ByteArrayInputStream(
@@ -3194,6 +4007,245 @@ public class SharePointAdaptorTest {
     assertEquals("application/vnd.ms-outlook", response.getContentType());
   }
 
+  @Test
+  public void testGetDocContentDocumentNeverRespondsWithNoContent()
+      throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE
+            .replaceInContent("2_.000", "cs.pdf")
+            .replaceInContent("ows_ContentTypeId='0x0100",
+                "ows_ContentTypeId='0x0101")
+            .replaceInContent("Inside Folder", "Under List")
+            .replaceInContent("/Test Folder", "")
+            .replaceInContent("/Test%20Folder", "")
+            .replaceInContent(
+              "ows_ScopeId='2;#{2E29615C-59E7-493B-B08A-3642949CC069}'",
+              "ows_ScopeId='2;#{f9cb02b3-7f29-4cac-804f-ba6e14f1eb39}'"))
+        .register(new URLSegmentsExchange
+            .Builder("http://localhost:1/sites/"
+                + "SiteCollection/Lists/Custom List/cs.pdf")
+            .setResult(true)
+            .setListId("{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}")
+            .setItemId("2")
+            .build());
+    final String goldenContents = "pdf contents";
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new HttpClient() {
+          @Override
+          public FileInfo issueGetRequest(URL url,
+              List<String> authenticationCookies, String adaptorUserAgent,
+              int maxRedirectsToFollow, boolean performBrowserLeniency,
+              Date ifModifiedSince, String ifNoneMatch) {
+            assertEquals("http://localhost:1/sites/SiteCollection/Lists/"
+                + "Custom%20List/cs.pdf", url.toString());
+            if (ifModifiedSince != null || ifNoneMatch != null) {
+              // The file itself hasn't changed since the last access.
+              return new FileInfo.Builder(
+                  new ByteArrayInputStream(new byte[0]))
+                  .setNotModified(true).build();
+            }
+            InputStream contents = new ByteArrayInputStream(
+                goldenContents.getBytes(charset));
+            List<String> headers = Arrays.asList(
+                "Last-Modified", "Tue, 01 May 2012 22:14:41 GMT");
+            return new FileInfo.Builder(contents).setHeaders(headers).build();
+          }
+
+          @Override
+          public String getRedirectLocation(URL url,
+              List<String> authenticationCookies, String adaptorUserAgent)
+                  throws IOException {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public HttpURLConnection getHttpURLConnection(URL url)
+              throws IOException {
+            throw new UnsupportedOperationException();
+          }
+        }, executorFactory, new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>());
+    DocId docId = new DocId("http://localhost:1/sites/SiteCollection/"
+        + "Lists/Custom List/cs.pdf");
+    // The list item was modified after the last access, for example its
+    // permissions changed, but the file wasn't.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse response = new RecordingResponse(baos);
+    siteAdaptor.getDocContent(
+        new DocRequest(docId, new Date(1336000000000L)), response);
+    assertEquals(State.SEND_BODY, response.getState());
+    assertEquals(goldenContents, new String(baos.toByteArray(), charset));
+    assertEquals(new Acl.Builder()
+        .setInheritFrom(new DocId("http://localhost:1/sites/SiteCollection/"
+            + "Lists/Custom List"))
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES).build(),
+        response.getAcl());
+    assertEquals(new Date(1336166672000L), response.getLastModified());
+  }
+
+  @Test
+  public void testGetDocContentAspxNotModified() throws Exception {
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    httpClient.notModified = true;
+    SharePointAdaptor.SiteAdaptor siteAdaptor = aspxSiteAdaptor(httpClient);
+    Date lastAccess = new Date(1336000000000L);
+    RecordingResponse response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), lastAccess), response);
+    assertEquals(State.NO_CONTENT, response.getState());
+    assertEquals(lastAccess, httpClient.ifModifiedSince);
+    assertNull(httpClient.ifNoneMatch);
+  }
+
+  @Test
+  public void testGetDocContentAspxUnconditionalWithoutLastAccess()
+      throws Exception {
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    SharePointAdaptor.SiteAdaptor siteAdaptor = aspxSiteAdaptor(httpClient);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse response = new RecordingResponse(baos);
+    siteAdaptor.getDocContent(
+        new DocRequest(new DocId(SITE_COLLECTION_ASPX)), response);
+    assertEquals(State.SEND_BODY, response.getState());
+    assertEquals("aspx contents", new String(baos.toByteArray(), charset));
+    assertNull(httpClient.ifModifiedSince);
+    assertNull(httpClient.ifNoneMatch);
+  }
+
+  @Test
+  public void testGetDocContentAttachmentNotModified() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE);
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    httpClient.notModified = true;
+    adaptor = new SharePointAdaptor(initableSoapFactory, httpClient,
+        executorFactory, new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    Date lastAccess = new Date(1336000000000L);
+    RecordingResponse response = new RecordingResponse();
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(new DocRequest(new DocId(
+            "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+            + "Attachments/2/1046000.pdf"), lastAccess), response);
+    assertEquals(State.NO_CONTENT, response.getState());
+    assertEquals(lastAccess, httpClient.ifModifiedSince);
+  }
+
+  @Test
+  public void testGetDocContentAspxReusesETag() throws Exception {
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    httpClient.headers = Arrays.asList("ETag", "\"{1},1\"");
+    SharePointAdaptor.SiteAdaptor siteAdaptor = aspxSiteAdaptor(httpClient);
+    Date beforeSent = new Date(1336000000000L);
+    RecordingResponse response = new RecordingResponse();
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), beforeSent), response);
+    assertEquals(State.SEND_BODY, response.getState());
+    assertNull(httpClient.ifNoneMatch);
+
+    // The GSA accessed the page after the version with the ETag was sent.
+    Date afterSent = new Date(System.currentTimeMillis() + 1000);
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), afterSent), new RecordingResponse());
+    assertEquals(afterSent, httpClient.ifModifiedSince);
+    assertEquals("\"{1},1\"", httpClient.ifNoneMatch);
+
+    // The GSA isn't known to have the version with the ETag.
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), beforeSent), new RecordingResponse());
+    assertEquals(beforeSent, httpClient.ifModifiedSince);
+    assertNull(httpClient.ifNoneMatch);
+  }
+
+  @Test
+  public void testGetDocContentAspxTruncatedKeepsNoETag() throws Exception {
+    config.overrideKey("sharepoint.maxFileSize", "4");
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    httpClient.headers = Arrays.asList("ETag", "\"{1},1\"");
+    SharePointAdaptor.SiteAdaptor siteAdaptor = aspxSiteAdaptor(httpClient);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse response = new RecordingResponse(baos);
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), new Date(1336000000000L)), response);
+    assertEquals("aspx", new String(baos.toByteArray(), charset));
+
+    siteAdaptor.getDocContent(new DocRequest(new DocId(SITE_COLLECTION_ASPX),
+          new Date(System.currentTimeMillis() + 1000)),
+        new RecordingResponse());
+    assertNull(httpClient.ifNoneMatch);
+  }
+
+  @Test
+  public void testGetDocContentAspxLargerThanMaxFileSize() throws Exception {
+    config.overrideKey("sharepoint.maxFileSize", "4");
+    ConditionalHttpClient httpClient = new ConditionalHttpClient();
+    httpClient.contents = "tiny";
+    httpClient.headers
+        = Arrays.asList("Content-Length", "4", "ETag", "\"{1},1\"");
+    SharePointAdaptor.SiteAdaptor siteAdaptor = aspxSiteAdaptor(httpClient);
+    siteAdaptor.getDocContent(new DocRequest(new DocId(SITE_COLLECTION_ASPX),
+          new Date(1336000000000L)), new RecordingResponse());
+
+    // The page grew past the limit, so its content is neither downloaded nor
+    // sent, and the ETag of the previous version is forgotten.
+    httpClient.contents = "aspx contents";
+    httpClient.headers
+        = Arrays.asList("Content-Length", "13", "ETag", "\"{1},2\"");
+    Date afterSent = new Date(System.currentTimeMillis() + 1000);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    RecordingResponse response = new RecordingResponse(baos);
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), afterSent), response);
+    assertEquals("\"{1},1\"", httpClient.ifNoneMatch);
+    assertEquals(State.SEND_BODY, response.getState());
+    assertEquals(0, baos.size());
+    assertEquals(13, httpClient.lastContents.available());
+
+    siteAdaptor.getDocContent(new DocRequest(
+        new DocId(SITE_COLLECTION_ASPX), afterSent), new RecordingResponse());
+    assertNull(httpClient.ifNoneMatch);
+  }
+
+  /**
+   * Initializes {@link #adaptor} with {@code httpClient} and returns a
+   * SiteAdaptor for the site collection, whose page {@link
+   * #SITE_COLLECTION_ASPX} is retrieved with {@code httpClient}.
+   */
+  private SharePointAdaptor.SiteAdaptor aspxSiteAdaptor(HttpClient httpClient)
+      throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(new URLSegmentsExchange.Builder(SITE_COLLECTION_ASPX)
+            .setResult(false)
+            .build());
+    adaptor = new SharePointAdaptor(initableSoapFactory, httpClient,
+        executorFactory, new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    return adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", siteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        new UnsupportedCallable<MemberIdMapping>(),
+        new UnsupportedCallable<MemberIdMapping>());
+  }
+
   @Test
   public void testGetDocContentInList() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
@@ -3221,7 +4273,8 @@ public class SharePointAdaptorTest {
           @Override
           public FileInfo issueGetRequest(URL url,
               List<String> authenticationCookies, String adaptorUserAgent,
-              int maxRedirectsToFollow, boolean performBrowserLeniency) {
+              int maxRedirectsToFollow, boolean performBrowserLeniency,
+              Date ifModifiedSince, String ifNoneMatch) {
             assertEquals("http://localhost:1/sites/SiteCollection/Lists/"
                 + "Custom%20List/cs.pdf", url.toString());
             InputStream contents = new ByteArrayInputStream(
@@ -3664,7 +4717,137 @@ public class SharePointAdaptorTest {
     assertEquals(goldenGroups, pusher.getGroupDefinitions(
         "SITEID-bb3bb2dd-6ea7-471b-a361-6fb67988755c"));
   }
-  
+  
+  @Test
+  public void testGetDocIdsConcurrentTraversal() throws Exception {
+    config.overrideKey("sharepoint.traversalThreads", "2");
+    // Neither site collection answers until both are being retrieved.
+    CountDownLatch bothInFlight = new CountDownLatch(2);
+    AtomicBoolean timedOut = new AtomicBoolean();
+    ContentExchange rootScContentExchange
+        = SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE
+        .replaceInContent("http://localhost:1/sites/SiteCollection",
+            "http://localhost:1")
+        .replaceInContent("{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+            "{5cbcd3b1-fca9-48b2-92db-3b5de26f837d}");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, waitForAll(MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE)
+          .register(CD_CONTENT_EXCHANGE)
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(SITES_SITECOLLECTION_SAW_EXCHANGE)
+          .register(rootScContentExchange), bothInFlight, timedOut))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, waitForAll(MockSiteData.blank()
+          .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE),
+          bothInFlight, timedOut)),
+        new UnsupportedHttpClient(), new ExecutorFactory() {
+          @Override
+          public ExecutorService newExecutor(int coreThreads,
+              int maxThreads, int queueSize) {
+            return Executors.newCachedThreadPool();
+          }
+
+          @Override
+          public ExecutorService newTraversalExecutor(int threads) {
+            return Executors.newFixedThreadPool(threads);
+          }
+        },
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getDocIds(pusher);
+    assertFalse("Site collections were retrieved one at a time",
+        timedOut.get());
+    assertEquals(
+        Arrays.asList(new DocIdPusher.Record.Builder(new DocId("")).build()),
+        pusher.getRecords());
+    assertEquals(3, pusher.getGroupDefinitions(
+        "SITEID-bb3bb2dd-6ea7-471b-a361-6fb67988755c").size());
+    assertEquals(3, pusher.getGroupDefinitions(
+        "SITEID-5cbcd3b1-fca9-48b2-92db-3b5de26f837d").size());
+  }
+
+  /**
+   * Makes GetContent(SiteCollection) calls to {@code siteData} wait until
+   * {@code latch} has been counted down by as many calls as it started with,
+   * setting {@code timedOut} if that doesn't happen within 10 seconds.
+   */
+  private static SiteDataSoap waitForAll(final SiteDataSoap siteData,
+      final CountDownLatch latch, final AtomicBoolean timedOut) {
+    return new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        if (objectType == ObjectType.SITE_COLLECTION) {
+          latch.countDown();
+          try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+              timedOut.set(true);
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WebServiceException(ex);
+          }
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+  }
+
+  @Test
+  public void testAdaptorInitWithInvalidTraversalThreads() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.traversalThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testAdaptorInitWithExecutorMaxBelowCore() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.executorCoreThreads", "8");
+    config.overrideKey("sharepoint.executorMaxThreads", "4");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testAdaptorInitRegistersStatusSources() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    MockAdaptorContext context = new MockAdaptorContext(config, pusher);
+    adaptor.init(context);
+    // Per-host concurrency, site connections, SOAP calls, SOAP time by site
+    // collection and document requests.
+    assertEquals(5, context.getStatusSources().size());
+    for (StatusSource source : context.getStatusSources()) {
+      assertEquals(Status.Code.NORMAL, source.retrieveStatus().getCode());
+    }
+    assertEquals("size=0/1000, hitRate=100.0%, evictions=0",
+        context.getStatusSources().get(1).retrieveStatus()
+        .getMessage(Locale.ENGLISH));
+  }
+
   @Test
   public void testGetDocIdsSiteCollectionOnly() throws Exception {
     final Map<GroupPrincipal, Collection<Principal>> goldenGroups;
@@ -3919,6 +5102,122 @@ public class SharePointAdaptorTest {
     assertEquals(1, atomicNumberGetChangesCalls.get());
   }
 
+  @Test
+  public void testModifiedGetDocIdsPollingExecutorFailurePropagates()
+      throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(ContentExchange.Builder.fromContentExchange(
+              CD_CONTENT_EXCHANGE)
+            .setRetrieveChildItems(false).build());
+    final AtomicBoolean executorFails = new AtomicBoolean();
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, siteData),
+        new UnsupportedHttpClient(), new ExecutorFactory() {
+          @Override
+          public ExecutorService newExecutor(int coreThreads,
+              int maxThreads, int queueSize) {
+            return new CallerRunsExecutor();
+          }
+
+          @Override
+          public ExecutorService newTraversalExecutor(int threads) {
+            if (executorFails.get()) {
+              throw new IllegalStateException("fake executor failure");
+            }
+            return new CallerRunsExecutor();
+          }
+        },
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    // Initialize changeIds.
+    adaptor.getModifiedDocIds(pusher);
+
+    // A programming error is not mistaken for a failure to reach SharePoint.
+    executorFails.set(true);
+    thrown.expect(IllegalStateException.class);
+    adaptor.getModifiedDocIds(pusher);
+  }
+
+  @Test
+  public void testModifiedGetDocIdsResumesAfterRestart() throws Exception {
+    final String getContentContentDatabase4fb
+        = "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056594000000;603\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase>";
+    final String getChangesContentDatabase4fb
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056594000000;603\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(new ContentExchange.Builder(ObjectType.CONTENT_DATABASE)
+            .setObjectId("{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}")
+            .setRetrieveChildItems(false)
+            .setSecurityOnly(false)
+            .setResult(getContentContentDatabase4fb)
+            .build())
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              null,
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              15, getChangesContentDatabase4fb, false));
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getChanges(ObjectType objectType,
+          String contentDatabaseId, Holder<String> lastChangeId,
+          Holder<String> currentChangeId, Integer timeout,
+          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
+        atomicNumberGetChangesCalls.getAndIncrement();
+        super.getChanges(objectType, contentDatabaseId, lastChangeId,
+            currentChangeId, timeout, getChangesResult, moreChanges);
+      }
+    };
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, countingSiteData);
+    config.overrideKey("sharepoint.changeTokenFile",
+        tmpFolder.newFile("changeTokens").getPath());
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    // Initialize changeIds.
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(0, atomicNumberGetChangesCalls.get());
+    adaptor.destroy();
+
+    // After a restart, changes are retrieved from the stored change id instead
+    // of starting over from the current change id.
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(1, atomicNumberGetChangesCalls.get());
+  }
+
   @Test
   public void testModifiedGetDocIdsClient() throws Exception {
     final String getChangesContentDatabase
@@ -4000,6 +5299,146 @@ public class SharePointAdaptorTest {
     assertEquals(0, pusher.getRecords().size());
     assertTrue(pusher.getGroupDefinitions().isEmpty());
   }
+  @Test
+  public void testModifiedGetDocIdsKeepsChangeIdWhenGroupsFail()
+      throws Exception {
+    final String siteId = "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}";
+    final String changeId726 = "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+        + "634762601982930000;726";
+    final String changeId728 = "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+        + "634762601982930000;728";
+    final AtomicBoolean groupsFail = new AtomicBoolean();
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)
+        .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                siteId, changeId726, changeId728, null, changeId728,
+                600, loadTestString(
+                    "testModifiedGetDocIdsClient.changes-sc.xml")
+                  .replace("<SPSite Change=\"Unchanged\" ItemCount=\"1\">",
+                    "<SPSite Change=\"UpdateSecurity\" ItemCount=\"1\""
+                    + " ServerUrl=\"http://localhost:1\""
+                    + " DisplayUrl=\"/sites/SiteCollection\">"),
+                false));
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, new DelegatingSiteData() {
+          @Override
+          protected SiteDataSoap delegate() {
+            return siteData;
+          }
+
+          @Override
+          public void getContent(ObjectType objectType, String objectId,
+              String folderUrl, String itemId, boolean retrieveChildItems,
+              boolean securityOnly, Holder<String> lastItemIdOnPage,
+              Holder<String> getContentResult) {
+            if (objectType == ObjectType.SITE_COLLECTION && groupsFail.get()) {
+              throw new WebServiceException("Mock SOAP error");
+            }
+            super.getContent(objectType, objectId, folderUrl, itemId,
+                retrieveChildItems, securityOnly, lastItemIdOnPage,
+                getContentResult);
+          }
+        });
+    File tokenFile = tmpFolder.newFile("changeTokens");
+    config.overrideKey("sharepoint.changeTokenFile", tokenFile.getPath());
+    config.overrideKey("sharepoint.server",
+        "http://localhost:1/sites/SiteCollection");
+    config.overrideKey("sharepoint.siteCollectionOnly", "true");
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher() {
+      @Override
+      public DocIdPusher.Record pushRecords(
+          Iterable<DocIdPusher.Record> records) {
+        // The site collection's groups are retrieved after the records.
+        groupsFail.set(true);
+        return super.pushRecords(records);
+      }
+    };
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getModifiedDocIds(pusher);
+    assertTrue(groupsFail.get());
+    assertTrue(pusher.getGroupDefinitions().isEmpty());
+    adaptor.destroy();
+    adaptor = null;
+    assertEquals(Collections.singletonMap(siteId, changeId726),
+        new FileChangeTokenStore(tokenFile, 0).load());
+  }
+
+  @Test
+  public void testModifiedGetDocIdsKeepsChangeIdWhenPushFails()
+      throws Exception {
+    final String siteId = "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}";
+    final String changeId726 = "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+        + "634762601982930000;726";
+    final String changeId728 = "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+        + "634762601982930000;728";
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
+            .register(ROOT_SITE_SAW_EXCHANGE)
+            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+            .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)
+            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                    siteId, changeId726, changeId728, null, changeId728,
+                    600, loadTestString(
+                        "testModifiedGetDocIdsClient.changes-sc.xml"),
+                    false))
+            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                    siteId, changeId728, changeId728, null, changeId728,
+                    600, "<SPSite Change=\"Unchanged\" ItemCount=\"0\">"
+                        + "<Messages /></SPSite>", false)));
+    File tokenFile = tmpFolder.newFile("changeTokens");
+    config.overrideKey("sharepoint.changeTokenFile", tokenFile.getPath());
+    config.overrideKey("sharepoint.server",
+        "http://localhost:1/sites/SiteCollection");
+    config.overrideKey("sharepoint.siteCollectionOnly", "true");
+    final AtomicLong pushAttempts = new AtomicLong();
+    RecordingDocIdPusher failingPusher = new RecordingDocIdPusher() {
+      @Override
+      public DocIdPusher.Record pushRecords(
+          Iterable<DocIdPusher.Record> records) {
+        pushAttempts.incrementAndGet();
+        return records.iterator().next();
+      }
+    };
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, failingPusher));
+    adaptor.getModifiedDocIds(failingPusher);
+    assertEquals(1, pushAttempts.get());
+    adaptor.destroy();
+    assertEquals(Collections.singletonMap(siteId, changeId726),
+        new FileChangeTokenStore(tokenFile, 0).load());
+
+    // After a restart the changes that failed to push are retrieved again.
+    RecordingDocIdPusher pusher = new RecordingDocIdPusher();
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(Arrays.asList(new DocIdPusher.Record.Builder(
+            new DocId("http://localhost:1/sites/SiteCollection/"
+                + "Lists/Announcements/2_.000"))
+            .setCrawlImmediately(true).build()), pusher.getRecords());
+    adaptor.destroy();
+    adaptor = null;
+    assertEquals(Collections.singletonMap(siteId, changeId728),
+        new FileChangeTokenStore(tokenFile, 0).load());
+  }
 
   @Test
   public void testParseError() throws Exception {
@@ -4087,6 +5526,18 @@ public class SharePointAdaptorTest {
     client.jaxbParse(xml, SPContentDatabase.class);
   }
 
+  @Test
+  public void testParseMissingNamespace() throws Exception {
+    SiteDataClient client = new SiteDataClient(
+        new UnsupportedSiteData(), true);
+    // SharePoint's responses do not include a namespace.
+    String xml = loadTestString("sites-SiteCollection-Lists-CustomList-1-f.xml")
+        .replace("MetaInfo='2;#'", "MetaInfo='2;#&#31;'");
+    ItemData data = client.jaxbParse(xml, ItemData.class);
+    assertNotNull(data);
+    assertNotNull(data.getXml());
+  }
+
   @Test
   public void testFileInfoGetFirstHeaderWithNameMissing() {
     FileInfo fi = new FileInfo.Builder(new ByteArrayInputStream(new byte[0]))
@@ -4129,7 +5580,7 @@ public class SharePointAdaptorTest {
     };
     thrown.expect(IOException.class);
     client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-        new ArrayList<String>(), "", 10, true);
+        new ArrayList<String>(), "", 10, true, null, null);
   }  
 
   @Test
@@ -4144,7 +5595,21 @@ public class SharePointAdaptorTest {
     };
     thrown.expect(IOException.class);
     client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-        new ArrayList<String>(), "", 10, true);
+        new ArrayList<String>(), "", 10, true, null, null);
+  }
+
+  @Test
+  public void testIssueGetRequestWithHttpUnavailable() throws Exception {
+    HttpClient client = new SharePointAdaptor.HttpClientImpl() {
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url) {
+        return new MockHttpURLConnection(url,
+            HttpURLConnection.HTTP_UNAVAILABLE, null, null);
+      }
+    };
+    thrown.expect(AdaptiveConcurrencyLimiter.OverloadedException.class);
+    client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
+        new ArrayList<String>(), "", 10, true, null, null);
   }
 
   @Test
@@ -4167,7 +5632,7 @@ public class SharePointAdaptorTest {
     };    
     FileInfo output =
         client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-            new ArrayList<String>(), "", 10, true);
+            new ArrayList<String>(), "", 10, true, null, null);
     ByteArrayOutputStream content = new ByteArrayOutputStream();
     IOHelper.copyStream(output.getContents(), content);
     assertEquals("Golden Content", content.toString());
@@ -4186,13 +5651,56 @@ public class SharePointAdaptorTest {
     };    
     FileInfo output =
         client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-            new ArrayList<String>(), "", 10, true);
+            new ArrayList<String>(), "", 10, true, null, null);
     ByteArrayOutputStream content = new ByteArrayOutputStream();
     IOHelper.copyStream(output.getContents(), content);
     assertEquals("Golden Content", content.toString());
     output.getContents().close();
   }
   
+  @Test
+  public void testIssueGetRequestNotModified() throws Exception {
+    final AtomicReference<HttpURLConnection> conn
+        = new AtomicReference<HttpURLConnection>();
+    HttpClient client = new SharePointAdaptor.HttpClientImpl() {
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url) {
+        conn.set(new MockHttpURLConnection(url,
+            HttpURLConnection.HTTP_NOT_MODIFIED, null, null));
+        return conn.get();
+      }
+    };
+    FileInfo output =
+        client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
+            new ArrayList<String>(), "", 10, true, new Date(1336000000000L),
+            "\"{1},1\"");
+    assertTrue(output.isNotModified());
+    assertEquals(1336000000000L, conn.get().getIfModifiedSince());
+    assertEquals("\"{1},1\"", conn.get().getRequestProperty("If-None-Match"));
+    output.getContents().close();
+  }
+
+  @Test
+  public void testIssueGetRequestUnconditional() throws Exception {
+    final AtomicReference<HttpURLConnection> conn
+        = new AtomicReference<HttpURLConnection>();
+    HttpClient client = new SharePointAdaptor.HttpClientImpl() {
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url) {
+        conn.set(new MockHttpURLConnection(url, HttpURLConnection.HTTP_OK,
+            null, "Golden Content"));
+        return conn.get();
+      }
+    };
+    FileInfo output =
+        client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
+            new ArrayList<String>(), "", 10, true, null, null);
+    assertFalse(output.isNotModified());
+    assertEquals(0, conn.get().getIfModifiedSince());
+    assertNull(conn.get().getRequestProperty("If-None-Match"));
+    output.getContents().close();
+  }
+
   @Test
   public void testIssueGetRequestWithZeroRedirectsAllowed() throws Exception {
     HttpClient client = new SharePointAdaptor.HttpClientImpl(){
@@ -4214,7 +5722,7 @@ public class SharePointAdaptorTest {
     };
     thrown.expect(IOException.class);
     client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-        new ArrayList<String>(), "", 0, true);
+        new ArrayList<String>(), "", 0, true, null, null);
   }
 
   @Test
@@ -4244,7 +5752,7 @@ public class SharePointAdaptorTest {
     };
     FileInfo output =
         client.issueGetRequest(new URL("http://localshost:8080/default.aspx"),
-            new ArrayList<String>(), "", 20, true);
+            new ArrayList<String>(), "", 20, true, null, null);
     ByteArrayOutputStream content = new ByteArrayOutputStream();
     IOHelper.copyStream(output.getContents(), content);
     assertEquals("Golden Content", content.toString());
@@ -4279,7 +5787,7 @@ public class SharePointAdaptorTest {
     };
     FileInfo output
         = client.issueGetRequest(new URL("http://localhost:8080/default.aspx"),
-            new ArrayList<String>(), "", 20, true);
+            new ArrayList<String>(), "", 20, true, null, null);
     ByteArrayOutputStream content = new ByteArrayOutputStream();
     IOHelper.copyStream(output.getContents(), content);
     assertEquals("Golden Content", content.toString());
@@ -4313,7 +5821,7 @@ public class SharePointAdaptorTest {
     };
     FileInfo output
         = client.issueGetRequest(new URL("https://localhost:8080/default.aspx"),
-            new ArrayList<String>(), "", 20, true);
+            new ArrayList<String>(), "", 20, true, null, null);
     ByteArrayOutputStream content = new ByteArrayOutputStream();
     IOHelper.copyStream(output.getContents(), content);
     assertEquals("Golden Content", content.toString());
@@ -4340,7 +5848,7 @@ public class SharePointAdaptorTest {
     };
     thrown.expect(IOException.class);
     client.issueGetRequest(new URL("http://localhost:8080/default.aspx"),
-        new ArrayList<String>(), "", 20, true);
+        new ArrayList<String>(), "", 20, true, null, null);
   }
 
   @Test
@@ -4455,11 +5963,49 @@ public class SharePointAdaptorTest {
         .getResourceAsStream(resource), Charset.forName("UTF-8"));
   }
 
+  /**
+   * Serves every file with {@link #contents} and {@link #headers}, or as not
+   * modified if {@link #notModified}, and records the conditional request
+   * headers of the last request.
+   */
+  private static class ConditionalHttpClient extends UnsupportedHttpClient {
+    private volatile String contents = "aspx contents";
+    private volatile List<String> headers = Collections.emptyList();
+    private volatile boolean notModified;
+    private volatile Date ifModifiedSince;
+    private volatile String ifNoneMatch;
+    private volatile InputStream lastContents;
+
+    @Override
+    public FileInfo issueGetRequest(URL url,
+        List<String> authenticationCookies, String adaptorUserAgent,
+        int maxRedirectsToFollow, boolean performBrowserLeniency,
+        Date ifModifiedSince, String ifNoneMatch) {
+      this.ifModifiedSince = ifModifiedSince;
+      this.ifNoneMatch = ifNoneMatch;
+      if (notModified) {
+        return new FileInfo.Builder(new ByteArrayInputStream(new byte[0]))
+            .setNotModified(true).build();
+      }
+      lastContents = new ByteArrayInputStream(
+          contents.getBytes(Charset.forName("UTF-8")));
+      return new FileInfo.Builder(lastContents).setHeaders(headers).build();
+    }
+
+    @Override
+    public String getRedirectLocation(URL url,
+        List<String> authenticationCookies, String adaptorUserAgent) {
+      return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+          + "/AllItems.aspx";
+    }
+  }
+
   private static class UnsupportedHttpClient implements HttpClient {
     @Override
     public FileInfo issueGetRequest(URL url,
         List<String> authenticationCookies, String adaptorUserAgent,
-        int maxRedirectsToFollow, boolean performBrowserLeniency) {
+        int maxRedirectsToFollow, boolean performBrowserLeniency,
+        Date ifModifiedSince, String ifNoneMatch) {
       throw new UnsupportedOperationException();
     }
 
@@ -5041,6 +6587,17 @@ public class SharePointAdaptorTest {
     }
   }
 
+  /** Records whether the port was closed. */
+  private static class ClosingSiteData extends UnsupportedSiteData
+      implements Closeable {
+    private boolean closed;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
   /**
    * Throw UnsupportedOperationException for all calls.
    */
@@ -5080,6 +6637,21 @@ public class SharePointAdaptorTest {
     }
   }
 
+  private static class CountingCallable<V> implements Callable<V> {
+    private final AtomicReference<V> value;
+    private final AtomicLong calls = new AtomicLong();
+
+    public CountingCallable(V value) {
+      this.value = new AtomicReference<V>(value);
+    }
+
+    @Override
+    public V call() {
+      calls.incrementAndGet();
+      return value.get();
+    }
+  }
+
   private static class UnsupportedCallable<V> implements Callable<V> {
     @Override
     public V call() {
@@ -5178,6 +6750,40 @@ public class SharePointAdaptorTest {
     }
   }
 
+  /**
+   * Counts the site collection retrievals, and holds each of them until {@code
+   * gate} opens.
+   */
+  private static class GatedSiteData extends DelegatingSiteData {
+    private final SiteDataSoap siteData;
+    private final CountDownLatch gate;
+    private final AtomicLong siteCollectionCalls = new AtomicLong();
+
+    public GatedSiteData(SiteDataSoap siteData, CountDownLatch gate) {
+      this.siteData = siteData;
+      this.gate = gate;
+    }
+
+    @Override
+    protected SiteDataSoap delegate() {
+      return siteData;
+    }
+
+    @Override
+    public void getContent(ObjectType objectType, String objectId,
+        String folderUrl, String itemId, boolean retrieveChildItems,
+        boolean securityOnly, Holder<String> lastItemIdOnPage,
+        Holder<String> getContentResult) {
+      if (objectType == ObjectType.SITE_COLLECTION) {
+        siteCollectionCalls.incrementAndGet();
+        Uninterruptibles.awaitUninterruptibly(gate, 10, TimeUnit.SECONDS);
+      }
+      super.getContent(objectType, objectId, folderUrl, itemId,
+          retrieveChildItems, securityOnly, lastItemIdOnPage,
+          getContentResult);
+    }
+  }
+
   private static class MockSiteData extends UnsupportedSiteData {
     private final List<URLSegmentsExchange> urlSegmentsList;
     private final List<ContentExchange> contentList;
@@ -0,0 +1,113 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.adaptor.Status;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/** Test cases for {@link SoapMetrics}. */
+public class SoapMetricsTest {
+  private static final String SITE1 = "http://localhost:1/sites/SiteCollection";
+  private static final String SITE2 = "http://localhost:1/sites/Other";
+
+  private final SoapMetrics metrics = new SoapMetrics();
+
+  @Test
+  public void testNoCalls() {
+    Status status = metrics.retrieveStatus();
+    assertEquals(Status.Code.NORMAL, status.getCode());
+    assertEquals("No calls", status.getMessage(Locale.ENGLISH));
+    assertEquals("No calls", metrics.getSiteStatusSource().retrieveStatus()
+        .getMessage(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testRecordByObjectType() {
+    metrics.record("GetContent", "ListItem", SITE1, millis(3), 100, false);
+    metrics.record("GetContent", "ListItem", SITE1, millis(30), 300, false);
+    metrics.record("GetContent", "Web", SITE1, millis(1), 50, false);
+    metrics.record("GetURLSegments", null, SITE2, millis(7), 0, true);
+
+    SoapMetrics.OperationStats stats
+        = metrics.getOperationStats("GetContent(ListItem)");
+    assertEquals(2, stats.getCount());
+    assertEquals(0, stats.getErrors());
+    assertEquals(16, stats.getAverageMillis());
+    assertEquals(200, stats.getAverageResponseChars());
+    assertEquals(1, metrics.getOperationStats("GetContent(Web)").getCount());
+    assertEquals(1, metrics.getOperationStats("GetURLSegments").getErrors());
+    assertNull(metrics.getOperationStats("GetContent"));
+    assertEquals(millis(34), metrics.getSiteNanos(SITE1));
+    assertEquals(millis(7), metrics.getSiteNanos(SITE2));
+  }
+
+  @Test
+  public void testPercentiles() {
+    for (int i = 0; i < 90; i++) {
+      metrics.record("GetChanges", null, null, millis(4), 0, false);
+    }
+    for (int i = 0; i < 9; i++) {
+      metrics.record("GetChanges", null, null, millis(150), 0, false);
+    }
+    metrics.record("GetChanges", null, null, millis(60000), 0, false);
+    SoapMetrics.OperationStats stats = metrics.getOperationStats("GetChanges");
+    assertEquals(5, stats.getPercentileMillis(50));
+    assertEquals(200, stats.getPercentileMillis(95));
+    assertEquals(200, stats.getPercentileMillis(99));
+    assertEquals(-1, stats.getPercentileMillis(100));
+    assertEquals("GetChanges: count=100, errors=0, avgMs=617, p50Ms<=5, "
+        + "p95Ms<=200, p99Ms<=200, avgResponseChars=0",
+        metrics.retrieveStatus().getMessage(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testManyErrorsWarn() {
+    metrics.record("GetContent", "Site", SITE1, millis(1), 0, false);
+    assertEquals(Status.Code.NORMAL, metrics.retrieveStatus().getCode());
+    metrics.record("GetContent", "Site", SITE1, millis(1), 0, true);
+    assertEquals(Status.Code.WARNING, metrics.retrieveStatus().getCode());
+  }
+
+  @Test
+  public void testSitesSortedByTime() {
+    metrics.record("GetContent", "Web", SITE1, millis(1000), 0, false);
+    metrics.record("GetContent", "Web", SITE2, millis(3000), 0, false);
+    assertEquals(SITE2 + "=3s; " + SITE1 + "=1s",
+        metrics.getSiteStatusSource().retrieveStatus()
+        .getMessage(Locale.ENGLISH));
+  }
+
+  @Test
+  public void testSitesBounded() {
+    for (int i = 0; i < SoapMetrics.MAX_SITES; i++) {
+      metrics.record("GetSiteAndWeb", null, "http://localhost:1/sites/" + i,
+          1, 0, false);
+    }
+    metrics.record("GetSiteAndWeb", null, SITE1, 5, 0, false);
+    assertEquals(0, metrics.getSiteNanos(SITE1));
+    assertEquals(5, metrics.getSiteNanos(SoapMetrics.OTHER_SITES));
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
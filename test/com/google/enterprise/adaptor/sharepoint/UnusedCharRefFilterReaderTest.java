@@ -0,0 +1,134 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Test cases for {@link UnusedCharRefFilterReader}.
+ */
+public class UnusedCharRefFilterReaderTest {
+  @Test
+  public void testNoReferences() throws IOException {
+    assertEquals("<a b='c'>d</a>", filter("<a b='c'>d</a>"));
+  }
+
+  @Test
+  public void testRemovesUnusedReferences() throws IOException {
+    assertEquals("ab", filter("a&#0;b"));
+    assertEquals("ab", filter("a&#8;b"));
+    assertEquals("ab", filter("a&#00;b"));
+    assertEquals("ab", filter("a&#08;b"));
+    assertEquals("ab", filter("a&#11;b"));
+    assertEquals("ab", filter("a&#12;b"));
+    assertEquals("ab", filter("a&#14;b"));
+    assertEquals("ab", filter("a&#31;b"));
+    assertEquals("ab", filter("a&#127;b"));
+    assertEquals("ab", filter("a&#159;b"));
+    assertEquals("ab", filter("&#31;a&#1;&#2;b&#31;"));
+  }
+
+  @Test
+  public void testKeepsOtherReferences() throws IOException {
+    String[] kept = new String[] {"&#9;", "&#09;", "&#10;", "&#13;",
+        "&#32;", "&#126;", "&#160;", "&#000;", "&#031;", "&#1234;", "&#x1F;",
+        "&amp;", "&#;", "&#31", "&", "&#"};
+    for (String ref : kept) {
+      assertEquals("a" + ref + "b", filter("a" + ref + "b"));
+      assertEquals(ref, filter(ref));
+    }
+  }
+
+  @Test
+  public void testReferenceAcrossBufferBoundary() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("xy&#31;z&#9;");
+      expected.append("xyz&#9;");
+    }
+    for (int bufferSize = 6; bufferSize < 20; bufferSize++) {
+      assertEquals(expected.toString(), filter(sb.toString(), bufferSize, 7));
+      assertEquals(expected.toString(), filter(sb.toString(), bufferSize, 1));
+    }
+  }
+
+  @Test
+  public void testReferenceAcrossShortReads() throws IOException {
+    Reader reader = new UnusedCharRefFilterReader(
+        new OneCharReader("xy&#31;z&#159;&#9;&#1;"), 6);
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[3];
+    int read;
+    while ((read = reader.read(buf, 0, buf.length)) != -1) {
+      sb.append(buf, 0, read);
+    }
+    assertEquals("xyz&#9;", sb.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBufferTooSmall() {
+    new UnusedCharRefFilterReader(new StringReader(""), 5);
+  }
+
+  @Test
+  public void testSingleCharRead() throws IOException {
+    Reader reader = new UnusedCharRefFilterReader(new StringReader("a&#31;"));
+    assertEquals('a', reader.read());
+    assertEquals(-1, reader.read());
+  }
+
+  private static String filter(String s) throws IOException {
+    return filter(s, 8 * 1024, 1024);
+  }
+
+  private static String filter(String s, int bufferSize, int readSize)
+      throws IOException {
+    Reader reader
+        = new UnusedCharRefFilterReader(new StringReader(s), bufferSize);
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[readSize];
+    int read;
+    while ((read = reader.read(buf, 0, buf.length)) != -1) {
+      sb.append(buf, 0, read);
+    }
+    return sb.toString();
+  }
+
+  /** Returns at most one character per read, like a slow network stream. */
+  private static class OneCharReader extends Reader {
+    private final Reader in;
+
+    public OneCharReader(String s) {
+      in = new StringReader(s);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      return in.read(cbuf, off, Math.min(len, 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
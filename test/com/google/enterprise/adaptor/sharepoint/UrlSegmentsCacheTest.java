@@ -0,0 +1,115 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.ws.Holder;
+
+/** Test cases for {@link UrlSegmentsCache}. */
+public class UrlSegmentsCacheTest {
+  private static final String LIST_URL
+      = "http://localhost:1/sites/SiteCollection/Lists/Custom List";
+  private static final String LIST_ID
+      = "{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}";
+
+  /** Item ids by URL. An empty id denotes the list itself. */
+  private final Map<String, String> items = new HashMap<String, String>();
+  private int requests;
+  private final SiteDataSoap siteDataSoap = new DelegatingSiteData() {
+    @Override
+    protected SiteDataSoap delegate() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void getURLSegments(String strURL,
+        Holder<Boolean> getURLSegmentsResult, Holder<String> strWebID,
+        Holder<String> strBucketID, Holder<String> strListID,
+        Holder<String> strItemID) {
+      requests++;
+      String itemId = items.get(strURL);
+      getURLSegmentsResult.value = itemId != null;
+      if (itemId != null) {
+        strListID.value = LIST_ID;
+        strItemID.value = itemId.isEmpty() ? null : itemId;
+      }
+    }
+  };
+  private final SiteDataClient siteDataClient
+      = new SiteDataClient(siteDataSoap, false);
+  private final UrlSegmentsCache cache = new UrlSegmentsCache(100, 30);
+
+  @Test
+  public void testGetCachesFoundUrls() throws IOException {
+    items.put(LIST_URL + "/Folder", "1");
+    UrlSegmentsCache.UrlSegments segments
+        = cache.get(siteDataClient, LIST_URL + "/Folder");
+    assertEquals(LIST_ID, segments.listId);
+    assertEquals("1", segments.itemId);
+    items.clear();
+    assertEquals("1", cache.get(siteDataClient, LIST_URL + "/Folder").itemId);
+    assertEquals(1, requests);
+  }
+
+  @Test
+  public void testGetDoesNotCacheMissingUrls() throws IOException {
+    assertNull(cache.get(siteDataClient, LIST_URL + "/Folder"));
+    items.put(LIST_URL + "/Folder", "1");
+    assertEquals("1", cache.get(siteDataClient, LIST_URL + "/Folder").itemId);
+    assertEquals(2, requests);
+  }
+
+  @Test
+  public void testRefresh() throws IOException {
+    items.put(LIST_URL + "/Folder", "1");
+    cache.get(siteDataClient, LIST_URL + "/Folder");
+    items.put(LIST_URL + "/Folder", "2");
+    assertEquals("2",
+        cache.refresh(siteDataClient, LIST_URL + "/Folder").itemId);
+    assertEquals("2", cache.get(siteDataClient, LIST_URL + "/Folder").itemId);
+    items.clear();
+    assertNull(cache.refresh(siteDataClient, LIST_URL + "/Folder"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidateUnder() throws IOException {
+    items.put(LIST_URL, "");
+    items.put(LIST_URL + "/Folder", "1");
+    items.put(LIST_URL + "/Folder/Sub", "2");
+    items.put(LIST_URL + " 2/Folder", "3");
+    for (String url : items.keySet()) {
+      cache.get(siteDataClient, url);
+    }
+    assertNull(cache.get(siteDataClient, LIST_URL).itemId);
+    assertEquals(4, cache.size());
+    cache.invalidateUnder(LIST_URL + "/Folder");
+    assertEquals(2, cache.size());
+    cache.invalidateUnder(LIST_URL);
+    assertEquals(1, cache.size());
+    cache.invalidate(LIST_URL + " 2/Folder");
+    assertEquals(0, cache.size());
+  }
+}